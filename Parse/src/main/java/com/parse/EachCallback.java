@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2015-present, Parse, LLC.
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree. An additional grant
+ * of patent rights can be found in the PATENTS file in the same directory.
+ */
+package com.parse;
+
+/**
+ * An {@code EachCallback} is used to step through the {@link ParseObject}s that match a
+ * {@link ParseQuery} from the local datastore one at a time, without holding all of them in memory.
+ * <p/>
+ * The {@code next} function is run in a background thread for each object, in the order of the
+ * query, and returns whether to keep going. Since the query keeps its connection to the local
+ * datastore open until it's done, {@code next} should not wait for other local datastore
+ * operations to finish.
+ * <p/>
+ * For example, this sample code steps through the pinned objects of class {@code "MyClass"} until
+ * it finds one that it's looking for.
+ * <p/>
+ * <pre>
+ * ParseQuery&lt;ParseObject&gt; query = ParseQuery.getQuery(&quot;MyClass&quot;);
+ * query.fromLocalDatastore();
+ * query.findEachInBackground(new EachCallback&lt;ParseObject&gt;() {
+ *   public boolean next(ParseObject object) {
+ *     if (isTheOneWeWant(object)) {
+ *       useObject(object);
+ *       return false;
+ *     }
+ *     return true;
+ *   }
+ * });
+ * </pre>
+ */
+public interface EachCallback<T extends ParseObject> {
+  /**
+   * Override this function with the code you want to run for each object.
+   *
+   * @param object
+   *          The next object that matches the query.
+   * @return {@code true} to go on to the next object, or {@code false} to stop.
+   */
+  public boolean next(T object);
+}
@@ -13,7 +13,9 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import bolts.Continuation;
 import bolts.Task;
@@ -24,6 +26,22 @@ import bolts.Task;
 
   private final ParseHttpClient restClient;
 
+  /**
+   * The find and count commands that are on the network, keyed by {@link #inFlightKey}, so that
+   * identical queries that are run at the same time can share a single request.
+   */
+  private final Map<String, InFlightCommand> inFlightCommands = new HashMap<>();
+  private final Object lock = new Object();
+
+  /**
+   * A command that's on the network, along with the number of callers still waiting for it.
+   */
+  private static class InFlightCommand {
+    private final Task<Void>.TaskCompletionSource cancellationToken = Task.create();
+    private Task<JSONObject> task;
+    private int callers;
+  }
+
   public NetworkQueryController(ParseHttpClient restClient) {
     this.restClient = restClient;
   }
@@ -52,15 +70,15 @@ import bolts.Task;
       String sessionToken,
       boolean shouldRetry,
       Task<Void> ct) {
+    if (hasFullTextConstraint(state.constraints())) {
+      return Task.forError(fullTextError());
+    }
     final long queryStart = System.nanoTime();
 
     final ParseRESTCommand command = ParseRESTQueryCommand.findCommand(state, sessionToken);
-    if (shouldRetry) {
-      command.enableRetrying();
-    }
 
     final long querySent = System.nanoTime();
-    return command.executeAsync(restClient, ct).onSuccess(new Continuation<JSONObject, List<T>>() {
+    return executeAsync(command, shouldRetry, ct).onSuccess(new Continuation<JSONObject, List<T>>() {
       @Override
       public List<T> then(Task<JSONObject> task) throws Exception {
         JSONObject json = task.getResult();
@@ -96,12 +114,12 @@ import bolts.Task;
       String sessionToken,
       boolean shouldRetry,
       Task<Void> ct) {
-    final ParseRESTCommand command = ParseRESTQueryCommand.countCommand(state, sessionToken);
-    if (shouldRetry) {
-      command.enableRetrying();
+    if (hasFullTextConstraint(state.constraints())) {
+      return Task.forError(fullTextError());
     }
+    final ParseRESTCommand command = ParseRESTQueryCommand.countCommand(state, sessionToken);
 
-    return command.executeAsync(restClient, ct).onSuccessTask(new Continuation<JSONObject, Task<JSONObject>>() {
+    return executeAsync(command, shouldRetry, ct).onSuccessTask(new Continuation<JSONObject, Task<JSONObject>>() {
       @Override
       public Task<JSONObject> then(Task<JSONObject> task) throws Exception {
         // Cache the results, unless we are ignoring the cache
@@ -121,6 +139,139 @@ import bolts.Task;
     });
   }
 
+  /**
+   * Returns whether a query has a {@code $text} constraint from
+   * {@link ParseQuery#whereFullText(String, String)}, which is only supported by the local
+   * datastore, since the server would match it differently.
+   */
+  /* package */ static boolean hasFullTextConstraint(ParseQuery.QueryConstraints constraints) {
+    if (constraints == null) {
+      return false;
+    }
+    for (Map.Entry<String, Object> entry : constraints.entrySet()) {
+      Object value = entry.getValue();
+      if (value instanceof ParseQuery.KeyConstraints
+          && ((ParseQuery.KeyConstraints) value).containsKey("$text")) {
+        return true;
+      }
+      if (entry.getKey().equals("$or") && value instanceof List) {
+        for (Object subquery : (List<?>) value) {
+          if (subquery instanceof ParseQuery.QueryConstraints
+              && hasFullTextConstraint((ParseQuery.QueryConstraints) subquery)) {
+            return true;
+          }
+        }
+      }
+    }
+    return false;
+  }
+
+  private static ParseException fullTextError() {
+    return new ParseException(ParseException.INVALID_QUERY,
+        "whereFullText is only supported for queries from the local datastore.");
+  }
+
+  //region In-flight commands
+
+  /**
+   * Runs a command, or joins an identical command that is already on the network.
+   *
+   * Commands are identical if they have the same cache key, which includes the session token, and
+   * the same retry policy. Each caller can cancel on its own. The shared request is only cancelled
+   * once every caller waiting for it has cancelled.
+   */
+  /* package */ Task<JSONObject> executeAsync(
+      ParseRESTCommand command, boolean shouldRetry, final Task<Void> ct) {
+    if (ct != null && ct.isCancelled()) {
+      return Task.cancelled();
+    }
+
+    final String key = inFlightKey(command, shouldRetry);
+    final InFlightCommand inFlight;
+    synchronized (lock) {
+      InFlightCommand existing = inFlightCommands.get(key);
+      if (existing != null) {
+        inFlight = existing;
+      } else {
+        inFlight = new InFlightCommand();
+        inFlightCommands.put(key, inFlight);
+        if (shouldRetry) {
+          command.enableRetrying();
+        }
+        inFlight.task = command.executeAsync(restClient, inFlight.cancellationToken.getTask())
+            .continueWithTask(new Continuation<JSONObject, Task<JSONObject>>() {
+              @Override
+              public Task<JSONObject> then(Task<JSONObject> task) throws Exception {
+                synchronized (lock) {
+                  if (inFlightCommands.get(key) == inFlight) {
+                    inFlightCommands.remove(key);
+                  }
+                }
+                return task;
+              }
+            });
+      }
+      inFlight.callers++;
+    }
+
+    final Task<JSONObject>.TaskCompletionSource tcs = Task.create();
+    inFlight.task.continueWith(new Continuation<JSONObject, Void>() {
+      @Override
+      public Void then(Task<JSONObject> task) throws Exception {
+        if (task.isCancelled()) {
+          tcs.trySetCancelled();
+        } else if (task.isFaulted()) {
+          tcs.trySetError(task.getError());
+        } else {
+          tcs.trySetResult(task.getResult());
+        }
+        return null;
+      }
+    });
+    if (ct != null) {
+      ct.continueWith(new Continuation<Void, Void>() {
+        @Override
+        public Void then(Task<Void> task) throws Exception {
+          if (task.isCancelled() && tcs.trySetCancelled()) {
+            release(key, inFlight);
+          }
+          return null;
+        }
+      });
+    }
+    return tcs.getTask();
+  }
+
+  /**
+   * Lets go of an in-flight command for a caller that cancelled, and cancels the command if no one
+   * else is waiting for it.
+   */
+  private void release(String key, InFlightCommand inFlight) {
+    synchronized (lock) {
+      inFlight.callers--;
+      if (inFlight.callers > 0 || inFlight.task.isCompleted()) {
+        return;
+      }
+      // Later callers shouldn't join a cancelled command.
+      if (inFlightCommands.get(key) == inFlight) {
+        inFlightCommands.remove(key);
+      }
+    }
+    inFlight.cancellationToken.trySetCancelled();
+  }
+
+  private static String inFlightKey(ParseRESTCommand command, boolean shouldRetry) {
+    return (shouldRetry ? "retry:" : "once:") + command.getCacheKey();
+  }
+
+  /* package for tests */ int inFlightCount() {
+    synchronized (lock) {
+      return inFlightCommands.size();
+    }
+  }
+
+  //endregion
+
   // Converts the JSONArray that represents the results of a find command to an
   // ArrayList<ParseObject>.
   /* package */ <T extends ParseObject> List<T> convertFindResponse(ParseQuery.State<T> state,
@@ -0,0 +1,319 @@
+/*
+ * Copyright (c) 2015-present, Parse, LLC.
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree. An additional grant
+ * of patent rights can be found in the PATENTS file in the same directory.
+ */
+package com.parse;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.Iterator;
+
+/**
+ * A compact binary encoding of the JSON that the local datastore stores for each object. Values are
+ * tagged, and strings and containers are prefixed with their length, so decoding doesn't have to
+ * tokenize any text or parse any numbers.
+ *
+ * The encoding never contains a zero byte, and strings are stored as their UTF-8 bytes, so that
+ * SQLite can still search the stored data for a string with {@code LIKE}, the same way it can
+ * search JSON text.
+ */
+/** package */ class OfflineBinaryJSON {
+
+  /**
+   * The first byte of data in this encoding. JSON text never starts with it, so both can be told
+   * apart.
+   */
+  /* package */ static final byte FORMAT = 1;
+
+  private static final int TAG_NULL = 1;
+  private static final int TAG_FALSE = 2;
+  private static final int TAG_TRUE = 3;
+  private static final int TAG_INTEGER = 4;
+  private static final int TAG_NEGATIVE_INTEGER = 5;
+  private static final int TAG_DOUBLE = 6;
+  private static final int TAG_NEGATIVE_DOUBLE = 7;
+  private static final int TAG_STRING = 8;
+  private static final int TAG_ARRAY = 9;
+  private static final int TAG_OBJECT = 10;
+
+  /**
+   * Lengths are written in base 127, most significant digit first, with each digit stored as a
+   * byte from 1 to 127. Every digit but the last has the high bit set.
+   */
+  private static final int LENGTH_BASE = 127;
+  private static final int LENGTH_CONTINUES = 0x80;
+
+  /**
+   * Encodes a JSON object.
+   *
+   * @throws IllegalArgumentException if the object contains a value that isn't valid JSON.
+   */
+  public static byte[] encode(JSONObject json) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    out.write(FORMAT);
+    writeValue(out, json);
+    return out.toByteArray();
+  }
+
+  /**
+   * Decodes data that was stored either in this encoding, or as JSON text.
+   */
+  public static JSONObject decode(byte[] data) throws JSONException {
+    if (data.length > 0 && data[0] == FORMAT) {
+      Reader reader = new Reader(data);
+      Object value = reader.readValue();
+      if (!(value instanceof JSONObject) || reader.position != data.length) {
+        throw new JSONException("Invalid binary JSON");
+      }
+      return (JSONObject) value;
+    }
+
+    // Strings read as a blob can still have their null terminator.
+    int length = data.length;
+    while (length > 0 && data[length - 1] == 0) {
+      length--;
+    }
+    try {
+      return new JSONObject(new String(data, 0, length, "UTF-8"));
+    } catch (UnsupportedEncodingException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Returns text that the encoding of an object contains if it has the given key, for searching it
+   * with {@code LIKE}.
+   */
+  public static String keyText(String key) {
+    byte[] bytes = stringBytes(key);
+    if (bytes.length >= LENGTH_BASE) {
+      // The length isn't a single ASCII character anymore.
+      return key;
+    }
+    return (char) (bytes.length + 1) + key;
+  }
+
+  private static void writeValue(ByteArrayOutputStream out, Object value) {
+    if (value == null || value == JSONObject.NULL) {
+      out.write(TAG_NULL);
+    } else if (value instanceof Boolean) {
+      out.write((Boolean) value ? TAG_TRUE : TAG_FALSE);
+    } else if (value instanceof Integer || value instanceof Long
+        || value instanceof Short || value instanceof Byte) {
+      long number = ((Number) value).longValue();
+      if (number >= 0) {
+        out.write(TAG_INTEGER);
+        writeLength(out, number);
+      } else {
+        out.write(TAG_NEGATIVE_INTEGER);
+        writeLength(out, ~number);
+      }
+    } else if (value instanceof Number) {
+      // Reversed, the bits of round numbers are small.
+      long bits = Long.reverse(Double.doubleToLongBits(((Number) value).doubleValue()));
+      if (bits >= 0) {
+        out.write(TAG_DOUBLE);
+        writeLength(out, bits);
+      } else {
+        out.write(TAG_NEGATIVE_DOUBLE);
+        writeLength(out, ~bits);
+      }
+    } else if (value instanceof String) {
+      out.write(TAG_STRING);
+      writeString(out, (String) value);
+    } else if (value instanceof JSONArray) {
+      JSONArray array = (JSONArray) value;
+      ByteArrayOutputStream items = new ByteArrayOutputStream();
+      for (int i = 0; i < array.length(); i++) {
+        writeValue(items, array.opt(i));
+      }
+      out.write(TAG_ARRAY);
+      writeLength(out, items.size());
+      writeBytes(out, items);
+    } else if (value instanceof JSONObject) {
+      JSONObject object = (JSONObject) value;
+      ByteArrayOutputStream entries = new ByteArrayOutputStream();
+      Iterator<String> keys = object.keys();
+      while (keys.hasNext()) {
+        String key = keys.next();
+        writeString(entries, key);
+        writeValue(entries, object.opt(key));
+      }
+      out.write(TAG_OBJECT);
+      writeLength(out, entries.size());
+      writeBytes(out, entries);
+    } else {
+      throw new IllegalArgumentException("Not a JSON value: " + value.getClass().getName());
+    }
+  }
+
+  private static void writeLength(ByteArrayOutputStream out, long length) {
+    byte[] digits = new byte[10];
+    int count = 0;
+    do {
+      digits[count++] = (byte) (length % LENGTH_BASE + 1);
+      length /= LENGTH_BASE;
+    } while (length > 0);
+    for (int i = count - 1; i > 0; i--) {
+      out.write(digits[i] | LENGTH_CONTINUES);
+    }
+    out.write(digits[0]);
+  }
+
+  private static void writeString(ByteArrayOutputStream out, String string) {
+    byte[] bytes = stringBytes(string);
+    writeLength(out, bytes.length);
+    out.write(bytes, 0, bytes.length);
+  }
+
+  private static void writeBytes(ByteArrayOutputStream out, ByteArrayOutputStream bytes) {
+    byte[] array = bytes.toByteArray();
+    out.write(array, 0, array.length);
+  }
+
+  /**
+   * Returns the UTF-8 bytes of a string, with any null characters stored as the two bytes that
+   * modified UTF-8 uses for them, since 0xC0 never appears in UTF-8 otherwise.
+   */
+  private static byte[] stringBytes(String string) {
+    byte[] bytes;
+    try {
+      bytes = string.getBytes("UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new RuntimeException(e);
+    }
+    if (string.indexOf('\0') < 0) {
+      return bytes;
+    }
+    ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length + 1);
+    for (byte b : bytes) {
+      if (b == 0) {
+        out.write(0xC0);
+        out.write(0x80);
+      } else {
+        out.write(b);
+      }
+    }
+    return out.toByteArray();
+  }
+
+  private static class Reader {
+    private final byte[] data;
+    private int position = 1;
+
+    private Reader(byte[] data) {
+      this.data = data;
+    }
+
+    private Object readValue() throws JSONException {
+      int tag = readByte();
+      switch (tag) {
+        case TAG_NULL:
+          return JSONObject.NULL;
+        case TAG_FALSE:
+          return false;
+        case TAG_TRUE:
+          return true;
+        case TAG_INTEGER:
+          return integer(readLength());
+        case TAG_NEGATIVE_INTEGER:
+          return integer(~readLength());
+        case TAG_DOUBLE:
+          return Double.longBitsToDouble(Long.reverse(readLength()));
+        case TAG_NEGATIVE_DOUBLE:
+          return Double.longBitsToDouble(Long.reverse(~readLength()));
+        case TAG_STRING:
+          return readString();
+        case TAG_ARRAY: {
+          int end = readEnd();
+          JSONArray array = new JSONArray();
+          while (position < end) {
+            array.put(readValue());
+          }
+          return array;
+        }
+        case TAG_OBJECT: {
+          int end = readEnd();
+          JSONObject object = new JSONObject();
+          while (position < end) {
+            String key = readString();
+            object.put(key, readValue());
+          }
+          return object;
+        }
+        default:
+          throw new JSONException("Invalid binary JSON tag " + tag + " at " + (position - 1));
+      }
+    }
+
+    private static Object integer(long value) {
+      if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+        return (int) value;
+      }
+      return value;
+    }
+
+    private int readByte() throws JSONException {
+      if (position >= data.length) {
+        throw new JSONException("Truncated binary JSON");
+      }
+      return data[position++] & 0xFF;
+    }
+
+    private long readLength() throws JSONException {
+      long length = 0;
+      int digit;
+      do {
+        digit = readByte();
+        length = length * LENGTH_BASE + (digit & ~LENGTH_CONTINUES) - 1;
+      } while ((digit & LENGTH_CONTINUES) != 0);
+      return length;
+    }
+
+    private int readEnd() throws JSONException {
+      long length = readLength();
+      if (length > data.length - position) {
+        throw new JSONException("Truncated binary JSON");
+      }
+      return position + (int) length;
+    }
+
+    private String readString() throws JSONException {
+      int end = readEnd();
+      int start = position;
+      position = end;
+
+      ByteArrayOutputStream out = null;
+      for (int i = start; i < end - 1; i++) {
+        if (data[i] == (byte) 0xC0 && data[i + 1] == (byte) 0x80) {
+          out = new ByteArrayOutputStream(end - start);
+          break;
+        }
+      }
+      try {
+        if (out == null) {
+          return new String(data, start, end - start, "UTF-8");
+        }
+        for (int i = start; i < end; i++) {
+          if (data[i] == (byte) 0xC0 && i + 1 < end && data[i + 1] == (byte) 0x80) {
+            out.write(0);
+            i++;
+          } else {
+            out.write(data[i]);
+          }
+        }
+        return out.toString("UTF-8");
+      } catch (UnsupportedEncodingException e) {
+        throw new RuntimeException(e);
+      }
+    }
+  }
+}
@@ -0,0 +1,318 @@
+/*
+ * Copyright (c) 2015-present, Parse, LLC.
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree. An additional grant
+ * of patent rights can be found in the PATENTS file in the same directory.
+ */
+package com.parse;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Converts the values of indexed keys into the typed values that are stored in
+ * {@link OfflineSQLiteOpenHelper#TABLE_INDEXES}.
+ *
+ * Each value is stored along with its type, since {@link OfflineQueryLogic} never considers values
+ * of different types to be equal, or comparable. Arrays are stored as one row per item, since a
+ * constraint matches an array if it matches any of its items. Pointers aren't indexed, since an
+ * object that was stored while its child was unsaved keeps pointing to the child by its local
+ * uuid, even after the child gets an objectId.
+ *
+ * Geo points are stored as geohashes, which interleave the bits of their longitude and latitude so
+ * that every prefix is a cell of the grid that the bits up to it divide the world into. The points
+ * in any cell are a range of strings, so a box can be looked up as the cells that cover it.
+ *
+ * Keys with a full-text index also get a row of {@link #TYPE_TEXT} for each string, without a
+ * value, whose rowid is the docid of the string in
+ * {@link OfflineSQLiteOpenHelper#TABLE_TEXT_INDEXES}. {@link #tokenize(String)} splits strings into
+ * words the same way that table does.
+ *
+ * Keys whose value can't be sorted by its row, such as an array, also get a row of
+ * {@link #TYPE_UNSORTABLE} without a value, so that a query is only ordered by the stored values
+ * when none of them have one.
+ */
+/** package */ class OfflineFieldIndex {
+
+  /* package */ static final int TYPE_NUMBER = 1;
+  /* package */ static final int TYPE_STRING = 2;
+  /* package */ static final int TYPE_DATE = 3;
+  /* package */ static final int TYPE_BOOLEAN = 4;
+  /* package */ static final int TYPE_GEOPOINT = 5;
+  /* package */ static final int TYPE_TEXT = 6;
+  /* package */ static final int TYPE_UNSORTABLE = 7;
+
+  /**
+   * The number of characters of the geohashes that are stored, which is precise to a few
+   * centimeters.
+   */
+  /* package */ static final int GEOHASH_PRECISION = 12;
+
+  private static final char[] GEOHASH_BASE32 = "0123456789bcdefghjkmnpqrstuvwxyz".toCharArray();
+
+  private static final int TYPE_NONE = 0;
+
+  /**
+   * Returns the type a value would be indexed as, or {@code 0} if it can't be indexed.
+   */
+  /* package */ static int typeOf(Object value) {
+    if (value instanceof String) {
+      return TYPE_STRING;
+    } else if (value instanceof Number) {
+      double number = ((Number) value).doubleValue();
+      return Double.isNaN(number) || Double.isInfinite(number) ? TYPE_NONE : TYPE_NUMBER;
+    } else if (value instanceof Date) {
+      return TYPE_DATE;
+    } else if (value instanceof Boolean) {
+      return TYPE_BOOLEAN;
+    } else if (value instanceof ParseGeoPoint) {
+      return TYPE_GEOPOINT;
+    }
+    return TYPE_NONE;
+  }
+
+  /* package */ static boolean isIndexable(Object value) {
+    return typeOf(value) != TYPE_NONE;
+  }
+
+  /**
+   * Returns whether SQLite sorts a key's value by the row that {@link #valuesOf(Object)} stores for
+   * it the same way that {@link OfflineQueryLogic} sorts the value itself. Missing values are
+   * sortable, since both sort them first. Strings with surrogate pairs aren't, since SQLite
+   * compares them by their UTF-8 bytes, which puts the pairs after the other characters.
+   */
+  /* package */ static boolean isSortable(Object value) {
+    if (value == null || value == JSONObject.NULL) {
+      return true;
+    }
+    switch (typeOf(value)) {
+      case TYPE_NUMBER:
+      case TYPE_DATE:
+        return true;
+      case TYPE_STRING:
+        String string = (String) value;
+        for (int i = 0; i < string.length(); i++) {
+          char c = string.charAt(i);
+          if (Character.isHighSurrogate(c) || Character.isLowSurrogate(c)) {
+            return false;
+          }
+        }
+        return true;
+      default:
+        // This includes booleans, which OfflineQueryLogic can't compare.
+        return false;
+    }
+  }
+
+  /**
+   * Returns the value that is stored for an indexable value. This is either a {@link Long},
+   * {@link Double} or {@link String}.
+   */
+  /* package */ static Object toStoredValue(Object value) {
+    switch (typeOf(value)) {
+      case TYPE_STRING:
+        return value;
+      case TYPE_NUMBER:
+        if (value instanceof Double || value instanceof Float) {
+          return ((Number) value).doubleValue();
+        }
+        return ((Number) value).longValue();
+      case TYPE_DATE:
+        return ((Date) value).getTime();
+      case TYPE_BOOLEAN:
+        return ((Boolean) value) ? 1L : 0L;
+      case TYPE_GEOPOINT:
+        ParseGeoPoint point = (ParseGeoPoint) value;
+        return geohash(point.getLatitude(), point.getLongitude(), GEOHASH_PRECISION);
+      default:
+        throw new IllegalArgumentException("Value cannot be indexed: " + value);
+    }
+  }
+
+  /**
+   * Returns an indexable value as a SQL argument. Since SQL arguments are always strings, the SQL
+   * must use {@link #placeholder(int)} to turn it back into the stored type.
+   */
+  /* package */ static String toArg(Object value) {
+    return String.valueOf(toStoredValue(value));
+  }
+
+  /**
+   * Returns the SQL placeholder for an argument created by {@link #toArg(Object)}.
+   */
+  /* package */ static String placeholder(int type) {
+    switch (type) {
+      case TYPE_NUMBER:
+        return "CAST(? AS NUMERIC)";
+      case TYPE_DATE:
+      case TYPE_BOOLEAN:
+        return "CAST(? AS INTEGER)";
+      default:
+        return "?";
+    }
+  }
+
+  /**
+   * Returns the values that should be indexed for a key's value, which is every indexable item if
+   * the value is an array.
+   */
+  /* package */ static List<Object> valuesOf(Object value) {
+    List<Object> values = new ArrayList<>();
+    if (value instanceof Collection) {
+      for (Object item : (Collection<?>) value) {
+        if (isIndexable(item)) {
+          values.add(item);
+        }
+      }
+    } else if (value instanceof JSONArray) {
+      JSONArray array = (JSONArray) value;
+      for (int i = 0; i < array.length(); i++) {
+        Object item = array.opt(i);
+        if (isIndexable(item)) {
+          values.add(item);
+        }
+      }
+    } else if (isIndexable(value)) {
+      values.add(value);
+    }
+    return values;
+  }
+
+  /**
+   * Returns the strings that should be in the full-text index for a key's value, which is every
+   * string item if the value is an array.
+   */
+  /* package */ static List<String> textValuesOf(Object value) {
+    List<String> values = new ArrayList<>();
+    if (value instanceof Collection) {
+      for (Object item : (Collection<?>) value) {
+        if (item instanceof String) {
+          values.add((String) item);
+        }
+      }
+    } else if (value instanceof JSONArray) {
+      JSONArray array = (JSONArray) value;
+      for (int i = 0; i < array.length(); i++) {
+        Object item = array.opt(i);
+        if (item instanceof String) {
+          values.add((String) item);
+        }
+      }
+    } else if (value instanceof String) {
+      values.add((String) value);
+    }
+    return values;
+  }
+
+  /**
+   * Splits a string into words like the "simple" tokenizer of SQLite's full-text search does. A
+   * word is a run of ASCII letters and digits and any other characters that aren't ASCII, and
+   * ASCII letters are lowercased.
+   */
+  /* package */ static List<String> tokenize(String text) {
+    return tokenize(text, false);
+  }
+
+  /**
+   * Splits a search into the words that have to be in a string for it to match, where a word that
+   * is followed by {@code *} only has to be the start of a word, and keeps its {@code *}.
+   */
+  /* package */ static List<String> searchTerms(String search) {
+    return tokenize(search, true);
+  }
+
+  private static List<String> tokenize(String text, boolean isSearch) {
+    List<String> tokens = new ArrayList<>();
+    StringBuilder token = new StringBuilder();
+    for (int i = 0; i <= text.length(); i++) {
+      char c = i < text.length() ? text.charAt(i) : ' ';
+      if (c >= 0x80 || (c >= '0' && c <= '9') || (c >= 'a' && c <= 'z')) {
+        token.append(c);
+      } else if (c >= 'A' && c <= 'Z') {
+        token.append((char) (c - 'A' + 'a'));
+      } else if (token.length() > 0) {
+        if (isSearch && c == '*') {
+          token.append('*');
+        }
+        tokens.add(token.toString());
+        token.setLength(0);
+      }
+    }
+    return tokens;
+  }
+
+  /**
+   * Returns the geohash of the cell with the given precision that contains a point.
+   */
+  /* package */ static String geohash(double latitude, double longitude, int precision) {
+    return cellGeohash(latitudeCell(latitude, precision), longitudeCell(longitude, precision),
+        precision);
+  }
+
+  /**
+   * Returns the geohash of a cell from its row and column in the grid of the given precision.
+   *
+   * @see #latitudeCell(double, int)
+   * @see #longitudeCell(double, int)
+   */
+  /* package */ static String cellGeohash(long row, long column, int precision) {
+    int latitudeBits = latitudeBits(precision);
+    int longitudeBits = longitudeBits(precision);
+    char[] hash = new char[precision];
+    for (int i = 0; i < precision; i++) {
+      int index = 0;
+      for (int j = 0; j < 5; j++) {
+        // The bits alternate between longitude and latitude, starting with longitude.
+        long bit = (i * 5 + j) % 2 == 0
+            ? column >> --longitudeBits
+            : row >> --latitudeBits;
+        index = (index << 1) | (int) (bit & 1);
+      }
+      hash[i] = GEOHASH_BASE32[index];
+    }
+    return new String(hash);
+  }
+
+  /**
+   * Returns the row of the grid of geohashes of the given precision that contains a latitude.
+   */
+  /* package */ static long latitudeCell(double latitude, int precision) {
+    return cell(latitude + 90, 180, latitudeBits(precision));
+  }
+
+  /**
+   * Returns the column of the grid of geohashes of the given precision that contains a longitude.
+   */
+  /* package */ static long longitudeCell(double longitude, int precision) {
+    return cell(longitude + 180, 360, longitudeBits(precision));
+  }
+
+  private static long cell(double offset, double range, int bits) {
+    /*
+     * Scaling by a power of two is exact, so a cell of a lower precision is always the same as the
+     * leading bits of the cells of a higher precision within it.
+     */
+    long cells = 1L << bits;
+    long cell = (long) Math.floor(offset / range * cells);
+    return Math.max(0, Math.min(cells - 1, cell));
+  }
+
+  private static int latitudeBits(int precision) {
+    return precision * 5 / 2;
+  }
+
+  private static int longitudeBits(int precision) {
+    return (precision * 5 + 1) / 2;
+  }
+
+  private OfflineFieldIndex() {
+    /* cannot be instantiated */
+  }
+}
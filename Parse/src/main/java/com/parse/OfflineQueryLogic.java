@@ -17,13 +17,18 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -49,6 +54,61 @@ import bolts.Task;
     /* package */ abstract Task<Boolean> matchesAsync(T object, ParseSQLiteDatabase db);
   }
 
+  /**
+   * A ConstraintMatcher that doesn't need to wait for anything, such as a subquery, to decide
+   * whether an object matches. Queries are compiled into trees of these wherever possible, so that
+   * matching an object doesn't need to allocate or wait on any Tasks.
+   */
+  /* package */ abstract class SyncConstraintMatcher<T extends ParseObject>
+      extends ConstraintMatcher<T> {
+
+    public SyncConstraintMatcher(ParseUser user) {
+      super(user);
+    }
+
+    /* package */ abstract boolean matches(T object) throws ParseException;
+
+    @Override
+    /* package */ Task<Boolean> matchesAsync(T object, ParseSQLiteDatabase db) {
+      try {
+        return matches(object) ? TASK_TRUE : TASK_FALSE;
+      } catch (Exception e) {
+        return Task.forError(e);
+      }
+    }
+  }
+
+  private static final Task<Boolean> TASK_TRUE = Task.forResult(true);
+  private static final Task<Boolean> TASK_FALSE = Task.forResult(false);
+
+  /**
+   * A key that has been split into the parts of its dot-notation ahead of time, so that it doesn't
+   * need to be parsed again for every object.
+   */
+  /* package */ static class KeyPath {
+    private final String key;
+    private final String[] parts;
+
+    /* package */ KeyPath(String key) {
+      this.key = key;
+      this.parts = key.split("\\.", -1);
+    }
+
+    // The key starting at the given part, for error messages.
+    private String keyFrom(int index) {
+      StringBuilder builder = new StringBuilder(parts[index]);
+      for (int i = index + 1; i < parts.length; i++) {
+        builder.append('.').append(parts[i]);
+      }
+      return builder.toString();
+    }
+
+    @Override
+    public String toString() {
+      return key;
+    }
+  }
+
   private final OfflineStore store;
 
   /* package */ OfflineQueryLogic(OfflineStore store) {
@@ -59,21 +119,22 @@ import bolts.Task;
    * Returns an Object's value for a given key, handling any special keys like objectId. Also
    * handles dot-notation for traversing into objects.
    */
-  private static Object getValue(Object container, String key) throws ParseException {
-    return getValue(container, key, 0);
+  /* package */ static Object getValue(Object container, String key) throws ParseException {
+    return getValue(container, new KeyPath(key));
   }
 
-  private static Object getValue(Object container, String key, int depth) throws ParseException {
-    if (key.contains(".")) {
-      String[] parts = key.split("\\.", 2);
-      Object value = getValue(container, parts[0], depth + 1);
+  /* package */ static Object getValue(Object container, KeyPath path) throws ParseException {
+    String[] parts = path.parts;
+    Object value = container;
+    for (int i = 0; i < parts.length - 1; i++) {
+      value = getSimpleValue(value, parts[i]);
       /*
        * Only Maps and JSONObjects can be dotted into for getting values, so we should reject
        * anything like ParseObjects and arrays.
        */
       if (!(value == null || value == JSONObject.NULL || value instanceof Map || value instanceof JSONObject)) {
         // Technically, they can search inside the REST representation of some nested objects.
-        if (depth > 0) {
+        if (i > 0) {
           Object restFormat = null;
           try {
             restFormat = PointerEncoder.get().encode(value);
@@ -81,15 +142,21 @@ import bolts.Task;
             // Well, if we couldn't encode it, it's not searchable.
           }
           if (restFormat instanceof JSONObject) {
-            return getValue(restFormat, parts[1], depth + 1);
+            value = restFormat;
+            continue;
           }
         }
         throw new ParseException(ParseException.INVALID_QUERY, String.format("Key %s is invalid.",
-            key));
+            path.keyFrom(i)));
       }
-      return getValue(value, parts[1], depth + 1);
     }
+    return getSimpleValue(value, parts[parts.length - 1]);
+  }
 
+  /**
+   * Returns an Object's value for a key without any dot-notation.
+   */
+  private static Object getSimpleValue(Object container, String key) throws ParseException {
     if (container instanceof ParseObject) {
       final ParseObject object = (ParseObject) container;
 
@@ -231,14 +298,16 @@ import bolts.Task;
           && lhs.getLongitude() == rhs.getLongitude();
     }
 
-    return compare(constraint, value, new Decider() {
-      @Override
-      public boolean decide(Object constraint, Object value) {
-        return constraint.equals(value);
-      }
-    });
+    return compare(constraint, value, EQUALS_DECIDER);
   }
 
+  private static final Decider EQUALS_DECIDER = new Decider() {
+    @Override
+    public boolean decide(Object constraint, Object value) {
+      return constraint.equals(value);
+    }
+  };
+
   /**
    * Matches $ne constraints.
    */
@@ -247,63 +316,80 @@ import bolts.Task;
   }
 
   /**
-   * Matches $lt constraints.
+   * Matches a value against one of the stateless operators of a query, such as $lt or $regex. These
+   * are compiled once per query, so that anything that only depends on the query, like a regex
+   * Pattern, doesn't need to be computed again for each object.
    */
-  private static boolean matchesLessThanConstraint(Object constraint, Object value) {
-    return compare(constraint, value, new Decider() {
-      @Override
-      public boolean decide(Object constraint, Object value) {
-        if (value == null || value == JSONObject.NULL) {
-          return false;
-        }
-        return compareTo(constraint, value) > 0;
-      }
-    });
+  private interface ValueMatcher {
+    boolean matches(Object value) throws ParseException;
   }
 
+  private static final ValueMatcher ALWAYS_MATCHES = new ValueMatcher() {
+    @Override
+    public boolean matches(Object value) {
+      return true;
+    }
+  };
+
   /**
-   * Matches $lte constraints.
+   * Decides whether a value matches $lt, $lte, $gt or $gte constraints. Date and Double constraints
+   * are unboxed once, so that comparing against them doesn't need to figure out the right types
+   * for each value.
    */
-  private static boolean matchesLessThanOrEqualToConstraint(Object constraint, Object value) {
-    return compare(constraint, value, new Decider() {
-      @Override
-      public boolean decide(Object constraint, Object value) {
-        if (value == null || value == JSONObject.NULL) {
-          return false;
-        }
-        return compareTo(constraint, value) >= 0;
+  private static class ComparisonDecider implements Decider {
+    // Whether the constraint may be less than, equal to or greater than the value.
+    private final boolean matchesLess;
+    private final boolean matchesEqual;
+    private final boolean matchesGreater;
+    private final boolean isDate;
+    private final long time;
+    private final boolean isDouble;
+    private final double number;
+
+    private ComparisonDecider(String operator, Object constraint) {
+      matchesLess = operator.equals("$gt") || operator.equals("$gte");
+      matchesEqual = operator.equals("$lte") || operator.equals("$gte");
+      matchesGreater = operator.equals("$lt") || operator.equals("$lte");
+      isDate = constraint instanceof Date;
+      time = isDate ? ((Date) constraint).getTime() : 0;
+      isDouble = constraint instanceof Double;
+      number = isDouble ? (Double) constraint : 0;
+    }
+
+    /**
+     * Compares the constraint to a value, the same way as {@link #compareTo(Object, Object)}.
+     */
+    private int compareConstraintTo(Object constraint, Object value) {
+      if (isDate && value instanceof Date) {
+        long valueTime = ((Date) value).getTime();
+        return time < valueTime ? -1 : (time == valueTime ? 0 : 1);
+      } else if (isDouble && value instanceof Number) {
+        return (int) Math.signum(number - ((Number) value).doubleValue());
       }
-    });
-  }
+      return compareTo(constraint, value);
+    }
 
-  /**
-   * Matches $gt constraints.
-   */
-  private static boolean matchesGreaterThanConstraint(Object constraint, Object value) {
-    return compare(constraint, value, new Decider() {
-      @Override
-      public boolean decide(Object constraint, Object value) {
-        if (value == null || value == JSONObject.NULL) {
-          return false;
-        }
-        return compareTo(constraint, value) < 0;
+    @Override
+    public boolean decide(Object constraint, Object value) {
+      if (value == null || value == JSONObject.NULL) {
+        return false;
       }
-    });
+      int result = compareConstraintTo(constraint, value);
+      return result < 0 ? matchesLess : (result == 0 ? matchesEqual : matchesGreater);
+    }
   }
 
   /**
-   * Matches $gte constraints.
+   * Creates a matcher for $lt, $lte, $gt and $gte constraints.
    */
-  private static boolean matchesGreaterThanOrEqualToConstraint(Object constraint, Object value) {
-    return compare(constraint, value, new Decider() {
+  private static ValueMatcher createComparisonMatcher(String operator, final Object constraint) {
+    final ComparisonDecider decider = new ComparisonDecider(operator, constraint);
+    return new ValueMatcher() {
       @Override
-      public boolean decide(Object constraint, Object value) {
-        if (value == null || value == JSONObject.NULL) {
-          return false;
-        }
-        return compareTo(constraint, value) <= 0;
+      public boolean matches(Object value) {
+        return compare(constraint, value, decider);
       }
-    });
+    };
   }
 
   /**
@@ -323,10 +409,52 @@ import bolts.Task;
   }
 
   /**
-   * Matches $nin constraints.
+   * Creates a matcher for $in constraints. If every item of the constraint is a String, which is by
+   * far the most common case, the value is looked up in a set instead of being compared to each of
+   * them.
    */
-  private static boolean matchesNotInConstraint(Object constraint, Object value) {
-    return !matchesInConstraint(constraint, value);
+  private static ValueMatcher createInMatcher(final Object constraint) {
+    if (constraint instanceof Collection) {
+      final Set<Object> strings = new HashSet<>();
+      for (Object requiredItem : (Collection<?>) constraint) {
+        if (!(requiredItem instanceof String)) {
+          strings.clear();
+          break;
+        }
+        strings.add(requiredItem);
+      }
+      if (!strings.isEmpty()) {
+        return new ValueMatcher() {
+          @Override
+          public boolean matches(Object value) {
+            // A String only equals another String, so this is the same as comparing to each item.
+            if (value instanceof List) {
+              for (Object item : (List<?>) value) {
+                if (strings.contains(item)) {
+                  return true;
+                }
+              }
+              return false;
+            } else if (value instanceof JSONArray) {
+              JSONArray array = (JSONArray) value;
+              for (int i = 0; i < array.length(); i++) {
+                if (strings.contains(array.opt(i))) {
+                  return true;
+                }
+              }
+              return false;
+            }
+            return strings.contains(value);
+          }
+        };
+      }
+    }
+    return new ValueMatcher() {
+      @Override
+      public boolean matches(Object value) {
+        return matchesInConstraint(constraint, value);
+      }
+    };
   }
 
   /**
@@ -353,41 +481,181 @@ import bolts.Task;
   }
 
   /**
-   * Matches $regex constraints.
+   * Creates a matcher for $regex constraints. The Pattern is compiled once for the whole query. If
+   * the regex or its options are invalid, the error is only reported when there's a value to match,
+   * just as if it were compiled for each value.
+   *
+   * The regexes that {@link ParseQuery#whereStartsWith(String, String)},
+   * {@link ParseQuery#whereEndsWith(String, String)} and
+   * {@link ParseQuery#whereContains(String, String)} create are matched with plain String methods.
    */
-  private static boolean matchesRegexConstraint(Object constraint, Object value, String options)
-      throws ParseException {
-    if (value == null || value == JSONObject.NULL) {
-      return false;
+  private static ValueMatcher createRegexMatcher(Object constraint, String options) {
+    final String regex = (String) constraint;
+    if (ParseTextUtils.isEmpty(options)) {
+      final String prefix = literalPrefix(regex);
+      if (prefix != null) {
+        return new ValueMatcher() {
+          @Override
+          public boolean matches(Object value) {
+            if (value == null || value == JSONObject.NULL) {
+              return false;
+            }
+            return ((String) value).startsWith(prefix);
+          }
+        };
+      }
+
+      final String suffix = literalSuffix(regex);
+      if (suffix != null) {
+        return new ValueMatcher() {
+          @Override
+          public boolean matches(Object value) {
+            if (value == null || value == JSONObject.NULL) {
+              return false;
+            }
+            return endsWith((String) value, suffix);
+          }
+        };
+      }
+
+      final String substring = literal(regex);
+      if (substring != null) {
+        return new ValueMatcher() {
+          @Override
+          public boolean matches(Object value) {
+            if (value == null || value == JSONObject.NULL) {
+              return false;
+            }
+            return ((String) value).contains(substring);
+          }
+        };
+      }
     }
 
-    if (options == null) {
-      options = "";
+    Pattern compiled = null;
+    Exception compileError = null;
+    try {
+      compiled = compileRegex(regex, options);
+    } catch (ParseException | RuntimeException e) {
+      compileError = e;
     }
+    final Pattern pattern = compiled;
+    final Exception error = compileError;
+    return new ValueMatcher() {
+      @Override
+      public boolean matches(Object value) throws ParseException {
+        if (value == null || value == JSONObject.NULL) {
+          return false;
+        }
+        if (error instanceof ParseException) {
+          throw (ParseException) error;
+        } else if (error != null) {
+          throw (RuntimeException) error;
+        }
+        Matcher matcher = pattern.matcher((String) value);
+        return matcher.find();
+      }
+    };
+  }
 
-    if (!options.matches("^[imxs]*$")) {
-      throw new ParseException(ParseException.INVALID_QUERY, String.format(
-          "Invalid regex options: %s", options));
+  /**
+   * Returns the text that a regex created by {@link java.util.regex.Pattern#quote(String)} matches,
+   * or {@code null} if the regex isn't one.
+   */
+  /* package */ static String literal(String regex) {
+    if (regex.length() < 4 || !regex.startsWith("\\Q") || !regex.endsWith("\\E")) {
+      return null;
     }
+    String text = regex.substring(2, regex.length() - 2);
+    // Pattern.quote only splits text that contains \E into several quoted sections.
+    return text.contains("\\E") ? null : text;
+  }
 
-    int flags = 0;
-    if (options.contains("i")) {
-      flags = flags | Pattern.CASE_INSENSITIVE;
+  /**
+   * Returns the prefix that a regex created by {@link ParseQuery#whereStartsWith(String, String)}
+   * matches, or {@code null} if the regex isn't one.
+   */
+  /* package */ static String literalPrefix(String regex) {
+    return regex.startsWith("^") ? literal(regex.substring(1)) : null;
+  }
+
+  private static String literalSuffix(String regex) {
+    return regex.endsWith("$") ? literal(regex.substring(0, regex.length() - 1)) : null;
+  }
+
+  /**
+   * Returns whether the regex {@code Pattern.quote(suffix) + "$"} matches a string. Without
+   * MULTILINE, {@code $} also matches right before a line terminator at the very end.
+   */
+  private static boolean endsWith(String value, String suffix) {
+    if (value.endsWith(suffix)) {
+      return true;
     }
-    if (options.contains("m")) {
-      flags = flags | Pattern.MULTILINE;
+    int end = value.length();
+    if (value.endsWith("\r\n")) {
+      end -= 2;
+    } else if (end > 0 && isLineTerminator(value.charAt(end - 1))) {
+      end -= 1;
+    } else {
+      return false;
     }
-    if (options.contains("x")) {
-      flags = flags | Pattern.COMMENTS;
+    return end >= suffix.length() && value.startsWith(suffix, end - suffix.length());
+  }
+
+  private static boolean isLineTerminator(char c) {
+    return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+  }
+
+  /**
+   * Compiled Patterns, by their flags and regex. Queries are usually created over and over with the
+   * same few regexes, so this saves compiling them each time a query is run.
+   */
+  private static final int MAX_CACHED_PATTERNS = 64;
+  private static final Map<String, Pattern> lruPatterns =
+      new LinkedHashMap<String, Pattern>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Pattern> eldest) {
+      return size() > MAX_CACHED_PATTERNS;
     }
-    if (options.contains("s")) {
-      flags = flags | Pattern.DOTALL;
+  };
+
+  /* package */ static Pattern compileRegex(String regex, String options) throws ParseException {
+    int flags = 0;
+    if (options != null) {
+      for (int i = 0; i < options.length(); i++) {
+        switch (options.charAt(i)) {
+          case 'i':
+            flags = flags | Pattern.CASE_INSENSITIVE;
+            break;
+          case 'm':
+            flags = flags | Pattern.MULTILINE;
+            break;
+          case 'x':
+            flags = flags | Pattern.COMMENTS;
+            break;
+          case 's':
+            flags = flags | Pattern.DOTALL;
+            break;
+          default:
+            throw new ParseException(ParseException.INVALID_QUERY, String.format(
+                "Invalid regex options: %s", options));
+        }
+      }
     }
 
-    String regex = (String) constraint;
+    String key = flags + ":" + regex;
+    synchronized (lruPatterns) {
+      Pattern pattern = lruPatterns.get(key);
+      if (pattern != null) {
+        return pattern;
+      }
+    }
+    // Compile outside of the lock, since a complicated regex can take a while.
     Pattern pattern = Pattern.compile(regex, flags);
-    Matcher matcher = pattern.matcher((String) value);
-    return matcher.find();
+    synchronized (lruPatterns) {
+      lruPatterns.put(key, pattern);
+    }
+    return pattern;
   }
 
   /**
@@ -421,110 +689,204 @@ import bolts.Task;
   }
 
   /**
-   * Matches $within constraints.
+   * Creates a matcher for $text constraints, which match strings that contain every word of the
+   * search. Strings are split into words the same way the full-text index splits them, so that
+   * both find the same objects.
    */
-  private static boolean matchesWithinConstraint(Object constraint, Object value)
-      throws ParseException {
-    if (value == null || value == JSONObject.NULL) {
-      return false;
+  private static ValueMatcher createTextMatcher(Object constraint) {
+    Map<?, ?> search = (Map<?, ?>) ((Map<?, ?>) constraint).get("$search");
+    final List<String> terms = OfflineFieldIndex.searchTerms((String) search.get("$term"));
+    return new ValueMatcher() {
+      @Override
+      public boolean matches(Object value) {
+        if (terms.isEmpty()) {
+          return false;
+        }
+        // Like other constraints, this matches an array if it matches any of its items.
+        for (String text : OfflineFieldIndex.textValuesOf(value)) {
+          if (containsTerms(OfflineFieldIndex.tokenize(text), terms)) {
+            return true;
+          }
+        }
+        return false;
+      }
+    };
+  }
+
+  private static boolean containsTerms(List<String> words, List<String> terms) {
+    Set<String> wordSet = new HashSet<>(words);
+    for (String term : terms) {
+      if (!term.endsWith("*")) {
+        if (!wordSet.contains(term)) {
+          return false;
+        }
+        continue;
+      }
+      String prefix = term.substring(0, term.length() - 1);
+      boolean found = false;
+      for (String word : words) {
+        if (word.startsWith(prefix)) {
+          found = true;
+          break;
+        }
+      }
+      if (!found) {
+        return false;
+      }
     }
+    return true;
+  }
 
+  /**
+   * Creates a matcher for $within constraints. The box is checked once for the whole query, but
+   * just like $regex, any problem with it is only reported when there's a value to match.
+   */
+  private static ValueMatcher createWithinMatcher(Object constraint) {
     @SuppressWarnings("unchecked")
     HashMap<String, ArrayList<ParseGeoPoint>> constraintMap =
         (HashMap<String, ArrayList<ParseGeoPoint>>) constraint;
     ArrayList<ParseGeoPoint> box = constraintMap.get("$box");
-    ParseGeoPoint southwest = box.get(0);
-    ParseGeoPoint northeast = box.get(1);
-    ParseGeoPoint target = (ParseGeoPoint) value;
+    final ParseGeoPoint southwest = box.get(0);
+    final ParseGeoPoint northeast = box.get(1);
 
+    final ParseException error;
     if (northeast.getLongitude() < southwest.getLongitude()) {
-      throw new ParseException(ParseException.INVALID_QUERY,
+      error = new ParseException(ParseException.INVALID_QUERY,
           "whereWithinGeoBox queries cannot cross the International Date Line.");
-    }
-    if (northeast.getLatitude() < southwest.getLatitude()) {
-      throw new ParseException(ParseException.INVALID_QUERY,
+    } else if (northeast.getLatitude() < southwest.getLatitude()) {
+      error = new ParseException(ParseException.INVALID_QUERY,
           "The southwest corner of a geo box must be south of the northeast corner.");
-    }
-    if (northeast.getLongitude() - southwest.getLongitude() > 180) {
-      throw new ParseException(ParseException.INVALID_QUERY,
+    } else if (northeast.getLongitude() - southwest.getLongitude() > 180) {
+      error = new ParseException(ParseException.INVALID_QUERY,
           "Geo box queries larger than 180 degrees in longitude are not supported. "
               + "Please check point order.");
+    } else {
+      error = null;
     }
 
-    return (target.getLatitude() >= southwest.getLatitude()
-        && target.getLatitude() <= northeast.getLatitude()
-        && target.getLongitude() >= southwest.getLongitude()
-        && target.getLongitude() <= northeast.getLongitude());
+    return new ValueMatcher() {
+      @Override
+      public boolean matches(Object value) throws ParseException {
+        if (value == null || value == JSONObject.NULL) {
+          return false;
+        }
+        if (error != null) {
+          throw error;
+        }
+
+        ParseGeoPoint target = (ParseGeoPoint) value;
+        return (target.getLatitude() >= southwest.getLatitude()
+            && target.getLatitude() <= northeast.getLatitude()
+            && target.getLongitude() >= southwest.getLongitude()
+            && target.getLongitude() <= northeast.getLongitude());
+      }
+    };
   }
 
   /**
-   * Returns true iff the given value matches the given operator and constraint.
-   * 
-   * @throws UnsupportedOperationException
-   *           if the operator is not one this function can handle.
+   * Returns a matcher that returns true iff the given value matches the given operator and
+   * constraint.
+   *
+   * If the operator is not one this function can handle, the matcher throws an
+   * UnsupportedOperationException.
    */
-  private static boolean matchesStatelessConstraint(String operator, Object constraint,
-      Object value, KeyConstraints allKeyConstraints) throws ParseException {
+  private static ValueMatcher createStatelessMatcher(final String operator,
+      final Object constraint, KeyConstraints allKeyConstraints) {
     switch (operator) {
       case "$ne":
-        return matchesNotEqualConstraint(constraint, value);
+        return new ValueMatcher() {
+          @Override
+          public boolean matches(Object value) {
+            return matchesNotEqualConstraint(constraint, value);
+          }
+        };
 
       case "$lt":
-        return matchesLessThanConstraint(constraint, value);
-
       case "$lte":
-        return matchesLessThanOrEqualToConstraint(constraint, value);
-
       case "$gt":
-        return matchesGreaterThanConstraint(constraint, value);
-
       case "$gte":
-        return matchesGreaterThanOrEqualToConstraint(constraint, value);
+        return createComparisonMatcher(operator, constraint);
 
       case "$in":
-        return matchesInConstraint(constraint, value);
+        return createInMatcher(constraint);
 
       case "$nin":
-        return matchesNotInConstraint(constraint, value);
+        final ValueMatcher inMatcher = createInMatcher(constraint);
+        return new ValueMatcher() {
+          @Override
+          public boolean matches(Object value) throws ParseException {
+            return !inMatcher.matches(value);
+          }
+        };
 
       case "$all":
-        return matchesAllConstraint(constraint, value);
+        return new ValueMatcher() {
+          @Override
+          public boolean matches(Object value) {
+            return matchesAllConstraint(constraint, value);
+          }
+        };
 
       case "$regex":
         String regexOptions = (String) allKeyConstraints.get("$options");
-        return matchesRegexConstraint(constraint, value, regexOptions);
+        return createRegexMatcher(constraint, regexOptions);
 
       case "$options":
         // No need to do anything. This is handled by $regex.
-        return true;
+        return ALWAYS_MATCHES;
+
+      case "$text":
+        return createTextMatcher(constraint);
 
       case "$exists":
-        return matchesExistsConstraint(constraint, value);
+        return new ValueMatcher() {
+          @Override
+          public boolean matches(Object value) {
+            return matchesExistsConstraint(constraint, value);
+          }
+        };
 
       case "$nearSphere":
-        Double maxDistance = (Double) allKeyConstraints.get("$maxDistance");
-        return matchesNearSphereConstraint(constraint, value, maxDistance);
+        final Double maxDistance = (Double) allKeyConstraints.get("$maxDistance");
+        return new ValueMatcher() {
+          @Override
+          public boolean matches(Object value) {
+            return matchesNearSphereConstraint(constraint, value, maxDistance);
+          }
+        };
 
       case "$maxDistance":
         // No need to do anything. This is handled by $nearSphere.
-        return true;
+        return ALWAYS_MATCHES;
 
       case "$within":
-        return matchesWithinConstraint(constraint, value);
+        return createWithinMatcher(constraint);
 
       default:
-        throw new UnsupportedOperationException(String.format(
-            "The offline store does not yet support the %s operator.", operator));
+        return new ValueMatcher() {
+          @Override
+          public boolean matches(Object value) {
+            throw new UnsupportedOperationException(String.format(
+                "The offline store does not yet support the %s operator.", operator));
+          }
+        };
     }
   }
 
+  /**
+   * A matcher that runs a subquery and then checks objects against its results. The results are
+   * put into a hash-based index the first time they're needed, so that checking each object
+   * doesn't need to scan all of them.
+   */
   private abstract class SubQueryMatcher<T extends ParseObject> extends ConstraintMatcher<T> {
     private final ParseQuery.State<T> subQuery;
-    private Task<List<T>> subQueryResults = null;
+    private final Map<String, Task<?>> sharedResults;
+    private Task<Void> indexed = null;
 
     public SubQueryMatcher(ParseUser user, ParseQuery.State<T> subQuery) {
       super(user);
       this.subQuery = subQuery;
+      this.sharedResults = subQueryResults;
     }
 
     @Override
@@ -533,20 +895,112 @@ import bolts.Task;
        * As an optimization, we do this lazily. Then we may not have to do it at all, if this part
        * of the query gets short-circuited.
        */
-      if (subQueryResults == null) {
-        //TODO (grantland): We need to pass through the original pin we were limiting the parent
-        // query on.
-        subQueryResults = store.findAsync(subQuery, user, null, db);
+      if (indexed == null) {
+        indexed = findAsync(db).onSuccess(new Continuation<List<T>, Void>() {
+          @Override
+          public Void then(Task<List<T>> task) throws ParseException {
+            index(task.getResult());
+            return null;
+          }
+        });
       }
-      return subQueryResults.onSuccess(new Continuation<List<T>, Boolean>() {
+      if (indexed.isCompleted() && !indexed.isFaulted() && !indexed.isCancelled()) {
+        try {
+          return matches(object) ? TASK_TRUE : TASK_FALSE;
+        } catch (Exception e) {
+          return Task.forError(e);
+        }
+      }
+      return indexed.onSuccess(new Continuation<Void, Boolean>() {
         @Override
-        public Boolean then(Task<List<T>> task) throws ParseException {
-          return matches(object, task.getResult());
+        public Boolean then(Task<Void> task) throws ParseException {
+          return matches(object);
         }
       });
     }
 
-    protected abstract boolean matches(T object, List<T> results) throws ParseException;
+    /**
+     * Runs the subquery, unless an identical one in the same query, such as in another $or clause,
+     * already has.
+     */
+    private Task<List<T>> findAsync(ParseSQLiteDatabase db) {
+      String key = subQueryKey(subQuery);
+      if (key == null || sharedResults == null) {
+        //TODO (grantland): We need to pass through the original pin we were limiting the parent
+        // query on.
+        return store.findAsync(subQuery, user, null, db);
+      }
+      @SuppressWarnings("unchecked")
+      Task<List<T>> results = (Task<List<T>>) sharedResults.get(key);
+      if (results == null) {
+        results = store.findAsync(subQuery, user, null, db);
+        sharedResults.put(key, results);
+      }
+      return results;
+    }
+
+    protected abstract void index(List<T> results) throws ParseException;
+
+    protected abstract boolean matches(T object) throws ParseException;
+  }
+
+  /**
+   * The results of the subqueries of the query that is being compiled into a matcher, by
+   * {@link #subQueryKey(ParseQuery.State)}.
+   */
+  private Map<String, Task<?>> subQueryResults;
+
+  /**
+   * Returns a key that is the same for identical subqueries, or {@code null} if the subquery
+   * can't be compared to others, because it refers to objects that haven't been saved.
+   */
+  private static String subQueryKey(ParseQuery.State<?> subQuery) {
+    try {
+      return subQuery.ignoreACLs() + ":" + subQuery.toJSON(PointerEncoder.get());
+    } catch (IllegalStateException | IllegalArgumentException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Adds a value to a set, or all of its items if it's a list or array.
+   */
+  private static void addItems(Object value, Set<Object> set) {
+    if (value instanceof List) {
+      set.addAll((List<?>) value);
+    } else if (value instanceof JSONArray) {
+      JSONArray array = (JSONArray) value;
+      for (int i = 0; i < array.length(); i++) {
+        set.add(array.opt(i));
+      }
+    } else {
+      set.add(value);
+    }
+  }
+
+  /**
+   * Returns whether the set contains a value, or any of its items if it's a list or array. This is
+   * the same as whether {@link #compare(Object, Object, Decider)} decides that the value equals any
+   * item of the set.
+   */
+  private static boolean containsAny(Set<?> set, Object value) {
+    if (value instanceof List) {
+      for (Object item : (List<?>) value) {
+        if (set.contains(item)) {
+          return true;
+        }
+      }
+      return false;
+    } else if (value instanceof JSONArray) {
+      JSONArray array = (JSONArray) value;
+      for (int i = 0; i < array.length(); i++) {
+        if (set.contains(array.opt(i))) {
+          return true;
+        }
+      }
+      return false;
+    }
+    return set.contains(value);
   }
 
   /**
@@ -557,11 +1011,20 @@ import bolts.Task;
     // TODO(grantland): Convert builder to state t6941155
     @SuppressWarnings("unchecked")
     ParseQuery.State<T> query = ((ParseQuery.State.Builder<T>) constraint).build();
+    final KeyPath keyPath = new KeyPath(key);
     return new SubQueryMatcher<T>(user, query) {
+      // ParseObjects are only equal to themselves, so this is the same as matchesInConstraint.
+      private final Set<Object> results = new HashSet<>();
+
       @Override
-      protected boolean matches(T object, List<T> results) throws ParseException {
-        Object value = getValue(object, key);
-        return matchesInConstraint(results, value);
+      protected void index(List<T> results) {
+        this.results.addAll(results);
+      }
+
+      @Override
+      protected boolean matches(T object) throws ParseException {
+        Object value = getValue(object, keyPath);
+        return value != null && containsAny(results, value);
       }
     };
   }
@@ -585,6 +1048,28 @@ import bolts.Task;
     };
   }
 
+  /**
+   * Returns a key for a value, such that two values can only be equal according to
+   * {@link #matchesEqualConstraint(Object, Object)} if they have equal keys, or {@code null} if
+   * there's no such key.
+   */
+  private static Object equalityKey(Object value) {
+    if (value == null) {
+      return JSONObject.NULL;
+    } else if (value instanceof Number) {
+      // Numbers are compared by their double values, except for floats.
+      if (value instanceof Float) {
+        return null;
+      }
+      double number = ((Number) value).doubleValue();
+      return Double.isNaN(number) ? null : number + 0.0;
+    } else if (value instanceof ParseGeoPoint) {
+      ParseGeoPoint point = (ParseGeoPoint) value;
+      return Arrays.asList(point.getLatitude() + 0.0, point.getLongitude() + 0.0);
+    }
+    return value;
+  }
+
   /**
    * Creates a matcher that handles $select constraints.
    */
@@ -594,22 +1079,72 @@ import bolts.Task;
     // TODO(grantland): Convert builder to state t6941155
     @SuppressWarnings("unchecked")
     ParseQuery.State<T> query = ((ParseQuery.State.Builder<T>) constraintMap.get("query")).build();
-    final String resultKey = (String) constraintMap.get("key");
+    final KeyPath keyPath = new KeyPath(key);
+    final KeyPath resultKeyPath = new KeyPath((String) constraintMap.get("key"));
     return new SubQueryMatcher<T>(user, query) {
+      /*
+       * Values that are arrays match if any of their items equals the value, so those items are
+       * kept in a set. Every other value is bucketed by its equality key, and only the values in
+       * the value's bucket need to be compared to it.
+       */
+      private final Set<Object> arrayItems = new HashSet<>();
+      private final Map<Object, List<Object>> buckets = new HashMap<>();
+      private final List<Object> unbucketed = new ArrayList<>();
+
       @Override
-      protected boolean matches(T object, List<T> results) throws ParseException {
-        Object value = getValue(object, key);
+      protected void index(List<T> results) throws ParseException {
         for (T result : results) {
-          Object resultValue = getValue(result, resultKey);
-          if (matchesEqualConstraint(value, resultValue)) {
-            return true;
+          Object resultValue = getValue(result, resultKeyPath);
+          if (resultValue instanceof List || resultValue instanceof JSONArray) {
+            addItems(resultValue, arrayItems);
+            continue;
           }
+          Object equalityKey = equalityKey(resultValue);
+          if (equalityKey == null) {
+            unbucketed.add(resultValue);
+            continue;
+          }
+          List<Object> bucket = buckets.get(equalityKey);
+          if (bucket == null) {
+            bucket = new ArrayList<>(1);
+            buckets.put(equalityKey, bucket);
+          }
+          bucket.add(resultValue);
         }
-        return false;
+      }
+
+      @Override
+      protected boolean matches(T object) throws ParseException {
+        Object value = getValue(object, keyPath);
+        if (value != null && arrayItems.contains(value)) {
+          return true;
+        }
+        Object equalityKey = equalityKey(value);
+        if (equalityKey == null) {
+          // The value can't be bucketed, so it has to be compared to every value.
+          for (List<Object> bucket : buckets.values()) {
+            if (matchesAny(value, bucket)) {
+              return true;
+            }
+          }
+        } else if (buckets.containsKey(equalityKey)
+            && matchesAny(value, buckets.get(equalityKey))) {
+          return true;
+        }
+        return matchesAny(value, unbucketed);
       }
     };
   }
 
+  private static boolean matchesAny(Object value, List<Object> resultValues) {
+    for (Object resultValue : resultValues) {
+      if (matchesEqualConstraint(value, resultValue)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
   /**
    * Creates a matcher that handles $dontSelect constraints.
    */
@@ -652,21 +1187,34 @@ import bolts.Task;
       /*
        * All of the other operators we know about are stateless, so return a simple matcher.
        */
-        return new ConstraintMatcher<T>(user) {
+        final KeyPath keyPath = new KeyPath(key);
+        final ValueMatcher valueMatcher =
+            createStatelessMatcher(operator, constraint, allKeyConstraints);
+        return new SyncConstraintMatcher<T>(user) {
           @Override
-          public Task<Boolean> matchesAsync(T object, ParseSQLiteDatabase db) {
-            try {
-              Object value = getValue(object, key);
-              return Task.forResult(matchesStatelessConstraint(operator, constraint, value,
-                  allKeyConstraints));
-            } catch (ParseException e) {
-              return Task.forError(e);
-            }
+          /* package */ boolean matches(T object) throws ParseException {
+            return valueMatcher.matches(getValue(object, keyPath));
           }
         };
     }
   }
 
+  /**
+   * Splits matchers into the ones that can be evaluated synchronously and the ones that can't, such
+   * as subqueries. The synchronous ones are cheaper, so they are evaluated first.
+   */
+  private static <T extends ParseObject> void partitionMatchers(
+      List<ConstraintMatcher<T>> matchers, List<SyncConstraintMatcher<T>> syncMatchers,
+      List<ConstraintMatcher<T>> asyncMatchers) {
+    for (ConstraintMatcher<T> matcher : matchers) {
+      if (matcher instanceof SyncConstraintMatcher) {
+        syncMatchers.add((SyncConstraintMatcher<T>) matcher);
+      } else {
+        asyncMatchers.add(matcher);
+      }
+    }
+  }
+
   /**
    * Handles $or queries.
    */
@@ -678,14 +1226,42 @@ import bolts.Task;
       ConstraintMatcher<T> matcher = createMatcher(user, constraints);
       matchers.add(matcher);
     }
+    final List<SyncConstraintMatcher<T>> syncMatchers = new ArrayList<>();
+    final List<ConstraintMatcher<T>> asyncMatchers = new ArrayList<>();
+    partitionMatchers(matchers, syncMatchers, asyncMatchers);
+
     /*
      * Now OR together the constraints for each query.
      */
+    if (asyncMatchers.isEmpty()) {
+      return new SyncConstraintMatcher<T>(user) {
+        @Override
+        /* package */ boolean matches(T object) throws ParseException {
+          for (SyncConstraintMatcher<T> matcher : syncMatchers) {
+            if (matcher.matches(object)) {
+              return true;
+            }
+          }
+          return false;
+        }
+      };
+    }
+
     return new ConstraintMatcher<T>(user) {
       @Override
       public Task<Boolean> matchesAsync(final T object, final ParseSQLiteDatabase db) {
-        Task<Boolean> task = Task.forResult(false);
-        for (final ConstraintMatcher<T> matcher : matchers) {
+        try {
+          for (SyncConstraintMatcher<T> matcher : syncMatchers) {
+            if (matcher.matches(object)) {
+              return TASK_TRUE;
+            }
+          }
+        } catch (Exception e) {
+          return Task.forError(e);
+        }
+
+        Task<Boolean> task = TASK_FALSE;
+        for (final ConstraintMatcher<T> matcher : asyncMatchers) {
           task = task.onSuccessTask(new Continuation<Boolean, Task<Boolean>>() {
             @Override
             public Task<Boolean> then(Task<Boolean> task) throws Exception {
@@ -706,6 +1282,10 @@ import bolts.Task;
    * Returns a ConstraintMatcher that return true iff the object matches QueryConstraints. This
    * takes in a SQLiteDatabase connection because SQLite is finicky about nesting connections, so we
    * want to reuse them whenever possible.
+   *
+   * Everything that only depends on the query, such as key paths and regex Patterns, is computed
+   * here once. Unless there are subqueries, the returned matcher is a
+   * {@link SyncConstraintMatcher}, so matching an object doesn't need to create any Tasks.
    */
   private <T extends ParseObject> ConstraintMatcher<T> createMatcher(ParseUser user,
       QueryConstraints queryConstraints) {
@@ -740,10 +1320,10 @@ import bolts.Task;
          * It's a $relatedTo constraint.
          */
         final RelationConstraint relation = (RelationConstraint) queryConstraintValue;
-        matchers.add(new ConstraintMatcher<T>(user) {
+        matchers.add(new SyncConstraintMatcher<T>(user) {
           @Override
-          public Task<Boolean> matchesAsync(T object, ParseSQLiteDatabase db) {
-            return Task.forResult(relation.getRelation().hasKnownObject(object));
+          /* package */ boolean matches(T object) {
+            return relation.getRelation().hasKnownObject(object);
           }
         });
 
@@ -751,29 +1331,51 @@ import bolts.Task;
         /*
          * It's not a set of constraints, so it's just a value to compare against.
          */
-        matchers.add(new ConstraintMatcher<T>(user) {
+        final KeyPath keyPath = new KeyPath(key);
+        matchers.add(new SyncConstraintMatcher<T>(user) {
           @Override
-          public Task<Boolean> matchesAsync(T object, ParseSQLiteDatabase db) {
-            Object objectValue;
-            try {
-              objectValue = getValue(object, key);
-            } catch (ParseException e) {
-              return Task.forError(e);
-            }
-            return Task.forResult(matchesEqualConstraint(queryConstraintValue, objectValue));
+          /* package */ boolean matches(T object) throws ParseException {
+            return matchesEqualConstraint(queryConstraintValue, getValue(object, keyPath));
           }
         });
       }
     }
+    final List<SyncConstraintMatcher<T>> syncMatchers = new ArrayList<>();
+    final List<ConstraintMatcher<T>> asyncMatchers = new ArrayList<>();
+    partitionMatchers(matchers, syncMatchers, asyncMatchers);
 
     /*
      * Now AND together the constraints for each key.
      */
+    if (asyncMatchers.isEmpty()) {
+      return new SyncConstraintMatcher<T>(user) {
+        @Override
+        /* package */ boolean matches(T object) throws ParseException {
+          for (SyncConstraintMatcher<T> matcher : syncMatchers) {
+            if (!matcher.matches(object)) {
+              return false;
+            }
+          }
+          return true;
+        }
+      };
+    }
+
     return new ConstraintMatcher<T>(user) {
       @Override
       public Task<Boolean> matchesAsync(final T object, final ParseSQLiteDatabase db) {
-        Task<Boolean> task = Task.forResult(true);
-        for (final ConstraintMatcher<T> matcher : matchers) {
+        try {
+          for (SyncConstraintMatcher<T> matcher : syncMatchers) {
+            if (!matcher.matches(object)) {
+              return TASK_FALSE;
+            }
+          }
+        } catch (Exception e) {
+          return Task.forError(e);
+        }
+
+        Task<Boolean> task = TASK_TRUE;
+        for (final ConstraintMatcher<T> matcher : asyncMatchers) {
           task = task.onSuccessTask(new Continuation<Boolean, Task<Boolean>>() {
             @Override
             public Task<Boolean> then(Task<Boolean> task) throws Exception {
@@ -846,7 +1448,23 @@ import bolts.Task;
   /* package */ <T extends ParseObject> ConstraintMatcher<T> createMatcher(
       ParseQuery.State<T> state, final ParseUser user) {
     final boolean ignoreACLs = state.ignoreACLs();
+    // Identical subqueries are only shared within the same query, since the store can change.
+    subQueryResults = new HashMap<>();
     final ConstraintMatcher<T> constraintMatcher = createMatcher(user, state.constraints());
+    subQueryResults = null;
+
+    if (constraintMatcher instanceof SyncConstraintMatcher) {
+      final SyncConstraintMatcher<T> syncMatcher = (SyncConstraintMatcher<T>) constraintMatcher;
+      return new SyncConstraintMatcher<T>(user) {
+        @Override
+        /* package */ boolean matches(T object) throws ParseException {
+          if (!ignoreACLs && !hasReadAccess(user, object)) {
+            return false;
+          }
+          return syncMatcher.matches(object);
+        }
+      };
+    }
 
     return new ConstraintMatcher<T>(user) {
       @Override
@@ -859,15 +1477,114 @@ import bolts.Task;
     };
   }
 
+  private static final Pattern SORT_KEY_PATTERN = Pattern.compile("^-?[A-Za-z][A-Za-z0-9_]*$");
+
+  /**
+   * The values of one sort key for every object being sorted. Numbers and Dates are unboxed into
+   * primitive arrays when all of the values have the same type, so comparing them doesn't need to
+   * figure out their types each time.
+   */
+  private static class SortColumn {
+    private static final int KIND_OBJECT = 0;
+    private static final int KIND_LONG = 1;
+    private static final int KIND_DOUBLE = 2;
+
+    private final String key;
+    private final boolean descending;
+    private final Object[] values;
+    private int kind = KIND_OBJECT;
+    private long[] longs;
+    private double[] doubles;
+
+    private SortColumn(String key, boolean descending, Object[] values) {
+      this.key = key;
+      this.descending = descending;
+      this.values = values;
+
+      boolean allIntegers = true;
+      boolean allDoubles = true;
+      boolean allDates = true;
+      for (Object value : values) {
+        if (value == null || value == JSONObject.NULL) {
+          continue;
+        }
+        allIntegers = allIntegers && (value instanceof Integer || value instanceof Long
+            || value instanceof Short || value instanceof Byte);
+        allDoubles = allDoubles && value instanceof Double;
+        allDates = allDates && value instanceof Date;
+      }
+
+      if (allIntegers || allDates) {
+        kind = KIND_LONG;
+        longs = new long[values.length];
+        for (int i = 0; i < values.length; i++) {
+          Object value = values[i];
+          if (value instanceof Date) {
+            longs[i] = ((Date) value).getTime();
+          } else if (value instanceof Number) {
+            longs[i] = ((Number) value).longValue();
+          }
+        }
+      } else if (allDoubles) {
+        kind = KIND_DOUBLE;
+        doubles = new double[values.length];
+        for (int i = 0; i < values.length; i++) {
+          if (values[i] instanceof Double) {
+            doubles[i] = (Double) values[i];
+          }
+        }
+      }
+    }
+
+    /**
+     * Compares the values of two objects, the same way as {@link #compareTo(Object, Object)}.
+     */
+    private int compare(int lhs, int rhs) {
+      int result;
+      if (kind == KIND_OBJECT) {
+        try {
+          result = compareTo(values[lhs], values[rhs]);
+        } catch (IllegalArgumentException e) {
+          throw new IllegalArgumentException(String.format("Unable to sort by key %s.", key), e);
+        }
+      } else {
+        boolean lhsIsNullOrUndefined = (values[lhs] == JSONObject.NULL || values[lhs] == null);
+        boolean rhsIsNullOrUndefined = (values[rhs] == JSONObject.NULL || values[rhs] == null);
+        if (lhsIsNullOrUndefined || rhsIsNullOrUndefined) {
+          result = (lhsIsNullOrUndefined ? 0 : 1) - (rhsIsNullOrUndefined ? 0 : 1);
+        } else if (kind == KIND_LONG) {
+          result = longs[lhs] < longs[rhs] ? -1 : (longs[lhs] == longs[rhs] ? 0 : 1);
+        } else {
+          result = (int) Math.signum(doubles[lhs] - doubles[rhs]);
+        }
+      }
+      return descending ? -result : result;
+    }
+  }
+
   /**
    * Sorts the given array based on the parameters of the given query.
    */
   /* package */ static <T extends ParseObject> void sort(List<T> results, ParseQuery.State<T> state)
       throws ParseException {
+    sort(results, state, -1);
+  }
+
+  /**
+   * Sorts the given array based on the parameters of the given query.
+   *
+   * The values to sort by are read from each object once up front, and then the objects are sorted
+   * by their positions in the array.
+   *
+   * @param maxResults If this isn't negative, only the first {@code maxResults} objects are kept,
+   *                   which only needs a partial sort.
+   */
+  /* package */ static <T extends ParseObject> void sort(List<T> results,
+      ParseQuery.State<T> state, int maxResults) throws ParseException {
     final List<String> keys = state.order();
     // Do some error checking just for maximum compatibility with the server.
     for (String key : state.order()) {
-      if (!key.matches("^-?[A-Za-z][A-Za-z0-9_]*$")) {
+      if (!SORT_KEY_PATTERN.matcher(key).matches()) {
         if (!"_created_at".equals(key) && !"_updated_at".equals(key)) {
           throw new ParseException(ParseException.INVALID_KEY_NAME, String.format(
               "Invalid key name: \"%s\".", key));
@@ -876,23 +1593,25 @@ import bolts.Task;
     }
 
     // See if there's a $nearSphere constraint that will override the other sort parameters.
-    String mutableNearSphereKey = null;
-    ParseGeoPoint mutableNearSphereValue = null;
+    String nearSphereKey = null;
+    ParseGeoPoint nearSphereValue = null;
     for (String queryKey : state.constraints().keySet()) {
       Object queryKeyConstraints = state.constraints().get(queryKey);
       if (queryKeyConstraints instanceof KeyConstraints) {
         KeyConstraints keyConstraints = (KeyConstraints) queryKeyConstraints;
         if (keyConstraints.containsKey("$nearSphere")) {
-          mutableNearSphereKey = queryKey;
-          mutableNearSphereValue = (ParseGeoPoint) keyConstraints.get("$nearSphere");
+          nearSphereKey = queryKey;
+          nearSphereValue = (ParseGeoPoint) keyConstraints.get("$nearSphere");
         }
       }
     }
-    final String nearSphereKey = mutableNearSphereKey;
-    final ParseGeoPoint nearSphereValue = mutableNearSphereValue;
 
     // If there's nothing to sort based on, then don't do anything.
-    if (keys.size() == 0 && mutableNearSphereKey == null) {
+    if (keys.size() == 0 && nearSphereKey == null) {
+      return;
+    }
+    // Nothing would be compared, so don't read any values.
+    if (results.size() < 2) {
       return;
     }
 
@@ -900,157 +1619,204 @@ import bolts.Task;
      * TODO(klimt): Test whether we allow dotting into objects for sorting.
      */
 
-    Collections.sort(results, new Comparator<T>() {
-      @Override
-      public int compare(T lhs, T rhs) {
-        if (nearSphereKey != null) {
-          ParseGeoPoint lhsPoint;
-          ParseGeoPoint rhsPoint;
-          try {
-            lhsPoint = (ParseGeoPoint) getValue(lhs, nearSphereKey);
-            rhsPoint = (ParseGeoPoint) getValue(rhs, nearSphereKey);
-          } catch (ParseException e) {
-            throw new RuntimeException(e);
-          }
+    final int size = results.size();
+    final double[] distances;
+    if (nearSphereKey != null) {
+      distances = new double[size];
+      KeyPath path = new KeyPath(nearSphereKey);
+      for (int i = 0; i < size; i++) {
+        // GeoPoints can't be null if there's a $nearSphere.
+        ParseGeoPoint point = (ParseGeoPoint) getValue(results.get(i), path);
+        distances[i] = point.distanceInRadiansTo(nearSphereValue);
+      }
+    } else {
+      distances = null;
+    }
 
-          // GeoPoints can't be null if there's a $nearSphere.
-          double lhsDistance = lhsPoint.distanceInRadiansTo(nearSphereValue);
-          double rhsDistance = rhsPoint.distanceInRadiansTo(nearSphereValue);
+    final SortColumn[] columns = new SortColumn[keys.size()];
+    for (int k = 0; k < columns.length; k++) {
+      String key = keys.get(k);
+      boolean descending = false;
+      if (key.startsWith("-")) {
+        descending = true;
+        key = key.substring(1);
+      }
+      KeyPath path = new KeyPath(key);
+      Object[] values = new Object[size];
+      for (int i = 0; i < size; i++) {
+        values[i] = getValue(results.get(i), path);
+      }
+      columns[k] = new SortColumn(key, descending, values);
+    }
+
+    // Ties are broken by position, so the sort is stable even when it's only partial.
+    Comparator<Integer> comparator = new Comparator<Integer>() {
+      @Override
+      public int compare(Integer lhs, Integer rhs) {
+        if (distances != null) {
+          double lhsDistance = distances[lhs];
+          double rhsDistance = distances[rhs];
           if (lhsDistance != rhsDistance) {
             return (lhsDistance - rhsDistance > 0) ? 1 : -1;
           }
         }
 
-        for (String key : keys) {
-          boolean descending = false;
-          if (key.startsWith("-")) {
-            descending = true;
-            key = key.substring(1);
-          }
-
-          Object lhsValue;
-          Object rhsValue;
-          try {
-            lhsValue = getValue(lhs, key);
-            rhsValue = getValue(rhs, key);
-          } catch (ParseException e) {
-            throw new RuntimeException(e);
-          }
-
-          int result;
-          try {
-            result = compareTo(lhsValue, rhsValue);
-          } catch (IllegalArgumentException e) {
-            throw new IllegalArgumentException(String.format("Unable to sort by key %s.", key), e);
-          }
+        for (SortColumn column : columns) {
+          int result = column.compare(lhs, rhs);
           if (result != 0) {
-            return descending ? -result : result;
+            return result;
           }
         }
-        return 0;
+        return lhs < rhs ? -1 : (lhs.equals(rhs) ? 0 : 1);
       }
-    });
+    };
+
+    List<Integer> order;
+    if (maxResults >= 0 && maxResults < size) {
+      order = smallest(size, maxResults, comparator);
+    } else {
+      order = new ArrayList<>(size);
+      for (int i = 0; i < size; i++) {
+        order.add(i);
+      }
+      Collections.sort(order, comparator);
+    }
+
+    List<T> sorted = new ArrayList<>(order.size());
+    for (Integer index : order) {
+      sorted.add(results.get(index));
+    }
+    results.clear();
+    results.addAll(sorted);
+  }
+
+  /**
+   * Returns the {@code count} smallest of the indexes {@code [0, size)}, in order. This keeps a heap
+   * of the smallest ones seen so far, so it takes O(size log count) instead of O(size log size).
+   */
+  private static List<Integer> smallest(int size, int count,
+      final Comparator<Integer> comparator) {
+    List<Integer> smallest = new ArrayList<>(count);
+    if (count == 0) {
+      return smallest;
+    }
+    // The largest of the smallest ones is on top, so it's the one that gets replaced.
+    PriorityQueue<Integer> heap = new PriorityQueue<>(count, Collections.reverseOrder(comparator));
+    for (int i = 0; i < size; i++) {
+      if (heap.size() < count) {
+        heap.add(i);
+      } else if (comparator.compare(i, heap.peek()) < 0) {
+        heap.poll();
+        heap.add(i);
+      }
+    }
+    smallest.addAll(heap);
+    Collections.sort(smallest, comparator);
+    return smallest;
   }
 
   /**
-   * Makes sure that the object specified by path, relative to container, is fetched.
+   * Makes sure that the objects specified by path, relative to each container, are fetched. All of
+   * the objects at each level of the path are fetched together, so including a key of many objects
+   * doesn't need a fetch for each of them.
    */
   private Task<Void> fetchIncludeAsync(
-      final Object container, final String path, final ParseSQLiteDatabase db)
-      throws ParseException {
+      final List<?> containers, final String path, final ParseSQLiteDatabase db) {
+    // If the containers are lists or arrays, fetch all the sub-items.
+    final List<Object> items = new ArrayList<>();
+    for (Object container : containers) {
+      addIncludeItems(container, items);
+    }
     // If there's no object to include, that's fine.
-    if (container == null) {
+    if (items.isEmpty()) {
       return Task.forResult(null);
     }
 
-    // If the container is a list or array, fetch all the sub-items.
-    if (container instanceof Collection) {
-      Collection<?> collection = (Collection<?>) container;
-      // We do the fetches in series because it makes it easier to fail on the first error.
-      Task<Void> task = Task.forResult(null);
-      for (final Object item : collection) {
-        task = task.onSuccessTask(new Continuation<Void, Task<Void>>() {
-          @Override
-          public Task<Void> then(Task<Void> task) throws Exception {
-            return fetchIncludeAsync(item, path, db);
-          }
-        });
-      }
-      return task;
-    } else if (container instanceof JSONArray) {
-      final JSONArray array = (JSONArray) container;
-      // We do the fetches in series because it makes it easier to fail on the first error.
-      Task<Void> task = Task.forResult(null);
-      for (int i = 0; i < array.length(); ++i) {
-        final int index = i;
-        task = task.onSuccessTask(new Continuation<Void, Task<Void>>() {
-          @Override
-          public Task<Void> then(Task<Void> task) throws Exception {
-            return fetchIncludeAsync(array.get(index), path, db);
-          }
-        });
+    // Many containers often point to the same few objects, which only need to be fetched once.
+    final List<ParseObject> objects = new ArrayList<>();
+    Set<ParseObject> uniqueObjects =
+        Collections.newSetFromMap(new IdentityHashMap<ParseObject, Boolean>());
+    for (Object item : items) {
+      if (item instanceof ParseObject && uniqueObjects.add((ParseObject) item)) {
+        objects.add((ParseObject) item);
       }
-      return task;
     }
 
     // If we've reached the end of the path, then actually do the fetch.
     if (path == null) {
-      if (JSONObject.NULL.equals(container)) {
+      for (Object item : items) {
         // Accept JSONObject.NULL value in included field. We swallow it silently instead of
         // throwing an exception.
-        return Task.forResult(null);
-      } else if (container instanceof ParseObject) {
-        ParseObject object = (ParseObject) container;
-        return store.fetchLocallyAsync(object, db).makeVoid();
-      } else {
-        return Task.forError(new ParseException(
-            ParseException.INVALID_NESTED_KEY, "include is invalid for non-ParseObjects"));
+        if (!(item instanceof ParseObject) && !JSONObject.NULL.equals(item)) {
+          return Task.forError(new ParseException(
+              ParseException.INVALID_NESTED_KEY, "include is invalid for non-ParseObjects"));
+        }
       }
+      return fetchAllAsync(objects, db);
     }
 
-    // Descend into the container and try again.
+    // Descend into the containers and try again.
 
     String[] parts = path.split("\\.", 2);
     final String key = parts[0];
     final String rest = (parts.length > 1 ? parts[1] : null);
 
-    // Make sure the container is fetched.
-    return Task.<Void> forResult(null).continueWithTask(new Continuation<Void, Task<Object>>() {
+    // Make sure the containers that are objects are fetched before descending into them.
+    return fetchAllAsync(objects, db).onSuccessTask(new Continuation<Void, Task<Void>>() {
       @Override
-      public Task<Object> then(Task<Void> task) throws Exception {
-        if (container instanceof ParseObject) {
-          // Make sure this object is fetched before descending into it.
-          return fetchIncludeAsync(container, null, db).onSuccess(new Continuation<Void, Object>() {
-            @Override
-            public Object then(Task<Void> task) throws Exception {
-              return ((ParseObject) container).get(key);
-            }
-          });
-        } else if (container instanceof Map) {
-          return Task.forResult(((Map) container).get(key));
-        } else if (container instanceof JSONObject) {
-          return Task.forResult(((JSONObject) container).opt(key));
-        } else if (JSONObject.NULL.equals(container)) {
-          // Accept JSONObject.NULL value in included field. We swallow it silently instead of
-          // throwing an exception.
-          return null;
-        } else {
-          return Task.forError(new IllegalStateException("include is invalid"));
+      public Task<Void> then(Task<Void> task) throws Exception {
+        List<Object> values = new ArrayList<>();
+        for (Object item : items) {
+          if (item instanceof ParseObject) {
+            values.add(((ParseObject) item).get(key));
+          } else if (item instanceof Map) {
+            values.add(((Map) item).get(key));
+          } else if (item instanceof JSONObject) {
+            values.add(((JSONObject) item).opt(key));
+          } else if (!JSONObject.NULL.equals(item)) {
+            // JSONObject.NULL values are accepted in included fields, but nothing else is.
+            return Task.forError(new IllegalStateException("include is invalid"));
+          }
         }
-      }
-    }).onSuccessTask(new Continuation<Object, Task<Void>>() {
-      @Override
-      public Task<Void> then(Task<Object> task) throws Exception {
-        return fetchIncludeAsync(task.getResult(), rest, db);
+        return fetchIncludeAsync(values, rest, db);
       }
     });
   }
 
   /**
-   * Makes sure all of the objects included by the given query get fetched.
+   * Adds the container to the items, or its contents if it's a list or array.
+   */
+  private static void addIncludeItems(Object container, List<Object> items) {
+    if (container == null) {
+      return;
+    }
+    if (container instanceof Collection) {
+      for (Object item : (Collection<?>) container) {
+        addIncludeItems(item, items);
+      }
+    } else if (container instanceof JSONArray) {
+      JSONArray array = (JSONArray) container;
+      for (int i = 0; i < array.length(); ++i) {
+        addIncludeItems(array.opt(i), items);
+      }
+    } else {
+      items.add(container);
+    }
+  }
+
+  private Task<Void> fetchAllAsync(List<ParseObject> objects, ParseSQLiteDatabase db) {
+    if (objects.isEmpty()) {
+      return Task.forResult(null);
+    }
+    return store.fetchAllLocallyAsync(objects, db);
+  }
+
+  /**
+   * Makes sure all of the objects included by the given query get fetched, for all of the given
+   * objects at once.
    */
   /* package */ <T extends ParseObject> Task<Void> fetchIncludesAsync(
-      final T object,
+      final List<T> objects,
       ParseQuery.State<T> state, final ParseSQLiteDatabase db) {
     Set<String> includes = state.includes();
     // We do the fetches in series because it makes it easier to fail on the first error.
@@ -1059,7 +1825,7 @@ import bolts.Task;
       task = task.onSuccessTask(new Continuation<Void, Task<Void>>() {
         @Override
         public Task<Void> then(Task<Void> task) throws Exception {
-          return fetchIncludeAsync(object, include, db);
+          return fetchIncludeAsync(objects, include, db);
         }
       });
     }
@@ -0,0 +1,878 @@
+/*
+ * Copyright (c) 2015-present, Parse, LLC.
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree. An additional grant
+ * of patent rights can be found in the PATENTS file in the same directory.
+ */
+package com.parse;
+
+import com.parse.ParseQuery.KeyConstraints;
+import com.parse.ParseQuery.QueryConstraints;
+
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Translates the parts of a {@link ParseQuery.State} that SQLite can evaluate into a selection over
+ * {@link OfflineSQLiteOpenHelper#TABLE_OBJECTS}, so the {@link OfflineStore} doesn't have to load
+ * and decode every object of a class just to throw most of them away.
+ *
+ * The objects table only stores the REST JSON of each object, so most constraints can only be
+ * pushed down as a conservative pre-filter: a row that passes the selection may still not match,
+ * but a row that fails it can never match. For example, an object can only be equal to the string
+ * "foo" if {@code "foo"} appears somewhere in its JSON, since its server data and any pending
+ * operations are both stored there. Keys that are indexed in {@link OfflineSQLiteOpenHelper#TABLE_INDEXES}
+ * can be compared and sorted by their actual values instead. Whatever the selection can't decide
+ * is left to {@link OfflineQueryLogic}.
+ */
+/** package */ class OfflineQueryPlanner {
+
+  /**
+   * SQLite has a max of 999 SQL variables in a single statement, and the {@link OfflineStore} needs
+   * a few of them for its own arguments.
+   */
+  private static final int MAX_SQL_VARIABLES = 900;
+
+  /**
+   * The most cells of geohashes that a geo constraint is looked up as. Any more than that and the
+   * constraint covers so much of the world that the index isn't worth it.
+   */
+  private static final int MAX_GEOHASH_CELLS = 16;
+
+  private static final double GEO_SLACK_DEGREES = 1e-6;
+
+  /**
+   * The result of planning a query.
+   */
+  /* package */ static class Plan {
+    private final String selection;
+    private final String[] selectionArgs;
+    private final String orderBy;
+    private final String[] orderByArgs;
+    private final boolean isExact;
+
+    private Plan(String selection, String[] selectionArgs, String orderBy, String[] orderByArgs,
+        boolean isExact) {
+      this.selection = selection;
+      this.selectionArgs = selectionArgs;
+      this.orderBy = orderBy;
+      this.orderByArgs = orderByArgs;
+      this.isExact = isExact;
+    }
+
+    /**
+     * @return A SQL expression over the columns of {@link OfflineSQLiteOpenHelper#TABLE_OBJECTS}
+     * that every matching row satisfies, or {@code null} if nothing could be pushed down.
+     */
+    public String selection() {
+      return selection;
+    }
+
+    public String[] selectionArgs() {
+      return selectionArgs;
+    }
+
+    /**
+     * @return A SQL ORDER BY clause that produces rows in the same order as
+     * {@link OfflineQueryLogic#sort(List, ParseQuery.State)}, or {@code null} if the order can't be
+     * evaluated by SQLite. The order is only the same if no stored object has a row of
+     * {@link OfflineFieldIndex#TYPE_UNSORTABLE} for any of {@link #orderByArgs()}, and the rows of
+     * each of them are all of the same type, which has to be checked before relying on it.
+     */
+    public String orderBy() {
+      return orderBy;
+    }
+
+    /**
+     * @return The arguments of {@link #orderBy()}, which are the indexed keys it orders by.
+     */
+    public String[] orderByArgs() {
+      return orderByArgs;
+    }
+
+    /**
+     * @return The same plan, without an order.
+     */
+    public Plan withoutOrder() {
+      return new Plan(selection, selectionArgs, null, new String[0], isExact);
+    }
+
+    /**
+     * @return {@code true} if a stored row satisfies the query's constraints iff it satisfies
+     * {@link #selection()}. ACLs are never part of the selection and still need to be checked.
+     */
+    public boolean isExact() {
+      return isExact;
+    }
+  }
+
+  /**
+   * A fragment of a SQL selection.
+   */
+  /* package */ static class Clause {
+    // A null sql means the clause doesn't filter anything.
+    private final String sql;
+    private final List<String> args;
+    private final boolean isExact;
+
+    private Clause(String sql, List<String> args, boolean isExact) {
+      this.sql = sql;
+      this.args = args;
+      this.isExact = isExact;
+    }
+
+    /* package */ String sql() {
+      return sql;
+    }
+
+    /* package */ List<String> args() {
+      return args;
+    }
+  }
+
+  private static final Clause INEXACT = new Clause(null, Collections.<String>emptyList(), false);
+
+  private static Clause exact(String sql, String... args) {
+    List<String> list = new ArrayList<>();
+    Collections.addAll(list, args);
+    return new Clause(sql, list, true);
+  }
+
+  /**
+   * Creates a plan for the given query, without any indexed keys.
+   */
+  /* package */ static <T extends ParseObject> Plan plan(ParseQuery.State<T> state) {
+    return plan(state, Collections.<String>emptySet());
+  }
+
+  /**
+   * Creates a plan for the given query, without any full-text indexes.
+   */
+  /* package */ static <T extends ParseObject> Plan plan(ParseQuery.State<T> state,
+      Set<String> indexedKeys) {
+    return plan(state, indexedKeys, Collections.<String>emptySet());
+  }
+
+  /**
+   * Creates a plan for the given query.
+   *
+   * @param state The query.
+   * @param indexedKeys The keys of the query's class that are indexed.
+   * @param textIndexedKeys The keys of the query's class that have a full-text index.
+   * @return The plan.
+   */
+  /* package */ static <T extends ParseObject> Plan plan(ParseQuery.State<T> state,
+      Set<String> indexedKeys, Set<String> textIndexedKeys) {
+    OfflineQueryPlanner planner =
+        new OfflineQueryPlanner(state.className(), indexedKeys, textIndexedKeys);
+    Clause where = planner.translate(state.constraints());
+    String selection = where.sql;
+    List<String> args = where.args;
+    boolean isExact = where.isExact;
+    if (args.size() > MAX_SQL_VARIABLES) {
+      // Too many variables for a single statement, let OfflineQueryLogic deal with it.
+      selection = null;
+      args = Collections.emptyList();
+      isExact = false;
+    }
+
+    List<String> orderByArgs = new ArrayList<>();
+    String orderBy = planner.translateOrder(state, orderByArgs);
+    return new Plan(selection, args.toArray(new String[args.size()]), orderBy,
+        orderByArgs.toArray(new String[orderByArgs.size()]), isExact);
+  }
+
+  private final String className;
+  private final Set<String> indexedKeys;
+  private final Set<String> textIndexedKeys;
+
+  private OfflineQueryPlanner(String className, Set<String> indexedKeys,
+      Set<String> textIndexedKeys) {
+    this.className = className;
+    this.indexedKeys = indexedKeys;
+    this.textIndexedKeys = textIndexedKeys;
+  }
+
+  private Clause translate(QueryConstraints constraints) {
+    List<Clause> clauses = new ArrayList<>();
+    for (String key : constraints.keySet()) {
+      Object value = constraints.get(key);
+
+      if (key.equals("$or")) {
+        @SuppressWarnings("unchecked")
+        List<QueryConstraints> queries = (List<QueryConstraints>) value;
+        clauses.add(translateOr(queries));
+      } else if (value instanceof KeyConstraints) {
+        KeyConstraints keyConstraints = (KeyConstraints) value;
+        for (String operator : keyConstraints.keySet()) {
+          if (operator.equals("$regex")) {
+            clauses.add(translateRegex(key, keyConstraints));
+          } else if (operator.equals("$nearSphere")) {
+            clauses.add(translateNearSphere(key, keyConstraints));
+          } else {
+            clauses.add(translate(key, operator, keyConstraints.get(operator)));
+          }
+        }
+      } else if (value instanceof ParseQuery.RelationConstraint) {
+        clauses.add(INEXACT);
+      } else {
+        clauses.add(translate(key, "$eq", value));
+      }
+    }
+    return and(clauses);
+  }
+
+  private Clause translateOr(List<QueryConstraints> queries) {
+    List<Clause> clauses = new ArrayList<>();
+    for (QueryConstraints constraints : queries) {
+      clauses.add(translate(constraints));
+    }
+    return or(clauses);
+  }
+
+  /**
+   * Translates a single operator on a single key.
+   */
+  private Clause translate(String key, String operator, Object constraint) {
+    if (OfflineSQLiteOpenHelper.KEY_OBJECT_ID.equals(key)) {
+      return translateObjectId(operator, constraint);
+    }
+    if (operator.equals("$text") && textIndexedKeys.contains(key)) {
+      return translateText(key, constraint);
+    }
+    if (indexedKeys.contains(key)) {
+      Clause clause = translateIndexed(key, operator, constraint);
+      if (clause != null) {
+        return clause;
+      }
+    }
+
+    switch (operator) {
+      case "$eq": {
+        String text = encodeText(constraint);
+        return text != null ? contains(JSONObject.quote(text), text) : INEXACT;
+      }
+
+      case "$in": {
+        if (!(constraint instanceof Collection)) {
+          return INEXACT;
+        }
+        List<Clause> clauses = new ArrayList<>();
+        for (Object item : (Collection<?>) constraint) {
+          String text = encodeText(item);
+          if (text == null) {
+            return INEXACT;
+          }
+          clauses.add(contains(JSONObject.quote(text), text));
+        }
+        return or(clauses);
+      }
+
+      case "$all": {
+        if (!(constraint instanceof Collection)) {
+          return INEXACT;
+        }
+        List<Clause> clauses = new ArrayList<>();
+        clauses.add(INEXACT);
+        for (Object item : (Collection<?>) constraint) {
+          String text = encodeText(item);
+          // Items we can't encode just won't narrow the selection down any further.
+          if (text != null) {
+            clauses.add(contains(JSONObject.quote(text), text));
+          }
+        }
+        return and(clauses);
+      }
+
+      case "$exists":
+        // The key has to show up in the JSON if it exists in either the data or an operation.
+        if (Boolean.TRUE.equals(constraint) && !key.contains(".")) {
+          return containsKey(key);
+        }
+        return INEXACT;
+
+      default:
+        return INEXACT;
+    }
+  }
+
+  /**
+   * The objectId is stored in its own column, so constraints on it can be evaluated exactly.
+   */
+  private static Clause translateObjectId(String operator, Object constraint) {
+    String column = OfflineSQLiteOpenHelper.KEY_OBJECT_ID;
+    switch (operator) {
+      case "$eq":
+        if (constraint == null) {
+          return exact(column + " IS NULL");
+        }
+        if (constraint instanceof String) {
+          return exact(column + "=?", (String) constraint);
+        }
+        return INEXACT;
+
+      case "$ne":
+        if (constraint instanceof String) {
+          return exact("(" + column + " IS NULL OR " + column + "<>?)", (String) constraint);
+        }
+        return INEXACT;
+
+      case "$lt":
+      case "$lte":
+      case "$gt":
+      case "$gte":
+        if (constraint instanceof String) {
+          return exact(column + comparisonOperator(operator) + "?", (String) constraint);
+        }
+        return INEXACT;
+
+      case "$in":
+      case "$nin": {
+        if (!(constraint instanceof Collection)) {
+          return INEXACT;
+        }
+        Collection<?> items = (Collection<?>) constraint;
+        List<String> args = new ArrayList<>();
+        for (Object item : items) {
+          if (!(item instanceof String)) {
+            return INEXACT;
+          }
+          args.add((String) item);
+        }
+        boolean isIn = operator.equals("$in");
+        if (args.isEmpty()) {
+          return exact(isIn ? "0" : "1");
+        }
+        String sql = column + (isIn ? " IN (" : " NOT IN (") + placeholders(args.size()) + ")";
+        if (!isIn) {
+          sql = "(" + column + " IS NULL OR " + sql + ")";
+        }
+        return new Clause(sql, args, true);
+      }
+
+      case "$exists":
+        return exact(column + (Boolean.TRUE.equals(constraint) ? " IS NOT NULL" : " IS NULL"));
+
+      default:
+        return INEXACT;
+    }
+  }
+
+  /**
+   * Translates a constraint on an indexed key into a lookup in the index, or returns {@code null} if
+   * the index can't be used for it.
+   */
+  private Clause translateIndexed(String key, String operator, Object constraint) {
+    switch (operator) {
+      case "$eq":
+        if (!OfflineFieldIndex.isIndexable(constraint)) {
+          return null;
+        }
+        return indexLookup(key, "=", constraint);
+
+      case "$lt":
+      case "$lte":
+      case "$gt":
+      case "$gte": {
+        int type = OfflineFieldIndex.typeOf(constraint);
+        if (type != OfflineFieldIndex.TYPE_NUMBER && type != OfflineFieldIndex.TYPE_STRING
+            && type != OfflineFieldIndex.TYPE_DATE) {
+          return null;
+        }
+        return indexLookup(key, comparisonOperator(operator), constraint);
+      }
+
+      case "$in": {
+        if (!(constraint instanceof Collection)) {
+          return null;
+        }
+        List<Clause> clauses = new ArrayList<>();
+        for (Object item : (Collection<?>) constraint) {
+          if (!OfflineFieldIndex.isIndexable(item)) {
+            return null;
+          }
+          clauses.add(indexLookup(key, "=", item));
+        }
+        return or(clauses);
+      }
+
+      case "$within": {
+        @SuppressWarnings("unchecked")
+        List<ParseGeoPoint> box = ((Map<String, List<ParseGeoPoint>>) constraint).get("$box");
+        ParseGeoPoint southwest = box.get(0);
+        ParseGeoPoint northeast = box.get(1);
+        // Boxes that OfflineQueryLogic rejects are left to it, so that it can report the error.
+        if (northeast.getLongitude() < southwest.getLongitude()
+            || northeast.getLatitude() < southwest.getLatitude()
+            || northeast.getLongitude() - southwest.getLongitude() > 180) {
+          return null;
+        }
+        return geoLookup(key, Collections.singletonList(new double[] {
+            southwest.getLatitude(), southwest.getLongitude(),
+            northeast.getLatitude(), northeast.getLongitude() }));
+      }
+
+      default:
+        return null;
+    }
+  }
+
+  /**
+   * Translates a $nearSphere constraint. Only a $maxDistance bounds the points that can match, to
+   * a circle whose bounding box is looked up in the index.
+   */
+  private Clause translateNearSphere(String key, KeyConstraints keyConstraints) {
+    Object point = keyConstraints.get("$nearSphere");
+    Object maxDistance = keyConstraints.get("$maxDistance");
+    if (!indexedKeys.contains(key) || OfflineSQLiteOpenHelper.KEY_OBJECT_ID.equals(key)
+        || !(point instanceof ParseGeoPoint) || !(maxDistance instanceof Number)) {
+      return INEXACT;
+    }
+    List<double[]> boxes = boundingBoxes((ParseGeoPoint) point,
+        ((Number) maxDistance).doubleValue());
+    if (boxes == null) {
+      return INEXACT;
+    }
+    Clause clause = geoLookup(key, boxes);
+    return clause != null ? clause : INEXACT;
+  }
+
+  /**
+   * Returns the boxes, as {south, west, north, east} in degrees, that cover every point within the
+   * given distance of a point, or {@code null} if they'd cover the whole world. The boxes are a
+   * little larger than they need to be, so rounding can't leave out any points on their edges.
+   */
+  private static List<double[]> boundingBoxes(ParseGeoPoint point, double maxDistance) {
+    if (!(maxDistance < Math.PI / 2)) {
+      return null;
+    }
+    double latitude = point.getLatitude();
+    double longitude = point.getLongitude();
+    double south = latitude - Math.toDegrees(maxDistance) - GEO_SLACK_DEGREES;
+    double north = latitude + Math.toDegrees(maxDistance) + GEO_SLACK_DEGREES;
+    double sinDistance = Math.sin(Math.max(maxDistance, 0));
+    double cosLatitude = Math.cos(Math.toRadians(latitude));
+    if (south <= -90 || north >= 90 || sinDistance >= cosLatitude) {
+      // The circle contains a pole, so it covers every longitude.
+      return Collections.singletonList(
+          new double[] { Math.max(south, -90), -180, Math.min(north, 90), 180 });
+    }
+
+    double deltaLongitude =
+        Math.toDegrees(Math.asin(sinDistance / cosLatitude)) + GEO_SLACK_DEGREES;
+    double west = longitude - deltaLongitude;
+    double east = longitude + deltaLongitude;
+    List<double[]> boxes = new ArrayList<>();
+    if (west < -180) {
+      // Split the box where it crosses the International Date Line.
+      boxes.add(new double[] { south, west + 360, north, 180 });
+      boxes.add(new double[] { south, -180, north, east });
+    } else if (east > 180) {
+      boxes.add(new double[] { south, west, north, 180 });
+      boxes.add(new double[] { south, -180, north, east - 360 });
+    } else {
+      boxes.add(new double[] { south, west, north, east });
+    }
+    return boxes;
+  }
+
+  /**
+   * Creates a clause that requires an object to have an indexed geo point that could be in one of
+   * the given boxes, or returns {@code null} if the boxes are too large for the index to help. The
+   * boxes are covered with the cells of the most precise geohashes that don't take more than
+   * {@link #MAX_GEOHASH_CELLS} cells, which are each a range of geohashes in the index.
+   */
+  private Clause geoLookup(String key, List<double[]> boxes) {
+    int precision = 0;
+    for (int p = 1; p <= OfflineFieldIndex.GEOHASH_PRECISION; p++) {
+      long cells = 0;
+      for (double[] box : boxes) {
+        cells += (OfflineFieldIndex.latitudeCell(box[2], p)
+            - OfflineFieldIndex.latitudeCell(box[0], p) + 1)
+            * (OfflineFieldIndex.longitudeCell(box[3], p)
+            - OfflineFieldIndex.longitudeCell(box[1], p) + 1);
+      }
+      if (cells > MAX_GEOHASH_CELLS) {
+        break;
+      }
+      precision = p;
+    }
+    if (precision == 0) {
+      return null;
+    }
+
+    Set<String> prefixes = new LinkedHashSet<>();
+    for (double[] box : boxes) {
+      long south = OfflineFieldIndex.latitudeCell(box[0], precision);
+      long west = OfflineFieldIndex.longitudeCell(box[1], precision);
+      long north = OfflineFieldIndex.latitudeCell(box[2], precision);
+      long east = OfflineFieldIndex.longitudeCell(box[3], precision);
+      for (long row = south; row <= north; row++) {
+        for (long column = west; column <= east; column++) {
+          prefixes.add(OfflineFieldIndex.cellGeohash(row, column, precision));
+        }
+      }
+    }
+
+    /*
+     * Geo points aren't only checked against the boxes, which are larger than what they're looked
+     * up for, so the matches still need to be checked by OfflineQueryLogic.
+     */
+    List<Clause> clauses = new ArrayList<>();
+    for (String prefix : prefixes) {
+      List<String> args = new ArrayList<>();
+      args.add(prefix);
+      args.add(prefixUpperBound(prefix));
+      String sql = OfflineSQLiteOpenHelper.KEY_VALUE + ">=?" +
+          " AND " + OfflineSQLiteOpenHelper.KEY_VALUE + "<?";
+      clauses.add(indexClause(key, OfflineFieldIndex.TYPE_GEOPOINT, sql, args, false));
+    }
+    return or(clauses);
+  }
+
+  /**
+   * Returns the key of a $nearSphere constraint on an indexed key that has no $maxDistance, in which
+   * case the nearest objects can be found within a growing distance with
+   * {@link #withMaxDistance(ParseQuery.State, String, double)}, or {@code null} if there is none.
+   */
+  /* package */ static String unboundedNearSphereKey(QueryConstraints constraints,
+      Set<String> indexedKeys) {
+    for (Map.Entry<String, Object> entry : constraints.entrySet()) {
+      Object value = entry.getValue();
+      if (value instanceof KeyConstraints && indexedKeys.contains(entry.getKey())) {
+        KeyConstraints keyConstraints = (KeyConstraints) value;
+        if (keyConstraints.get("$nearSphere") instanceof ParseGeoPoint
+            && !keyConstraints.containsKey("$maxDistance")) {
+          return entry.getKey();
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Returns a copy of a query with a $maxDistance on the given key.
+   */
+  /* package */ static <T extends ParseObject> ParseQuery.State<T> withMaxDistance(
+      ParseQuery.State<T> state, String key, double maxDistance) {
+    // The builder shares the constraints of the state, so they can't be changed in place.
+    KeyConstraints keyConstraints = new KeyConstraints();
+    keyConstraints.putAll((KeyConstraints) state.constraints().get(key));
+    keyConstraints.put("$maxDistance", maxDistance);
+    @SuppressWarnings("unchecked")
+    ParseQuery.State.Builder<T> builder = new ParseQuery.State.Builder<T>(state);
+    return builder.whereEqualTo(key, keyConstraints).build();
+  }
+
+  /**
+   * Translates a $text constraint on a key with a full-text index into a search of the index.
+   */
+  private Clause translateText(String key, Object constraint) {
+    Map<?, ?> search = (Map<?, ?>) ((Map<?, ?>) constraint).get("$search");
+    List<String> terms = OfflineFieldIndex.searchTerms((String) search.get("$term"));
+    if (terms.isEmpty()) {
+      return exact("0");
+    }
+    /*
+     * The terms are only made up of word characters, and a trailing * for prefixes, so they can't
+     * be mistaken for any other full-text query syntax. Every term has to be in the same string.
+     */
+    List<String> args = new ArrayList<>();
+    args.add(ParseTextUtils.join(" ", terms));
+    String sql = "rowid IN (" +
+        "SELECT " + OfflineSQLiteOpenHelper.KEY_DOCID +
+        " FROM " + OfflineSQLiteOpenHelper.TABLE_TEXT_INDEXES +
+        " WHERE " + OfflineSQLiteOpenHelper.KEY_VALUE + " MATCH ?)";
+    // OfflineQueryLogic splits words like the index does, but it still has the final say.
+    return indexClause(key, OfflineFieldIndex.TYPE_TEXT, sql, args, false);
+  }
+
+  /**
+   * Translates a $regex constraint. The index can only be used for the prefixes that
+   * {@link ParseQuery#whereStartsWith(String, String)} creates, which are looked up as a range of
+   * strings.
+   */
+  private Clause translateRegex(String key, KeyConstraints keyConstraints) {
+    Object regex = keyConstraints.get("$regex");
+    String options = (String) keyConstraints.get("$options");
+    if (!indexedKeys.contains(key) || OfflineSQLiteOpenHelper.KEY_OBJECT_ID.equals(key)
+        || !(regex instanceof String) || !ParseTextUtils.isEmpty(options)) {
+      return INEXACT;
+    }
+    String prefix = OfflineQueryLogic.literalPrefix((String) regex);
+    if (prefix == null || prefix.length() == 0 || !isValidUTF16(prefix)) {
+      return INEXACT;
+    }
+
+    List<String> args = new ArrayList<>();
+    args.add(prefix);
+    String sql = OfflineSQLiteOpenHelper.KEY_VALUE + ">=?";
+    String upperBound = prefixUpperBound(prefix);
+    if (upperBound != null) {
+      sql += " AND " + OfflineSQLiteOpenHelper.KEY_VALUE + "<?";
+      args.add(upperBound);
+    }
+    /*
+     * Arrays are indexed as one row per item, but $regex doesn't match arrays, so the matches
+     * still need to be checked by OfflineQueryLogic.
+     */
+    return indexClause(key, OfflineFieldIndex.TYPE_STRING, sql, args, false);
+  }
+
+  /**
+   * Returns the smallest string that is greater than every string that starts with the given
+   * prefix, or {@code null} if there is no such string. SQLite compares strings by their UTF-8
+   * bytes, which sort in the same order as their code points.
+   */
+  private static String prefixUpperBound(String prefix) {
+    int end = prefix.length();
+    while (end > 0) {
+      int codePoint = prefix.codePointBefore(end);
+      end -= Character.charCount(codePoint);
+      if (codePoint < Character.MAX_CODE_POINT) {
+        int next = codePoint + 1;
+        if (next >= Character.MIN_SURROGATE && next <= Character.MAX_SURROGATE) {
+          next = Character.MAX_SURROGATE + 1;
+        }
+        return new StringBuilder(prefix.substring(0, end)).appendCodePoint(next).toString();
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Returns whether the string has no unpaired surrogates, which can't be encoded as UTF-8.
+   */
+  private static boolean isValidUTF16(String text) {
+    for (int i = 0; i < text.length(); ) {
+      int codePoint = text.codePointAt(i);
+      if (codePoint >= Character.MIN_SURROGATE && codePoint <= Character.MAX_SURROGATE) {
+        return false;
+      }
+      i += Character.charCount(codePoint);
+    }
+    return true;
+  }
+
+  /**
+   * Creates a clause that requires an object to have an indexed value that compares to the given
+   * value with the given SQL operator.
+   */
+  private Clause indexLookup(String key, String sqlOperator, Object value) {
+    int type = OfflineFieldIndex.typeOf(value);
+    String sql = OfflineSQLiteOpenHelper.KEY_VALUE + sqlOperator +
+        OfflineFieldIndex.placeholder(type);
+    List<String> args = new ArrayList<>();
+    args.add(OfflineFieldIndex.toArg(value));
+
+    /*
+     * Java and SQLite agree on how strings, dates and booleans compare to each other, but not on
+     * how some numbers do (such as floats and doubles) and objects are only equal if they are the
+     * same instance, so those still need to be checked by OfflineQueryLogic.
+     */
+    boolean isExact;
+    switch (type) {
+      case OfflineFieldIndex.TYPE_STRING:
+        // SQLite compares UTF-8 and Java compares UTF-16, which only agree on equality.
+        isExact = sqlOperator.equals("=");
+        break;
+      case OfflineFieldIndex.TYPE_DATE:
+      case OfflineFieldIndex.TYPE_BOOLEAN:
+        isExact = true;
+        break;
+      default:
+        isExact = false;
+    }
+    return indexClause(key, type, sql, args, isExact);
+  }
+
+  /**
+   * Creates a clause that requires an object to have an indexed value of the given type that
+   * satisfies a condition on {@link OfflineSQLiteOpenHelper#KEY_VALUE}.
+   */
+  private Clause indexClause(String key, int type, String condition, List<String> conditionArgs,
+      boolean isExact) {
+    String sql = OfflineSQLiteOpenHelper.KEY_UUID + " IN (" +
+        "SELECT " + OfflineSQLiteOpenHelper.KEY_UUID +
+        " FROM " + OfflineSQLiteOpenHelper.TABLE_INDEXES +
+        " WHERE " + OfflineSQLiteOpenHelper.KEY_CLASS_NAME + "=?" +
+        " AND " + OfflineSQLiteOpenHelper.KEY_FIELD + "=?" +
+        " AND " + OfflineSQLiteOpenHelper.KEY_TYPE + "=" + type +
+        " AND " + condition + ")";
+    List<String> args = new ArrayList<>();
+    args.add(className);
+    args.add(key);
+    args.addAll(conditionArgs);
+    return new Clause(sql, args, isExact);
+  }
+
+  private static String comparisonOperator(String operator) {
+    switch (operator) {
+      case "$lt":
+        return "<";
+      case "$lte":
+        return "<=";
+      case "$gt":
+        return ">";
+      case "$gte":
+        return ">=";
+      default:
+        throw new IllegalArgumentException("Not a comparison operator: " + operator);
+    }
+  }
+
+  /**
+   * Returns the string a value is guaranteed to be stored as in the data of an object, or
+   * {@code null} if there's no such string.
+   */
+  private static String encodeText(Object value) {
+    if (value instanceof String) {
+      return (String) value;
+    } else if (value instanceof Date) {
+      return ParseDateFormat.getInstance().format((Date) value);
+    }
+    /*
+     * Numbers and booleans don't have a single textual representation. Pointers don't either,
+     * since an object that was stored while its child was unsaved keeps pointing to the child by
+     * its local uuid, even after the child gets an objectId.
+     */
+    return null;
+  }
+
+  /**
+   * Creates a clause that requires the stored data of an object to contain the given key, in
+   * either its data or an operation.
+   */
+  /* package */ static Clause containsKey(String key) {
+    return contains(JSONObject.quote(key) + ":", OfflineBinaryJSON.keyText(key));
+  }
+
+  /**
+   * Creates a clause that requires the stored data of an object to contain the given text, which is
+   * different depending on whether the object was stored as JSON text or with OfflineBinaryJSON.
+   */
+  private static Clause contains(String jsonText, String binaryText) {
+    List<String> args = new ArrayList<>();
+    args.add(likePattern(binaryText));
+    args.add(likePattern(jsonText));
+    String like = OfflineSQLiteOpenHelper.KEY_JSON + " LIKE ? ESCAPE '\\'";
+    String sql = "CASE WHEN typeof(" + OfflineSQLiteOpenHelper.KEY_JSON + ")='blob'"
+        + " THEN " + like + " ELSE " + like + " END";
+    return new Clause(sql, args, false);
+  }
+
+  private static String likePattern(String text) {
+    return "%" + text.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_") + "%";
+  }
+
+  private static Clause and(List<Clause> clauses) {
+    List<String> sql = new ArrayList<>();
+    List<String> args = new ArrayList<>();
+    boolean isExact = true;
+    for (Clause clause : clauses) {
+      isExact = isExact && clause.isExact;
+      if (clause.sql != null) {
+        sql.add(clause.sql);
+        args.addAll(clause.args);
+      }
+    }
+    if (sql.isEmpty()) {
+      return new Clause(null, args, isExact);
+    }
+    if (sql.size() == 1) {
+      return new Clause(sql.get(0), args, isExact);
+    }
+    return new Clause("(" + ParseTextUtils.join(" AND ", sql) + ")", args, isExact);
+  }
+
+  private static Clause or(List<Clause> clauses) {
+    List<String> sql = new ArrayList<>();
+    List<String> args = new ArrayList<>();
+    boolean isExact = true;
+    for (Clause clause : clauses) {
+      if (clause.sql == null) {
+        // One of the branches lets everything through, so the whole thing does.
+        return new Clause(null, Collections.<String>emptyList(), isExact && clause.isExact);
+      }
+      isExact = isExact && clause.isExact;
+      sql.add(clause.sql);
+      args.addAll(clause.args);
+    }
+    if (sql.isEmpty()) {
+      return exact("0");
+    }
+    if (sql.size() == 1) {
+      return new Clause(sql.get(0), args, isExact);
+    }
+    return new Clause("(" + ParseTextUtils.join(" OR ", sql) + ")", args, isExact);
+  }
+
+  private static String placeholders(int count) {
+    StringBuilder builder = new StringBuilder();
+    for (int i = 0; i < count; i++) {
+      if (i > 0) {
+        builder.append(",");
+      }
+      builder.append("?");
+    }
+    return builder.toString();
+  }
+
+  /**
+   * Translates the query's order into an ORDER BY clause, if every key can be sorted by SQLite.
+   */
+  private <T extends ParseObject> String translateOrder(ParseQuery.State<T> state,
+      List<String> args) {
+    List<String> keys = state.order();
+    if (keys.isEmpty() || hasNearSphere(state.constraints())) {
+      return null;
+    }
+
+    List<String> terms = new ArrayList<>();
+    for (String key : keys) {
+      boolean descending = key.startsWith("-");
+      if (descending) {
+        key = key.substring(1);
+      }
+      String term;
+      if (OfflineSQLiteOpenHelper.KEY_OBJECT_ID.equals(key)) {
+        term = key;
+      } else if (indexedKeys.contains(key)) {
+        // Missing values sort as NULL, which SQLite puts first, just like OfflineQueryLogic.
+        term = "(SELECT " + OfflineSQLiteOpenHelper.KEY_VALUE +
+            " FROM " + OfflineSQLiteOpenHelper.TABLE_INDEXES +
+            " WHERE " + OfflineSQLiteOpenHelper.TABLE_INDEXES + "." + OfflineSQLiteOpenHelper.KEY_UUID +
+            "=" + OfflineSQLiteOpenHelper.TABLE_OBJECTS + "." + OfflineSQLiteOpenHelper.KEY_UUID +
+            " AND " + OfflineSQLiteOpenHelper.KEY_FIELD + "=?" +
+            // Rows for a full-text index of the same key have no value.
+            " AND " + OfflineSQLiteOpenHelper.KEY_TYPE + "<>" + OfflineFieldIndex.TYPE_TEXT + ")";
+        args.add(key);
+      } else {
+        args.clear();
+        return null;
+      }
+      terms.add(term + (descending ? " DESC" : " ASC"));
+    }
+    return ParseTextUtils.join(", ", terms);
+  }
+
+  /* package */ static boolean hasNearSphere(QueryConstraints constraints) {
+    for (Object value : constraints.values()) {
+      if (value instanceof KeyConstraints
+          && ((KeyConstraints) value).containsKey("$nearSphere")) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
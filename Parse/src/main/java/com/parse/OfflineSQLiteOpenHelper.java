@@ -8,9 +8,13 @@
  */
 package com.parse;
 
+import android.content.ContentValues;
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 
+import org.json.JSONException;
+
 /**
  * This class just wraps a SQLiteDatabase with a better API. SQLite has a few limitations that this
  * class works around. The primary problem is that if you call getWritableDatabase from multiple
@@ -47,17 +51,86 @@ import android.database.sqlite.SQLiteDatabase;
   /* package */ static final String KEY_KEY = "key";
   // static final String KEY_UUID = "uuid";
 
+  /**
+   * The table that stores which keys of which classes are indexed.
+   */
+  /* package */ static final String TABLE_INDEXED_KEYS = "IndexedKeys";
+
+  /**
+   * Various keys in the table of IndexedKeys.
+   */
+  // static final String KEY_CLASS_NAME = "className";
+  /* package */ static final String KEY_FIELD = "field";
+
+  /**
+   * The table that stores the values of indexed keys of ParseObjects.
+   */
+  /* package */ static final String TABLE_INDEXES = "Indexes";
+
+  /**
+   * Various keys in the table of Indexes.
+   */
+  // static final String KEY_CLASS_NAME = "className";
+  // static final String KEY_FIELD = "field";
+  /* package */ static final String KEY_TYPE = "type";
+  /* package */ static final String KEY_VALUE = "value";
+  // static final String KEY_UUID = "uuid";
+
+  /**
+   * The table that stores which keys of which classes have a full-text index.
+   */
+  /* package */ static final String TABLE_TEXT_INDEXED_KEYS = "TextIndexedKeys";
+
+  /**
+   * Various keys in the table of TextIndexedKeys.
+   */
+  // static final String KEY_CLASS_NAME = "className";
+  // static final String KEY_FIELD = "field";
+
+  /**
+   * The full-text table that stores the strings of keys with a full-text index. Each string is
+   * stored with the rowid of its row in {@link #TABLE_INDEXES} as its docid, so that it can be
+   * looked up by class, field and object through that row.
+   */
+  /* package */ static final String TABLE_TEXT_INDEXES = "TextIndexes";
+
+  /**
+   * Various keys in the table of TextIndexes.
+   */
+  /* package */ static final String KEY_DOCID = "docid";
+  // static final String KEY_VALUE = "value";
+
   /**
    * The SQLite Database name.
    */
   private static final String DATABASE_NAME = "ParseOfflineStore";
-  private static final int DATABASE_VERSION = 4;
+  private static final int DATABASE_VERSION = 5;
+
+  /**
+   * The number of objects that are converted to OfflineBinaryJSON at a time when upgrading.
+   */
+  private static final int MIGRATION_PAGE_SIZE = 100;
+
+  private final boolean binaryEncoding;
 
   /**
    * Creates a new helper for the database.
    */
   public OfflineSQLiteOpenHelper(Context context) {
+    this(context, false);
+  }
+
+  /**
+   * Creates a new helper for the database.
+   *
+   * @param context The context.
+   * @param binaryEncoding Whether objects are stored with OfflineBinaryJSON, in which case the
+   *                       objects that were stored as JSON text are converted when the database
+   *                       is upgraded.
+   */
+  public OfflineSQLiteOpenHelper(Context context, boolean binaryEncoding) {
     super(context, DATABASE_NAME, null, DATABASE_VERSION);
+    this.binaryEncoding = binaryEncoding;
   }
 
   /**
@@ -82,6 +155,70 @@ import android.database.sqlite.SQLiteDatabase;
         "PRIMARY KEY(" + KEY_KEY + ", " + KEY_UUID + ")" +
         ");";
     db.execSQL(sql);
+
+    createIndexesSchema(db);
+    createTextIndexesSchema(db);
+  }
+
+  /**
+   * Initializes the tables for indexed keys, which were added in version 5.
+   */
+  private void createIndexesSchema(SQLiteDatabase db) {
+    String sql;
+
+    sql = "CREATE TABLE " + TABLE_INDEXED_KEYS + " (" +
+        KEY_CLASS_NAME + " TEXT NOT NULL, " +
+        KEY_FIELD + " TEXT NOT NULL, " +
+        "PRIMARY KEY(" + KEY_CLASS_NAME + ", " + KEY_FIELD + ")" +
+        ");";
+    db.execSQL(sql);
+
+    // The value column intentionally has no type, so SQLite stores every value as it was given.
+    sql = "CREATE TABLE " + TABLE_INDEXES + " (" +
+        KEY_CLASS_NAME + " TEXT NOT NULL, " +
+        KEY_FIELD + " TEXT NOT NULL, " +
+        KEY_TYPE + " INTEGER NOT NULL, " +
+        KEY_VALUE + ", " +
+        KEY_UUID + " TEXT NOT NULL" +
+        ");";
+    db.execSQL(sql);
+
+    sql = "CREATE INDEX " + TABLE_INDEXES + "_" + KEY_VALUE + " ON " + TABLE_INDEXES + " (" +
+        KEY_CLASS_NAME + ", " + KEY_FIELD + ", " + KEY_TYPE + ", " + KEY_VALUE +
+        ");";
+    db.execSQL(sql);
+
+    sql = "CREATE INDEX " + TABLE_INDEXES + "_" + KEY_UUID + " ON " + TABLE_INDEXES + " (" +
+        KEY_UUID + ", " + KEY_FIELD +
+        ");";
+    db.execSQL(sql);
+  }
+
+  /**
+   * Initializes the tables for full-text indexes, which were added in version 5.
+   */
+  private void createTextIndexesSchema(SQLiteDatabase db) {
+    String sql;
+
+    sql = "CREATE TABLE " + TABLE_TEXT_INDEXED_KEYS + " (" +
+        KEY_CLASS_NAME + " TEXT NOT NULL, " +
+        KEY_FIELD + " TEXT NOT NULL, " +
+        "PRIMARY KEY(" + KEY_CLASS_NAME + ", " + KEY_FIELD + ")" +
+        ");";
+    db.execSQL(sql);
+
+    // FTS3 is the only full-text module that every version of Android has.
+    sql = "CREATE VIRTUAL TABLE " + TABLE_TEXT_INDEXES + " USING fts3(" + KEY_VALUE + ");";
+    db.execSQL(sql);
+
+    /*
+     * The rows of Indexes are deleted in several places, and this keeps the strings from being
+     * left behind by any of them.
+     */
+    sql = "CREATE TRIGGER " + TABLE_TEXT_INDEXES + "_delete AFTER DELETE ON " + TABLE_INDEXES +
+        " WHEN old." + KEY_TYPE + "=" + OfflineFieldIndex.TYPE_TEXT +
+        " BEGIN DELETE FROM " + TABLE_TEXT_INDEXES + " WHERE " + KEY_DOCID + "=old.rowid; END;";
+    db.execSQL(sql);
   }
 
   /**
@@ -97,7 +234,51 @@ import android.database.sqlite.SQLiteDatabase;
    */
   @Override
   public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-    // do nothing
+    // Versions 1 through 4 share the same schema.
+    if (oldVersion < 5) {
+      // No keys are indexed yet, so there are no values to migrate.
+      createIndexesSchema(db);
+      createTextIndexesSchema(db);
+      if (binaryEncoding) {
+        // Objects can be read in either format, so this is only to save space and decoding time.
+        convertToBinaryJSON(db);
+      }
+    }
+  }
+
+  /**
+   * Converts the data of every object that was stored as JSON text to OfflineBinaryJSON.
+   */
+  private void convertToBinaryJSON(SQLiteDatabase db) {
+    String[] select = { "rowid", KEY_JSON };
+    String where = "rowid>? AND typeof(" + KEY_JSON + ")='text'";
+    long lastRowId = 0;
+    while (true) {
+      // The rows are read a page at a time, since they're updated while they're being read.
+      Cursor cursor = db.query(TABLE_OBJECTS, select, where,
+          new String[] { String.valueOf(lastRowId) }, null, null, "rowid",
+          String.valueOf(MIGRATION_PAGE_SIZE));
+      int count = cursor.getCount();
+      try {
+        while (cursor.moveToNext()) {
+          lastRowId = cursor.getLong(0);
+          ContentValues values = new ContentValues();
+          try {
+            values.put(KEY_JSON, OfflineBinaryJSON.encode(
+                OfflineBinaryJSON.decode(cursor.getBlob(1))));
+          } catch (JSONException e) {
+            // Leave data that can't be read as it is, so that it fails the same way it used to.
+            continue;
+          }
+          db.update(TABLE_OBJECTS, values, "rowid=?", new String[] { String.valueOf(lastRowId) });
+        }
+      } finally {
+        cursor.close();
+      }
+      if (count < MIGRATION_PAGE_SIZE) {
+        break;
+      }
+    }
   }
 
   /**
@@ -21,24 +21,75 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 import java.util.WeakHashMap;
 
+import bolts.AggregateException;
 import bolts.Capture;
 import bolts.Continuation;
 import bolts.Task;
 
 /** package */ class OfflineStore {
 
+
   /**
    * SQLite has a max of 999 SQL variables in a single statement.
    */
   private static final int MAX_SQL_VARIABLES = 999;
 
+  /**
+   * Statements that are run for every object that's saved. Their arguments are bound directly, so
+   * that their compiled statements can be reused.
+   */
+  private static final String SQL_INSERT_OBJECT = "INSERT OR IGNORE INTO "
+      + OfflineSQLiteOpenHelper.TABLE_OBJECTS + " (" + OfflineSQLiteOpenHelper.KEY_UUID + ", "
+      + OfflineSQLiteOpenHelper.KEY_CLASS_NAME + ") VALUES (?, ?)";
+  private static final String SQL_UPDATE_OBJECT = "UPDATE " + OfflineSQLiteOpenHelper.TABLE_OBJECTS
+      + " SET " + OfflineSQLiteOpenHelper.KEY_CLASS_NAME + "=?, "
+      + OfflineSQLiteOpenHelper.KEY_JSON + "=?, "
+      // Objects that don't have an objectId keep the one they were stored with, if any.
+      + OfflineSQLiteOpenHelper.KEY_OBJECT_ID + "=IFNULL(?, "
+      + OfflineSQLiteOpenHelper.KEY_OBJECT_ID + "), "
+      + OfflineSQLiteOpenHelper.KEY_IS_DELETING_EVENTUALLY + "=?"
+      + " WHERE " + OfflineSQLiteOpenHelper.KEY_UUID + "=?";
+  private static final String SQL_INSERT_DEPENDENCY = "INSERT OR IGNORE INTO "
+      + OfflineSQLiteOpenHelper.TABLE_DEPENDENCIES + " (" + OfflineSQLiteOpenHelper.KEY_KEY + ", "
+      + OfflineSQLiteOpenHelper.KEY_UUID + ") VALUES (?, ?)";
+  private static final String SQL_INSERT_INDEX = "INSERT INTO "
+      + OfflineSQLiteOpenHelper.TABLE_INDEXES + " (" + OfflineSQLiteOpenHelper.KEY_CLASS_NAME + ", "
+      + OfflineSQLiteOpenHelper.KEY_FIELD + ", " + OfflineSQLiteOpenHelper.KEY_TYPE + ", "
+      + OfflineSQLiteOpenHelper.KEY_VALUE + ", " + OfflineSQLiteOpenHelper.KEY_UUID
+      + ") VALUES (?, ?, ?, ?, ?)";
+  private static final String SQL_INSERT_TEXT_INDEX = "INSERT INTO "
+      + OfflineSQLiteOpenHelper.TABLE_TEXT_INDEXES + " (" + OfflineSQLiteOpenHelper.KEY_DOCID + ", "
+      + OfflineSQLiteOpenHelper.KEY_VALUE + ") VALUES (?, ?)";
+
+  /**
+   * The number of candidates that findAsync loads from the database at a time.
+   */
+  /* package for tests */ static final int FIND_PAGE_SIZE = 100;
+
+  /**
+   * The distance, in radians, that findNearestAsync first looks for objects within, which is about
+   * 6 km, and how much it grows by each time there aren't enough objects within it.
+   */
+  private static final double NEAREST_INITIAL_DISTANCE = 0.001;
+  private static final double NEAREST_DISTANCE_GROWTH = 4;
+
+  /**
+   * The default number of recently fetched objects that are kept in memory.
+   */
+  /* package */ static final int DEFAULT_OBJECT_CACHE_SIZE = 100;
+
   /**
    * Extends the normal JSON -> ParseObject decoding to also deal with placeholders for new objects
    * that have been saved offline.
@@ -171,22 +222,126 @@ import bolts.Task;
    */
   final private WeakHashMap<ParseObject, Task<ParseObject>> fetchedObjects = new WeakHashMap<>();
 
+  /**
+   * In-memory map of ParseObject -> the state it had when it was last read from or written to the
+   * database. An object whose state is still the same, and that has no changes, has the same data
+   * as its row, so queries can match its row instead of the object.
+   */
+  final private WeakHashMap<ParseObject, ParseObject.State> storedStates = new WeakHashMap<>();
+
+  /**
+   * In-memory maps of className -> indexed keys, by the table they're declared in, loaded from the
+   * database the first time they're needed. They're reset whenever a key is indexed, so that they
+   * get loaded again.
+   */
+  private final Map<String, Task<Map<String, Set<String>>>> indexedKeysTasks = new HashMap<>();
+
+  /**
+   * In-memory LRU map of UUID -> ParseObject for the objects that were fetched most recently. The
+   * other maps only hold their objects weakly, so without this, objects that a query keeps finding
+   * would have to be read and decoded again every time they're garbage collected.
+   */
+  final private Map<String, ParseObject> objectCache;
+
+  // Whether objects are stored with OfflineBinaryJSON instead of as JSON text.
+  final private boolean binaryEncoding;
+
+  // The number of objects that were already fetched in memory, or not, when loading query results.
+  private long objectCacheHits;
+  private long objectCacheMisses;
+
+  // The number of objects that were written by saveAllLocallyAsync, and how long that took.
+  private long savedObjectCount;
+  private long savedObjectNanos;
+
   /**
    * Used by the static method to create the singleton.
    */
   /* package */ OfflineStore(Context context) {
-    this(new OfflineSQLiteOpenHelper(context));
+    this(context, DEFAULT_OBJECT_CACHE_SIZE, false);
+  }
+
+  /* package */ OfflineStore(Context context, int objectCacheSize, boolean binaryEncoding) {
+    this(new OfflineSQLiteOpenHelper(context, binaryEncoding), objectCacheSize, binaryEncoding);
   }
 
   /* package */ OfflineStore(OfflineSQLiteOpenHelper helper) {
+    this(helper, DEFAULT_OBJECT_CACHE_SIZE, false);
+  }
+
+  /* package */ OfflineStore(OfflineSQLiteOpenHelper helper, final int objectCacheSize,
+      boolean binaryEncoding) {
     this.helper = helper;
+    this.binaryEncoding = binaryEncoding;
+    objectCache = new LinkedHashMap<String, ParseObject>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, ParseObject> eldest) {
+        return size() > objectCacheSize;
+      }
+    };
+  }
+
+  /**
+   * The number of objects that didn't need to be loaded from the database, because they were
+   * already fetched in memory.
+   */
+  /* package */ long getObjectCacheHits() {
+    synchronized (lock) {
+      return objectCacheHits;
+    }
+  }
+
+  /**
+   * The number of objects that needed to be loaded from the database.
+   */
+  /* package */ long getObjectCacheMisses() {
+    synchronized (lock) {
+      return objectCacheMisses;
+    }
+  }
+
+  /**
+   * Returns whether an object is in the LRU cache of the objects that were fetched most recently.
+   */
+  /* package for tests */ boolean isObjectCached(ParseObject object) {
+    synchronized (lock) {
+      for (ParseObject cached : objectCache.values()) {
+        if (cached == object) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+  /**
+   * The number of objects that have been written when pinning objects.
+   */
+  /* package */ long getSavedObjectCount() {
+    synchronized (lock) {
+      return savedObjectCount;
+    }
+  }
+
+  /**
+   * The number of objects per second that have been written when pinning objects, from the start
+   * of each batch to the end of it.
+   */
+  /* package */ double getSaveThroughput() {
+    synchronized (lock) {
+      if (savedObjectNanos == 0) {
+        return 0;
+      }
+      return savedObjectCount / (savedObjectNanos / (1000.0 * 1000.0 * 1000.0));
+    }
   }
 
   /**
    * Gets the UUID for the given object, if it has one. Otherwise, creates a new UUID for the object
    * and adds a new row to the database for the object with no data.
    */
-  private Task<String> getOrCreateUUIDAsync(final ParseObject object, ParseSQLiteDatabase db) {
+  /* package for tests */ Task<String> getOrCreateUUIDAsync(final ParseObject object,
+      ParseSQLiteDatabase db) {
     final String newUUID = UUID.randomUUID().toString();
     final Task<String>.TaskCompletionSource tcs = Task.create();
 
@@ -212,10 +367,8 @@ import bolts.Task;
      * update. This could be a pointer to an object that itself never gets saved offline, in which
      * case the consumer will just have to deal with that.
      */
-    ContentValues values = new ContentValues();
-    values.put(OfflineSQLiteOpenHelper.KEY_UUID, newUUID);
-    values.put(OfflineSQLiteOpenHelper.KEY_CLASS_NAME, object.getClassName());
-    db.insertOrThrowAsync(OfflineSQLiteOpenHelper.TABLE_OBJECTS, values).continueWith(
+    Object[] args = { newUUID, object.getClassName() };
+    db.execSQLAsync(SQL_INSERT_OBJECT, args).continueWith(
         new Continuation<Void, Void>() {
           @Override
           public Void then(Task<Void> task) throws Exception {
@@ -228,6 +381,81 @@ import bolts.Task;
     return tcs.getTask();
   }
 
+  /**
+   * Gets the UUIDs for the given objects, creating them for any that don't have one yet, the same
+   * as {@link #getOrCreateUUIDAsync} does for a single object. It also makes sure that every object
+   * has a row in the database, even if the row was deleted since the object got its UUID, and adds
+   * all of the rows with one batch of inserts. An object that is in the list more than once gets
+   * the same UUID each time.
+   */
+  private Task<List<String>> getOrCreateUUIDsAsync(final List<ParseObject> objects,
+      final ParseSQLiteDatabase db) {
+    final List<Task<String>> uuidTasks = new ArrayList<>(objects.size());
+    final List<Task<String>> existingUUIDTasks = new ArrayList<>();
+    final List<String> existingClassNames = new ArrayList<>();
+    final Map<String, Task<String>.TaskCompletionSource> newUUIDs = new HashMap<>();
+    final List<Object[]> rows = new ArrayList<>(objects.size());
+    Map<ParseObject, Task<String>> seen = new IdentityHashMap<>();
+
+    synchronized (lock) {
+      for (final ParseObject object : objects) {
+        Task<String> uuidTask = seen.get(object);
+        if (uuidTask != null) {
+          // Waiting for a UUID this call is creating would never finish.
+          uuidTasks.add(uuidTask);
+          continue;
+        }
+        uuidTask = objectToUuidMap.get(object);
+        if (uuidTask != null) {
+          seen.put(object, uuidTask);
+          existingUUIDTasks.add(uuidTask);
+          existingClassNames.add(object.getClassName());
+          uuidTasks.add(uuidTask);
+          continue;
+        }
+
+        String newUUID = UUID.randomUUID().toString();
+        Task<String>.TaskCompletionSource tcs = Task.create();
+        newUUIDs.put(newUUID, tcs);
+        rows.add(new Object[] { newUUID, object.getClassName() });
+        objectToUuidMap.put(object, tcs.getTask());
+        uuidToObjectMap.put(newUUID, object);
+        seen.put(object, tcs.getTask());
+        fetchedObjects.put(object, tcs.getTask().onSuccess(new Continuation<String, ParseObject>() {
+          @Override
+          public ParseObject then(Task<String> task) throws Exception {
+            return object;
+          }
+        }));
+        uuidTasks.add(tcs.getTask());
+      }
+    }
+
+    // Only wait for the UUIDs that were already being created, since the new ones wait for this.
+    Task.whenAllResult(existingUUIDTasks).onSuccessTask(
+        new Continuation<List<String>, Task<Void>>() {
+      @Override
+      public Task<Void> then(Task<List<String>> task) throws Exception {
+        List<String> uuids = task.getResult();
+        for (int i = 0; i < uuids.size(); i++) {
+          rows.add(new Object[] { uuids.get(i), existingClassNames.get(i) });
+        }
+        return db.executeBatchAsync(SQL_INSERT_OBJECT, rows);
+      }
+    }).continueWith(new Continuation<Void, Void>() {
+      @Override
+      public Void then(Task<Void> task) throws Exception {
+        // This will signal that the UUIDs do represent rows in the database.
+        for (Map.Entry<String, Task<String>.TaskCompletionSource> entry : newUUIDs.entrySet()) {
+          entry.getValue().setResult(entry.getKey());
+        }
+        return null;
+      }
+    });
+
+    return Task.whenAllResult(uuidTasks);
+  }
+
   /**
    * Gets an unfetched pointer to an object in the db, based on its uuid. The object may or may not
    * be in memory, but it must be in the database. If it is already in memory, that instance will be
@@ -241,7 +469,7 @@ import bolts.Task;
    * @return The object with that UUID.
    */
   private <T extends ParseObject> Task<T> getPointerAsync(final String uuid,
-      ParseSQLiteDatabase db) {
+      final ParseSQLiteDatabase db) {
     synchronized (lock) {
       @SuppressWarnings("unchecked")
       T existing = (T) uuidToObjectMap.get(uuid);
@@ -266,7 +494,7 @@ import bolts.Task;
             cursor.moveToFirst();
             if (cursor.isAfterLast()) {
               cursor.close();
-              throw new IllegalStateException("Attempted to find non-existent uuid " + uuid);
+              throw missingRowError(uuid, db);
             }
 
             synchronized (lock) {
@@ -331,144 +559,757 @@ import bolts.Task;
       final ParsePin pin,
       final boolean isCount,
       final ParseSQLiteDatabase db) {
-    /*
-     * This is currently unused, but is here to allow future querying across objects that are in the
-     * process of being deleted eventually.
-     */
-    final boolean includeIsDeletingEventually = false;
-
-    final OfflineQueryLogic queryLogic = new OfflineQueryLogic(this);
+    final Capture<Set<String>> indexedKeys = new Capture<>();
+    return getIndexedKeysAsync(query.className(), db).onSuccessTask(
+        new Continuation<Set<String>, Task<Set<String>>>() {
+      @Override
+      public Task<Set<String>> then(Task<Set<String>> task) throws Exception {
+        indexedKeys.set(task.getResult());
+        return getTextIndexedKeysAsync(query.className(), db);
+      }
+    }).onSuccessTask(new Continuation<Set<String>, Task<List<T>>>() {
+      @Override
+      public Task<List<T>> then(Task<Set<String>> task) throws Exception {
+        Set<String> textIndexedKeys = task.getResult();
+        String nearSphereKey =
+            OfflineQueryPlanner.unboundedNearSphereKey(query.constraints(), indexedKeys.get());
+        if (!isCount && query.limit() >= 0 && nearSphereKey != null) {
+          return findNearestAsync(query, user, pin, nearSphereKey, NEAREST_INITIAL_DISTANCE,
+              indexedKeys.get(), textIndexedKeys, db);
+        }
+        OfflineQueryPlanner.Plan plan =
+            OfflineQueryPlanner.plan(query, indexedKeys.get(), textIndexedKeys);
+        if (isCount) {
+          // The order doesn't matter.
+          return findAsync(query, user, pin, true, plan, db);
+        }
+        return checkOrderAsync(query.className(), plan, db).onSuccessTask(
+            new Continuation<OfflineQueryPlanner.Plan, Task<List<T>>>() {
+          @Override
+          public Task<List<T>> then(Task<OfflineQueryPlanner.Plan> task) throws Exception {
+            return findAsync(query, user, pin, false, task.getResult(), db);
+          }
+        });
+      }
+    });
+  }
 
-    final List<T> results = new ArrayList<>();
+  /**
+   * Checks whether the stored values of the indexed keys that a plan orders by can be ordered by
+   * SQLite. The objects of a key can only be ordered by their rows if none of them have a row of
+   * {@link OfflineFieldIndex#TYPE_UNSORTABLE}, and their rows all have the same type, since
+   * {@link OfflineQueryLogic} can't compare values of different types.
+   *
+   * @param className The class of the query.
+   * @param plan The plan for the query.
+   * @param db The SQLiteDatabase.
+   * @return The plan if its order can be relied on, or the plan without its order otherwise.
+   */
+  private Task<OfflineQueryPlanner.Plan> checkOrderAsync(String className,
+      final OfflineQueryPlanner.Plan plan, ParseSQLiteDatabase db) {
+    final String[] keys = plan.orderByArgs();
+    if (plan.orderBy() == null || keys.length == 0) {
+      return Task.forResult(plan);
+    }
 
-    Task<Cursor> queryTask;
-    if (pin == null) {
-      String table = OfflineSQLiteOpenHelper.TABLE_OBJECTS;
-      String[] select = { OfflineSQLiteOpenHelper.KEY_UUID };
-      String where = OfflineSQLiteOpenHelper.KEY_CLASS_NAME + "=?";
-      if (!includeIsDeletingEventually) {
-        where += " AND " + OfflineSQLiteOpenHelper.KEY_IS_DELETING_EVENTUALLY + "=0";
+    final int[] types = {
+        OfflineFieldIndex.TYPE_NUMBER,
+        OfflineFieldIndex.TYPE_STRING,
+        OfflineFieldIndex.TYPE_DATE,
+        OfflineFieldIndex.TYPE_UNSORTABLE
+    };
+    List<String> columns = new ArrayList<>();
+    List<String> args = new ArrayList<>();
+    for (String key : keys) {
+      for (int type : types) {
+        // Each of these is a single lookup in the index of values.
+        columns.add("EXISTS (SELECT 1 FROM " + OfflineSQLiteOpenHelper.TABLE_INDEXES
+            + " WHERE " + OfflineSQLiteOpenHelper.KEY_CLASS_NAME + "=?"
+            + " AND " + OfflineSQLiteOpenHelper.KEY_FIELD + "=?"
+            + " AND " + OfflineSQLiteOpenHelper.KEY_TYPE + "=" + type + ")");
+        args.add(className);
+        args.add(key);
       }
-      String[] args = { query.className() };
+    }
+    String sql = "SELECT " + ParseTextUtils.join(", ", columns);
+    return db.rawQueryAsync(sql, args.toArray(new String[args.size()])).onSuccess(
+        new Continuation<Cursor, OfflineQueryPlanner.Plan>() {
+      @Override
+      public OfflineQueryPlanner.Plan then(Task<Cursor> task) throws Exception {
+        Cursor cursor = task.getResult();
+        try {
+          cursor.moveToFirst();
+          for (int k = 0; k < keys.length; k++) {
+            int sortableTypes = 0;
+            for (int t = 0; t < types.length - 1; t++) {
+              sortableTypes += cursor.getInt(k * types.length + t);
+            }
+            boolean hasUnsortable = cursor.getInt(k * types.length + types.length - 1) != 0;
+            if (sortableTypes > 1 || hasUnsortable) {
+              return plan.withoutOrder();
+            }
+          }
+          return plan;
+        } finally {
+          cursor.close();
+        }
+      }
+    });
+  }
 
-      queryTask = db.queryAsync(table, select, where, args);
-    } else {
-      Task<String> uuidTask = objectToUuidMap.get(pin);
-      if (uuidTask == null) {
-        // Pin was never saved locally, therefore there won't be any results.
-        return Task.forResult(results);
+  /**
+   * Runs a query that is limited and sorted by the distance to a point on an indexed key, by
+   * finding the objects within a distance of the point that grows until there are enough of them.
+   * Every object that is closer than the furthest of those is within the distance too, so they're
+   * the same results that checking every object would give.
+   *
+   * @param query The query.
+   * @param user The user making the query.
+   * @param pin (Optional) The pin we are querying across. If null, all pins.
+   * @param key The key with the $nearSphere constraint.
+   * @param maxDistance The distance to look for objects within, in radians.
+   * @param indexedKeys The keys of the query's class that are indexed.
+   * @param textIndexedKeys The keys of the query's class that have a full-text index.
+   * @param db The SQLiteDatabase.
+   * @param <T> Subclass of ParseObject.
+   * @return The objects that match the query's constraints.
+   */
+  private <T extends ParseObject> Task<List<T>> findNearestAsync(
+      final ParseQuery.State<T> query,
+      final ParseUser user,
+      final ParsePin pin,
+      final String key,
+      final double maxDistance,
+      final Set<String> indexedKeys,
+      final Set<String> textIndexedKeys,
+      final ParseSQLiteDatabase db) {
+    if (maxDistance >= Math.PI) {
+      // Every point is within this distance.
+      OfflineQueryPlanner.Plan plan =
+          OfflineQueryPlanner.plan(query, indexedKeys, textIndexedKeys);
+      return findAsync(query, user, pin, false, plan, db);
+    }
+    ParseQuery.State<T> bounded = OfflineQueryPlanner.withMaxDistance(query, key, maxDistance);
+    OfflineQueryPlanner.Plan plan = OfflineQueryPlanner.plan(bounded, indexedKeys, textIndexedKeys);
+    return findAsync(bounded, user, pin, false, plan, db).onSuccessTask(
+        new Continuation<List<T>, Task<List<T>>>() {
+      @Override
+      public Task<List<T>> then(Task<List<T>> task) throws Exception {
+        // Only fewer than skip + limit objects were within the distance if the limit wasn't hit.
+        if (task.getResult().size() >= query.limit()) {
+          return task;
+        }
+        return findNearestAsync(query, user, pin, key,
+            maxDistance * NEAREST_DISTANCE_GROWTH, indexedKeys, textIndexedKeys, db);
       }
+    });
+  }
 
-      queryTask = uuidTask.onSuccessTask(new Continuation<String, Task<Cursor>>() {
-        @Override
-        public Task<Cursor> then(Task<String> task) throws Exception {
-          String uuid = task.getResult();
-
-          String table = OfflineSQLiteOpenHelper.TABLE_OBJECTS + " A " +
-              " INNER JOIN " + OfflineSQLiteOpenHelper.TABLE_DEPENDENCIES + " B " +
-              " ON A." + OfflineSQLiteOpenHelper.KEY_UUID + "=B." + OfflineSQLiteOpenHelper.KEY_UUID;
-          String[] select = {"A." + OfflineSQLiteOpenHelper.KEY_UUID};
-          String where = OfflineSQLiteOpenHelper.KEY_CLASS_NAME + "=?" +
-              " AND " + OfflineSQLiteOpenHelper.KEY_KEY + "=?";
-          if (!includeIsDeletingEventually) {
-            where += " AND " + OfflineSQLiteOpenHelper.KEY_IS_DELETING_EVENTUALLY + "=0";
-          }
-          String[] args = { query.className(), uuid };
+  private <T extends ParseObject> Task<List<T>> findAsync(
+      final ParseQuery.State<T> query,
+      final ParseUser user,
+      final ParsePin pin,
+      final boolean isCount,
+      final OfflineQueryPlanner.Plan plan,
+      final ParseSQLiteDatabase db) {
+    final OfflineQueryLogic queryLogic = new OfflineQueryLogic(this);
 
-          return db.queryAsync(table, select, where, args);
-        }
-      });
-    }
+    final List<T> results = new ArrayList<>();
 
-    return queryTask.onSuccessTask(new Continuation<Cursor, Task<Void>>() {
+    return queryCandidatesAsync(query, pin, plan, db).onSuccessTask(
+        new Continuation<Cursor, Task<Void>>() {
       @Override
       public Task<Void> then(Task<Cursor> task) throws Exception {
         Cursor cursor = task.getResult();
-        List<String> uuids = new ArrayList<>();
-        for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
-          uuids.add(cursor.getString(0));
+        if (cursor == null) {
+          return Task.forResult(null);
         }
+        final Set<String> uuidsInMemory = new HashSet<>();
+        List<String> uuids = readCandidates(cursor, plan, Integer.MAX_VALUE, uuidsInMemory);
         cursor.close();
 
+        /*
+         * If the candidates come out of the database in their final order, we can stop as soon as
+         * we have enough of them instead of loading the rest.
+         */
+        boolean isUnordered = query.order().isEmpty()
+            && !OfflineQueryPlanner.hasNearSphere(query.constraints());
+        boolean isOrdered = plan.orderBy() != null && uuidsInMemory.isEmpty();
+        final int maxResults = !isCount && query.limit() >= 0 && (isUnordered || isOrdered)
+            ? Math.max(query.skip(), 0) + query.limit()
+            : -1;
+
         // Find objects that match the where clause.
         final ConstraintMatcher<T> matcher = queryLogic.createMatcher(query, user);
 
+        /*
+         * Load the candidates a page at a time, so that the data for a whole page can be read with
+         * a single query, and so that we can stop early without loading everything.
+         */
         Task<Void> checkedAllObjects = Task.forResult(null);
-        for (final String uuid : uuids) {
-          final Capture<T> object = new Capture<>();
+        for (int start = 0; start < uuids.size(); start += FIND_PAGE_SIZE) {
+          final List<String> page =
+              uuids.subList(start, Math.min(start + FIND_PAGE_SIZE, uuids.size()));
 
-          checkedAllObjects = checkedAllObjects.onSuccessTask(new Continuation<Void, Task<T>>() {
+          checkedAllObjects = checkedAllObjects.onSuccessTask(
+              new Continuation<Void, Task<List<T>>>() {
             @Override
-            public Task<T> then(Task<Void> task) throws Exception {
-              return getPointerAsync(uuid, db);
+            public Task<List<T>> then(Task<Void> task) throws Exception {
+              if (maxResults >= 0 && results.size() >= maxResults) {
+                return Task.forResult(null);
+              }
+              return findMatchesAsync(query, user, plan, matcher, page, uuidsInMemory, db);
             }
-          }).onSuccessTask(new Continuation<T, Task<T>>() {
+          }).onSuccess(new Continuation<List<T>, Void>() {
             @Override
-            public Task<T> then(Task<T> task) throws Exception {
-              object.set(task.getResult());
-              return fetchLocallyAsync(object.get(), db);
+            public Void then(Task<List<T>> task) throws Exception {
+              if (task.getResult() != null) {
+                results.addAll(task.getResult());
+              }
+              return null;
             }
-          }).onSuccessTask(new Continuation<T, Task<Boolean>>() {
+          });
+        }
+
+        return checkedAllObjects;
+      }
+    }).onSuccessTask(new Continuation<Void, Task<List<T>>>() {
+      @Override
+      public Task<List<T>> then(Task<Void> task) throws Exception {
+        // Sort by any sort operators, only keeping the results that won't be skipped or trimmed.
+        int maxResults = !isCount && query.limit() >= 0
+            ? Math.max(query.skip(), 0) + query.limit()
+            : -1;
+        OfflineQueryLogic.sort(results, query, maxResults);
+
+        // Apply the skip.
+        List<T> trimmedResults = results;
+        int skip = query.skip();
+        if (!isCount && skip >= 0) {
+          skip = Math.min(query.skip(), trimmedResults.size());
+          trimmedResults = trimmedResults.subList(skip, trimmedResults.size());
+        }
+
+        // Trim to the limit.
+        int limit = query.limit();
+        if (!isCount && limit >= 0 && trimmedResults.size() > limit) {
+          trimmedResults = trimmedResults.subList(0, limit);
+        }
+
+        // Fetch the includes.
+        Task<Void> fetchedIncludesTask = queryLogic.fetchIncludesAsync(trimmedResults, query, db);
+
+        final List<T> finalTrimmedResults = trimmedResults;
+        return fetchedIncludesTask.onSuccess(new Continuation<Void, List<T>>() {
+          @Override
+          public List<T> then(Task<Void> task) throws Exception {
+            return finalTrimmedResults;
+          }
+        });
+      }
+    });
+  }
+
+  /**
+   * Runs a ParseQuery against the store's contents, passing each object that matches to the
+   * callback as soon as it's found, so that only a page of them needs to be in memory at a time.
+   * The query can only be ordered in ways that SQLite can order the objects in, and no objects of
+   * the class can be modified in memory if it's ordered, since they're ordered by their stored
+   * values. If the stored values can't be ordered by SQLite, every object is found and sorted
+   * before any of them are passed on.
+   *
+   * @param query The query.
+   * @param user The user making the query.
+   * @param pin (Optional) The pin we are querying across. If null, all pins.
+   * @param callback The callback.
+   * @param db The SQLiteDatabase.
+   * @param <T> Subclass of ParseObject.
+   * @return A task that is resolved once every object has been passed to the callback, or the
+   *         callback has stopped.
+   */
+  private <T extends ParseObject> Task<Void> findEachAsync(
+      final ParseQuery.State<T> query,
+      final ParseUser user,
+      final ParsePin pin,
+      final EachCallback<T> callback,
+      final ParseSQLiteDatabase db) {
+    final boolean isOrdered = !query.order().isEmpty()
+        || OfflineQueryPlanner.hasNearSphere(query.constraints());
+
+    final Capture<Set<String>> indexedKeys = new Capture<>();
+    return getIndexedKeysAsync(query.className(), db).onSuccessTask(
+        new Continuation<Set<String>, Task<Set<String>>>() {
+      @Override
+      public Task<Set<String>> then(Task<Set<String>> task) throws Exception {
+        indexedKeys.set(task.getResult());
+        return getTextIndexedKeysAsync(query.className(), db);
+      }
+    }).onSuccessTask(new Continuation<Set<String>, Task<OfflineQueryPlanner.Plan>>() {
+      @Override
+      public Task<OfflineQueryPlanner.Plan> then(Task<Set<String>> task) throws Exception {
+        OfflineQueryPlanner.Plan plan =
+            OfflineQueryPlanner.plan(query, indexedKeys.get(), task.getResult());
+        if (isOrdered && plan.orderBy() == null) {
+          return Task.forError(new ParseException(ParseException.INVALID_QUERY,
+              "Only queries ordered by objectId or by indexed keys can be iterated over."));
+        }
+        return checkOrderAsync(query.className(), plan, db);
+      }
+    }).onSuccessTask(new Continuation<OfflineQueryPlanner.Plan, Task<Void>>() {
+      @Override
+      public Task<Void> then(Task<OfflineQueryPlanner.Plan> task) throws Exception {
+        OfflineQueryPlanner.Plan plan = task.getResult();
+        if (isOrdered && plan.orderBy() == null) {
+          // The stored values can't be ordered by SQLite, so find and sort all of the objects.
+          return findAsync(query, user, pin, false, plan, db).onSuccess(
+              new Continuation<List<T>, Void>() {
             @Override
-            public Task<Boolean> then(Task<T> task) throws Exception {
-              if (!object.get().isDataAvailable()) {
-                return Task.forResult(false);
+            public Void then(Task<List<T>> task) throws Exception {
+              for (T object : task.getResult()) {
+                if (!callback.next(object)) {
+                  break;
+                }
               }
-              return matcher.matchesAsync(object.get(), db);
+              return null;
+            }
+          });
+        }
+        return findEachAsync(query, user, pin, callback, plan, db);
+      }
+    });
+  }
+
+  /**
+   * Runs a query whose plan has the order of the query, if it has one, passing each object that
+   * matches to the callback as soon as it's found.
+   */
+  private <T extends ParseObject> Task<Void> findEachAsync(
+      final ParseQuery.State<T> query,
+      final ParseUser user,
+      final ParsePin pin,
+      final EachCallback<T> callback,
+      final OfflineQueryPlanner.Plan plan,
+      final ParseSQLiteDatabase db) {
+    final OfflineQueryLogic queryLogic = new OfflineQueryLogic(this);
+    return queryCandidatesAsync(query, pin, plan, db).onSuccessTask(
+        new Continuation<Cursor, Task<Void>>() {
+      @Override
+      public Task<Void> then(Task<Cursor> task) throws Exception {
+        final Cursor cursor = task.getResult();
+        if (cursor == null) {
+          return Task.forResult(null);
+        }
+
+        final ConstraintMatcher<T> matcher = queryLogic.createMatcher(query, user);
+        final Capture<Integer> toSkip = new Capture<>(Math.max(query.skip(), 0));
+        final Capture<Integer> remaining =
+            new Capture<>(query.limit() >= 0 ? query.limit() : Integer.MAX_VALUE);
+
+        // Reads, matches and passes on one page of candidates, then does the same for the next one.
+        Continuation<Void, Task<Void>> nextPage = new Continuation<Void, Task<Void>>() {
+          @Override
+          public Task<Void> then(Task<Void> task) throws Exception {
+            if (remaining.get() <= 0) {
+              return Task.forResult(null);
+            }
+            Set<String> uuidsInMemory = new HashSet<>();
+            List<String> page = readCandidates(cursor, plan, FIND_PAGE_SIZE, uuidsInMemory);
+            if (page.isEmpty()) {
+              return Task.forResult(null);
+            }
+
+            return findMatchesAsync(query, user, plan, matcher, page, uuidsInMemory, db)
+                .onSuccessTask(new Continuation<List<T>, Task<Void>>() {
+              @Override
+              public Task<Void> then(Task<List<T>> task) throws Exception {
+                // Only the objects that can still be passed on need their includes.
+                final List<T> objects = new ArrayList<>();
+                for (T object : task.getResult()) {
+                  if (toSkip.get() > 0) {
+                    toSkip.set(toSkip.get() - 1);
+                  } else if (objects.size() < remaining.get()) {
+                    objects.add(object);
+                  }
+                }
+
+                return queryLogic.fetchIncludesAsync(objects, query, db).onSuccess(
+                    new Continuation<Void, Void>() {
+                  @Override
+                  public Void then(Task<Void> task) throws Exception {
+                    for (T object : objects) {
+                      if (remaining.get() <= 0) {
+                        break;
+                      }
+                      remaining.set(callback.next(object) ? remaining.get() - 1 : 0);
+                    }
+                    return null;
+                  }
+                });
+              }
+            }).onSuccessTask(this);
+          }
+        };
+
+        return Task.<Void>forResult(null).onSuccessTask(nextPage).continueWithTask(
+            new Continuation<Void, Task<Void>>() {
+          @Override
+          public Task<Void> then(Task<Void> task) throws Exception {
+            cursor.close();
+            return task;
+          }
+        });
+      }
+    });
+  }
+
+  /**
+   * A selection over {@link OfflineSQLiteOpenHelper#TABLE_OBJECTS}, along with its arguments.
+   */
+  private static class Selection {
+    private final String where;
+    private final String[] args;
+
+    private Selection(String where, String[] args) {
+      this.where = where;
+      this.args = args;
+    }
+  }
+
+  /**
+   * Queries the uuids of the objects that could match a query.
+   *
+   * @param query The query.
+   * @param pin (Optional) The pin we are querying across. If null, all pins.
+   * @param plan The plan for the query.
+   * @param db The SQLiteDatabase.
+   * @return A cursor for {@link #readCandidates}, or null if there can't be any candidates.
+   */
+  private <T extends ParseObject> Task<Cursor> queryCandidatesAsync(
+      final ParseQuery.State<T> query,
+      ParsePin pin,
+      final OfflineQueryPlanner.Plan plan,
+      final ParseSQLiteDatabase db) {
+    return selectCandidatesAsync(query, pin).onSuccessTask(
+        new Continuation<Selection, Task<Cursor>>() {
+      @Override
+      public Task<Cursor> then(Task<Selection> task) throws Exception {
+        Selection selection = task.getResult();
+        if (selection == null) {
+          return Task.forResult(null);
+        }
+        return queryCandidatesAsync(selection.where, selection.args, plan, db);
+      }
+    });
+  }
+
+  /**
+   * Creates the selection of all the objects of a query's class, in the given pin if there is one.
+   *
+   * @param query The query.
+   * @param pin (Optional) The pin we are querying across. If null, all pins.
+   * @return The selection, or null if there can't be any objects.
+   */
+  private <T extends ParseObject> Task<Selection> selectCandidatesAsync(
+      final ParseQuery.State<T> query, ParsePin pin) {
+    /*
+     * This is currently unused, but is here to allow future querying across objects that are in the
+     * process of being deleted eventually.
+     */
+    final boolean includeIsDeletingEventually = false;
+
+    if (pin == null) {
+      String where = OfflineSQLiteOpenHelper.KEY_CLASS_NAME + "=?";
+      if (!includeIsDeletingEventually) {
+        where += " AND " + OfflineSQLiteOpenHelper.KEY_IS_DELETING_EVENTUALLY + "=0";
+      }
+      String[] args = { query.className() };
+
+      return Task.forResult(new Selection(where, args));
+    }
+
+    Task<String> uuidTask = objectToUuidMap.get(pin);
+    if (uuidTask == null) {
+      // Pin was never saved locally, therefore there won't be any results.
+      return Task.forResult(null);
+    }
+
+    return uuidTask.onSuccess(new Continuation<String, Selection>() {
+      @Override
+      public Selection then(Task<String> task) throws Exception {
+        String uuid = task.getResult();
+
+        /*
+         * The pin's objects are selected with a subquery rather than a join, so that the plan's
+         * selection and order can refer to the columns of ParseObjects without ambiguity.
+         */
+        String where = OfflineSQLiteOpenHelper.KEY_CLASS_NAME + "=?" +
+            " AND " + OfflineSQLiteOpenHelper.KEY_UUID + " IN (" +
+            "SELECT " + OfflineSQLiteOpenHelper.KEY_UUID +
+            " FROM " + OfflineSQLiteOpenHelper.TABLE_DEPENDENCIES +
+            " WHERE " + OfflineSQLiteOpenHelper.KEY_KEY + "=?)";
+        if (!includeIsDeletingEventually) {
+          where += " AND " + OfflineSQLiteOpenHelper.KEY_IS_DELETING_EVENTUALLY + "=0";
+        }
+        String[] args = { query.className(), uuid };
+
+        return new Selection(where, args);
+      }
+    });
+  }
+
+  /**
+   * Reads the next candidates from a cursor from queryCandidatesAsync, leaving out the ones that
+   * can't match.
+   *
+   * @param cursor The cursor.
+   * @param plan The plan for the query.
+   * @param count The maximum number of candidates to read.
+   * @param uuidsInMemory Gets the candidates that are modified in memory, which always need to be
+   *                      checked by OfflineQueryLogic.
+   * @return The uuids of the candidates, which are empty once the cursor has no more rows.
+   */
+  private List<String> readCandidates(Cursor cursor, OfflineQueryPlanner.Plan plan, int count,
+      Set<String> uuidsInMemory) {
+    List<String> uuids = new ArrayList<>();
+    while (uuids.size() < count && cursor.moveToNext()) {
+      String uuid = cursor.getString(0);
+      boolean passedSelection = plan.selection() == null || cursor.getInt(1) != 0;
+      /*
+       * The selection is evaluated against what's stored in the database, but objects that are
+       * in memory may have been changed since then, so they always need to be checked.
+       */
+      if (isModifiedInMemory(uuid)) {
+        uuidsInMemory.add(uuid);
+      } else if (!passedSelection) {
+        continue;
+      }
+      uuids.add(uuid);
+    }
+    return uuids;
+  }
+
+  /**
+   * Loads the given candidates and finds the ones that match a query.
+   *
+   * @param query The query.
+   * @param user The user making the query.
+   * @param plan The plan for the query.
+   * @param matcher The matcher for the query.
+   * @param uuids The candidates, from readCandidates.
+   * @param uuidsInMemory The candidates that are fetched in memory, from readCandidates.
+   * @param db The SQLiteDatabase.
+   * @return The objects that match, in the same order as their uuids.
+   */
+  private <T extends ParseObject> Task<List<T>> findMatchesAsync(
+      final ParseQuery.State<T> query,
+      final ParseUser user,
+      final OfflineQueryPlanner.Plan plan,
+      final ConstraintMatcher<T> matcher,
+      final List<String> uuids,
+      final Set<String> uuidsInMemory,
+      final ParseSQLiteDatabase db) {
+    final List<T> matches = new ArrayList<>();
+    return fetchLocallyAsync(uuids, db).onSuccessTask(
+        new Continuation<List<ParseObject>, Task<Void>>() {
+      @Override
+      public Task<Void> then(Task<List<ParseObject>> task) throws Exception {
+        List<ParseObject> objects = task.getResult();
+
+        Task<Void> matchedAllObjects = Task.forResult(null);
+        for (int i = 0; i < objects.size(); i++) {
+          @SuppressWarnings("unchecked")
+          final T object = (T) objects.get(i);
+          if (object == null || !object.isDataAvailable()) {
+            continue;
+          }
+
+          if (plan.isExact() && !uuidsInMemory.contains(uuids.get(i))) {
+            // The selection already matched, so only the ACLs are left to check.
+            if (!query.ignoreACLs() && !OfflineQueryLogic.hasReadAccess(user, object)) {
+              continue;
+            }
+            if (matchedAllObjects.isCompleted()) {
+              // Nothing is pending before this object, so it can be added in order right away.
+              matches.add(object);
+            } else {
+              matchedAllObjects = matchedAllObjects.onSuccess(new Continuation<Void, Void>() {
+                @Override
+                public Void then(Task<Void> task) throws Exception {
+                  matches.add(object);
+                  return null;
+                }
+              });
+            }
+            continue;
+          }
+
+          if (matcher instanceof OfflineQueryLogic.SyncConstraintMatcher
+              && matchedAllObjects.isCompleted()) {
+            // Most queries don't have subqueries, so they can be matched without creating Tasks.
+            if (((OfflineQueryLogic.SyncConstraintMatcher<T>) matcher).matches(object)) {
+              matches.add(object);
+            }
+            continue;
+          }
+
+          matchedAllObjects = matchedAllObjects.onSuccessTask(
+              new Continuation<Void, Task<Boolean>>() {
+            @Override
+            public Task<Boolean> then(Task<Void> task) throws Exception {
+              return matcher.matchesAsync(object, db);
             }
           }).onSuccess(new Continuation<Boolean, Void>() {
             @Override
             public Void then(Task<Boolean> task) {
               if (task.getResult()) {
-                results.add(object.get());
+                matches.add(object);
               }
               return null;
             }
           });
         }
+        return matchedAllObjects;
+      }
+    }).onSuccess(new Continuation<Void, List<T>>() {
+      @Override
+      public List<T> then(Task<Void> task) throws Exception {
+        return matches;
+      }
+    });
+  }
 
-        return checkedAllObjects;
+  /**
+   * Queries the uuids of the objects that could match a query, along with whether or not each of
+   * them passed the plan's selection.
+   *
+   * @param where The selection for all objects of the class.
+   * @param args The arguments for where.
+   * @param plan The plan for the query.
+   * @param db The SQLiteDatabase.
+   * @return A cursor of (uuid, passedSelection) rows, in the plan's order if it has one.
+   */
+  private Task<Cursor> queryCandidatesAsync(String where, String[] args,
+      OfflineQueryPlanner.Plan plan, ParseSQLiteDatabase db) {
+    /*
+     * We select the result of the plan's selection instead of filtering on it, since objects that
+     * have been changed in memory need to be checked even if their stored data doesn't match.
+     */
+    List<String> sqlArgs = new ArrayList<>();
+    String sql = "SELECT " + OfflineSQLiteOpenHelper.KEY_UUID;
+    if (plan.selection() != null) {
+      sql += ", (" + plan.selection() + ")";
+      Collections.addAll(sqlArgs, plan.selectionArgs());
+    }
+    sql += " FROM " + OfflineSQLiteOpenHelper.TABLE_OBJECTS + " WHERE " + where;
+    Collections.addAll(sqlArgs, args);
+    if (plan.orderBy() != null) {
+      sql += " ORDER BY " + plan.orderBy();
+      Collections.addAll(sqlArgs, plan.orderByArgs());
+    }
+    return db.rawQueryAsync(sql, sqlArgs.toArray(new String[sqlArgs.size()]));
+  }
+
+  /**
+   * Returns whether the object for the given uuid is in memory and may have been changed since it
+   * was read from or written to the database, in which case its data might not match what's stored
+   * anymore.
+   */
+  private boolean isModifiedInMemory(String uuid) {
+    ParseObject object;
+    synchronized (lock) {
+      object = uuidToObjectMap.get(uuid);
+      if (object == null || !fetchedObjects.containsKey(object)) {
+        return false;
       }
-    }).onSuccessTask(new Continuation<Void, Task<List<T>>>() {
-      @Override
-      public Task<List<T>> then(Task<Void> task) throws Exception {
-        // Sort by any sort operators.
-        OfflineQueryLogic.sort(results, query);
+    }
+    return isModifiedInMemory(object);
+  }
 
-        // Apply the skip.
-        List<T> trimmedResults = results;
-        int skip = query.skip();
-        if (!isCount && skip >= 0) {
-          skip = Math.min(query.skip(), trimmedResults.size());
-          trimmedResults = trimmedResults.subList(skip, trimmedResults.size());
+  /**
+   * Returns whether any object of the given class is in memory and may have been changed since it
+   * was read from or written to the database.
+   */
+  private boolean hasModifiedObjectsInMemory(String className) {
+    List<ParseObject> objects = new ArrayList<>();
+    synchronized (lock) {
+      for (ParseObject object : fetchedObjects.keySet()) {
+        if (object.getClassName().equals(className)) {
+          objects.add(object);
         }
+      }
+    }
+    for (ParseObject object : objects) {
+      if (isModifiedInMemory(object)) {
+        return true;
+      }
+    }
+    return false;
+  }
 
-        // Trim to the limit.
-        int limit = query.limit();
-        if (!isCount && limit >= 0 && trimmedResults.size() > limit) {
-          trimmedResults = trimmedResults.subList(0, limit);
-        }
+  private boolean isModifiedInMemory(ParseObject object) {
+    ParseObject.State storedState;
+    synchronized (lock) {
+      storedState = storedStates.get(object);
+    }
+    // This locks the object, so it can't be called while holding the lock.
+    return object.getState() != storedState || object.isDirty(false)
+        || object.hasOutstandingOperations();
+  }
 
-        // Fetch the includes.
-        Task<Void> fetchedIncludesTask = Task.forResult(null);
-        for (final T object : trimmedResults) {
-          fetchedIncludesTask = fetchedIncludesTask.onSuccessTask(new Continuation<Void, Task<Void>>() {
-            @Override
-            public Task<Void> then(Task<Void> task) throws Exception {
-              return queryLogic.fetchIncludesAsync(object, query, db);
-            }
-          });
+  /**
+   * The error for a uuid that a read-only session can't find the row of. A read-only session can
+   * run while another session is writing, so the row may have been inserted by a transaction that
+   * hasn't been committed yet.
+   */
+  private static class UncommittedRowException extends ParseException {
+    private UncommittedRowException() {
+      super(CACHE_MISS, "This object is not available in the offline cache yet.");
+    }
+  }
+
+  /**
+   * Returns the error for a uuid that an object has in memory, but that has no row in the database.
+   */
+  private static Exception missingRowError(String uuid, ParseSQLiteDatabase db) {
+    if (db.isReadOnly()) {
+      return new UncommittedRowException();
+    }
+    return new IllegalStateException("Attempted to find non-existent uuid " + uuid);
+  }
+
+  private static boolean isUncommittedRowError(Exception error) {
+    if (error instanceof AggregateException) {
+      for (Throwable inner : ((AggregateException) error).getInnerThrowables()) {
+        if (inner instanceof UncommittedRowException) {
+          return true;
         }
+      }
+    }
+    return error instanceof UncommittedRowException;
+  }
 
-        final List<T> finalTrimmedResults = trimmedResults;
-        return fetchedIncludesTask.onSuccess(new Continuation<Void, List<T>>() {
-          @Override
-          public List<T> then(Task<Void> task) throws Exception {
-            return finalTrimmedResults;
-          }
-        });
+  /**
+   * Forgets that fetching an object failed because of a row that wasn't committed yet, so that the
+   * next fetch tries again instead of failing the same way.
+   */
+  private void forgetFailedFetch(ParseObject object, Task<?> fetchTask) {
+    if (!isUncommittedRowError(fetchTask.getError())) {
+      return;
+    }
+    synchronized (lock) {
+      if (fetchedObjects.get(object) == fetchTask) {
+        fetchedObjects.remove(object);
       }
-    });
+    }
+  }
+
+  /**
+   * Records that an object has the same data as its row in the database.
+   */
+  private void setStoredState(ParseObject object, ParseObject.State state) {
+    synchronized (lock) {
+      storedStates.put(object, state);
+    }
   }
 
   /**
@@ -513,7 +1354,7 @@ import bolts.Task;
      * If this gets set, then it will contain data from the offline store that needs to be merged
      * into the existing object in memory.
      */
-    Task<String> jsonStringTask = Task.forResult(null);
+    Task<byte[]> jsonDataTask = Task.forResult(null);
 
     if (objectId == null) {
       // This Object has never been saved to Parse.
@@ -535,23 +1376,23 @@ import bolts.Task;
         final String[] select = { OfflineSQLiteOpenHelper.KEY_JSON };
         final String where = OfflineSQLiteOpenHelper.KEY_UUID + " = ?";
         final Capture<String> uuid = new Capture<>();
-        jsonStringTask = uuidTask.onSuccessTask(new Continuation<String, Task<Cursor>>() {
+        jsonDataTask = uuidTask.onSuccessTask(new Continuation<String, Task<Cursor>>() {
           @Override
           public Task<Cursor> then(Task<String> task) throws Exception {
             uuid.set(task.getResult());
             String[] args = { uuid.get() };
             return db.queryAsync(OfflineSQLiteOpenHelper.TABLE_OBJECTS, select, where, args);
           }
-        }).onSuccess(new Continuation<Cursor, String>() {
+        }).onSuccess(new Continuation<Cursor, byte[]>() {
           @Override
-          public String then(Task<Cursor> task) throws Exception {
+          public byte[] then(Task<Cursor> task) throws Exception {
             Cursor cursor = task.getResult();
             cursor.moveToFirst();
             if (cursor.isAfterLast()) {
               cursor.close();
-              throw new IllegalStateException("Attempted to find non-existent uuid " + uuid.get());
+              throw missingRowError(uuid.get(), db);
             }
-            String json = cursor.getString(0);
+            byte[] json = cursor.getBlob(0);
             cursor.close();
 
             return json;
@@ -584,11 +1425,11 @@ import bolts.Task;
           String.format("%s = ? AND %s = ?", OfflineSQLiteOpenHelper.KEY_CLASS_NAME,
               OfflineSQLiteOpenHelper.KEY_OBJECT_ID);
       String[] args = { className, objectId };
-      jsonStringTask =
+      jsonDataTask =
           db.queryAsync(OfflineSQLiteOpenHelper.TABLE_OBJECTS, select, where, args).onSuccess(
-              new Continuation<Cursor, String>() {
+              new Continuation<Cursor, byte[]>() {
                 @Override
-                public String then(Task<Cursor> task) throws Exception {
+                public byte[] then(Task<Cursor> task) throws Exception {
                   Cursor cursor = task.getResult();
                   cursor.moveToFirst();
                   if (cursor.isAfterLast()) {
@@ -603,7 +1444,7 @@ import bolts.Task;
                   }
 
                   // we should fetch its data and record its UUID for future reference.
-                  String jsonString = cursor.getString(0);
+                  byte[] jsonData = cursor.getBlob(0);
                   String newUUID = cursor.getString(1);
                   cursor.close();
 
@@ -617,16 +1458,16 @@ import bolts.Task;
                     uuidToObjectMap.put(newUUID, object);
                   }
 
-                  return jsonString;
+                  return jsonData;
                 }
               });
     }
 
-    return jsonStringTask.onSuccessTask(new Continuation<String, Task<Void>>() {
+    return jsonDataTask.onSuccessTask(new Continuation<byte[], Task<Void>>() {
       @Override
-      public Task<Void> then(Task<String> task) throws Exception {
-        String jsonString = task.getResult();
-        if (jsonString == null) {
+      public Task<Void> then(Task<byte[]> task) throws Exception {
+        byte[] jsonData = task.getResult();
+        if (jsonData == null) {
           /*
            * This means we tried to fetch an object from the database that was never actually saved
            * locally. This probably means that its parent object was saved locally and we just
@@ -642,7 +1483,7 @@ import bolts.Task;
            * things to maintain from the in-memory object are any changes since the object was last
            * put in the database.
            */
-          json = new JSONObject(jsonString);
+          json = OfflineBinaryJSON.decode(jsonData);
         } catch (JSONException e) {
           return Task.forError(e);
         }
@@ -665,7 +1506,11 @@ import bolts.Task;
         return Task.whenAll(offlineObjects.values()).onSuccess(new Continuation<Void, Void>() {
           @Override
           public Void then(Task<Void> task) throws Exception {
-            object.mergeREST(object.getState(), json, new OfflineDecoder(offlineObjects));
+            ParseObject.State state = object.getState();
+            object.mergeREST(state, json, new OfflineDecoder(offlineObjects));
+            if (object.getState() != state) {
+              setStoredState(object, object.getState());
+            }
             return null;
           }
         });
@@ -677,6 +1522,7 @@ import bolts.Task;
           tcs.setCancelled();
         } else if (task.isFaulted()) {
           tcs.setError(task.getError());
+          forgetFailedFetch(object, tcs.getTask());
         } else {
           tcs.setResult(object);
         }
@@ -685,6 +1531,362 @@ import bolts.Task;
     });
   }
 
+  /**
+   * Gets the objects for the given UUIDs and fetches their data from the offline database. This is
+   * the same as calling {@link #getPointerAsync(String, ParseSQLiteDatabase)} and
+   * {@link #fetchLocallyAsync(ParseObject, ParseSQLiteDatabase)} for each of them, except that the
+   * data for all of them is read with a single query.
+   *
+   * @param uuids
+   *          The objects to fetch. There can't be more than {@link #MAX_SQL_VARIABLES}.
+   * @param db
+   *          A database connection to use.
+   * @return The fetched objects, in the same order as the UUIDs, or null for objects that aren't in
+   *         the database anymore.
+   */
+  private Task<List<ParseObject>> fetchLocallyAsync(final List<String> uuids,
+      final ParseSQLiteDatabase db) {
+    // Objects that are already fetched in memory don't need to be read or decoded again.
+    final Map<String, Task<ParseObject>> cachedTasks = new HashMap<>();
+    List<String> uuidsToFetch = new ArrayList<>();
+    synchronized (lock) {
+      for (String uuid : uuids) {
+        ParseObject object = uuidToObjectMap.get(uuid);
+        Task<ParseObject> fetchTask = object != null ? fetchedObjects.get(object) : null;
+        if (fetchTask != null && fetchTask.isCompleted() && !fetchTask.isFaulted()
+            && !fetchTask.isCancelled()) {
+          objectCache.put(uuid, object);
+          cachedTasks.put(uuid, fetchTask);
+          objectCacheHits++;
+        } else {
+          uuidsToFetch.add(uuid);
+          objectCacheMisses++;
+        }
+      }
+    }
+
+    Task<Map<String, Task<ParseObject>>> fetchedTask;
+    if (uuidsToFetch.isEmpty()) {
+      fetchedTask = Task.forResult(cachedTasks);
+    } else {
+      String where =
+          OfflineSQLiteOpenHelper.KEY_UUID + " IN (" + placeholders(uuidsToFetch.size()) + ")";
+      String[] args = uuidsToFetch.toArray(new String[uuidsToFetch.size()]);
+      fetchedTask = fetchRowsLocallyAsync(where, args, db).onSuccess(
+          new Continuation<Map<String, Task<ParseObject>>, Map<String, Task<ParseObject>>>() {
+        @Override
+        public Map<String, Task<ParseObject>> then(Task<Map<String, Task<ParseObject>>> task)
+            throws Exception {
+          Map<String, Task<ParseObject>> fetchTasks = task.getResult();
+          synchronized (lock) {
+            for (Map.Entry<String, Task<ParseObject>> entry : fetchTasks.entrySet()) {
+              Task<ParseObject> fetchTask = entry.getValue();
+              if (fetchTask.isCompleted() && !fetchTask.isFaulted() && !fetchTask.isCancelled()) {
+                objectCache.put(entry.getKey(), fetchTask.getResult());
+              }
+            }
+          }
+          fetchTasks.putAll(cachedTasks);
+          return fetchTasks;
+        }
+      });
+    }
+    return fetchedTask.onSuccessTask(
+        new Continuation<Map<String, Task<ParseObject>>, Task<List<ParseObject>>>() {
+      @Override
+      public Task<List<ParseObject>> then(Task<Map<String, Task<ParseObject>>> task)
+          throws Exception {
+        Map<String, Task<ParseObject>> fetchTasks = task.getResult();
+        // Report the first error, in the same order the objects would have been fetched in.
+        for (String uuid : uuids) {
+          Task<ParseObject> fetchTask = fetchTasks.get(uuid);
+          if (fetchTask != null && fetchTask.isFaulted()) {
+            return Task.forError(fetchTask.getError());
+          } else if (fetchTask != null && fetchTask.isCancelled()) {
+            return Task.cancelled();
+          }
+        }
+
+        /*
+         * Every task has finished successfully by now, so we just need the objects in order. A
+         * read-only session can see objects disappear between queries if they're deleted by another
+         * session, so those are left as null.
+         */
+        List<ParseObject> objects = new ArrayList<>(uuids.size());
+        for (String uuid : uuids) {
+          Task<ParseObject> fetchTask = fetchTasks.get(uuid);
+          objects.add(fetchTask != null ? fetchTask.getResult() : null);
+        }
+        return Task.forResult(objects);
+      }
+    });
+  }
+
+  /**
+   * Gets the data for the given objects from the offline database. This is the same as calling
+   * {@link #fetchLocallyAsync(ParseObject, ParseSQLiteDatabase)} for each of them, except that the
+   * data for the ones that haven't been fetched yet is read with one query per class, instead of
+   * one query per object.
+   *
+   * @param objects
+   *          The objects to fetch. They can be of different classes, and can repeat.
+   * @param db
+   *          A database connection to use.
+   * @return A task that fails with the first error, in the same order as the objects.
+   */
+  /* package for OfflineQueryLogic */ Task<Void> fetchAllLocallyAsync(
+      final List<? extends ParseObject> objects, final ParseSQLiteDatabase db) {
+    // The objectIds of the pointers that have never been fetched, by class.
+    Map<String, Set<String>> objectIdsByClass = new HashMap<>();
+    // The uuids of the objects that have only been stored locally, but haven't been fetched.
+    Set<String> uuids = new HashSet<>();
+    synchronized (lock) {
+      for (ParseObject object : objects) {
+        if (fetchedObjects.containsKey(object)) {
+          continue;
+        }
+        String objectId = object.getObjectId();
+        Task<String> uuidTask = objectToUuidMap.get(object);
+        if (objectId != null && uuidTask == null) {
+          Set<String> objectIds = objectIdsByClass.get(object.getClassName());
+          if (objectIds == null) {
+            objectIds = new HashSet<>();
+            objectIdsByClass.put(object.getClassName(), objectIds);
+          }
+          objectIds.add(objectId);
+        } else if (objectId == null && uuidTask != null && uuidTask.isCompleted()
+            && !uuidTask.isFaulted() && !uuidTask.isCancelled()) {
+          uuids.add(uuidTask.getResult());
+        }
+      }
+    }
+
+    /*
+     * Load the data for all of them first. Objects that can't be loaded this way, or that fail to,
+     * are left for fetchLocallyAsync below to handle one at a time, so that any errors are
+     * reported the same way.
+     */
+    Task<Void> task = Task.forResult(null);
+    for (Map.Entry<String, Set<String>> entry : objectIdsByClass.entrySet()) {
+      final String className = entry.getKey();
+      final List<String> objectIds = new ArrayList<>(entry.getValue());
+      for (int start = 0; start < objectIds.size(); start += MAX_SQL_VARIABLES - 1) {
+        final List<String> batch = objectIds.subList(start,
+            Math.min(start + MAX_SQL_VARIABLES - 1, objectIds.size()));
+        task = task.onSuccessTask(new Continuation<Void, Task<Void>>() {
+          @Override
+          public Task<Void> then(Task<Void> task) throws Exception {
+            String where = OfflineSQLiteOpenHelper.KEY_CLASS_NAME + "=? AND "
+                + OfflineSQLiteOpenHelper.KEY_OBJECT_ID
+                + " IN (" + placeholders(batch.size()) + ")";
+            List<String> args = new ArrayList<>();
+            args.add(className);
+            args.addAll(batch);
+            return fetchRowsLocallyAsync(where, args.toArray(new String[args.size()]), db)
+                .makeVoid();
+          }
+        });
+      }
+    }
+    final List<String> uuidList = new ArrayList<>(uuids);
+    for (int start = 0; start < uuidList.size(); start += MAX_SQL_VARIABLES) {
+      final List<String> batch =
+          uuidList.subList(start, Math.min(start + MAX_SQL_VARIABLES, uuidList.size()));
+      task = task.onSuccessTask(new Continuation<Void, Task<Void>>() {
+        @Override
+        public Task<Void> then(Task<Void> task) throws Exception {
+          String where =
+              OfflineSQLiteOpenHelper.KEY_UUID + " IN (" + placeholders(batch.size()) + ")";
+          return fetchRowsLocallyAsync(where, batch.toArray(new String[batch.size()]), db)
+              .makeVoid();
+        }
+      });
+    }
+
+    return task.onSuccessTask(new Continuation<Void, Task<Void>>() {
+      @Override
+      public Task<Void> then(Task<Void> task) throws Exception {
+        // Almost all of these have already been fetched, so this doesn't touch the database again.
+        Task<Void> fetchedAllObjects = Task.forResult(null);
+        for (final ParseObject object : objects) {
+          fetchedAllObjects = fetchedAllObjects.onSuccessTask(new Continuation<Void, Task<Void>>() {
+            @Override
+            public Task<Void> then(Task<Void> task) throws Exception {
+              return fetchLocallyAsync(object, db).makeVoid();
+            }
+          });
+        }
+        return fetchedAllObjects;
+      }
+    });
+  }
+
+  private static String placeholders(int count) {
+    String[] placeholders = new String[count];
+    for (int i = 0; i < placeholders.length; i++) {
+      placeholders[i] = "?";
+    }
+    return TextUtils.join(",", placeholders);
+  }
+
+  /**
+   * Reads the rows of {@link OfflineSQLiteOpenHelper#TABLE_OBJECTS} that match the given selection,
+   * and fetches the objects they belong to from their data, the same way as
+   * {@link #fetchLocallyAsync(ParseObject, ParseSQLiteDatabase)}.
+   *
+   * @param where
+   *          The selection.
+   * @param args
+   *          The arguments of the selection.
+   * @param db
+   *          A database connection to use.
+   * @return The fetch task of the object of each row, by uuid. All of them are finished, but some
+   *         may have failed.
+   */
+  private Task<Map<String, Task<ParseObject>>> fetchRowsLocallyAsync(String where, String[] args,
+      final ParseSQLiteDatabase db) {
+    String[] select = { OfflineSQLiteOpenHelper.KEY_UUID, OfflineSQLiteOpenHelper.KEY_CLASS_NAME,
+        OfflineSQLiteOpenHelper.KEY_OBJECT_ID, OfflineSQLiteOpenHelper.KEY_JSON };
+    final Map<String, Task<ParseObject>> fetchTasks = new HashMap<>();
+    return db.queryAsync(OfflineSQLiteOpenHelper.TABLE_OBJECTS, select, where, args).onSuccessTask(
+        new Continuation<Cursor, Task<Map<String, Task<ParseObject>>>>() {
+      @Override
+      public Task<Map<String, Task<ParseObject>>> then(Task<Cursor> task) throws Exception {
+        Cursor cursor = task.getResult();
+        // The objects that need the data from the database merged into them.
+        final List<ParseObject> objectsToMerge = new ArrayList<>();
+        final List<byte[]> jsonData = new ArrayList<>();
+        final List<Task<ParseObject>.TaskCompletionSource> tcss = new ArrayList<>();
+
+        for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+          String uuid = cursor.getString(0);
+          String className = cursor.getString(1);
+          String objectId = cursor.getString(2);
+          byte[] data = cursor.getBlob(3);
+
+          ParseObject object;
+          Task<ParseObject>.TaskCompletionSource tcs = null;
+          synchronized (lock) {
+            object = uuidToObjectMap.get(uuid);
+            if (object == null) {
+              // Same as getPointerAsync.
+              object = ParseObject.createWithoutData(className, objectId);
+              if (objectId == null) {
+                uuidToObjectMap.put(uuid, object);
+                objectToUuidMap.put(object, Task.forResult(uuid));
+              }
+            }
+
+            /*
+             * If the object hasn't been fetched yet, we already have the data fetchLocallyAsync would
+             * read. Otherwise, fetchLocallyAsync knows what to do with it.
+             */
+            Task<String> uuidTask = objectToUuidMap.get(object);
+            boolean canMerge = !fetchedObjects.containsKey(object)
+                && (objectId == null ? uuidTask != null : uuidTask == null);
+            if (canMerge) {
+              tcs = Task.create();
+              fetchedObjects.put(object, tcs.getTask());
+              if (objectId != null) {
+                objectToUuidMap.put(object, Task.forResult(uuid));
+                uuidToObjectMap.put(uuid, object);
+              }
+            }
+          }
+
+          if (tcs != null) {
+            objectsToMerge.add(object);
+            jsonData.add(data);
+            tcss.add(tcs);
+            fetchTasks.put(uuid, tcs.getTask());
+          } else {
+            fetchTasks.put(uuid, fetchLocallyAsync(object, db));
+          }
+        }
+        cursor.close();
+
+        // Parse all the data, and find any offline objects it points to so they can be loaded.
+        final List<JSONObject> jsons = new ArrayList<>();
+        final Map<String, Task<ParseObject>> offlineObjects = new HashMap<>();
+        ParseTraverser traverser = new ParseTraverser() {
+          @Override
+          protected boolean visit(Object object) {
+            if (object instanceof JSONObject
+                && ((JSONObject) object).optString("__type").equals("OfflineObject")) {
+              String uuid = ((JSONObject) object).optString("uuid");
+              if (!offlineObjects.containsKey(uuid)) {
+                offlineObjects.put(uuid, getPointerAsync(uuid, db));
+              }
+            }
+            return true;
+          }
+        }.setTraverseParseObjects(false).setYieldRoot(false);
+        for (int i = 0; i < jsonData.size(); i++) {
+          byte[] data = jsonData.get(i);
+          JSONObject json = null;
+          if (data == null) {
+            // Same as fetchLocallyAsync, this is a cache miss.
+            tcss.get(i).setError(new ParseException(ParseException.CACHE_MISS,
+                "Attempted to fetch an object offline which was never saved to the offline cache."));
+          } else {
+            try {
+              json = OfflineBinaryJSON.decode(data);
+              traverser.traverse(json);
+            } catch (JSONException e) {
+              tcss.get(i).setError(e);
+            }
+          }
+          jsons.add(json);
+        }
+
+        return Task.whenAll(offlineObjects.values()).continueWithTask(
+            new Continuation<Void, Task<Void>>() {
+          @Override
+          public Task<Void> then(Task<Void> task) throws Exception {
+            OfflineDecoder decoder = new OfflineDecoder(offlineObjects);
+            for (int i = 0; i < objectsToMerge.size(); i++) {
+              JSONObject json = jsons.get(i);
+              if (json == null) {
+                continue;
+              }
+              Task<ParseObject>.TaskCompletionSource tcs = tcss.get(i);
+              if (task.isCancelled()) {
+                tcs.setCancelled();
+              } else if (task.isFaulted()) {
+                tcs.setError(task.getError());
+              } else {
+                ParseObject object = objectsToMerge.get(i);
+                try {
+                  ParseObject.State state = object.getState();
+                  object.mergeREST(state, json, decoder);
+                  if (object.getState() != state) {
+                    setStoredState(object, object.getState());
+                  }
+                  tcs.setResult(object);
+                } catch (Exception e) {
+                  tcs.setError(e);
+                }
+              }
+            }
+            return Task.whenAll(fetchTasks.values());
+          }
+        }).continueWith(new Continuation<Void, Map<String, Task<ParseObject>>>() {
+          @Override
+          public Map<String, Task<ParseObject>> then(Task<Void> task) throws Exception {
+            for (int i = 0; i < objectsToMerge.size(); i++) {
+              Task<ParseObject> fetchTask = tcss.get(i).getTask();
+              if (fetchTask.isFaulted()) {
+                forgetFailedFetch(objectsToMerge.get(i), fetchTask);
+              }
+            }
+            // Any errors are left in the fetch task of each object.
+            return fetchTasks;
+          }
+        });
+      }
+    });
+  }
+
   /**
    * Gets the data for the given object from the offline database. Returns a task that will be
    * completed if data for the object was available. If the object is not in the cache, the task
@@ -694,7 +1896,7 @@ import bolts.Task;
    *          The object to fetch.
    */
   /* package */ <T extends ParseObject> Task<T> fetchLocallyAsync(final T object) {
-    return runWithManagedConnection(new SQLiteDatabaseCallable<Task<T>>() {
+    return runWithManagedReadOnlyConnection(new SQLiteDatabaseCallable<Task<T>>() {
       @Override
       public Task<T> call(ParseSQLiteDatabase db) {
         return fetchLocallyAsync(object, db);
@@ -703,40 +1905,111 @@ import bolts.Task;
   }
 
   /**
-   * Stores a single object in the local database. If the object is a pointer, isn't dirty, and has
-   * an objectId already, it may not be saved, since it would provide no useful data.
+   * Stores objects in the local database, all under the same key. If an object is a pointer, isn't
+   * dirty, and has an objectId already, it may not be saved, since it would provide no useful data.
    *
-   * @param object
-   *          The object to save.
+   * All of the objects are encoded before any of them are written, and then they're written with
+   * one batch of statements for each table, instead of separate statements for every object.
+   *
+   * @param key
+   *          The key to store the objects under in the Dependencies table.
+   * @param objects
+   *          The objects to save.
    * @param db
    *          A database connection to use.
    */
-  private Task<Void> saveLocallyAsync(
-      final String key, final ParseObject object, final ParseSQLiteDatabase db) {
-    // If this is just a clean, unfetched pointer known to Parse, then there is nothing to save.
-    if (object.getObjectId() != null && !object.isDataAvailable() && !object.hasChanges()
-        && !object.hasOutstandingOperations()) {
+  private Task<Void> saveAllLocallyAsync(
+      final String key, List<ParseObject> objects, final ParseSQLiteDatabase db) {
+    final List<ParseObject> objectsToSave = new ArrayList<>(objects.size());
+    Set<ParseObject> seen = Collections.newSetFromMap(new IdentityHashMap<ParseObject, Boolean>());
+    for (ParseObject object : objects) {
+      if (!seen.add(object)) {
+        continue;
+      }
+      // If this is just a clean, unfetched pointer known to Parse, then there is nothing to save.
+      if (object.getObjectId() != null && !object.isDataAvailable() && !object.hasChanges()
+          && !object.hasOutstandingOperations()) {
+        continue;
+      }
+      objectsToSave.add(object);
+    }
+    if (objectsToSave.isEmpty()) {
       return Task.forResult(null);
     }
 
-    final Capture<String> uuidCapture = new Capture<>();
-
-    // Make sure we have a UUID for the object to be saved.
-    return getOrCreateUUIDAsync(object, db).onSuccessTask(new Continuation<String, Task<Void>>() {
+    final long start = System.nanoTime();
+    final Capture<List<String>> uuids = new Capture<>();
+    final List<ParseObject.State> states = new ArrayList<>(objectsToSave.size());
+    return getOrCreateUUIDsAsync(objectsToSave, db).onSuccessTask(
+        new Continuation<List<String>, Task<Void>>() {
       @Override
-      public Task<Void> then(Task<String> task) throws Exception {
-        String uuid = task.getResult();
-        uuidCapture.set(uuid);
-        return updateDataForObjectAsync(uuid, object, db);
+      public Task<Void> then(Task<List<String>> task) throws Exception {
+        uuids.set(task.getResult());
+
+        // Encode all of the objects first, since encoding can need to create UUIDs.
+        OfflineEncoder encoder = new OfflineEncoder(db);
+        final List<JSONObject> jsons = new ArrayList<>(objectsToSave.size());
+        for (ParseObject object : objectsToSave) {
+          states.add(object.getState());
+          jsons.add(object.toRest(encoder));
+        }
+        synchronized (lock) {
+          for (String uuid : uuids.get()) {
+            objectCache.remove(uuid);
+          }
+        }
+
+        return encoder.whenFinished().onSuccessTask(new Continuation<Void, Task<Void>>() {
+          @Override
+          public Task<Void> then(Task<Void> task) throws Exception {
+            List<Object[]> objectRows = new ArrayList<>(objectsToSave.size());
+            List<Object[]> dependencyRows = new ArrayList<>(objectsToSave.size());
+            for (int i = 0; i < objectsToSave.size(); i++) {
+              ParseObject object = objectsToSave.get(i);
+              JSONObject json = jsons.get(i);
+              String uuid = uuids.get().get(i);
+              Object data = binaryEncoding ? OfflineBinaryJSON.encode(json) : json.toString();
+              objectRows.add(new Object[] {
+                  object.getClassName(),
+                  data,
+                  object.getObjectId(),
+                  json.getInt(ParseObject.KEY_IS_DELETING_EVENTUALLY),
+                  uuid
+              });
+              dependencyRows.add(new Object[] { key, uuid });
+            }
+
+            final List<Object[]> dependencies = dependencyRows;
+            return db.executeBatchAsync(SQL_UPDATE_OBJECT, objectRows).onSuccessTask(
+                new Continuation<Void, Task<Void>>() {
+              @Override
+              public Task<Void> then(Task<Void> task) throws Exception {
+                return db.executeBatchAsync(SQL_INSERT_DEPENDENCY, dependencies);
+              }
+            });
+          }
+        });
       }
     }).onSuccessTask(new Continuation<Void, Task<Void>>() {
       @Override
       public Task<Void> then(Task<Void> task) throws Exception {
-        final ContentValues values = new ContentValues();
-        values.put(OfflineSQLiteOpenHelper.KEY_KEY, key);
-        values.put(OfflineSQLiteOpenHelper.KEY_UUID, uuidCapture.get());
-        return db.insertWithOnConflict(OfflineSQLiteOpenHelper.TABLE_DEPENDENCIES, values,
-            SQLiteDatabase.CONFLICT_IGNORE);
+        List<Task<Void>> tasks = new ArrayList<>();
+        for (int i = 0; i < objectsToSave.size(); i++) {
+          tasks.add(updateIndexesAsync(uuids.get().get(i), objectsToSave.get(i), db));
+        }
+        return Task.whenAll(tasks);
+      }
+    }).onSuccess(new Continuation<Void, Void>() {
+      @Override
+      public Void then(Task<Void> task) throws Exception {
+        for (int i = 0; i < objectsToSave.size(); i++) {
+          setStoredState(objectsToSave.get(i), states.get(i));
+        }
+        synchronized (lock) {
+          savedObjectCount += objectsToSave.size();
+          savedObjectNanos += System.nanoTime() - start;
+        }
+        return null;
       }
     });
   }
@@ -820,15 +2093,7 @@ import bolts.Task;
     }).onSuccessTask(new Continuation<String, Task<Void>>() {
       @Override
       public Task<Void> then(Task<String> task) throws Exception {
-        String uuid = task.getResult();
-
-        // Call saveLocallyAsync for each of them individually.
-        final List<Task<Void>> tasks = new ArrayList<>();
-        for (ParseObject obj : objects) {
-          tasks.add(saveLocallyAsync(uuid, obj, db));
-        }
-
-        return Task.whenAll(tasks);
+        return saveAllLocallyAsync(task.getResult(), objects, db);
       }
     });
   }
@@ -899,7 +2164,9 @@ import bolts.Task;
             if (object != null) {
               objectToUuidMap.remove(object);
               uuidToObjectMap.remove(uuid);
+              storedStates.remove(object);
             }
+            objectCache.remove(uuid);
           }
         }
         return null;
@@ -927,10 +2194,16 @@ import bolts.Task;
     for (int i = 0; i < placeholders.length; i++) {
       placeholders[i] = "?";
     }
-    String where = OfflineSQLiteOpenHelper.KEY_UUID + " IN (" + TextUtils.join(",", placeholders) + ")";
+    final String where = OfflineSQLiteOpenHelper.KEY_UUID + " IN (" + TextUtils.join(",", placeholders) + ")";
     // dynamic args
-    String[] args = uuids.toArray(new String[uuids.size()]);
-    return db.deleteAsync(OfflineSQLiteOpenHelper.TABLE_OBJECTS, where, args);
+    final String[] args = uuids.toArray(new String[uuids.size()]);
+    return db.deleteAsync(OfflineSQLiteOpenHelper.TABLE_INDEXES, where, args).onSuccessTask(
+        new Continuation<Void, Task<Void>>() {
+      @Override
+      public Task<Void> then(Task<Void> task) throws Exception {
+        return db.deleteAsync(OfflineSQLiteOpenHelper.TABLE_OBJECTS, where, args);
+      }
+    });
   }
 
   /**
@@ -1011,11 +2284,23 @@ import bolts.Task;
     });
   }
 
+  /**
+   * Writes an object's data to its row in the local database.
+   *
+   * @param uuid The object's uuid.
+   * @param object The object.
+   * @param db A database connection to use.
+   */
   private Task<Void> updateDataForObjectAsync(
       final String uuid,
       final ParseObject object,
       final ParseSQLiteDatabase db) {
+    synchronized (lock) {
+      objectCache.remove(uuid);
+    }
+
     // Now actually encode the object as JSON.
+    final ParseObject.State state = object.getState();
     OfflineEncoder encoder = new OfflineEncoder(db);
     final JSONObject json = object.toRest(encoder);
 
@@ -1023,20 +2308,120 @@ import bolts.Task;
       @Override
       public Task<Void> then(Task<Void> task) throws Exception {
         // Put the JSON in the database.
-        String className = object.getClassName();
-        String objectId = object.getObjectId();
-        int isDeletingEventually = json.getInt(ParseObject.KEY_IS_DELETING_EVENTUALLY);
+        Object[] args = {
+            object.getClassName(),
+            binaryEncoding ? OfflineBinaryJSON.encode(json) : json.toString(),
+            object.getObjectId(),
+            json.getInt(ParseObject.KEY_IS_DELETING_EVENTUALLY),
+            uuid
+        };
+        return db.executeUpdateDeleteAsync(SQL_UPDATE_OBJECT, args).makeVoid();
+      }
+    }).onSuccessTask(new Continuation<Void, Task<Void>>() {
+      @Override
+      public Task<Void> then(Task<Void> task) throws Exception {
+        return updateIndexesAsync(uuid, object, db);
+      }
+    }).onSuccess(new Continuation<Void, Void>() {
+      @Override
+      public Void then(Task<Void> task) throws Exception {
+        setStoredState(object, state);
+        return null;
+      }
+    });
+  }
 
-        final ContentValues values = new ContentValues();
-        values.put(OfflineSQLiteOpenHelper.KEY_CLASS_NAME, className);
-        values.put(OfflineSQLiteOpenHelper.KEY_JSON, json.toString());
-        if (objectId != null) {
-          values.put(OfflineSQLiteOpenHelper.KEY_OBJECT_ID, objectId);
+  /**
+   * Updates the indexes for an object, if its class has any indexed keys.
+   *
+   * @param uuid The object's uuid.
+   * @param object The object.
+   * @param db A database connection to use.
+   */
+  private Task<Void> updateIndexesAsync(final String uuid, final ParseObject object,
+      final ParseSQLiteDatabase db) {
+    return getIndexedKeysAsync(object.getClassName(), db).onSuccessTask(
+        new Continuation<Set<String>, Task<Void>>() {
+      @Override
+      public Task<Void> then(Task<Set<String>> task) throws Exception {
+        final Set<String> keys = task.getResult();
+        return getTextIndexedKeysAsync(object.getClassName(), db).onSuccessTask(
+            new Continuation<Set<String>, Task<Void>>() {
+          @Override
+          public Task<Void> then(Task<Set<String>> task) throws Exception {
+            Set<String> textKeys = task.getResult();
+            if (keys.isEmpty() && textKeys.isEmpty()) {
+              return Task.forResult(null);
+            }
+            return updateIndexesAsync(uuid, object, keys, textKeys, db);
+          }
+        });
+      }
+    });
+  }
+
+  /**
+   * Replaces the rows in {@link OfflineSQLiteOpenHelper#TABLE_INDEXES} for an object with the
+   * current values of the given keys, along with its strings in
+   * {@link OfflineSQLiteOpenHelper#TABLE_TEXT_INDEXES}.
+   *
+   * @param uuid The object's uuid.
+   * @param object The object.
+   * @param keys All the indexed keys of the object's class.
+   * @param textKeys All the keys of the object's class that have a full-text index.
+   * @param db A database connection to use.
+   */
+  private Task<Void> updateIndexesAsync(final String uuid, final ParseObject object,
+      final Set<String> keys, final Set<String> textKeys, final ParseSQLiteDatabase db) {
+    String where = OfflineSQLiteOpenHelper.KEY_UUID + "=?";
+    String[] args = { uuid };
+    return db.deleteAsync(OfflineSQLiteOpenHelper.TABLE_INDEXES, where, args).onSuccessTask(
+        new Continuation<Void, Task<Void>>() {
+      @Override
+      public Task<Void> then(Task<Void> task) throws Exception {
+        List<Task<Void>> tasks = new ArrayList<>();
+        for (String key : keys) {
+          Object value = null;
+          boolean isSortable = false;
+          try {
+            value = OfflineQueryLogic.getValue(object, key);
+            isSortable = OfflineFieldIndex.isSortable(value);
+          } catch (ParseException e) {
+            // The object has no value for this key that a query could match against, or sort by.
+          }
+          if (!isSortable) {
+            Object[] args = { object.getClassName(), key, OfflineFieldIndex.TYPE_UNSORTABLE, null,
+                uuid };
+            tasks.add(db.executeInsertAsync(SQL_INSERT_INDEX, args).makeVoid());
+          }
+          for (Object item : OfflineFieldIndex.valuesOf(value)) {
+            Object[] args = { object.getClassName(), key, OfflineFieldIndex.typeOf(item),
+                OfflineFieldIndex.toStoredValue(item), uuid };
+            tasks.add(db.executeInsertAsync(SQL_INSERT_INDEX, args).makeVoid());
+          }
         }
-        values.put(OfflineSQLiteOpenHelper.KEY_IS_DELETING_EVENTUALLY, isDeletingEventually);
-        String where = OfflineSQLiteOpenHelper.KEY_UUID + " = ?";
-        String[] args = {uuid};
-        return db.updateAsync(OfflineSQLiteOpenHelper.TABLE_OBJECTS, values, where, args).makeVoid();
+
+        for (String key : textKeys) {
+          Object value;
+          try {
+            value = OfflineQueryLogic.getValue(object, key);
+          } catch (ParseException e) {
+            continue;
+          }
+          for (final String text : OfflineFieldIndex.textValuesOf(value)) {
+            Object[] args = { object.getClassName(), key, OfflineFieldIndex.TYPE_TEXT, null, uuid };
+            tasks.add(db.executeInsertAsync(SQL_INSERT_INDEX, args)
+                .onSuccessTask(new Continuation<Long, Task<Void>>() {
+              @Override
+              public Task<Void> then(Task<Long> task) throws Exception {
+                // The rows of the string are deleted along with the row of its docid by a trigger.
+                Object[] args = { task.getResult(), text };
+                return db.executeInsertAsync(SQL_INSERT_TEXT_INDEX, args).makeVoid();
+              }
+            }));
+          }
+        }
+        return Task.whenAll(tasks);
       }
     });
   }
@@ -1123,17 +2508,13 @@ import bolts.Task;
             public Task<Void> then(Task<ParsePin> task) throws Exception {
               ParsePin pin = task.getResult();
 
-              List<ParseObject> modified = pin.getObjects();
-              if (modified == null || !modified.contains(object)) {
+              if (!pin.removeObjects(Collections.singletonList(object))) {
                 return task.makeVoid();
               }
-
-              modified.remove(object);
-              if (modified.size() == 0) {
+              if (pin.getObjects().size() == 0) {
                 return unpinAsync(uuid, db);
               }
 
-              pin.setObjects(modified);
               return saveLocallyAsync(pin, true, db);
             }
           });
@@ -1152,6 +2533,13 @@ import bolts.Task;
         String[] args = {uuid.get()};
         return db.deleteAsync(OfflineSQLiteOpenHelper.TABLE_DEPENDENCIES, where, args);
       }
+    }).onSuccessTask(new Continuation<Void, Task<Void>>() {
+      @Override
+      public Task<Void> then(Task<Void> task) throws Exception {
+        String where = OfflineSQLiteOpenHelper.KEY_UUID + "=?";
+        String[] args = {uuid.get()};
+        return db.deleteAsync(OfflineSQLiteOpenHelper.TABLE_INDEXES, where, args);
+      }
     }).onSuccessTask(new Continuation<Void, Task<Void>>() {
       @Override
       public Task<Void> then(Task<Void> task) throws Exception {
@@ -1167,12 +2555,213 @@ import bolts.Task;
           //TODO (grantland): we should probably clean up uuidToObjectMap and objectToUuidMap, but
           // getting the uuid requires a task and things might get a little funky...
           fetchedObjects.remove(object);
+          storedStates.remove(object);
+          objectCache.remove(uuid.get());
+        }
+        return task;
+      }
+    });
+  }
+
+  //region Indexes
+
+  /**
+   * Gets the keys that are declared in the given table for every class.
+   *
+   * @param table Either {@link OfflineSQLiteOpenHelper#TABLE_INDEXED_KEYS} or
+   *              {@link OfflineSQLiteOpenHelper#TABLE_TEXT_INDEXED_KEYS}.
+   * @param db A database connection to use.
+   */
+  private Task<Map<String, Set<String>>> getIndexedKeysByClassAsync(String table,
+      ParseSQLiteDatabase db) {
+    synchronized (lock) {
+      Task<Map<String, Set<String>>> indexedKeysTask = indexedKeysTasks.get(table);
+      if (indexedKeysTask != null && !indexedKeysTask.isFaulted()
+          && !indexedKeysTask.isCancelled()) {
+        return indexedKeysTask;
+      }
+
+      String[] select = {
+          OfflineSQLiteOpenHelper.KEY_CLASS_NAME, OfflineSQLiteOpenHelper.KEY_FIELD };
+      Task<Map<String, Set<String>>> task = db.queryAsync(table, select, null, null).onSuccess(
+          new Continuation<Cursor, Map<String, Set<String>>>() {
+        @Override
+        public Map<String, Set<String>> then(Task<Cursor> task) throws Exception {
+          Map<String, Set<String>> indexedKeys = new HashMap<>();
+          Cursor cursor = task.getResult();
+          for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+            String className = cursor.getString(0);
+            Set<String> keys = indexedKeys.get(className);
+            if (keys == null) {
+              keys = new HashSet<>();
+              indexedKeys.put(className, keys);
+            }
+            keys.add(cursor.getString(1));
+          }
+          cursor.close();
+          return indexedKeys;
+        }
+      });
+      /*
+       * Read-only sessions can run while a key is being indexed, and could load the keys from
+       * before it, so only sessions that are serialized with that are allowed to remember them.
+       */
+      if (!db.isReadOnly()) {
+        indexedKeysTasks.put(table, task);
+      }
+      return task;
+    }
+  }
+
+  /**
+   * Gets the keys that are declared in the given table for the given class.
+   */
+  private Task<Set<String>> getIndexedKeysAsync(String table, final String className,
+      ParseSQLiteDatabase db) {
+    return getIndexedKeysByClassAsync(table, db).onSuccess(
+        new Continuation<Map<String, Set<String>>, Set<String>>() {
+      @Override
+      public Set<String> then(Task<Map<String, Set<String>>> task) throws Exception {
+        Set<String> keys = task.getResult().get(className);
+        return keys != null ? keys : Collections.<String>emptySet();
+      }
+    });
+  }
+
+  /**
+   * Gets the keys that are indexed for the given class.
+   */
+  private Task<Set<String>> getIndexedKeysAsync(String className, ParseSQLiteDatabase db) {
+    return getIndexedKeysAsync(OfflineSQLiteOpenHelper.TABLE_INDEXED_KEYS, className, db);
+  }
+
+  /**
+   * Gets the keys that have a full-text index for the given class.
+   */
+  private Task<Set<String>> getTextIndexedKeysAsync(String className, ParseSQLiteDatabase db) {
+    return getIndexedKeysAsync(OfflineSQLiteOpenHelper.TABLE_TEXT_INDEXED_KEYS, className, db);
+  }
+
+  /**
+   * Indexes a key of a class, including the objects of the class that are already stored.
+   *
+   * @param className The class of the objects to index.
+   * @param key The key to index.
+   * @param isText Whether to create a full-text index instead of an index of values.
+   */
+  /* package */ Task<Void> createIndexAsync(final String className, final String key,
+      final boolean isText) {
+    return runWithManagedTransaction(new SQLiteDatabaseCallable<Task<Void>>() {
+      @Override
+      public Task<Void> call(ParseSQLiteDatabase db) {
+        return createIndexAsync(className, key, isText, db);
+      }
+    }).continueWithTask(new Continuation<Void, Task<Void>>() {
+      @Override
+      public Task<Void> then(Task<Void> task) throws Exception {
+        if (task.isFaulted() || task.isCancelled()) {
+          synchronized (lock) {
+            // The keys may have been loaded from inside the failed transaction.
+            indexedKeysTasks.clear();
+          }
         }
         return task;
       }
     });
   }
 
+  private Task<Void> createIndexAsync(final String className, final String key,
+      final boolean isText, final ParseSQLiteDatabase db) {
+    final Capture<Set<String>> indexedKeys = new Capture<>();
+    return getIndexedKeysAsync(className, db).onSuccessTask(
+        new Continuation<Set<String>, Task<Set<String>>>() {
+      @Override
+      public Task<Set<String>> then(Task<Set<String>> task) throws Exception {
+        indexedKeys.set(task.getResult());
+        return getTextIndexedKeysAsync(className, db);
+      }
+    }).onSuccessTask(new Continuation<Set<String>, Task<Void>>() {
+      @Override
+      public Task<Void> then(Task<Set<String>> task) throws Exception {
+        final Set<String> keys = new HashSet<>(indexedKeys.get());
+        final Set<String> textKeys = new HashSet<>(task.getResult());
+        if (!(isText ? textKeys : keys).add(key)) {
+          // The key is already indexed.
+          return Task.forResult(null);
+        }
+
+        final ContentValues values = new ContentValues();
+        values.put(OfflineSQLiteOpenHelper.KEY_CLASS_NAME, className);
+        values.put(OfflineSQLiteOpenHelper.KEY_FIELD, key);
+        String table = isText
+            ? OfflineSQLiteOpenHelper.TABLE_TEXT_INDEXED_KEYS
+            : OfflineSQLiteOpenHelper.TABLE_INDEXED_KEYS;
+        return db.insertOrThrowAsync(table, values)
+            .onSuccessTask(new Continuation<Long, Task<Cursor>>() {
+          @Override
+          public Task<Cursor> then(Task<Long> task) throws Exception {
+            String[] select = { OfflineSQLiteOpenHelper.KEY_UUID };
+            String where = OfflineSQLiteOpenHelper.KEY_CLASS_NAME + "=?";
+            String[] args = { className };
+            return db.queryAsync(OfflineSQLiteOpenHelper.TABLE_OBJECTS, select, where, args);
+          }
+        }).onSuccessTask(new Continuation<Cursor, Task<Void>>() {
+          @Override
+          public Task<Void> then(Task<Cursor> task) throws Exception {
+            Cursor cursor = task.getResult();
+            List<String> uuids = new ArrayList<>();
+            for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+              uuids.add(cursor.getString(0));
+            }
+            cursor.close();
+
+            // Index the objects that are already stored.
+            Task<Void> indexedAllObjects = Task.forResult(null);
+            for (final String uuid : uuids) {
+              indexedAllObjects = indexedAllObjects.onSuccessTask(
+                  new Continuation<Void, Task<ParseObject>>() {
+                @Override
+                public Task<ParseObject> then(Task<Void> task) throws Exception {
+                  return getPointerAsync(uuid, db);
+                }
+              }).onSuccessTask(new Continuation<ParseObject, Task<ParseObject>>() {
+                @Override
+                public Task<ParseObject> then(Task<ParseObject> task) throws Exception {
+                  return fetchLocallyAsync(task.getResult(), db);
+                }
+              }).continueWithTask(new Continuation<ParseObject, Task<Void>>() {
+                @Override
+                public Task<Void> then(Task<ParseObject> task) throws Exception {
+                  if (task.isFaulted() && task.getError() instanceof ParseException
+                      && ((ParseException) task.getError()).getCode() == ParseException.CACHE_MISS) {
+                    // There's no data stored for this object, so there's nothing to index.
+                    return Task.forResult(null);
+                  }
+                  if (task.isFaulted() || task.isCancelled()) {
+                    return task.makeVoid();
+                  }
+                  return updateIndexesAsync(uuid, task.getResult(), keys, textKeys, db);
+                }
+              });
+            }
+            return indexedAllObjects;
+          }
+        }).onSuccess(new Continuation<Void, Void>() {
+          @Override
+          public Void then(Task<Void> task) throws Exception {
+            synchronized (lock) {
+              // Load the keys again, now that they include this one.
+              indexedKeysTasks.clear();
+            }
+            return null;
+          }
+        });
+      }
+    });
+  }
+
+  //endregion
+
   //region ParsePin
 
   private Task<ParsePin> getParsePin(final String name, ParseSQLiteDatabase db) {
@@ -1234,17 +2823,7 @@ import bolts.Task;
 //        relation.add(object);
 
         // Hack to store collections in a pin
-        List<ParseObject> modified = pin.getObjects();
-        if (modified == null) {
-          modified = new ArrayList<ParseObject>(objects);
-        } else {
-          for (ParseObject object : objects) {
-            if (!modified.contains(object)) {
-              modified.add(object);
-            }
-          }
-        }
-        pin.setObjects(modified);
+        pin.addObjects(objects);
 
         if (includeChildren) {
           return saveLocallyAsync(pin, true, db);
@@ -1284,17 +2863,15 @@ import bolts.Task;
 //        relation.remove(object);
 
         // Hack to store collections in a pin
-        List<ParseObject> modified = pin.getObjects();
-        if (modified == null) {
+        if (pin.getObjects() == null) {
           // Unpin a pin that doesn't exist. Wat?
           return Task.forResult(null);
         }
 
-        modified.removeAll(objects);
-        if (modified.size() == 0) {
+        pin.removeObjects(objects);
+        if (pin.getObjects().size() == 0) {
           return unpinAsync(pin, db);
         }
-        pin.setObjects(modified);
 
         return saveLocallyAsync(pin, true, db);
       }
@@ -1327,7 +2904,7 @@ import bolts.Task;
       final String name,
       final ParseQuery.State<T> state,
       final ParseUser user) {
-    return runWithManagedConnection(new SQLiteDatabaseCallable<Task<List<T>>>() {
+    return runWithManagedReadOnlyConnection(new SQLiteDatabaseCallable<Task<List<T>>>() {
       @Override
       public Task<List<T>> call(ParseSQLiteDatabase db) {
         return findFromPinAsync(name, state, user, db);
@@ -1355,11 +2932,59 @@ import bolts.Task;
     });
   }
 
+  /* package */ <T extends ParseObject> Task<Void> findEachFromPinAsync(
+      final String name,
+      final ParseQuery.State<T> state,
+      final ParseUser user,
+      final EachCallback<T> callback) {
+    boolean isOrdered = !state.order().isEmpty()
+        || OfflineQueryPlanner.hasNearSphere(state.constraints());
+    if (!ParseSQLiteDatabase.isConcurrentReadSupported()
+        || (isOrdered && hasModifiedObjectsInMemory(state.className()))) {
+      /*
+       * Without concurrent reads, an open session keeps every other session waiting, so the
+       * callback can't run while it's open. Objects that are modified in memory can be out of the
+       * order of their stored values, so they need to be sorted with the rest. In both cases, find
+       * all of the objects first, and pass them on once the session is closed.
+       */
+      return findFromPinAsync(name, state, user).onSuccess(new Continuation<List<T>, Void>() {
+        @Override
+        public Void then(Task<List<T>> task) throws Exception {
+          for (T object : task.getResult()) {
+            if (!callback.next(object)) {
+              break;
+            }
+          }
+          return null;
+        }
+      }, Task.BACKGROUND_EXECUTOR);
+    }
+
+    return runWithManagedReadOnlyConnection(new SQLiteDatabaseCallable<Task<Void>>() {
+      @Override
+      public Task<Void> call(final ParseSQLiteDatabase db) {
+        Task<ParsePin> task;
+        if (name != null) {
+          task = getParsePin(name, db);
+        } else {
+          task = Task.forResult(null);
+        }
+        return task.onSuccessTask(new Continuation<ParsePin, Task<Void>>() {
+          @Override
+          public Task<Void> then(Task<ParsePin> task) throws Exception {
+            ParsePin pin = task.getResult();
+            return findEachAsync(state, user, pin, callback, db);
+          }
+        });
+      }
+    });
+  }
+
   /* package */ <T extends ParseObject> Task<Integer> countFromPinAsync(
       final String name,
       final ParseQuery.State<T> state,
       final ParseUser user) {
-    return runWithManagedConnection(new SQLiteDatabaseCallable<Task<Integer>>() {
+    return runWithManagedReadOnlyConnection(new SQLiteDatabaseCallable<Task<Integer>>() {
       @Override
       public Task<Integer> call(ParseSQLiteDatabase db) {
         return countFromPinAsync(name, state, user, db);
@@ -1382,10 +3007,192 @@ import bolts.Task;
       @Override
       public Task<Integer> then(Task<ParsePin> task) throws Exception {
         ParsePin pin = task.getResult();
-        return findAsync(state, user, pin, true, db).onSuccess(new Continuation<List<T>, Integer>() {
+        return countAsync(state, user, pin, db);
+      }
+    });
+  }
+
+  /**
+   * Counts the objects that match a query. When the query's plan selects exactly the objects that
+   * match, the ones that can't be affected by ACLs or by changes in memory are counted by SQLite
+   * without loading them, and only the rest are loaded and checked.
+   *
+   * @param query The query.
+   * @param user The user making the query.
+   * @param pin (Optional) The pin we are querying across. If null, all pins.
+   * @param db The SQLiteDatabase.
+   * @param <T> Subclass of ParseObject.
+   * @return The number of objects that match the query's constraints.
+   */
+  private <T extends ParseObject> Task<Integer> countAsync(
+      final ParseQuery.State<T> query,
+      final ParseUser user,
+      final ParsePin pin,
+      final ParseSQLiteDatabase db) {
+    final Capture<Set<String>> indexedKeys = new Capture<>();
+    final Capture<OfflineQueryPlanner.Plan> plan = new Capture<>();
+    final List<String> uuidsInMemory = new ArrayList<>();
+    final Capture<Integer> count = new Capture<>(0);
+    return getIndexedKeysAsync(query.className(), db).onSuccessTask(
+        new Continuation<Set<String>, Task<Set<String>>>() {
+      @Override
+      public Task<Set<String>> then(Task<Set<String>> task) throws Exception {
+        indexedKeys.set(task.getResult());
+        return getTextIndexedKeysAsync(query.className(), db);
+      }
+    }).onSuccessTask(new Continuation<Set<String>, Task<Selection>>() {
+      @Override
+      public Task<Selection> then(Task<Set<String>> task) throws Exception {
+        plan.set(OfflineQueryPlanner.plan(query, indexedKeys.get(), task.getResult()));
+        return selectCandidatesAsync(query, pin);
+      }
+    }).onSuccessTask(new Continuation<Selection, Task<Integer>>() {
+      @Override
+      public Task<Integer> then(Task<Selection> task) throws Exception {
+        final Selection selection = task.getResult();
+        if (selection == null) {
+          return Task.forResult(0);
+        }
+
+        /*
+         * Objects that are modified in memory may not match what's stored anymore, so they always
+         * need to be checked in memory.
+         */
+        Map<ParseObject, String> objectsInMemory = new IdentityHashMap<>();
+        synchronized (lock) {
+          for (ParseObject object : fetchedObjects.keySet()) {
+            Task<String> uuidTask = objectToUuidMap.get(object);
+            if (object.getClassName().equals(query.className()) && uuidTask != null
+                && uuidTask.isCompleted() && !uuidTask.isFaulted() && !uuidTask.isCancelled()) {
+              objectsInMemory.put(object, uuidTask.getResult());
+            }
+          }
+        }
+        for (Map.Entry<ParseObject, String> entry : objectsInMemory.entrySet()) {
+          if (isModifiedInMemory(entry.getKey())) {
+            uuidsInMemory.add(entry.getValue());
+          }
+        }
+
+        final OfflineQueryPlanner.Clause hasACL = OfflineQueryPlanner.containsKey("ACL");
+        int variables = selection.args.length + uuidsInMemory.size() + hasACL.args().size()
+            + (plan.get().selection() != null ? plan.get().selectionArgs().length : 0);
+        if (!plan.get().isExact() || variables > MAX_SQL_VARIABLES) {
+          return findAsync(query, user, pin, true, plan.get(), db).onSuccess(
+              new Continuation<List<T>, Integer>() {
+            @Override
+            public Integer then(Task<List<T>> task) throws Exception {
+              return task.getResult().size();
+            }
+          });
+        }
+
+        /*
+         * The stored data of every object is matched exactly by the plan's selection, and objects
+         * without an ACL can be read by anyone. Since the data is only searched for the ACL key,
+         * objects that merely mention it are loaded and checked as well, which is still correct.
+         */
+        String inMemory = OfflineSQLiteOpenHelper.KEY_UUID
+            + " IN (" + placeholders(uuidsInMemory.size()) + ")";
+
+        List<String> sqlArgs = new ArrayList<>();
+        String sql = "SELECT COUNT(*) FROM " + OfflineSQLiteOpenHelper.TABLE_OBJECTS
+            + " WHERE " + selection.where;
+        Collections.addAll(sqlArgs, selection.args);
+        if (plan.get().selection() != null) {
+          sql += " AND (" + plan.get().selection() + ")";
+          Collections.addAll(sqlArgs, plan.get().selectionArgs());
+        }
+        if (!query.ignoreACLs()) {
+          sql += " AND NOT (" + hasACL.sql() + ")";
+          sqlArgs.addAll(hasACL.args());
+        }
+        if (!uuidsInMemory.isEmpty()) {
+          sql += " AND NOT " + inMemory;
+          sqlArgs.addAll(uuidsInMemory);
+        }
+        Task<Void> countedTask = db.rawQueryAsync(
+            sql, sqlArgs.toArray(new String[sqlArgs.size()])).onSuccess(
+            new Continuation<Cursor, Void>() {
+          @Override
+          public Void then(Task<Cursor> task) throws Exception {
+            Cursor cursor = task.getResult();
+            try {
+              if (cursor.moveToFirst()) {
+                count.set(cursor.getInt(0));
+              }
+            } finally {
+              cursor.close();
+            }
+            return null;
+          }
+        });
+
+        // The rest of the objects are loaded and checked the same way findAsync does.
+        String where;
+        if (!query.ignoreACLs() && !uuidsInMemory.isEmpty()) {
+          where = "(" + inMemory + " OR " + hasACL.sql() + ")";
+        } else if (!query.ignoreACLs()) {
+          where = "(" + hasACL.sql() + ")";
+        } else if (!uuidsInMemory.isEmpty()) {
+          where = inMemory;
+        } else {
+          return countedTask.onSuccess(new Continuation<Void, Integer>() {
+            @Override
+            public Integer then(Task<Void> task) throws Exception {
+              return count.get();
+            }
+          });
+        }
+        final String candidatesWhere = selection.where + " AND " + where;
+        final List<String> candidatesArgs = new ArrayList<>();
+        Collections.addAll(candidatesArgs, selection.args);
+        candidatesArgs.addAll(uuidsInMemory);
+        if (!query.ignoreACLs()) {
+          candidatesArgs.addAll(hasACL.args());
+        }
+
+        return countedTask.onSuccessTask(new Continuation<Void, Task<Cursor>>() {
+          @Override
+          public Task<Cursor> then(Task<Void> task) throws Exception {
+            return queryCandidatesAsync(candidatesWhere,
+                candidatesArgs.toArray(new String[candidatesArgs.size()]), plan.get(), db);
+          }
+        }).onSuccessTask(new Continuation<Cursor, Task<Void>>() {
+          @Override
+          public Task<Void> then(Task<Cursor> task) throws Exception {
+            Cursor cursor = task.getResult();
+            final Set<String> uuidsFetched = new HashSet<>();
+            List<String> uuids =
+                readCandidates(cursor, plan.get(), Integer.MAX_VALUE, uuidsFetched);
+            cursor.close();
+
+            final ConstraintMatcher<T> matcher =
+                new OfflineQueryLogic(OfflineStore.this).createMatcher(query, user);
+            Task<Void> checkedAllObjects = Task.forResult(null);
+            for (int start = 0; start < uuids.size(); start += FIND_PAGE_SIZE) {
+              final List<String> page =
+                  uuids.subList(start, Math.min(start + FIND_PAGE_SIZE, uuids.size()));
+              checkedAllObjects = checkedAllObjects.onSuccessTask(
+                  new Continuation<Void, Task<List<T>>>() {
+                @Override
+                public Task<List<T>> then(Task<Void> task) throws Exception {
+                  return findMatchesAsync(query, user, plan.get(), matcher, page, uuidsFetched, db);
+                }
+              }).onSuccess(new Continuation<List<T>, Void>() {
+                @Override
+                public Void then(Task<List<T>> task) throws Exception {
+                  count.set(count.get() + task.getResult().size());
+                  return null;
+                }
+              });
+            }
+            return checkedAllObjects;
+          }
+        }).onSuccess(new Continuation<Void, Integer>() {
           @Override
-          public Integer then(Task<List<T>> task) throws Exception {
-            return task.getResult().size();
+          public Integer then(Task<Void> task) throws Exception {
+            return count.get();
           }
         });
       }
@@ -1480,7 +3287,21 @@ import bolts.Task;
    * Wraps SQLite operations with a managed SQLite connection.
    */
   private <T> Task<T> runWithManagedConnection(final SQLiteDatabaseCallable<Task<T>> callable) {
-    return helper.getWritableDatabaseAsync().onSuccessTask(new Continuation<ParseSQLiteDatabase, Task<T>>() {
+    return runWithManagedConnection(helper.getWritableDatabaseAsync(), callable);
+  }
+
+  /**
+   * Wraps SQLite operations with a managed read-only SQLite connection, which doesn't need to wait
+   * for other connections that are writing.
+   */
+  private <T> Task<T> runWithManagedReadOnlyConnection(
+      final SQLiteDatabaseCallable<Task<T>> callable) {
+    return runWithManagedConnection(helper.getReadableDatabaseAsync(), callable);
+  }
+
+  private <T> Task<T> runWithManagedConnection(Task<ParseSQLiteDatabase> dbTask,
+      final SQLiteDatabaseCallable<Task<T>> callable) {
+    return dbTask.onSuccessTask(new Continuation<ParseSQLiteDatabase, Task<T>>() {
       @Override
       public Task<T> then(Task<ParseSQLiteDatabase> task) throws Exception {
         final ParseSQLiteDatabase db = task.getResult();
@@ -1542,6 +3363,9 @@ import bolts.Task;
       objectToUuidMap.clear();
       classNameAndObjectIdToObjectMap.clear();
       fetchedObjects.clear();
+      storedStates.clear();
+      objectCache.clear();
+      indexedKeysTasks.clear();
     }
   }
 
@@ -42,6 +42,8 @@ public class Parse {
   //region LDS
 
   private static boolean isLocalDatastoreEnabled;
+  private static int localDatastoreObjectCacheSize = OfflineStore.DEFAULT_OBJECT_CACHE_SIZE;
+  private static boolean isLocalDatastoreBinaryEncodingEnabled;
   private static OfflineStore offlineStore;
 
   /**
@@ -69,6 +71,41 @@ public class Parse {
     isLocalDatastoreEnabled = true;
   }
 
+  /**
+   * Sets how many of the objects that were most recently loaded from the local datastore are kept
+   * in memory, so that queries which keep finding them don't need to read them from disk again.
+   * The default is 100, and 0 turns this off. You must invoke
+   * {@code Parse.setLocalDatastoreObjectCacheSize} before {@code Parse.initialize}.
+   *
+   * @param size
+   *          The maximum number of objects to keep in memory.
+   */
+  public static void setLocalDatastoreObjectCacheSize(int size) {
+    if (isInitialized()) {
+      throw new IllegalStateException("`Parse#setLocalDatastoreObjectCacheSize(int)` must be " +
+          "invoked before `Parse#initialize(Context)`");
+    }
+    if (size < 0) {
+      throw new IllegalArgumentException("The object cache size can't be negative.");
+    }
+    localDatastoreObjectCacheSize = size;
+  }
+
+  /**
+   * Store objects in the local datastore in a compact binary format instead of as JSON text, which
+   * takes less space and is faster to read. Objects that were stored as JSON text by an earlier
+   * version of the SDK are converted when the local datastore is upgraded, and any others are
+   * converted when they're saved again. You must invoke
+   * {@code Parse.enableLocalDatastoreBinaryEncoding} before {@code Parse.initialize}.
+   */
+  public static void enableLocalDatastoreBinaryEncoding() {
+    if (isInitialized()) {
+      throw new IllegalStateException("`Parse#enableLocalDatastoreBinaryEncoding()` must be " +
+          "invoked before `Parse#initialize(Context)`");
+    }
+    isLocalDatastoreBinaryEncodingEnabled = true;
+  }
+
   /* package for tests */ static void disableLocalDatastore() {
     setLocalDatastore(null);
     // We need to re-register ParseCurrentInstallationController otherwise it is still offline
@@ -91,6 +128,54 @@ public class Parse {
 
   //endregion
 
+  private static boolean isGzipCompressionEnabled;
+
+  /**
+   * Enable gzip compression of the requests and responses sent to and from Parse. This saves data
+   * on slow or metered connections at the cost of some CPU time. Requests are only compressed if
+   * they're large enough to benefit from it. You must invoke
+   * {@code Parse.enableGzipCompression} before {@code Parse.initialize}.
+   */
+  public static void enableGzipCompression() {
+    if (isInitialized()) {
+      throw new IllegalStateException("`Parse#enableGzipCompression()` must be invoked " +
+          "before `Parse#initialize(Context)`");
+    }
+    isGzipCompressionEnabled = true;
+  }
+
+  /* package */ static boolean isGzipCompressionEnabled() {
+    return isGzipCompressionEnabled;
+  }
+
+  /**
+   * Returns the number of bytes that gzip compression has kept off the network by compressing the
+   * requests sent to Parse. This is {@code 0} unless {@link #enableGzipCompression()} was invoked
+   * before {@code Parse.initialize}.
+   */
+  public static long getGzipRequestBytesSaved() {
+    ParseGzipInterceptor interceptor = getGzipInterceptor();
+    return interceptor != null ? interceptor.getRequestBytesSaved() : 0;
+  }
+
+  /**
+   * Returns the number of bytes that gzip compression has kept off the network in the responses
+   * read from Parse so far. This is {@code 0} unless {@link #enableGzipCompression()} was invoked
+   * before {@code Parse.initialize}.
+   * <p/>
+   * Below KitKat, unless OkHttp is on the classpath, responses are always gzipped and decompressed
+   * by the Apache HTTP client, so they aren't counted.
+   */
+  public static long getGzipResponseBytesSaved() {
+    ParseGzipInterceptor interceptor = getGzipInterceptor();
+    return interceptor != null ? interceptor.getResponseBytesSaved() : 0;
+  }
+
+  private static ParseGzipInterceptor getGzipInterceptor() {
+    ParsePlugins plugins = ParsePlugins.get();
+    return plugins != null ? plugins.restClient().getGzipInterceptor() : null;
+  }
+
   /**
    * Authenticates this client as belonging to your application.
    * <p/>
@@ -200,7 +285,8 @@ public class Parse {
     ParseObject.registerParseSubclasses();
 
     if (isLocalDatastoreEnabled()) {
-      offlineStore = new OfflineStore(context);
+      offlineStore = new OfflineStore(context, localDatastoreObjectCacheSize,
+          isLocalDatastoreBinaryEncodingEnabled);
     } else {
       ParseKeyValueCache.initialize(context);
     }
@@ -135,10 +135,15 @@ import java.util.Map;
     for (Header header : apacheResponse.getAllHeaders()) {
       headers.put(header.getName(), header.getValue());
     }
+    // The content has already been ungzipped, so make sure no one tries to ungzip it again.
+    HttpEntity entity = apacheResponse.getEntity();
+    Header contentEncoding = entity != null ? entity.getContentEncoding() : null;
+    if (contentEncoding != null && contentEncoding.getValue().contains("gzip")) {
+      headers.remove(contentEncoding.getName());
+    }
 
     // Content type
     String contentType = null;
-    HttpEntity entity = apacheResponse.getEntity();
     if (entity != null && entity.getContentType() != null) {
       contentType = entity.getContentType().getValue();
     }
@@ -0,0 +1,277 @@
+/*
+ * Copyright (c) 2015-present, Parse, LLC.
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree. An additional grant
+ * of patent rights can be found in the PATENTS file in the same directory.
+ */
+package com.parse;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+/**
+ * A structural copy of a mutable container that a ParseObject holds, which can tell whether the
+ * container has been changed since the copy was made. Unlike encoding the container and hashing
+ * it, checking a container that hasn't changed walks it once and doesn't allocate anything, other
+ * than iterators for collections that aren't lists.
+ *
+ * Values are compared the same way they'd be encoded, except that ParseObjects, ParseFiles and
+ * ParseRelations are compared by identity, since changes to them aren't changes to the container.
+ */
+/** package */ class ParseContainerSnapshot {
+
+  private final Object snapshot;
+
+  /**
+   * @throws IllegalArgumentException if the container holds a value that a ParseObject can't.
+   */
+  public ParseContainerSnapshot(Object container) {
+    snapshot = snapshotOf(container);
+  }
+
+  /**
+   * Returns whether the container still holds the same values as when the snapshot was taken.
+   */
+  public boolean matches(Object container) {
+    return matches(snapshot, container);
+  }
+
+  // A List, Collection or JSONArray.
+  private static class Sequence {
+    private final boolean isJSON;
+    private final Object[] items;
+
+    private Sequence(boolean isJSON, Object[] items) {
+      this.isJSON = isJSON;
+      this.items = items;
+    }
+  }
+
+  // A Map or JSONObject.
+  private static class Mapping {
+    private final boolean isJSON;
+    private final String[] keys;
+    private final Object[] values;
+
+    private Mapping(boolean isJSON, String[] keys, Object[] values) {
+      this.isJSON = isJSON;
+      this.keys = keys;
+      this.values = values;
+    }
+  }
+
+  private static class Timestamp {
+    private final long time;
+
+    private Timestamp(long time) {
+      this.time = time;
+    }
+  }
+
+  private static class Bytes {
+    private final byte[] bytes;
+
+    private Bytes(byte[] bytes) {
+      this.bytes = bytes;
+    }
+  }
+
+  private static class GeoPoint {
+    private final double latitude;
+    private final double longitude;
+
+    private GeoPoint(double latitude, double longitude) {
+      this.latitude = latitude;
+      this.longitude = longitude;
+    }
+  }
+
+  private static class ACL {
+    private final Mapping permissions;
+    private final ParseUser unresolvedUser;
+
+    private ACL(Mapping permissions, ParseUser unresolvedUser) {
+      this.permissions = permissions;
+      this.unresolvedUser = unresolvedUser;
+    }
+  }
+
+  private static Object snapshotOf(Object value) {
+    if (value instanceof Collection) {
+      Collection<?> collection = (Collection<?>) value;
+      Object[] items = new Object[collection.size()];
+      int i = 0;
+      for (Object item : collection) {
+        items[i++] = snapshotOf(item);
+      }
+      return new Sequence(false, items);
+    }
+    if (value instanceof JSONArray) {
+      JSONArray array = (JSONArray) value;
+      Object[] items = new Object[array.length()];
+      for (int i = 0; i < items.length; i++) {
+        items[i] = snapshotOf(array.opt(i));
+      }
+      return new Sequence(true, items);
+    }
+    if (value instanceof Map) {
+      @SuppressWarnings("unchecked")
+      Map<String, Object> map = (Map<String, Object>) value;
+      String[] keys = new String[map.size()];
+      Object[] values = new Object[keys.length];
+      int i = 0;
+      for (Map.Entry<String, Object> entry : map.entrySet()) {
+        keys[i] = entry.getKey();
+        values[i++] = snapshotOf(entry.getValue());
+      }
+      return new Mapping(false, keys, values);
+    }
+    if (value instanceof JSONObject) {
+      return snapshotOf((JSONObject) value);
+    }
+    if (value instanceof Date) {
+      return new Timestamp(((Date) value).getTime());
+    }
+    if (value instanceof byte[]) {
+      byte[] bytes = (byte[]) value;
+      return new Bytes(Arrays.copyOf(bytes, bytes.length));
+    }
+    if (value instanceof ParseGeoPoint) {
+      ParseGeoPoint point = (ParseGeoPoint) value;
+      return new GeoPoint(point.getLatitude(), point.getLongitude());
+    }
+    if (value instanceof ParseACL) {
+      ParseACL acl = (ParseACL) value;
+      return new ACL(snapshotOf(acl.getPermissionsById()), acl.getUnresolvedUser());
+    }
+    if (value == null || ParseEncoder.isValidType(value)
+        || value instanceof ParseQuery.State.Builder<?>) {
+      // Everything else is either immutable or compared by identity.
+      return value;
+    }
+    throw new IllegalArgumentException("invalid type for ParseObject: "
+        + value.getClass().toString());
+  }
+
+  private static Mapping snapshotOf(JSONObject object) {
+    String[] keys = new String[object.length()];
+    Object[] values = new Object[keys.length];
+    Iterator<String> iterator = object.keys();
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = iterator.next();
+      values[i] = snapshotOf(object.opt(keys[i]));
+    }
+    return new Mapping(true, keys, values);
+  }
+
+  private static boolean matches(Object snapshot, Object value) {
+    if (snapshot instanceof Sequence) {
+      return matches((Sequence) snapshot, value);
+    }
+    if (snapshot instanceof Mapping) {
+      return matches((Mapping) snapshot, value);
+    }
+    if (snapshot instanceof Timestamp) {
+      return value instanceof Date && ((Date) value).getTime() == ((Timestamp) snapshot).time;
+    }
+    if (snapshot instanceof Bytes) {
+      return value instanceof byte[] && Arrays.equals((byte[]) value, ((Bytes) snapshot).bytes);
+    }
+    if (snapshot instanceof GeoPoint) {
+      GeoPoint point = (GeoPoint) snapshot;
+      return value instanceof ParseGeoPoint
+          && Double.compare(((ParseGeoPoint) value).getLatitude(), point.latitude) == 0
+          && Double.compare(((ParseGeoPoint) value).getLongitude(), point.longitude) == 0;
+    }
+    if (snapshot instanceof ACL) {
+      ACL acl = (ACL) snapshot;
+      return value instanceof ParseACL
+          && ((ParseACL) value).getUnresolvedUser() == acl.unresolvedUser
+          && matches(acl.permissions, ((ParseACL) value).getPermissionsById());
+    }
+    if (snapshot == null || snapshot instanceof ParseObject || snapshot instanceof ParseFile
+        || snapshot instanceof ParseRelation || snapshot instanceof ParseQuery.State.Builder<?>) {
+      return value == snapshot;
+    }
+    // Strings, numbers, booleans and JSONObject.NULL are immutable.
+    return snapshot.equals(value);
+  }
+
+  private static boolean matches(Sequence snapshot, Object value) {
+    Object[] items = snapshot.items;
+    if (snapshot.isJSON) {
+      if (!(value instanceof JSONArray) || ((JSONArray) value).length() != items.length) {
+        return false;
+      }
+      JSONArray array = (JSONArray) value;
+      for (int i = 0; i < items.length; i++) {
+        if (!matches(items[i], array.opt(i))) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    if (!(value instanceof Collection) || ((Collection<?>) value).size() != items.length) {
+      return false;
+    }
+    if (value instanceof List && value instanceof RandomAccess) {
+      List<?> list = (List<?>) value;
+      for (int i = 0; i < items.length; i++) {
+        if (!matches(items[i], list.get(i))) {
+          return false;
+        }
+      }
+      return true;
+    }
+    int i = 0;
+    for (Object item : (Collection<?>) value) {
+      if (!matches(items[i++], item)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean matches(Mapping snapshot, Object value) {
+    String[] keys = snapshot.keys;
+    Object[] values = snapshot.values;
+    if (snapshot.isJSON) {
+      if (!(value instanceof JSONObject) || ((JSONObject) value).length() != keys.length) {
+        return false;
+      }
+      JSONObject object = (JSONObject) value;
+      for (int i = 0; i < keys.length; i++) {
+        if (!object.has(keys[i]) || !matches(values[i], object.opt(keys[i]))) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    if (!(value instanceof Map) || ((Map<?, ?>) value).size() != keys.length) {
+      return false;
+    }
+    Map<?, ?> map = (Map<?, ?>) value;
+    for (int i = 0; i < keys.length; i++) {
+      Object item = map.get(keys[i]);
+      if (item == null && !map.containsKey(keys[i])) {
+        return false;
+      }
+      if (!matches(values[i], item)) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
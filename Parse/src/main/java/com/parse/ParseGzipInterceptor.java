@@ -0,0 +1,221 @@
+/*
+ * Copyright (c) 2015-present, Parse, LLC.
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree. An additional grant
+ * of patent rights can be found in the PATENTS file in the same directory.
+ */
+package com.parse;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compresses large JSON request bodies with gzip, asks for gzipped responses and decompresses them.
+ *
+ * Since asking for gzip explicitly turns off the transparent decompression of URLConnection and
+ * OkHttp, those {@link ParseHttpClient}s hand this the raw response. {@link ParseApacheHttpClient}
+ * always asks for gzip and decompresses responses itself, so with it this only compresses
+ * requests, and {@link #getResponseBytesSaved()} stays {@code 0}. It runs after every other
+ * interceptor, so they only ever see uncompressed bodies.
+ */
+/** package */ class ParseGzipInterceptor implements ParseNetworkInterceptor {
+
+  /* package */ static final String HEADER_ACCEPT_ENCODING = "Accept-Encoding";
+  /* package */ static final String HEADER_CONTENT_ENCODING = "Content-Encoding";
+  /* package */ static final String GZIP = "gzip";
+
+  // Smaller bodies barely shrink, if at all, after the gzip header and trailer are added.
+  /* package */ static final int DEFAULT_MIN_COMPRESSION_BYTES = 1024;
+
+  private final int minCompressionBytes;
+
+  private final AtomicLong requestBytesSaved = new AtomicLong();
+  private final AtomicLong responseBytesSaved = new AtomicLong();
+
+  public ParseGzipInterceptor() {
+    this(DEFAULT_MIN_COMPRESSION_BYTES);
+  }
+
+  public ParseGzipInterceptor(int minCompressionBytes) {
+    this.minCompressionBytes = minCompressionBytes;
+  }
+
+  /**
+   * The number of bytes that compressing request bodies kept off the network.
+   */
+  /* package */ long getRequestBytesSaved() {
+    return requestBytesSaved.get();
+  }
+
+  /**
+   * The number of bytes that gzipped responses kept off the network, counting only what has been
+   * read so far.
+   */
+  /* package */ long getResponseBytesSaved() {
+    return responseBytesSaved.get();
+  }
+
+  @Override
+  public ParseHttpResponse intercept(Chain chain) throws IOException {
+    ParseHttpRequest request = chain.getRequest();
+    ParseHttpRequest.Builder builder = new ParseHttpRequest.Builder(request);
+    if (request.getHeader(HEADER_ACCEPT_ENCODING) == null) {
+      builder.addHeader(HEADER_ACCEPT_ENCODING, GZIP);
+    }
+
+    ParseHttpBody body = request.getBody();
+    if (shouldCompress(request)) {
+      byte[] compressed = compress(body);
+      if (compressed.length < body.getContentLength()) {
+        requestBytesSaved.addAndGet(body.getContentLength() - compressed.length);
+        builder.setBody(new ParseByteArrayHttpBody(compressed, body.getContentType()))
+            .addHeader(HEADER_CONTENT_ENCODING, GZIP);
+      }
+    }
+
+    ParseHttpResponse response = chain.proceed(builder.build());
+
+    if (response.getAllHeaders() == null || response.getContent() == null) {
+      return response;
+    }
+    String contentEncoding = null;
+    Map<String, String> headers = new HashMap<>();
+    for (Map.Entry<String, String> header : response.getAllHeaders().entrySet()) {
+      if (HEADER_CONTENT_ENCODING.equalsIgnoreCase(header.getKey())) {
+        contentEncoding = header.getValue();
+      } else {
+        headers.put(header.getKey(), header.getValue());
+      }
+    }
+    if (!GZIP.equalsIgnoreCase(contentEncoding)) {
+      return response;
+    }
+
+    return new ParseHttpResponse.Builder()
+        .setContent(new GzipResponseStream(response.getContent()))
+        .setContentType(response.getContentType())
+        .setHeaders(headers)
+        .setReasonPhase(response.getReasonPhrase())
+        .setStatusCode(response.getStatusCode())
+        // The uncompressed size isn't known until the whole body is read
+        .setTotalSize(-1)
+        .build();
+  }
+
+  private boolean shouldCompress(ParseHttpRequest request) {
+    ParseHttpBody body = request.getBody();
+    if (body == null || body.getContentLength() < minCompressionBytes) {
+      return false;
+    }
+    // Files are usually compressed already, and replacing their body would lose their progress
+    // callbacks.
+    String contentType = body.getContentType();
+    return contentType != null && contentType.contains("json")
+        && request.getHeader(HEADER_CONTENT_ENCODING) == null;
+  }
+
+  private static byte[] compress(ParseHttpBody body) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(body.getContentLength() / 4);
+    GZIPOutputStream out = new GZIPOutputStream(bytes);
+    try {
+      body.writeTo(out);
+    } finally {
+      out.close();
+    }
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Decompresses a response, keeping track of how many bytes it saved. The gzip header is read
+   * lazily, since responses such as 204s have no body even if they claim to be gzipped.
+   */
+  private class GzipResponseStream extends InputStream {
+
+    private final CountingInputStream compressed;
+    private GZIPInputStream uncompressed;
+    private long compressedBytesCounted;
+
+    private GzipResponseStream(InputStream content) {
+      compressed = new CountingInputStream(content);
+    }
+
+    private InputStream uncompressed() throws IOException {
+      if (uncompressed == null) {
+        uncompressed = new GZIPInputStream(compressed);
+      }
+      return uncompressed;
+    }
+
+    private int count(int uncompressedBytes) {
+      long compressedBytes = compressed.count;
+      responseBytesSaved.addAndGet(uncompressedBytes - (compressedBytes - compressedBytesCounted));
+      compressedBytesCounted = compressedBytes;
+      return uncompressedBytes;
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = uncompressed().read();
+      count(b == -1 ? 0 : 1);
+      return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+      int n = uncompressed().read(buffer, offset, length);
+      count(n == -1 ? 0 : n);
+      return n;
+    }
+
+    @Override
+    public void close() throws IOException {
+      compressed.close();
+    }
+  }
+
+  private static class CountingInputStream extends InputStream {
+
+    private final InputStream in;
+    private long count;
+
+    private CountingInputStream(InputStream in) {
+      this.in = in;
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = in.read();
+      if (b != -1) {
+        count++;
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+      int n = in.read(buffer, offset, length);
+      if (n != -1) {
+        count += n;
+      }
+      return n;
+    }
+
+    @Override
+    public int available() throws IOException {
+      return in.available();
+    }
+
+    @Override
+    public void close() throws IOException {
+      in.close();
+    }
+  }
+}
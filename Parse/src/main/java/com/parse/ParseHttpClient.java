@@ -77,6 +77,9 @@ import java.util.List;
   // we make network request
   private List<ParseNetworkInterceptor> internalInterceptors;
   private List<ParseNetworkInterceptor> externalInterceptors;
+  // Runs after all the other interceptors, right before the request goes out, so they never see
+  // compressed bodies.
+  private ParseGzipInterceptor gzipInterceptor;
 
   /* package */ abstract ParseHttpResponse executeInternal(ParseHttpRequest request)
       throws IOException;
@@ -103,6 +106,19 @@ import java.util.List;
     internalInterceptors.add(interceptor);
   }
 
+  /* package */ void setGzipInterceptor(ParseGzipInterceptor interceptor) {
+    if (hasExecuted) {
+      throw new IllegalStateException(
+          "`ParseHttpClient#setGzipInterceptor(ParseGzipInterceptor)` can only be invoked " +
+              "before `ParseHttpClient` execute any request");
+    }
+    gzipInterceptor = interceptor;
+  }
+
+  /* package */ ParseGzipInterceptor getGzipInterceptor() {
+    return gzipInterceptor;
+  }
+
    /* package */ void addExternalInterceptor(ParseNetworkInterceptor interceptor) {
     // No need to check hasExecuted since this method will only be called before Parse.initialize()
     if (externalInterceptors == null) {
@@ -136,7 +152,7 @@ import java.util.List;
     }
 
     @Override
-    public ParseHttpResponse proceed(ParseHttpRequest request) throws IOException {
+    public ParseHttpResponse proceed(final ParseHttpRequest request) throws IOException {
       if (internalInterceptors != null && internalIndex < internalInterceptors.size()) {
         // There's another internal interceptor in the chain. Call that.
         ParseNetworkInterceptor.Chain chain =
@@ -151,6 +167,21 @@ import java.util.List;
         return externalInterceptors.get(externalIndex).intercept(chain);
       }
 
+      if (gzipInterceptor != null) {
+        // Compress, then do HTTP.
+        return gzipInterceptor.intercept(new ParseNetworkInterceptor.Chain() {
+          @Override
+          public ParseHttpRequest getRequest() {
+            return request;
+          }
+
+          @Override
+          public ParseHttpResponse proceed(ParseHttpRequest compressedRequest) throws IOException {
+            return executeInternal(compressedRequest);
+          }
+        });
+      }
+
       // No more interceptors. Do HTTP.
       return executeInternal(request);
     }
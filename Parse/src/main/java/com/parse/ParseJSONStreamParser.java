@@ -0,0 +1,322 @@
+/*
+ * Copyright (c) 2015-present, Parse, LLC.
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree. An additional grant
+ * of patent rights can be found in the PATENTS file in the same directory.
+ */
+package com.parse;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Parses UTF-8 encoded JSON directly from an {@link InputStream}, without reading the whole stream
+ * into a {@code byte[]} and a {@link String} first.
+ *
+ * Values are converted the same way as {@link org.json.JSONTokener}: integers that fit in an
+ * {@code int} become {@link Integer}s, larger integers become {@link Long}s and all other numbers
+ * become {@link Double}s. Unlike {@link org.json.JSONTokener}, only strict JSON is accepted.
+ */
+/** package */ class ParseJSONStreamParser {
+
+  private static final int BUFFER_SIZE = 8 * 1024;
+  private static final int EOF = -1;
+
+  /**
+   * Parses a {@link JSONObject} from a stream. The stream is not closed.
+   *
+   * @throws JSONException if the stream doesn't contain a JSON object.
+   * @throws IOException if the stream can't be read.
+   */
+  /* package */ static JSONObject parseObject(InputStream in) throws IOException, JSONException {
+    ParseJSONStreamParser parser = new ParseJSONStreamParser(in);
+    Object value = parser.nextValue();
+    if (!(value instanceof JSONObject)) {
+      throw parser.syntaxError("Value is not a JSONObject");
+    }
+    return (JSONObject) value;
+  }
+
+  private final InputStream in;
+  private final byte[] buffer = new byte[BUFFER_SIZE];
+  private int position;
+  private int limit;
+  // The offset of the start of the buffer in the stream, for error messages.
+  private long offset;
+
+  // Reused for the raw bytes of each string.
+  private final ByteArrayOutputStream stringBytes = new ByteArrayOutputStream();
+
+  private ParseJSONStreamParser(InputStream in) {
+    this.in = in;
+  }
+
+  //region Input
+
+  private int peek() throws IOException {
+    while (position == limit) {
+      offset += limit;
+      position = 0;
+      limit = in.read(buffer);
+      if (limit == EOF) {
+        limit = 0;
+        return EOF;
+      }
+    }
+    return buffer[position] & 0xff;
+  }
+
+  private int read() throws IOException {
+    int c = peek();
+    if (c != EOF) {
+      position++;
+    }
+    return c;
+  }
+
+  /**
+   * Returns the next byte that isn't whitespace.
+   */
+  private int nextClean() throws IOException {
+    while (true) {
+      int c = read();
+      if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+        return c;
+      }
+    }
+  }
+
+  private JSONException syntaxError(String message) {
+    return new JSONException(message + " at character " + (offset + position));
+  }
+
+  //endregion
+
+  private Object nextValue() throws IOException, JSONException {
+    int c = nextClean();
+    switch (c) {
+      case EOF:
+        throw syntaxError("End of input");
+      case '{':
+        return readObject();
+      case '[':
+        return readArray();
+      case '"':
+        return readString();
+      default:
+        return readLiteral(c);
+    }
+  }
+
+  private JSONObject readObject() throws IOException, JSONException {
+    JSONObject object = new JSONObject();
+    int c = nextClean();
+    if (c == '}') {
+      return object;
+    }
+    while (true) {
+      if (c != '"') {
+        throw syntaxError("Expected a name");
+      }
+      String name = readString();
+      if (nextClean() != ':') {
+        throw syntaxError("Expected ':' after " + name);
+      }
+      object.put(name, nextValue());
+
+      c = nextClean();
+      if (c == '}') {
+        return object;
+      } else if (c != ',') {
+        throw syntaxError("Unterminated object");
+      }
+      c = nextClean();
+    }
+  }
+
+  private JSONArray readArray() throws IOException, JSONException {
+    JSONArray array = new JSONArray();
+    if (peekClean() == ']') {
+      read();
+      return array;
+    }
+    while (true) {
+      array.put(nextValue());
+
+      int c = nextClean();
+      if (c == ']') {
+        return array;
+      } else if (c != ',') {
+        throw syntaxError("Unterminated array");
+      }
+    }
+  }
+
+  private int peekClean() throws IOException {
+    while (true) {
+      int c = peek();
+      if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+        return c;
+      }
+      position++;
+    }
+  }
+
+  /**
+   * Reads a string after its opening quote. Since the bytes of multi-byte UTF-8 characters are
+   * never ASCII, quotes and backslashes can be found without decoding.
+   */
+  private String readString() throws IOException, JSONException {
+    StringBuilder builder = null;
+    stringBytes.reset();
+    while (true) {
+      int c = read();
+      if (c == EOF) {
+        throw syntaxError("Unterminated string");
+      } else if (c == '"') {
+        String tail = stringBytes.toString("UTF-8");
+        return builder == null ? tail : builder.append(tail).toString();
+      } else if (c == '\\') {
+        if (builder == null) {
+          builder = new StringBuilder();
+        }
+        builder.append(stringBytes.toString("UTF-8"));
+        stringBytes.reset();
+        builder.append(readEscapeCharacter());
+      } else {
+        stringBytes.write(c);
+      }
+    }
+  }
+
+  private char readEscapeCharacter() throws IOException, JSONException {
+    int escaped = read();
+    switch (escaped) {
+      case 'u':
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+          int digit = Character.digit(read(), 16);
+          if (digit == -1) {
+            throw syntaxError("Invalid escape sequence");
+          }
+          value = (value << 4) | digit;
+        }
+        return (char) value;
+      case 't':
+        return '\t';
+      case 'b':
+        return '\b';
+      case 'n':
+        return '\n';
+      case 'r':
+        return '\r';
+      case 'f':
+        return '\f';
+      case '"':
+      case '\\':
+      case '/':
+        return (char) escaped;
+      default:
+        throw syntaxError("Invalid escape sequence");
+    }
+  }
+
+  /**
+   * Reads {@code null}, {@code true}, {@code false} or a number, starting with {@code first}.
+   */
+  private Object readLiteral(int first) throws IOException, JSONException {
+    StringBuilder builder = new StringBuilder();
+    builder.append((char) first);
+    while (true) {
+      int c = peek();
+      if (c == EOF || c == ',' || c == '}' || c == ']' || c == ':'
+          || c == ' ' || c == '\t' || c == '\n' || c == '\r') {
+        break;
+      }
+      builder.append((char) c);
+      position++;
+    }
+    String literal = builder.toString();
+
+    if ("null".equals(literal)) {
+      return JSONObject.NULL;
+    } else if ("true".equals(literal)) {
+      return Boolean.TRUE;
+    } else if ("false".equals(literal)) {
+      return Boolean.FALSE;
+    }
+    if (!isNumber(literal)) {
+      throw syntaxError("Invalid value " + literal);
+    }
+
+    if (literal.indexOf('.') == -1 && literal.indexOf('e') == -1 && literal.indexOf('E') == -1) {
+      try {
+        long longValue = Long.parseLong(literal);
+        if (longValue <= Integer.MAX_VALUE && longValue >= Integer.MIN_VALUE) {
+          return (int) longValue;
+        }
+        return longValue;
+      } catch (NumberFormatException e) {
+        // Too large for a long, so fall through to a double
+      }
+    }
+    return Double.valueOf(literal);
+  }
+
+  /**
+   * Returns whether a literal is a number in the grammar of JSON, which unlike the grammar of
+   * {@link Double#valueOf(String)} has no leading {@code +} or zeros, hexadecimal, type suffixes,
+   * {@code NaN} or {@code Infinity}.
+   */
+  private static boolean isNumber(String literal) {
+    int length = literal.length();
+    int i = 0;
+    if (i < length && literal.charAt(i) == '-') {
+      i++;
+    }
+    // The integer part is either 0, or digits that don't start with 0.
+    int end = i < length && literal.charAt(i) == '0' ? i + 1 : skipDigits(literal, i);
+    if (end == i) {
+      return false;
+    }
+    i = end;
+    if (i < length && literal.charAt(i) == '.') {
+      i++;
+      end = skipDigits(literal, i);
+      if (end == i) {
+        return false;
+      }
+      i = end;
+    }
+    if (i < length && (literal.charAt(i) == 'e' || literal.charAt(i) == 'E')) {
+      i++;
+      if (i < length && (literal.charAt(i) == '+' || literal.charAt(i) == '-')) {
+        i++;
+      }
+      end = skipDigits(literal, i);
+      if (end == i) {
+        return false;
+      }
+      i = end;
+    }
+    return i == length;
+  }
+
+  /**
+   * Returns the index of the first character at or after {@code start} that isn't a digit.
+   */
+  private static int skipDigits(String literal, int start) {
+    int i = start;
+    while (i < literal.length() && literal.charAt(i) >= '0' && literal.charAt(i) <= '9') {
+      i++;
+    }
+    return i;
+  }
+}
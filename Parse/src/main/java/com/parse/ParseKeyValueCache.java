@@ -12,43 +12,114 @@ import android.content.Context;
 
 import org.json.JSONException;
 import org.json.JSONObject;
-import org.json.JSONTokener;
 
 import java.io.File;
 import java.io.FileOutputStream;
-import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * Used for ParseQuery caching.
+ *
+ * Each entry is stored in its own file named {@code <timestamp>.<key>}, so that the operating
+ * system can clear them out when space gets low. The directory is only scanned once, the first time
+ * the cache is used, to build an in-memory index of the entries in least recently used order. After
+ * that, lookups, writes and evictions only touch the files of the entries involved.
+ *
+ * Values that are read as JSON are also kept parsed in memory, up to
+ * {@link #maxMemoryCacheBytes}, so that repeating a query doesn't read the file or parse the
+ * results again. The memory tier expires and is invalidated along with the files, and reading from
+ * it still updates the entry's place in the index and its file's mtime.
  */
 /** package */ class ParseKeyValueCache {
 
   private static final String TAG = "ParseKeyValueCache";
   private static final String DIR_NAME = "ParseKeyValueCache";
 
+  // Entries are written to a temporary file first and then renamed into place, so a crash while
+  // writing never leaves a partial entry behind. Entry names always start with a timestamp, so they
+  // can't start with this.
+  private static final String TEMP_FILE_PREFIX = "tmp.";
+
   // We limit the cache to 2MB because that's about what the default browser
   // uses.
   /* package */ static final int DEFAULT_MAX_KEY_VALUE_CACHE_BYTES = 2 * 1024 * 1024;
   // We limit to 1000 cache files to avoid taking too long while scanning the
   // cache
   /* package */ static final int DEFAULT_MAX_KEY_VALUE_CACHE_FILES = 1000;
+  // Parsed JSON takes up much more memory than its string, so only keep the most recently used
+  // results in memory.
+  /* package */ static final int DEFAULT_MAX_MEMORY_CACHE_BYTES = 512 * 1024;
 
   /**
    * Prevent multiple threads from modifying the cache at the same time.
    */
   private static final Object MUTEX_IO = new Object();
+  /**
+   * Guards the memory tier. When both are needed, {@link #MUTEX_IO} must be taken first, so that a
+   * value read from disk never replaces a newer value in memory.
+   */
+  private static final Object MUTEX_MEMORY = new Object();
 
   /* package */ static int maxKeyValueCacheBytes = DEFAULT_MAX_KEY_VALUE_CACHE_BYTES;
   /* package */ static int maxKeyValueCacheFiles = DEFAULT_MAX_KEY_VALUE_CACHE_FILES;
+  /* package */ static int maxMemoryCacheBytes = DEFAULT_MAX_MEMORY_CACHE_BYTES;
 
   private static File directory;
 
+  /**
+   * The entries in the cache, keyed by cache key, from least to most recently used. This is
+   * {@code null} until the directory has been scanned. Guarded by {@link #MUTEX_IO}.
+   */
+  private static LinkedHashMap<String, Entry> entries;
+  /**
+   * The total size of all the entries in {@link #entries}. Guarded by {@link #MUTEX_IO}.
+   */
+  private static long totalBytes;
+
+  /**
+   * The values that have been read as JSON, keyed by cache key, from least to most recently used.
+   * Guarded by {@link #MUTEX_MEMORY}.
+   */
+  private static final LinkedHashMap<String, MemoryEntry> memoryEntries =
+      new LinkedHashMap<>(16, 0.75f, true);
+  /**
+   * The estimated size of all the values in {@link #memoryEntries}. Guarded by
+   * {@link #MUTEX_MEMORY}.
+   */
+  private static long totalMemoryBytes;
+
+  private static class MemoryEntry {
+    private final JSONObject json;
+    private final long createdAt;
+    private final long length;
+
+    private MemoryEntry(JSONObject json, long createdAt, long length) {
+      this.json = json;
+      this.createdAt = createdAt;
+      this.length = length;
+    }
+  }
+
+  private static class Entry {
+    private final File file;
+    private final long createdAt;
+    private final long length;
+
+    private Entry(File file, long createdAt, long length) {
+      this.file = file;
+      this.createdAt = createdAt;
+      this.length = length;
+    }
+  }
+
   // Creates a directory to keep cache-type files in.
   // The operating system will automatically clear out these files first
   // when space gets low.
@@ -60,7 +131,12 @@ import java.util.Date;
     if (!path.isDirectory() && !path.mkdir()) {
       throw new RuntimeException("Could not create ParseKeyValueCache directory");
     }
-    directory = path;
+    synchronized (MUTEX_IO) {
+      directory = path;
+      entries = null;
+      totalBytes = 0;
+      clearMemoryCache();
+    }
   }
 
   private static File getKeyValueCacheDir() {
@@ -71,20 +147,152 @@ import java.util.Date;
    * How many files are in the key-value cache.
    */
   /* package */ static int size() {
-    return getKeyValueCacheDir().listFiles().length;
+    synchronized (MUTEX_IO) {
+      return getEntries().size();
+    }
   }
 
-  private static File getKeyValueCacheFile(String key) {
-    final String suffix = '.' + key;
-    File[] matches = getKeyValueCacheDir().listFiles(new FilenameFilter() {
+  /**
+   * Returns the index of the cache, scanning the directory to build it if this is the first time
+   * it's being used. Must be called while holding {@link #MUTEX_IO}.
+   */
+  private static LinkedHashMap<String, Entry> getEntries() {
+    if (entries != null) {
+      return entries;
+    }
+
+    entries = new LinkedHashMap<>(16, 0.75f, true);
+    totalBytes = 0;
+
+    File dir = getKeyValueCacheDir();
+    File[] files = dir != null ? dir.listFiles() : null;
+    if (files == null) {
+      return entries;
+    }
+
+    // Sort oldest-first. We touch on read so mtime is really LRU.
+    // Sometimes (i.e. tests) the time of lastModified isn't granular enough,
+    // so we resort
+    // to sorting by the file name which is always prepended with time in ms
+    Arrays.sort(files, new Comparator<File>() {
       @Override
-      public boolean accept(File dir, String filename) {
-        return filename.endsWith(suffix);
+      public int compare(File f1, File f2) {
+        int dateCompare = Long.valueOf(f1.lastModified()).compareTo(f2.lastModified());
+        if (dateCompare != 0) {
+          return dateCompare;
+        } else {
+          return f1.getName().compareTo(f2.getName());
+        }
       }
     });
-    return (matches == null || matches.length == 0) ? null : matches[0];
+
+    for (File file : files) {
+      String name = file.getName();
+      int dot = name.indexOf('.');
+      if (name.startsWith(TEMP_FILE_PREFIX) || dot < 0) {
+        // Left behind by a write that never finished.
+        file.delete();
+        continue;
+      }
+      String key = name.substring(dot + 1);
+      Entry entry = new Entry(file, getKeyValueCacheAge(file), file.length());
+      // If a key somehow has more than one file, keep the most recently used one.
+      putEntry(key, entry);
+    }
+    return entries;
+  }
+
+  /**
+   * Adds an entry to the index, removing the file of any entry it replaces. Must be called while
+   * holding {@link #MUTEX_IO}.
+   */
+  private static void putEntry(String key, Entry entry) {
+    Entry prior = entries.put(key, entry);
+    totalBytes += entry.length;
+    if (prior != null) {
+      totalBytes -= prior.length;
+      if (!prior.file.equals(entry.file)) {
+        prior.file.delete();
+      }
+    }
+  }
+
+  /**
+   * Removes an entry from the index and deletes its file. Must be called while holding
+   * {@link #MUTEX_IO}.
+   */
+  private static void removeEntry(String key) {
+    Entry entry = getEntries().remove(key);
+    if (entry != null) {
+      totalBytes -= entry.length;
+      entry.file.delete();
+    }
+    removeMemoryEntry(key);
+  }
+
+  //region Memory
+
+  private static void putMemoryEntry(String key, MemoryEntry entry) {
+    synchronized (MUTEX_MEMORY) {
+      MemoryEntry prior = memoryEntries.put(key, entry);
+      totalMemoryBytes += entry.length;
+      if (prior != null) {
+        totalMemoryBytes -= prior.length;
+      }
+
+      Iterator<MemoryEntry> iterator = memoryEntries.values().iterator();
+      while (totalMemoryBytes > maxMemoryCacheBytes && iterator.hasNext()) {
+        totalMemoryBytes -= iterator.next().length;
+        iterator.remove();
+      }
+    }
+  }
+
+  private static void removeMemoryEntry(String key) {
+    synchronized (MUTEX_MEMORY) {
+      MemoryEntry entry = memoryEntries.remove(key);
+      if (entry != null) {
+        totalMemoryBytes -= entry.length;
+      }
+    }
   }
 
+  private static void clearMemoryCache() {
+    synchronized (MUTEX_MEMORY) {
+      memoryEntries.clear();
+      totalMemoryBytes = 0;
+    }
+  }
+
+  /**
+   * Returns the value for a key from the memory tier, or {@code null} if it isn't there or is older
+   * than {@code maxAgeMilliseconds}.
+   */
+  private static JSONObject jsonFromMemoryCache(String key, long maxAgeMilliseconds) {
+    synchronized (MUTEX_MEMORY) {
+      MemoryEntry entry = memoryEntries.get(key);
+      if (entry == null) {
+        return null;
+      }
+      long oldestAcceptableAge = Math.max(0, new Date().getTime() - maxAgeMilliseconds);
+      if (entry.createdAt < oldestAcceptableAge) {
+        return null;
+      }
+      return entry.json;
+    }
+  }
+
+  /**
+   * How many values are in the memory tier.
+   */
+  /* package for tests */ static int memorySize() {
+    synchronized (MUTEX_MEMORY) {
+      return memoryEntries.size();
+    }
+  }
+
+  //endregion
+
   // Badly formatted files return the epoch
   private static long getKeyValueCacheAge(File cacheFile) {
     // Format: <date>.<key>
@@ -96,24 +304,28 @@ import java.util.Date;
     }
   }
 
-  /* package */ private static File createKeyValueCacheFile(String key) {
-    String filename = String.valueOf(new Date().getTime()) + '.' + key;
+  private static File createKeyValueCacheFile(String key, long createdAt) {
+    String filename = String.valueOf(createdAt) + '.' + key;
     return new File(getKeyValueCacheDir(), filename);
   }
 
   // Removes all the cache entries.
   /* package */ static void clearKeyValueCacheDir() {
     synchronized (MUTEX_IO) {
+      entries = new LinkedHashMap<>(16, 0.75f, true);
+      totalBytes = 0;
+      clearMemoryCache();
+
       File dir = getKeyValueCacheDir();
       if (dir == null) {
         return;
       }
-      File[] entries = dir.listFiles();
-      if (entries == null) {
+      File[] files = dir.listFiles();
+      if (files == null) {
         return;
       }
-      for (File entry : entries) {
-        entry.delete();
+      for (File file : files) {
+        file.delete();
       }
     }
   }
@@ -121,55 +333,49 @@ import java.util.Date;
   // Saves a key-value pair to the cache
   /* package */ static void saveToKeyValueCache(String key, String value) {
     synchronized (MUTEX_IO) {
-      File prior = getKeyValueCacheFile(key);
-      if (prior != null) {
-        prior.delete();
-      }
-      File f = createKeyValueCacheFile(key);
+      LinkedHashMap<String, Entry> index = getEntries();
+
+      long now = new Date().getTime();
+      File f = createKeyValueCacheFile(key, now);
+      File temp = new File(getKeyValueCacheDir(), TEMP_FILE_PREFIX + f.getName());
+      long length;
       try {
-        FileOutputStream out = new FileOutputStream(f);
-        out.write(value.getBytes("UTF-8"));
-        out.close();
+        byte[] bytes = value.getBytes("UTF-8");
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+          out.write(bytes);
+          out.getFD().sync();
+        } finally {
+          out.close();
+        }
+        length = bytes.length;
       } catch (UnsupportedEncodingException e) {
-        // do nothing
+        temp.delete();
+        removeEntry(key);
+        return;
       } catch (IOException e) {
-        // do nothing
+        temp.delete();
+        removeEntry(key);
+        return;
       }
+      if (!temp.renameTo(f)) {
+        temp.delete();
+        removeEntry(key);
+        return;
+      }
+      putEntry(key, new Entry(f, now, length));
+      // The memory tier is filled the next time this is read as JSON.
+      removeMemoryEntry(key);
 
-      // Check if we should kick out old cache entries
-      File[] files = getKeyValueCacheDir().listFiles();
-      int numFiles = files.length;
-      int numBytes = 0;
-      for (File file : files) {
-        numBytes += file.length();
-      }
-      if (numFiles > maxKeyValueCacheFiles || numBytes > maxKeyValueCacheBytes) {
-        // We need to kick out some cache entries.
-        // Sort oldest-first. We touch on read so mtime is really LRU.
-        // Sometimes (i.e. tests) the time of lastModified isn't granular enough,
-        // so we resort
-        // to sorting by the file name which is always prepended with time in ms
-        Arrays.sort(files, new Comparator<File>() {
-          @Override
-          public int compare(File f1, File f2) {
-            int dateCompare = Long.valueOf(f1.lastModified()).compareTo(f2.lastModified());
-            if (dateCompare != 0) {
-              return dateCompare;
-            } else {
-              return f1.getName().compareTo(f2.getName());
-            }
-          }
-        });
-
-        for (File file : files) {
-          numFiles--;
-          numBytes -= file.length();
-          file.delete();
-
-          if (numFiles <= maxKeyValueCacheFiles && numBytes <= maxKeyValueCacheBytes) {
-            break;
-          }
-        }
+      // Check if we should kick out old cache entries, oldest-first.
+      Iterator<Map.Entry<String, Entry>> iterator = index.entrySet().iterator();
+      while ((index.size() > maxKeyValueCacheFiles || totalBytes > maxKeyValueCacheBytes)
+          && iterator.hasNext()) {
+        Map.Entry<String, Entry> evicted = iterator.next();
+        iterator.remove();
+        totalBytes -= evicted.getValue().length;
+        evicted.getValue().file.delete();
+        removeMemoryEntry(evicted.getKey());
       }
     }
   }
@@ -178,10 +384,7 @@ import java.util.Date;
   // no-op.
   /* package */ static void clearFromKeyValueCache(String key) {
     synchronized (MUTEX_IO) {
-      File file = getKeyValueCacheFile(key);
-      if (file != null) {
-        file.delete();
-      }
+      removeEntry(key);
     }
   }
 
@@ -189,46 +392,79 @@ import java.util.Date;
   // Returns null if nothing is there.
   /* package */ static String loadFromKeyValueCache(final String key, final long maxAgeMilliseconds) {
     synchronized (MUTEX_IO) {
-      File file = getKeyValueCacheFile(key);
-      if (file == null) {
+      // Looking up the entry also marks it as the most recently used.
+      Entry entry = getEntries().get(key);
+      if (entry == null) {
         return null;
       }
+      return loadFromEntry(key, entry, maxAgeMilliseconds);
+    }
+  }
 
-      Date now = new Date();
-      long oldestAcceptableAge = Math.max(0, now.getTime() - maxAgeMilliseconds);
-      if (getKeyValueCacheAge(file) < oldestAcceptableAge) {
-        return null;
-      }
+  // Must be called while holding MUTEX_IO.
+  private static String loadFromEntry(String key, Entry entry, long maxAgeMilliseconds) {
+    Date now = new Date();
+    long oldestAcceptableAge = Math.max(0, now.getTime() - maxAgeMilliseconds);
+    if (entry.createdAt < oldestAcceptableAge) {
+      return null;
+    }
 
-      // Update mtime to make the LRU work
-      file.setLastModified(now.getTime());
+    touch(entry, now.getTime());
 
+    File file = entry.file;
+    try {
+      RandomAccessFile f = new RandomAccessFile(file, "r");
       try {
-        RandomAccessFile f = new RandomAccessFile(file, "r");
         byte[] bytes = new byte[(int) f.length()];
         f.readFully(bytes);
-        f.close();
         return new String(bytes, "UTF-8");
-      } catch (IOException e) {
-        PLog.e(TAG, "error reading from cache", e);
-        return null;
+      } finally {
+        f.close();
       }
+    } catch (IOException e) {
+      // The file may have been cleared out from under us by the operating system.
+      PLog.e(TAG, "error reading from cache", e);
+      removeEntry(key);
+      return null;
     }
   }
 
+  // Update mtime so the LRU order survives rebuilding the index
+  private static void touch(Entry entry, long now) {
+    entry.file.setLastModified(now);
+  }
+
   // Returns null if the value does not exist or is not json
+  // The returned JSONObject is shared with other callers, so it must not be modified.
   /* package */ static JSONObject jsonFromKeyValueCache(String key, long maxAgeMilliseconds) {
-    String raw = loadFromKeyValueCache(key, maxAgeMilliseconds);
-    if (raw == null) {
-      return null;
-    }
+    synchronized (MUTEX_IO) {
+      // Looking up the entry also marks it as the most recently used, even if the value is in
+      // memory, so that the files of values that are only read from memory aren't evicted first.
+      Entry entry = getEntries().get(key);
+      if (entry == null) {
+        return null;
+      }
+      JSONObject json = jsonFromMemoryCache(key, maxAgeMilliseconds);
+      if (json != null) {
+        touch(entry, new Date().getTime());
+        return json;
+      }
 
-    try {
-      return new JSONObject(raw);
-    } catch (JSONException e) {
-      PLog.e(TAG, "corrupted cache for " + key, e);
-      clearFromKeyValueCache(key);
-      return null;
+      String raw = loadFromEntry(key, entry, maxAgeMilliseconds);
+      if (raw == null) {
+        return null;
+      }
+
+      try {
+        json = new JSONObject(raw);
+      } catch (JSONException e) {
+        PLog.e(TAG, "corrupted cache for " + key, e);
+        removeEntry(key);
+        return null;
+      }
+      // Each char of the string is 2 bytes, which is a low estimate of the parsed size.
+      putMemoryEntry(key, new MemoryEntry(json, entry.createdAt, 2L * raw.length()));
+      return json;
     }
   }
 }
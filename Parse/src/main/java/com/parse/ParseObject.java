@@ -307,7 +307,9 @@ public class ParseObject {
   // Cached State
   private final Map<String, Object> estimatedData;
   private final Map<String, Boolean> dataAvailability;
-  private final Map<Object, ParseJSONCacheItem> hashedObjects; // For mutable containers
+  private final Map<Object, ParseContainerSnapshot> hashedObjects; // For mutable containers
+  // The operation sets that estimatedData was computed from, in the order they were applied.
+  private final List<ParseOperationSet> estimatedOperationSets;
 
   private String localId;
   private final ParseMulticastDelegate<ParseObject> saveEvent = new ParseMulticastDelegate<>();
@@ -385,6 +387,7 @@ public class ParseObject {
     operationSetQueue.add(new ParseOperationSet());
     estimatedData = new HashMap<>();
     hashedObjects = new IdentityHashMap<>();
+    estimatedOperationSets = new ArrayList<>();
     dataAvailability = new HashMap<>();
 
     State.Init<?> builder = newStateBuilder(theClassName);
@@ -619,11 +622,7 @@ public class ParseObject {
 
   private void addToHashedObjects(Object object) {
     synchronized (mutex) {
-      try {
-        hashedObjects.put(object, new ParseJSONCacheItem(object));
-      } catch (JSONException e) {
-        throw new IllegalArgumentException("Couldn't serialize container value to JSON.");
-      }
+      hashedObjects.put(object, new ParseContainerSnapshot(object));
     }
   }
 
@@ -744,6 +743,7 @@ public class ParseObject {
 
   private void setState(State newState, boolean notifyIfObjectIdChanges) {
     synchronized (mutex) {
+      State oldState = state;
       String oldObjectId = state.objectId();
       String newObjectId = newState.objectId();
 
@@ -753,9 +753,11 @@ public class ParseObject {
         notifyObjectIdChanged(oldObjectId, newObjectId);
       }
 
-      rebuildEstimatedData();
+      Set<String> updatedKeys = updateEstimatedData(oldState);
       rebuildDataAvailability();
-      checkpointAllMutableContainers();
+      for (String key : updatedKeys) {
+        checkpointMutableContainer(key, estimatedData.get(key));
+      }
     }
   }
 
@@ -1226,7 +1228,7 @@ public class ParseObject {
   }
 
   /**
-   * Updates the JSON cache value for all of the values in estimatedData.
+   * Updates the snapshots of all of the containers in estimatedData.
    */
   private void checkpointAllMutableContainers() {
     synchronized (mutex) {
@@ -1237,7 +1239,7 @@ public class ParseObject {
   }
 
   /**
-   * Updates the JSON cache value for the given object.
+   * Updates the snapshot of the given object, if it's a container.
    */
   private void checkpointMutableContainer(String key, Object object) {
     synchronized (mutex) {
@@ -1254,21 +1256,13 @@ public class ParseObject {
   private void checkForChangesToMutableContainer(String key, Object object) {
     synchronized (mutex) {
       if (isContainerObject(key, object)) {
-        ParseJSONCacheItem oldCacheItem = hashedObjects.get(object);
-        if (oldCacheItem == null) {
+        ParseContainerSnapshot snapshot = hashedObjects.get(object);
+        if (snapshot == null) {
           throw new IllegalArgumentException(
               "ParseObject contains container item that isn't cached.");
-        } else {
-          ParseJSONCacheItem newCacheItem;
-          try {
-            newCacheItem = new ParseJSONCacheItem(object);
-          } catch (JSONException e) {
-            throw new RuntimeException(e);
-          }
-          if (!oldCacheItem.equals(newCacheItem)) {
-            // A mutable container changed out from under us. Treat it as a set operation.
-            performOperation(key, new ParseSetOperation(object));
-          }
+        } else if (!snapshot.matches(object)) {
+          // A mutable container changed out from under us. Treat it as a set operation.
+          performOperation(key, new ParseSetOperation(object));
         }
       } else {
         hashedObjects.remove(object);
@@ -2956,6 +2950,70 @@ public class ParseObject {
       for (ParseOperationSet operations : operationSetQueue) {
         applyOperations(operations, estimatedData);
       }
+      estimatedOperationSets.clear();
+      estimatedOperationSets.addAll(operationSetQueue);
+    }
+  }
+
+  /**
+   * Updates the estimatedData map after the serverData has changed from {@code oldState}, only
+   * regenerating the keys whose server value changed, and the keys of any operation sets that have
+   * been added to or removed from the queue since estimatedData was computed. Every other key
+   * already has the value it would be regenerated with.
+   *
+   * @return The keys that were regenerated.
+   */
+  private Set<String> updateEstimatedData(State oldState) {
+    synchronized (mutex) {
+      Set<String> keys = new HashSet<>();
+      if (oldState != state) {
+        // Values that haven't been merged from the server are carried over by the builder as is.
+        for (String key : oldState.keySet()) {
+          if (oldState.get(key) != state.get(key)) {
+            keys.add(key);
+          }
+        }
+        for (String key : state.keySet()) {
+          if (oldState.get(key) != state.get(key)) {
+            keys.add(key);
+          }
+        }
+      }
+
+      Set<ParseOperationSet> queued =
+          Collections.newSetFromMap(new IdentityHashMap<ParseOperationSet, Boolean>());
+      queued.addAll(operationSetQueue);
+      Set<ParseOperationSet> estimated =
+          Collections.newSetFromMap(new IdentityHashMap<ParseOperationSet, Boolean>());
+      estimated.addAll(estimatedOperationSets);
+      for (ParseOperationSet operations : estimatedOperationSets) {
+        if (!queued.contains(operations)) {
+          keys.addAll(operations.keySet());
+        }
+      }
+      for (ParseOperationSet operations : operationSetQueue) {
+        if (!estimated.contains(operations)) {
+          keys.addAll(operations.keySet());
+        }
+      }
+      estimatedOperationSets.clear();
+      estimatedOperationSets.addAll(operationSetQueue);
+
+      for (String key : keys) {
+        Object value = state.get(key);
+        for (ParseOperationSet operations : operationSetQueue) {
+          ParseFieldOperation operation = operations.get(key);
+          if (operation != null) {
+            value = operation.apply(value, key);
+          }
+        }
+        if (value != null) {
+          estimatedData.put(key, value);
+        } else {
+          estimatedData.remove(key);
+        }
+      }
+      return keys;
     }
   }
 
@@ -4082,6 +4140,99 @@ public class ParseObject {
     ParseTaskUtils.wait(unpinAllInBackground());
   }
 
+  /**
+   * Indexes a key of a class in the local datastore, so that queries from the local datastore with
+   * equality and range constraints on the key, or that are ordered by it, don't need to look at
+   * every object of the class. Indexing a key with {@link ParseGeoPoint} values does the same for
+   * {@code whereNear}, {@code whereWithinKilometers} and {@code whereWithinGeoBox}, and lets limited
+   * {@code whereNear} queries find the nearest objects without looking at the rest. Objects that are
+   * already stored are indexed right away, and the index is kept up to date as objects are pinned,
+   * updated and unpinned.
+   *
+   * @param className
+   *          the class of the objects to index
+   * @param key
+   *          the key to index, which can't be a nested key
+   *
+   * @return A {@link bolts.Task} that is resolved when the key has been indexed.
+   */
+  public static Task<Void> createLocalDatastoreIndexInBackground(String className, String key) {
+    if (!Parse.isLocalDatastoreEnabled()) {
+      throw new IllegalStateException("Method requires Local Datastore. " +
+          "Please refer to `Parse#enableLocalDatastore(Context)`.");
+    }
+    if (className == null || key == null) {
+      throw new IllegalArgumentException("className and key may not be null.");
+    }
+    if (key.contains(".")) {
+      throw new IllegalArgumentException("Nested keys can't be indexed: " + key);
+    }
+    return Parse.getLocalDatastore().createIndexAsync(className, key, false);
+  }
+
+  /**
+   * Indexes a key of a class in the local datastore.
+   *
+   * @see #createLocalDatastoreIndexInBackground(String, String)
+   *
+   * @param className
+   *          the class of the objects to index
+   * @param key
+   *          the key to index, which can't be a nested key
+   *
+   * @throws ParseException
+   */
+  public static void createLocalDatastoreIndex(String className, String key)
+      throws ParseException {
+    ParseTaskUtils.wait(createLocalDatastoreIndexInBackground(className, key));
+  }
+
+  /**
+   * Creates a full-text index of a key of a class in the local datastore, so that queries from the
+   * local datastore with {@link ParseQuery#whereFullText(String, String)} on the key don't need to
+   * look at every object of the class. Every string value of the key is split into words and
+   * indexed, including the strings in array values. Objects that are already stored are indexed
+   * right away, and the index is kept up to date as objects are pinned, updated and unpinned.
+   *
+   * @param className
+   *          the class of the objects to index
+   * @param key
+   *          the key to index, which can't be a nested key
+   *
+   * @return A {@link bolts.Task} that is resolved when the key has been indexed.
+   */
+  public static Task<Void> createLocalDatastoreTextIndexInBackground(String className,
+      String key) {
+    if (!Parse.isLocalDatastoreEnabled()) {
+      throw new IllegalStateException("Method requires Local Datastore. " +
+          "Please refer to `Parse#enableLocalDatastore(Context)`.");
+    }
+    if (className == null || key == null) {
+      throw new IllegalArgumentException("className and key may not be null.");
+    }
+    if (key.contains(".")) {
+      throw new IllegalArgumentException("Nested keys can't be indexed: " + key);
+    }
+    return Parse.getLocalDatastore().createIndexAsync(className, key, true);
+  }
+
+  /**
+   * Creates a full-text index of a key of a class in the local datastore.
+   *
+   * @see #createLocalDatastoreTextIndexInBackground(String, String)
+   *
+   * @param className
+   *          the class of the objects to index
+   * @param key
+   *          the key to index, which can't be a nested key
+   *
+   * @throws ParseException
+   */
+  public static void createLocalDatastoreTextIndex(String className, String key)
+      throws ParseException {
+    ParseTaskUtils.wait(createLocalDatastoreTextIndexInBackground(className, key));
+  }
+
   /**
    * Loads data from the local datastore into this object, if it has not been fetched from the
    * server already. If the object is not stored in the local datastore, this method with do
@@ -8,7 +8,12 @@
  */
 package com.parse;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Set;
 
 @ParseClassName("_Pin")
 /** package */ class ParsePin extends ParseObject {
@@ -40,4 +45,55 @@ import java.util.List;
   public void setObjects(List<ParseObject> objects) {
     put(KEY_OBJECTS, objects);
   }
+
+  /**
+   * Adds the objects that aren't already in this pin to the end of it. Membership is checked
+   * against a set, so this is linear in the size of the pin and the number of objects, rather than
+   * their product.
+   */
+  public void addObjects(Collection<? extends ParseObject> objects) {
+    List<ParseObject> current = getObjects();
+    List<ParseObject> modified = current != null
+        ? new ArrayList<>(current)
+        : new ArrayList<ParseObject>(objects.size());
+    Set<ParseObject> members = newIdentitySet(modified);
+    for (ParseObject object : objects) {
+      if (members.add(object)) {
+        modified.add(object);
+      }
+    }
+    setObjects(modified);
+  }
+
+  /**
+   * Removes the given objects from this pin.
+   *
+   * @return {@code true} if this pin contained any of the objects.
+   */
+  public boolean removeObjects(Collection<? extends ParseObject> objects) {
+    List<ParseObject> current = getObjects();
+    if (current == null) {
+      return false;
+    }
+    Set<ParseObject> removed = newIdentitySet(objects);
+    List<ParseObject> modified = new ArrayList<>(current.size());
+    for (ParseObject object : current) {
+      if (!removed.contains(object)) {
+        modified.add(object);
+      }
+    }
+    if (modified.size() == current.size()) {
+      return false;
+    }
+    setObjects(modified);
+    return true;
+  }
+
+  // ParseObjects are compared by identity, the same as List#contains does for them.
+  private static Set<ParseObject> newIdentitySet(Collection<? extends ParseObject> objects) {
+    Set<ParseObject> set =
+        Collections.newSetFromMap(new IdentityHashMap<ParseObject, Boolean>(objects.size()));
+    set.addAll(objects);
+    return set;
+  }
 }
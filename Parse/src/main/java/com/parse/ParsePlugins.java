@@ -111,6 +111,9 @@ import java.io.IOException;
             return chain.proceed(builder.build());
           }
         });
+        if (Parse.isGzipCompressionEnabled()) {
+          restClient.setGzipInterceptor(new ParseGzipInterceptor());
+        }
       }
       return restClient;
     }
@@ -463,6 +463,14 @@ public class ParseQuery<T extends ParseObject> {
         return addCondition(key, "$within", dictionary);
       }
 
+      public Builder<T> whereFullText(String key, String text) {
+        Map<String, Object> search = new HashMap<>();
+        search.put("$term", text);
+        Map<String, Object> dictionary = new HashMap<>();
+        dictionary.put("$search", Collections.unmodifiableMap(search));
+        return addCondition(key, "$text", Collections.unmodifiableMap(dictionary));
+      }
+
       public Builder<T> addCondition(String key, String condition,
           Collection<? extends Object> value) {
         return addConditionInternal(key, condition, Collections.unmodifiableCollection(value));
@@ -1208,6 +1216,66 @@ public class ParseQuery<T extends ParseObject> {
     return ParseQuery.getQueryController().findAsync(state, user, cancellationToken);
   }
 
+  /**
+   * Steps through the {@link ParseObject}s from the local datastore that satisfy this query,
+   * loading them a page at a time so that they never all need to be in memory at once.
+   * <p/>
+   * The query can't be ordered unless it's ordered by {@code objectId} or by keys indexed with
+   * {@link ParseObject#createLocalDatastoreIndex(String, String)}. If objects of the class have
+   * been changed in memory since they were pinned, or on versions of Android before Jelly Bean,
+   * the objects are all loaded before any of them are passed to the callback.
+   * <p/>
+   * While the objects are being loaded a page at a time, the callback must not wait for other
+   * local datastore operations, such as {@link ParseObject#pin()}, to finish.
+   * <p/>
+   * Requires Local Datastore to be enabled, and the query to be from the local datastore.
+   *
+   * @param callback
+   *          callback.next(object) is called for each object in a background thread, until it
+   *          returns {@code false}.
+   * @throws ParseException
+   *           Throws an exception when the query is invalid.
+   *
+   * @see ParseQuery#fromLocalDatastore()
+   * @see EachCallback
+   */
+  public void findEach(EachCallback<T> callback) throws ParseException {
+    ParseTaskUtils.wait(findEachInBackground(callback));
+  }
+
+  /**
+   * Steps through the {@link ParseObject}s from the local datastore that satisfy this query in a
+   * background thread.
+   *
+   * @param callback
+   *          callback.next(object) is called for each object in a background thread, until it
+   *          returns {@code false}.
+   * @return A {@link Task} that will be resolved when every object has been passed to the callback,
+   *         or the callback has stopped.
+   *
+   * @see #findEach(EachCallback)
+   */
+  public Task<Void> findEachInBackground(final EachCallback<T> callback) {
+    final State<T> state = builder.build();
+    if (!state.isFromLocalDatastore()) {
+      throw new IllegalStateException("Method requires a query from the Local Datastore. " +
+          "Please refer to `ParseQuery#fromLocalDatastore()`.");
+    }
+    return doWithRunningCheck(new Callable<Task<Void>>() {
+      @Override
+      public Task<Void> call() throws Exception {
+        return getUserAsync(state).onSuccessTask(new Continuation<ParseUser, Task<Void>>() {
+          @Override
+          public Task<Void> then(Task<ParseUser> task) throws Exception {
+            ParseUser user = task.getResult();
+            return Parse.getLocalDatastore().findEachFromPinAsync(
+                state.pinName(), state, user, callback);
+          }
+        });
+      }
+    });
+  }
+
   /**
    * Retrieves at most one {@link ParseObject} that satisfies this query from the source in a
    * background thread.
@@ -1930,6 +1998,29 @@ public class ParseQuery<T extends ParseObject> {
     return this;
   }
 
+  /**
+   * Add a constraint for finding string values that contain every word of the provided text, in
+   * any order and regardless of case. A word that ends with {@code *} matches any word that starts
+   * with it, and a key that has a full-text index from
+   * {@link ParseObject#createLocalDatastoreTextIndexInBackground(String, String)} is searched
+   * without looking at every object.
+   * <p/>
+   * This constraint is only supported for queries from the local datastore. Queries that are sent
+   * to the server with it fail with {@link ParseException#INVALID_QUERY}, since the server's text
+   * search matches any of the words, and matches them differently.
+   *
+   * @param key
+   *          The key that the string to match is stored in.
+   * @param text
+   *          The words to search for.
+   * @return this, so you can chain this call.
+   */
+  public ParseQuery<T> whereFullText(String key, String text) {
+    checkIfRunning();
+    builder.whereFullText(key, text);
+    return this;
+  }
+
   /**
    * Add a constraint for finding string values that end with a provided string.
    * <p/>
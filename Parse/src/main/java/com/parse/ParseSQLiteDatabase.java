@@ -12,9 +12,15 @@ import android.content.ContentValues;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
 
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import bolts.Continuation;
 import bolts.Task;
@@ -37,8 +43,43 @@ import bolts.Task;
   //TODO (grantland): do we have to serialize sessions of different databases?
   private static final TaskQueue taskQueue = new TaskQueue();
 
-  /* protected */ static Task<ParseSQLiteDatabase> openDatabaseAsync(final SQLiteOpenHelper helper, int flags) {
-    final ParseSQLiteDatabase db = new ParseSQLiteDatabase(flags);
+  /**
+   * The number of threads that read-only sessions are spread across.
+   */
+  private static final int READER_THREAD_COUNT = 3;
+
+  /**
+   * Executors for read-only sessions, when they can run alongside other sessions. Each session
+   * sticks to one of them, since a cursor has to be filled on the thread it was created on.
+   */
+  private static final ExecutorService[] readerExecutors = new ExecutorService[READER_THREAD_COUNT];
+  static {
+    for (int i = 0; i < READER_THREAD_COUNT; i++) {
+      readerExecutors[i] = Executors.newSingleThreadExecutor();
+    }
+  }
+  private static final AtomicInteger nextReaderExecutor = new AtomicInteger();
+
+  /**
+   * Returns whether read-only sessions can run alongside other sessions. This requires the
+   * database to use write-ahead logging and a connection pool, which is only available on
+   * Jelly Bean and above. {@link ParseSQLiteOpenHelper} enables write-ahead logging whenever this is
+   * {@code true}.
+   */
+  /* package */ static boolean isConcurrentReadSupported() {
+    return Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN;
+  }
+
+  /**
+   * The SQL for each conflict algorithm, by the value of its {@code SQLiteDatabase.CONFLICT_*}
+   * constant.
+   */
+  private static final String[] CONFLICT_VALUES =
+      { "", " OR ROLLBACK", " OR ABORT", " OR FAIL", " OR IGNORE", " OR REPLACE" };
+
+  /* protected */ static Task<ParseSQLiteDatabase> openDatabaseAsync(final SQLiteOpenHelper helper,
+      int flags, ParseSQLiteStatementCache statementCache) {
+    final ParseSQLiteDatabase db = new ParseSQLiteDatabase(flags, statementCache);
     return db.open(helper).continueWithTask(new Continuation<Void, Task<ParseSQLiteDatabase>>() {
       @Override
       public Task<ParseSQLiteDatabase> then(Task<Void> task) throws Exception {
@@ -53,15 +94,31 @@ import bolts.Task;
   private final Task<Void>.TaskCompletionSource tcs = Task.create();
 
   private int openFlags;
+  private final Executor executor;
+  // null unless this session runs on the dbExecutor, since statements can't be shared by threads.
+  private final ParseSQLiteStatementCache statementCache;
 
   /**
    * Creates a Session which opens a database connection and begins a transaction
    */
-  private ParseSQLiteDatabase(int flags) {
+  private ParseSQLiteDatabase(int flags, ParseSQLiteStatementCache statementCache) {
     //TODO (grantland): if (!writable) -- disable transactions?
-    //TODO (grantland): if (!writable) -- do we have to serialize everything?
     openFlags = flags;
 
+    if (isReadOnly() && isConcurrentReadSupported()) {
+      /*
+       * With write-ahead logging, reads see the last committed state of the database without
+       * waiting for any writes in progress, so read-only sessions don't need to wait their turn.
+       */
+      executor = readerExecutors[
+          (nextReaderExecutor.getAndIncrement() & Integer.MAX_VALUE) % READER_THREAD_COUNT];
+      current = Task.forResult(null);
+      this.statementCache = null;
+      return;
+    }
+
+    executor = dbExecutor;
+    this.statementCache = statementCache;
     taskQueue.enqueue(new Continuation<Void, Task<Void>>() {
       @Override
       public Task<Void> then(Task<Void> toAwait) throws Exception {
@@ -73,6 +130,13 @@ import bolts.Task;
     });
   }
 
+  /**
+   * Returns whether this session was opened with {@link SQLiteDatabase#OPEN_READONLY}.
+   */
+  /* package */ boolean isReadOnly() {
+    return (openFlags & SQLiteDatabase.OPEN_READONLY) == SQLiteDatabase.OPEN_READONLY;
+  }
+
   public Task<Boolean> isReadOnlyAsync() {
     synchronized (currentLock) {
       Task<Boolean> task = current.continueWith(new Continuation<Void, Boolean>() {
@@ -110,11 +174,18 @@ import bolts.Task;
         public SQLiteDatabase then(Task<Void> task) throws Exception {
           // get*Database() is synchronous and calls through SQLiteOpenHelper#onCreate, onUpdate,
           // etc.
-          return (openFlags & SQLiteDatabase.OPEN_READONLY) == SQLiteDatabase.OPEN_READONLY
+          SQLiteDatabase db = isReadOnly()
                   ? helper.getReadableDatabase()
                   : helper.getWritableDatabase();
+          /*
+           * Every session shares the helper's connection, so each one holds its own reference to
+           * it. Closing a session only releases its reference, and the connection stays open for
+           * any other session that's still using it.
+           */
+          db.acquireReference();
+          return db;
         }
-      }, dbExecutor).continueWithTask(new Continuation<SQLiteDatabase, Task<Void>>() {
+      }, executor).continueWithTask(new Continuation<SQLiteDatabase, Task<Void>>() {
         @Override
         public Task<Void> then(Task<SQLiteDatabase> task) throws Exception {
           db = task.getResult();
@@ -137,7 +208,7 @@ import bolts.Task;
           db.beginTransaction();
           return task;
         }
-      }, dbExecutor);
+      }, executor);
       return current.continueWithTask(new Continuation<Void, Task<Void>>() {
         @Override
         public Task<Void> then(Task<Void> task) throws Exception {
@@ -160,7 +231,7 @@ import bolts.Task;
           db.setTransactionSuccessful();
           return task;
         }
-      }, dbExecutor);
+      }, executor);
       return current.continueWithTask(new Continuation<Void, Task<Void>>() {
         @Override
         public Task<Void> then(Task<Void> task) throws Exception {
@@ -184,7 +255,7 @@ import bolts.Task;
           // We want to swallow any exceptions from our Session task
           return null;
         }
-      }, dbExecutor);
+      }, executor);
       return current.continueWithTask(new Continuation<Void, Task<Void>>() {
         @Override
         public Task<Void> then(Task<Void> task) throws Exception {
@@ -205,13 +276,14 @@ import bolts.Task;
         @Override
         public Task<Void> then(Task<Void> task) throws Exception {
           try {
+            // Releases the reference acquired in open().
             db.close();
           } finally {
             tcs.setResult(null);
           }
           return tcs.getTask();
         }
-      }, dbExecutor);
+      }, executor);
       return current.continueWithTask(new Continuation<Void, Task<Void>>() {
         @Override
         public Task<Void> then(Task<Void> task) throws Exception {
@@ -235,17 +307,17 @@ import bolts.Task;
         public Cursor then(Task<Void> task) throws Exception {
           return db.query(table, select, where, args, null, null, null);
         }
-      }, dbExecutor).onSuccess(new Continuation<Cursor, Cursor>() {
+      }, executor).onSuccess(new Continuation<Cursor, Cursor>() {
         @Override
         public Cursor then(Task<Cursor> task) throws Exception {
-          Cursor cursor = ParseSQLiteCursor.create(task.getResult(), dbExecutor);
+          Cursor cursor = ParseSQLiteCursor.create(task.getResult(), executor);
           /* Ensure the cursor window is filled on the dbExecutor thread. We need to do this because
            * the cursor cannot be filled from a different thread than it was created on.
            */
           cursor.getCount();
           return cursor;
         }
-      }, dbExecutor);
+      }, executor);
       current = task.makeVoid();
       return task.continueWithTask(new Continuation<Cursor, Task<Cursor>>() {
         @Override
@@ -267,9 +339,10 @@ import bolts.Task;
       Task<Long> task = current.onSuccess(new Continuation<Void, Long>() {
         @Override
         public Long then(Task<Void> task) throws Exception {
-          return db.insertWithOnConflict(table, null, values, conflictAlgorithm);
+          return executeInsert(
+              "INSERT" + CONFLICT_VALUES[conflictAlgorithm] + " INTO " + table, values);
         }
-      }, dbExecutor);
+      }, executor);
       current = task.makeVoid();
       return task.continueWithTask(new Continuation<Long, Task<Long>>() {
         @Override
@@ -282,17 +355,19 @@ import bolts.Task;
   }
 
   /**
-   * Executes an INSERT and throws on SQL errors.
+   * Executes an INSERT and throws on SQL errors. The SQL is built from the values on every call.
+   * @return A task for the rowid of the inserted row.
+   * @see #executeInsertAsync
    * @see SQLiteDatabase#insertOrThrow
    */
-  public Task<Void> insertOrThrowAsync(final String table, final ContentValues values) {
+  public Task<Long> insertOrThrowAsync(final String table, final ContentValues values) {
     synchronized (currentLock) {
       Task<Long> task = current.onSuccess(new Continuation<Void, Long>() {
         @Override
         public Long then(Task<Void> task) throws Exception {
-          return db.insertOrThrow(table, null, values);
+          return executeInsert("INSERT INTO " + table, values);
         }
-      }, dbExecutor);
+      }, executor);
       current = task.makeVoid();
       return task.continueWithTask(new Continuation<Long, Task<Long>>() {
         @Override
@@ -300,13 +375,14 @@ import bolts.Task;
           // We want to jump off the dbExecutor
           return task;
         }
-      }, Task.BACKGROUND_EXECUTOR).makeVoid();
+      }, Task.BACKGROUND_EXECUTOR);
     }
   }
 
   /**
-   * Executes an UPDATE.
+   * Executes an UPDATE. The SQL is built from the values on every call.
    * @see SQLiteDatabase#update
+   * @see #executeUpdateDeleteAsync
    */
   public Task<Integer> updateAsync(final String table, final ContentValues values,
       final String where, final String[] args) {
@@ -314,9 +390,9 @@ import bolts.Task;
       Task<Integer> task = current.onSuccess(new Continuation<Void, Integer>() {
         @Override
         public Integer then(Task<Void> task) throws Exception {
-          return db.update(table, values, where, args);
+          return executeUpdate(table, values, where, args);
         }
-      }, dbExecutor);
+      }, executor);
       current = task.makeVoid();
       return task.continueWithTask(new Continuation<Integer, Task<Integer>>() {
         @Override
@@ -337,9 +413,16 @@ import bolts.Task;
       Task<Integer> task = current.onSuccess(new Continuation<Void, Integer>() {
         @Override
         public Integer then(Task<Void> task) throws Exception {
-          return db.delete(table, where, args);
+          SQLiteStatement statement = acquireStatement("DELETE FROM " + table
+              + (where != null ? " WHERE " + where : ""));
+          try {
+            bindAll(statement, 1, args);
+            return executeUpdateDelete(statement);
+          } finally {
+            releaseStatement(statement);
+          }
         }
-      }, dbExecutor);
+      }, executor);
       current = task.makeVoid();
       return task.continueWithTask(new Continuation<Integer, Task<Integer>>() {
         @Override
@@ -351,6 +434,251 @@ import bolts.Task;
     }
   }
 
+  /**
+   * Executes a statement that doesn't return any data.
+   * @see SQLiteDatabase#execSQL(String, Object[])
+   */
+  public Task<Void> execSQLAsync(final String sql, final Object[] args) {
+    synchronized (currentLock) {
+      Task<Void> task = current.onSuccess(new Continuation<Void, Void>() {
+        @Override
+        public Void then(Task<Void> task) throws Exception {
+          SQLiteStatement statement = acquireStatement(sql);
+          try {
+            bindAll(statement, 1, args);
+            statement.execute();
+          } finally {
+            releaseStatement(statement);
+          }
+          return null;
+        }
+      }, executor);
+      current = task;
+      return task.continueWithTask(new Continuation<Void, Task<Void>>() {
+        @Override
+        public Task<Void> then(Task<Void> task) throws Exception {
+          // We want to jump off the dbExecutor
+          return task;
+        }
+      }, Task.BACKGROUND_EXECUTOR);
+    }
+  }
+
+  /**
+   * Executes an INSERT statement. Unlike {@link #insertOrThrowAsync}, the SQL isn't built from
+   * {@link ContentValues} on every call, so statements that are run for every object should use
+   * this instead.
+   *
+   * @param sql The statement to execute, with a {@code ?} for each argument.
+   * @param args The values to bind, which can be {@code null}, {@link Number}s, {@link String}s or
+   *             {@code byte[]}s.
+   * @return A task for the rowid of the inserted row.
+   * @see SQLiteStatement#executeInsert
+   */
+  public Task<Long> executeInsertAsync(final String sql, final Object[] args) {
+    synchronized (currentLock) {
+      Task<Long> task = current.onSuccess(new Continuation<Void, Long>() {
+        @Override
+        public Long then(Task<Void> task) throws Exception {
+          return executeInsert(sql, args);
+        }
+      }, executor);
+      current = task.makeVoid();
+      return task.continueWithTask(new Continuation<Long, Task<Long>>() {
+        @Override
+        public Task<Long> then(Task<Long> task) throws Exception {
+          // We want to jump off the dbExecutor
+          return task;
+        }
+      }, Task.BACKGROUND_EXECUTOR);
+    }
+  }
+
+  /**
+   * Executes an UPDATE or DELETE statement.
+   *
+   * @return The number of rows that were changed.
+   * @see SQLiteStatement#executeUpdateDelete
+   */
+  public Task<Integer> executeUpdateDeleteAsync(final String sql, final Object[] args) {
+    synchronized (currentLock) {
+      Task<Integer> task = current.onSuccess(new Continuation<Void, Integer>() {
+        @Override
+        public Integer then(Task<Void> task) throws Exception {
+          SQLiteStatement statement = acquireStatement(sql);
+          try {
+            bindAll(statement, 1, args);
+            return executeUpdateDelete(statement);
+          } finally {
+            releaseStatement(statement);
+          }
+        }
+      }, executor);
+      current = task.makeVoid();
+      return task.continueWithTask(new Continuation<Integer, Task<Integer>>() {
+        @Override
+        public Task<Integer> then(Task<Integer> task) throws Exception {
+          // We want to jump off the dbExecutor
+          return task;
+        }
+      }, Task.BACKGROUND_EXECUTOR);
+    }
+  }
+
+  /**
+   * Executes a statement that doesn't return any data once for each set of bindings, compiling it
+   * only once.
+   *
+   * @param sql The statement to execute, with a {@code ?} for each binding.
+   * @param bindings The values to bind for each execution, which can be {@code null},
+   *                 {@link Number}s, {@link String}s or {@code byte[]}s.
+   * @see SQLiteStatement#execute
+   */
+  public Task<Void> executeBatchAsync(final String sql, final List<Object[]> bindings) {
+    synchronized (currentLock) {
+      Task<Void> task = current.onSuccess(new Continuation<Void, Void>() {
+        @Override
+        public Void then(Task<Void> task) throws Exception {
+          if (bindings.isEmpty()) {
+            return null;
+          }
+          SQLiteStatement statement = acquireStatement(sql);
+          try {
+            for (Object[] args : bindings) {
+              statement.clearBindings();
+              bindAll(statement, 1, args);
+              statement.execute();
+            }
+          } finally {
+            releaseStatement(statement);
+          }
+          return null;
+        }
+      }, executor);
+      current = task;
+      return task.continueWithTask(new Continuation<Void, Task<Void>>() {
+        @Override
+        public Task<Void> then(Task<Void> task) throws Exception {
+          // We want to jump off the dbExecutor
+          return task;
+        }
+      }, Task.BACKGROUND_EXECUTOR);
+    }
+  }
+
+  /**
+   * Returns a compiled statement for the given SQL, from the statement cache if this session can
+   * use it. It must be released with {@link #releaseStatement} once it's been executed.
+   *
+   * Sessions that can't use the cache only read, and compiling a statement or running a query looks
+   * it up in the cache of compiled statements that SQLiteDatabase keeps for each connection.
+   */
+  private SQLiteStatement acquireStatement(String sql) {
+    if (statementCache != null) {
+      return statementCache.get(db, sql);
+    }
+    return db.compileStatement(sql);
+  }
+
+  private void releaseStatement(SQLiteStatement statement) {
+    if (statementCache != null) {
+      statement.clearBindings();
+    } else {
+      statement.close();
+    }
+  }
+
+  private long executeInsert(String insert, ContentValues values) {
+    StringBuilder sql = new StringBuilder(insert).append(" (");
+    Object[] args = new Object[values.size()];
+    int i = 0;
+    for (Map.Entry<String, Object> entry : values.valueSet()) {
+      sql.append(i > 0 ? ", " : "").append(entry.getKey());
+      args[i++] = entry.getValue();
+    }
+    sql.append(") VALUES (");
+    for (i = 0; i < args.length; i++) {
+      sql.append(i > 0 ? ", ?" : "?");
+    }
+    sql.append(")");
+    return executeInsert(sql.toString(), args);
+  }
+
+  private long executeInsert(String sql, Object[] args) {
+    SQLiteStatement statement = acquireStatement(sql);
+    try {
+      bindAll(statement, 1, args);
+      return statement.executeInsert();
+    } finally {
+      releaseStatement(statement);
+    }
+  }
+
+  private int executeUpdate(String table, ContentValues values, String where, String[] args) {
+    StringBuilder sql = new StringBuilder("UPDATE ").append(table).append(" SET ");
+    Object[] bindings = new Object[values.size()];
+    int i = 0;
+    for (Map.Entry<String, Object> entry : values.valueSet()) {
+      sql.append(i > 0 ? ", " : "").append(entry.getKey()).append("=?");
+      bindings[i++] = entry.getValue();
+    }
+    if (where != null) {
+      sql.append(" WHERE ").append(where);
+    }
+
+    SQLiteStatement statement = acquireStatement(sql.toString());
+    try {
+      bindAll(statement, 1, bindings);
+      bindAll(statement, bindings.length + 1, args);
+      return executeUpdateDelete(statement);
+    } finally {
+      releaseStatement(statement);
+    }
+  }
+
+  /**
+   * Executes an UPDATE or DELETE statement and returns the number of rows it changed.
+   */
+  private int executeUpdateDelete(SQLiteStatement statement) {
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+      return statement.executeUpdateDelete();
+    }
+    statement.execute();
+    SQLiteStatement changes = acquireStatement("SELECT changes()");
+    try {
+      return (int) changes.simpleQueryForLong();
+    } finally {
+      releaseStatement(changes);
+    }
+  }
+
+  private static void bindAll(SQLiteStatement statement, int index, Object[] values) {
+    if (values == null) {
+      return;
+    }
+    for (int i = 0; i < values.length; i++) {
+      bind(statement, index + i, values[i]);
+    }
+  }
+
+  private static void bind(SQLiteStatement statement, int index, Object value) {
+    if (value == null) {
+      statement.bindNull(index);
+    } else if (value instanceof Boolean) {
+      statement.bindLong(index, (Boolean) value ? 1 : 0);
+    } else if (value instanceof Double || value instanceof Float) {
+      statement.bindDouble(index, ((Number) value).doubleValue());
+    } else if (value instanceof Number) {
+      statement.bindLong(index, ((Number) value).longValue());
+    } else if (value instanceof byte[]) {
+      statement.bindBlob(index, (byte[]) value);
+    } else if (value instanceof String) {
+      statement.bindString(index, (String) value);
+    } else {
+      throw new IllegalArgumentException("Cannot bind " + value.getClass().getName());
+    }
+  }
+
   /**
    * Runs a raw query.
    *
@@ -363,16 +691,16 @@ import bolts.Task;
         public Cursor then(Task<Void> task) throws Exception {
           return db.rawQuery(sql, args);
         }
-      }, dbExecutor).onSuccess(new Continuation<Cursor, Cursor>() {
+      }, executor).onSuccess(new Continuation<Cursor, Cursor>() {
         @Override
         public Cursor then(Task<Cursor> task) throws Exception {
-          Cursor cursor = ParseSQLiteCursor.create(task.getResult(), dbExecutor);
+          Cursor cursor = ParseSQLiteCursor.create(task.getResult(), executor);
           // Ensure the cursor window is filled on the dbExecutor thread. We need to do this because
           // the cursor cannot be filled from a different thread than it was created on.
           cursor.getCount();
           return cursor;
         }
-      }, dbExecutor);
+      }, executor);
       current = task.makeVoid();
       return task.continueWithTask(new Continuation<Cursor, Task<Cursor>>() {
         @Override
@@ -11,12 +11,27 @@ package com.parse;
 import android.content.Context;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
 
 import bolts.Task;
 
 /** package */ abstract class ParseSQLiteOpenHelper {
 
+  /**
+   * The number of compiled statements that are kept for the sessions that write to the database.
+   */
+  private static final int STATEMENT_CACHE_SIZE = 32;
+
+  /**
+   * The number of compiled queries that SQLite keeps for each connection, which is the most that
+   * it allows. Queries don't use {@link ParseSQLiteStatementCache}, since their cursors need to be
+   * created by SQLiteDatabase.
+   */
+  private static final int MAX_SQL_CACHE_SIZE = 100;
+
   private final SQLiteOpenHelper helper;
+  private final ParseSQLiteStatementCache statementCache =
+      new ParseSQLiteStatementCache(STATEMENT_CACHE_SIZE);
 
   public ParseSQLiteOpenHelper(Context context, String name, SQLiteDatabase.CursorFactory factory,
       int version) {
@@ -24,6 +39,9 @@ import bolts.Task;
       @Override
       public void onOpen(SQLiteDatabase db) {
         super.onOpen(db);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+          db.setMaxSqlCacheSize(MAX_SQL_CACHE_SIZE);
+        }
         ParseSQLiteOpenHelper.this.onOpen(db);
       }
 
@@ -37,6 +55,11 @@ import bolts.Task;
         ParseSQLiteOpenHelper.this.onUpgrade(db, oldVersion, newVersion);
       }
     };
+
+    if (ParseSQLiteDatabase.isConcurrentReadSupported()) {
+      // Lets read-only sessions read the database while another session is writing to it.
+      helper.setWriteAheadLoggingEnabled(true);
+    }
   }
 
   public Task<ParseSQLiteDatabase> getReadableDatabaseAsync() {
@@ -49,7 +72,22 @@ import bolts.Task;
 
   private Task<ParseSQLiteDatabase> getDatabaseAsync(final boolean writable) {
     return ParseSQLiteDatabase.openDatabaseAsync(
-        helper, !writable ? SQLiteDatabase.OPEN_READONLY : SQLiteDatabase.OPEN_READWRITE);
+        helper, !writable ? SQLiteDatabase.OPEN_READONLY : SQLiteDatabase.OPEN_READWRITE,
+        statementCache);
+  }
+
+  /**
+   * The number of times a session reused a statement it didn't have to compile again.
+   */
+  /* package */ long getStatementCacheHits() {
+    return statementCache.getHits();
+  }
+
+  /**
+   * The number of times a session had to compile a statement.
+   */
+  /* package */ long getStatementCacheMisses() {
+    return statementCache.getMisses();
   }
 
   public void onOpen(SQLiteDatabase db) {
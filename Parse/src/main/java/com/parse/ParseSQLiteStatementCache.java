@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2015-present, Parse, LLC.
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree. An additional grant
+ * of patent rights can be found in the PATENTS file in the same directory.
+ */
+package com.parse;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An LRU cache of compiled statements, by their SQL, for the connection that a
+ * {@link ParseSQLiteOpenHelper} shares between its sessions. Statements that are run over and over
+ * again only have to be compiled the first time.
+ *
+ * A statement can only be used by one thread at a time, so only sessions that run on the shared
+ * database executor use this cache.
+ */
+/** package */ class ParseSQLiteStatementCache {
+
+  private final Map<String, SQLiteStatement> statements;
+
+  // The connection that the statements were compiled for.
+  private SQLiteDatabase database;
+
+  private long hits;
+  private long misses;
+
+  public ParseSQLiteStatementCache(final int maxSize) {
+    statements = new LinkedHashMap<String, SQLiteStatement>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, SQLiteStatement> eldest) {
+        if (size() > maxSize) {
+          eldest.getValue().close();
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  /**
+   * Returns the compiled statement for the given SQL, compiling it if it isn't in the cache. The
+   * statement must not be closed, and its bindings should be cleared once it's been executed.
+   */
+  public synchronized SQLiteStatement get(SQLiteDatabase db, String sql) {
+    if (db != database) {
+      // The helper's connection was reopened, so the old statements can't be used anymore.
+      clear();
+      database = db;
+    }
+
+    SQLiteStatement statement = statements.get(sql);
+    if (statement != null) {
+      hits++;
+      return statement;
+    }
+    misses++;
+    statement = db.compileStatement(sql);
+    statements.put(sql, statement);
+    return statement;
+  }
+
+  /**
+   * Closes and removes all of the statements in the cache.
+   */
+  public synchronized void clear() {
+    for (SQLiteStatement statement : statements.values()) {
+      statement.close();
+    }
+    statements.clear();
+    database = null;
+  }
+
+  /**
+   * The number of times a statement was found in the cache.
+   */
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  /**
+   * The number of times a statement had to be compiled.
+   */
+  public synchronized long getMisses() {
+    return misses;
+  }
+}
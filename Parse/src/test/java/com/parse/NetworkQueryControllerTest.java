@@ -12,13 +12,22 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
+import java.io.ByteArrayInputStream;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
 
 import bolts.Task;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 public class NetworkQueryControllerTest {
@@ -43,6 +52,23 @@ public class NetworkQueryControllerTest {
 
   //endregion
 
+  @Test
+  public void testFullTextIsLocalOnly() throws Exception {
+    ParseHttpClient restClient = mock(ParseHttpClient.class);
+    ParseQuery.State<ParseObject> state = new ParseQuery<>("Test")
+        .whereFullText("name", "quick fox")
+        .getBuilder()
+        .build();
+
+    NetworkQueryController controller = new NetworkQueryController(restClient);
+    Task<List<ParseObject>> findTask = controller.findAsync(state, "token", false, null);
+    Task<Integer> countTask = controller.countAsync(state, "token", false, null);
+
+    assertEquals(ParseException.INVALID_QUERY, ((ParseException) findTask.getError()).getCode());
+    assertEquals(ParseException.INVALID_QUERY, ((ParseException) countTask.getError()).getCode());
+    verify(restClient, never()).execute(any(ParseHttpRequest.class));
+  }
+
   //region testFindAsync
 
   @Test
@@ -101,6 +127,109 @@ public class NetworkQueryControllerTest {
 
   //endregion
 
+  //region testInFlightCommands
+
+  @Test
+  public void testIdenticalQueriesShareRequest() throws Exception {
+    JSONObject mockResponse = generateBasicMockResponse();
+    CountDownLatch latch = new CountDownLatch(1);
+    ParseHttpClient restClient = mockBlockingParseHttpClient(mockResponse, latch);
+    ParseQuery.State mockState = mockState();
+
+    NetworkQueryController controller = new NetworkQueryController(restClient);
+    Task<List<ParseObject>> findTask = controller.findAsync(mockState, "sessionToken", true, null);
+    Task<List<ParseObject>> findTaskAgain =
+        controller.findAsync(mockState, "sessionToken", true, null);
+    // A different user doesn't share the request.
+    Task<List<ParseObject>> findTaskOther =
+        controller.findAsync(mockState, "otherSessionToken", true, null);
+    assertEquals(2, controller.inFlightCount());
+    latch.countDown();
+
+    verifyBasicParseObjects(mockResponse, ParseTaskUtils.wait(findTask), "Test");
+    verifyBasicParseObjects(mockResponse, ParseTaskUtils.wait(findTaskAgain), "Test");
+    verifyBasicParseObjects(mockResponse, ParseTaskUtils.wait(findTaskOther), "Test");
+    verify(restClient, times(2)).execute(any(ParseHttpRequest.class));
+    assertEquals(0, controller.inFlightCount());
+  }
+
+  @Test
+  public void testSharedRequestContinuesWhileAnyCallerWaits() throws Exception {
+    JSONObject mockResponse = generateBasicMockResponse();
+    CountDownLatch latch = new CountDownLatch(1);
+    ParseHttpClient restClient = mockBlockingParseHttpClient(mockResponse, latch);
+    ParseQuery.State mockState = mockState();
+
+    NetworkQueryController controller = new NetworkQueryController(restClient);
+    Task<Void>.TaskCompletionSource cts = Task.create();
+    Task<List<ParseObject>> cancelledTask =
+        controller.findAsync(mockState, "sessionToken", true, cts.getTask());
+    Task<List<ParseObject>> findTask = controller.findAsync(mockState, "sessionToken", true, null);
+    cts.setCancelled();
+    cancelledTask.waitForCompletion();
+    assertTrue(cancelledTask.isCancelled());
+    assertEquals(1, controller.inFlightCount());
+    latch.countDown();
+
+    verifyBasicParseObjects(mockResponse, ParseTaskUtils.wait(findTask), "Test");
+    verify(restClient, times(1)).execute(any(ParseHttpRequest.class));
+  }
+
+  @Test
+  public void testSharedRequestCancelledWhenAllCallersCancel() throws Exception {
+    JSONObject mockResponse = generateBasicMockResponse();
+    CountDownLatch latch = new CountDownLatch(1);
+    ParseHttpClient restClient = mockBlockingParseHttpClient(mockResponse, latch);
+    ParseQuery.State mockState = mockState();
+
+    NetworkQueryController controller = new NetworkQueryController(restClient);
+    Task<Void>.TaskCompletionSource cts = Task.create();
+    Task<Void>.TaskCompletionSource ctsAgain = Task.create();
+    Task<Integer> countTask = controller.countAsync(mockState, "sessionToken", true, cts.getTask());
+    Task<Integer> countTaskAgain =
+        controller.countAsync(mockState, "sessionToken", true, ctsAgain.getTask());
+    cts.setCancelled();
+    ctsAgain.setCancelled();
+
+    countTask.waitForCompletion();
+    countTaskAgain.waitForCompletion();
+    assertTrue(countTask.isCancelled());
+    assertTrue(countTaskAgain.isCancelled());
+    // Later callers don't join the cancelled request.
+    assertEquals(0, controller.inFlightCount());
+    latch.countDown();
+  }
+
+  //endregion
+
+  private static ParseQuery.State mockState() {
+    ParseQuery.State mockState = mock(ParseQuery.State.class);
+    when(mockState.className()).thenReturn("Test");
+    when(mockState.selectedKeys()).thenReturn(null);
+    when(mockState.constraints()).thenReturn(new ParseQuery.QueryConstraints());
+    return mockState;
+  }
+
+  // Returns a client that waits for the latch before responding.
+  private static ParseHttpClient mockBlockingParseHttpClient(
+      JSONObject content, final CountDownLatch latch) throws Exception {
+    final byte[] contentBytes = content.toString().getBytes();
+    ParseHttpClient client = mock(ParseHttpClient.class);
+    when(client.execute(any(ParseHttpRequest.class))).thenAnswer(new Answer<ParseHttpResponse>() {
+      @Override
+      public ParseHttpResponse answer(InvocationOnMock invocation) throws Throwable {
+        latch.await();
+        return new ParseHttpResponse.Builder()
+            .setContent(new ByteArrayInputStream(contentBytes))
+            .setStatusCode(200)
+            .setTotalSize(contentBytes.length)
+            .setContentType("application/json")
+            .build();
+      }
+    });
+    return client;
+  }
+
   private static JSONObject generateBasicMockResponse() throws JSONException {
     JSONObject objectJSON = new JSONObject();
     String createAtStr = "2015-08-09T22:15:13.460Z";
@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2015-present, Parse, LLC.
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree. An additional grant
+ * of patent rights can be found in the PATENTS file in the same directory.
+ */
+package com.parse;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.skyscreamer.jsonassert.JSONCompareMode;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.skyscreamer.jsonassert.JSONAssert.assertEquals;
+
+public class OfflineBinaryJSONTest {
+
+  private static JSONObject object() throws JSONException {
+    JSONObject json = new JSONObject();
+    json.put("className", "TestObject");
+    json.put("string", "é中😀 with a \0 null");
+    json.put("empty", "");
+    json.put("int", 0);
+    json.put("negative", -42);
+    json.put("long", 12345678901L);
+    json.put("min", Long.MIN_VALUE);
+    json.put("double", 1.5);
+    json.put("negativeDouble", -37.7749295);
+    json.put("true", true);
+    json.put("false", false);
+    json.put("null", JSONObject.NULL);
+    json.put("array", new JSONArray(Arrays.asList(1, "two", new JSONArray())));
+    json.put("ACL", new JSONObject().put("*", new JSONObject().put("read", true)));
+    return json;
+  }
+
+  @Test
+  public void testRoundTrip() throws Exception {
+    JSONObject json = object();
+    byte[] data = OfflineBinaryJSON.encode(json);
+
+    assertEquals(OfflineBinaryJSON.FORMAT, data[0]);
+    JSONObject decoded = OfflineBinaryJSON.decode(data);
+    assertEquals(json, decoded, JSONCompareMode.NON_EXTENSIBLE);
+    assertEquals("é中😀 with a \0 null", decoded.getString("string"));
+    assertEquals(0, decoded.get("int"));
+    assertEquals(12345678901L, decoded.get("long"));
+    assertEquals(Long.MIN_VALUE, decoded.get("min"));
+    assertEquals(1.5, decoded.get("double"));
+    assertEquals(JSONObject.NULL, decoded.get("null"));
+  }
+
+  @Test
+  public void testIsSmallerThanText() throws Exception {
+    JSONObject json = object();
+    assertTrue(OfflineBinaryJSON.encode(json).length < json.toString().getBytes("UTF-8").length);
+  }
+
+  @Test
+  public void testCanBeSearched() throws Exception {
+    byte[] data = OfflineBinaryJSON.encode(object());
+    for (byte b : data) {
+      assertTrue(b != 0);
+    }
+
+    String text = new String(data, "UTF-8");
+    assertTrue(text.contains("é中😀 with a "));
+    assertTrue(text.contains(OfflineBinaryJSON.keyText("ACL")));
+    assertTrue(text.contains(OfflineBinaryJSON.keyText("negativeDouble")));
+  }
+
+  @Test
+  public void testDecodeText() throws Exception {
+    JSONObject json = object();
+    byte[] text = (json.toString() + "\0").getBytes("UTF-8");
+
+    assertEquals(json, OfflineBinaryJSON.decode(text), JSONCompareMode.NON_EXTENSIBLE);
+  }
+
+  @Test(expected = JSONException.class)
+  public void testDecodeTruncated() throws Exception {
+    byte[] data = OfflineBinaryJSON.encode(object());
+    OfflineBinaryJSON.decode(Arrays.copyOf(data, data.length - 1));
+  }
+}
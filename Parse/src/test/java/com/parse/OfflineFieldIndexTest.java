@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2015-present, Parse, LLC.
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree. An additional grant
+ * of patent rights can be found in the PATENTS file in the same directory.
+ */
+package com.parse;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class OfflineFieldIndexTest {
+
+  @Test
+  public void testTypeOf() {
+    assertEquals(OfflineFieldIndex.TYPE_STRING, OfflineFieldIndex.typeOf("foo"));
+    assertEquals(OfflineFieldIndex.TYPE_NUMBER, OfflineFieldIndex.typeOf(5));
+    assertEquals(OfflineFieldIndex.TYPE_NUMBER, OfflineFieldIndex.typeOf(5.5));
+    assertEquals(OfflineFieldIndex.TYPE_DATE, OfflineFieldIndex.typeOf(new Date()));
+    assertEquals(OfflineFieldIndex.TYPE_BOOLEAN, OfflineFieldIndex.typeOf(false));
+    assertEquals(OfflineFieldIndex.TYPE_GEOPOINT, OfflineFieldIndex.typeOf(new ParseGeoPoint(1, 2)));
+
+    assertFalse(OfflineFieldIndex.isIndexable(null));
+    assertFalse(OfflineFieldIndex.isIndexable(JSONObject.NULL));
+    assertFalse(OfflineFieldIndex.isIndexable(Double.NaN));
+    assertFalse(OfflineFieldIndex.isIndexable(ParseObject.createWithoutData("Child", "abc")));
+  }
+
+  @Test
+  public void testToStoredValue() {
+    assertEquals("foo", OfflineFieldIndex.toStoredValue("foo"));
+    assertEquals(5L, OfflineFieldIndex.toStoredValue(5));
+    assertEquals(5.5, OfflineFieldIndex.toStoredValue(5.5f));
+    assertEquals(1000L, OfflineFieldIndex.toStoredValue(new Date(1000)));
+    assertEquals(1L, OfflineFieldIndex.toStoredValue(true));
+    assertEquals("u4pruydqqvj8",
+        OfflineFieldIndex.toStoredValue(new ParseGeoPoint(57.64911, 10.40744)));
+  }
+
+  @Test
+  public void testTokenize() {
+    assertEquals(Arrays.asList("hello", "w0rld", "caf\u00e9", "x"),
+        OfflineFieldIndex.tokenize("Hello, W0RLD! caf\u00e9_x"));
+    assertTrue(OfflineFieldIndex.tokenize(" -- ").isEmpty());
+
+    assertEquals(Arrays.asList("foo*", "bar"), OfflineFieldIndex.searchTerms("Foo* \"bar\" *"));
+  }
+
+  @Test
+  public void testTextValuesOf() {
+    assertEquals(Arrays.asList("a", "b"),
+        OfflineFieldIndex.textValuesOf(Arrays.asList("a", 1, "b")));
+    assertEquals(Arrays.asList("c"), OfflineFieldIndex.textValuesOf("c"));
+    assertTrue(OfflineFieldIndex.textValuesOf(5).isEmpty());
+  }
+
+  @Test
+  public void testGeohash() {
+    assertEquals("ezs42", OfflineFieldIndex.geohash(42.6, -5.6, 5));
+    assertEquals("zzzz", OfflineFieldIndex.geohash(90, 180, 4));
+    assertEquals("0000", OfflineFieldIndex.geohash(-90, -180, 4));
+
+    // A cell of a lower precision is a prefix of the cells within it.
+    String hash =
+        OfflineFieldIndex.geohash(-33.8688, 151.2093, OfflineFieldIndex.GEOHASH_PRECISION);
+    for (int precision = 1; precision < OfflineFieldIndex.GEOHASH_PRECISION; precision++) {
+      long row = OfflineFieldIndex.latitudeCell(-33.8688, precision);
+      long column = OfflineFieldIndex.longitudeCell(151.2093, precision);
+      assertEquals(hash.substring(0, precision),
+          OfflineFieldIndex.cellGeohash(row, column, precision));
+    }
+  }
+
+  @Test
+  public void testPlaceholder() {
+    assertEquals("CAST(? AS NUMERIC)", OfflineFieldIndex.placeholder(OfflineFieldIndex.TYPE_NUMBER));
+    assertEquals("CAST(? AS INTEGER)", OfflineFieldIndex.placeholder(OfflineFieldIndex.TYPE_DATE));
+    assertEquals("?", OfflineFieldIndex.placeholder(OfflineFieldIndex.TYPE_STRING));
+  }
+
+  @Test
+  public void testValuesOfArray() {
+    List<Object> values = OfflineFieldIndex.valuesOf(Arrays.asList("a", null, 1));
+    assertEquals(Arrays.<Object>asList("a", 1), values);
+
+    values = OfflineFieldIndex.valuesOf(new JSONArray(Arrays.asList("b", true)));
+    assertEquals(Arrays.<Object>asList("b", true), values);
+
+    assertTrue(OfflineFieldIndex.valuesOf(null).isEmpty());
+  }
+
+  @Test
+  public void testIsSortable() {
+    assertTrue(OfflineFieldIndex.isSortable(null));
+    assertTrue(OfflineFieldIndex.isSortable(JSONObject.NULL));
+    assertTrue(OfflineFieldIndex.isSortable(5));
+    assertTrue(OfflineFieldIndex.isSortable("foo\uFFFD"));
+    assertTrue(OfflineFieldIndex.isSortable(new Date()));
+
+    assertFalse(OfflineFieldIndex.isSortable("\uD83D\uDE00"));
+    assertFalse(OfflineFieldIndex.isSortable(true));
+    assertFalse(OfflineFieldIndex.isSortable(Double.NaN));
+    assertFalse(OfflineFieldIndex.isSortable(new ParseGeoPoint(1, 2)));
+    assertFalse(OfflineFieldIndex.isSortable(Arrays.asList(1)));
+    assertFalse(OfflineFieldIndex.isSortable(new JSONArray()));
+    assertFalse(OfflineFieldIndex.isSortable(ParseObject.createWithoutData("Child", "abc")));
+  }
+}
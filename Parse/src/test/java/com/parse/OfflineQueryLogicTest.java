@@ -23,14 +23,18 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.regex.Pattern;
 
 import bolts.Task;
 
 import static com.parse.ParseMatchers.hasParseErrorCode;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyListOf;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
@@ -242,6 +246,102 @@ public class OfflineQueryLogicTest {
     assertFalse(matches(logic, query, objectB));
   }
 
+  @Test
+  public void testMatcherWithoutSubqueriesIsSynchronous() throws Exception {
+    ParseQuery.State<ParseObject> query = ParseQuery.State.Builder.or(Arrays.asList(
+        new ParseQuery.State.Builder<>("TestObject")
+            .whereEqualTo("value", "A")
+            .addCondition("count", "$gt", 1),
+        new ParseQuery.State.Builder<>("TestObject")
+            .addCondition("name", "$regex", "^b")
+    )).build();
+
+    OfflineQueryLogic logic = new OfflineQueryLogic(null);
+    assertTrue(logic.createMatcher(query, null) instanceof OfflineQueryLogic.SyncConstraintMatcher);
+
+    ParseQuery.State<ParseObject> subquery = new ParseQuery.State.Builder<>("TestObject")
+        .whereMatchesQuery("child", new ParseQuery.State.Builder<>("TestObject"))
+        .build();
+    assertFalse(
+        logic.createMatcher(subquery, null) instanceof OfflineQueryLogic.SyncConstraintMatcher);
+  }
+
+  @Test
+  public void testMatchesInQueryAndSelectWithHashedResults() throws Exception {
+    ParseObject child = new ParseObject("Child");
+    child.setObjectId("child");
+    ParseObject other = new ParseObject("Child");
+    other.setObjectId("other");
+    ParseObject result = new ParseObject("Child");
+    result.put("number", 2L);
+    result.put("names", Arrays.asList("a", "b"));
+    OfflineStore store = mock(OfflineStore.class);
+    when(store.findAsync(
+        any(ParseQuery.State.class),
+        any(ParseUser.class),
+        any(ParsePin.class),
+        any(ParseSQLiteDatabase.class))).thenReturn(Task.forResult(Arrays.asList(child, result)));
+    OfflineQueryLogic logic = new OfflineQueryLogic(store);
+
+    ParseQuery.State<ParseObject> inQuery = new ParseQuery.State.Builder<>("TestObject")
+        .whereMatchesQuery("child", new ParseQuery.State.Builder<>("Child"))
+        .build();
+    ParseObject object = new ParseObject("TestObject");
+    object.put("child", child);
+    assertTrue(matches(logic, inQuery, object));
+    object.put("child", Arrays.asList(other, child));
+    assertTrue(matches(logic, inQuery, object));
+    object.put("child", other);
+    assertFalse(matches(logic, inQuery, object));
+
+    // Numbers of different types are still equal, and items of arrays can be selected.
+    ParseQuery.State<ParseObject> select = new ParseQuery.State.Builder<>("TestObject")
+        .whereMatchesKeyInQuery("value", "number", new ParseQuery.State.Builder<>("Child"))
+        .build();
+    object.put("value", 2.0);
+    assertTrue(matches(logic, select, object));
+    object.put("value", 3);
+    assertFalse(matches(logic, select, object));
+    select = new ParseQuery.State.Builder<>("TestObject")
+        .whereMatchesKeyInQuery("value", "names", new ParseQuery.State.Builder<>("Child"))
+        .build();
+    object.put("value", "b");
+    assertTrue(matches(logic, select, object));
+    object.put("value", "c");
+    assertFalse(matches(logic, select, object));
+  }
+
+  @Test
+  public void testIdenticalSubqueriesAreRunOnce() throws Exception {
+    OfflineStore store = mock(OfflineStore.class);
+    when(store.findAsync(
+        any(ParseQuery.State.class),
+        any(ParseUser.class),
+        any(ParsePin.class),
+        any(ParseSQLiteDatabase.class)))
+        .thenReturn(Task.forResult(Collections.<ParseObject>emptyList()));
+    OfflineQueryLogic logic = new OfflineQueryLogic(store);
+
+    ParseQuery.State<ParseObject> query = ParseQuery.State.Builder.or(Arrays.asList(
+        new ParseQuery.State.Builder<>("TestObject")
+            .whereMatchesQuery("child", new ParseQuery.State.Builder<>("Child")
+                .whereEqualTo("name", "foo")),
+        new ParseQuery.State.Builder<>("TestObject")
+            .whereMatchesKeyInQuery("key", "objectId", new ParseQuery.State.Builder<>("Child")
+                .whereEqualTo("name", "foo"))
+    )).build();
+    ParseObject object = new ParseObject("TestObject");
+    object.put("child", new ParseObject("Child"));
+    object.put("key", "bar");
+    assertFalse(matches(logic, query, object));
+
+    verify(store, times(1)).findAsync(
+        any(ParseQuery.State.class),
+        any(ParseUser.class),
+        any(ParsePin.class),
+        any(ParseSQLiteDatabase.class));
+  }
+
   // TODO(grantland): testRelationMatcher()
 
   //endregion
@@ -352,6 +452,186 @@ public class OfflineQueryLogicTest {
     assertFalse(matches(logic, query, object));
   }
 
+  @Test
+  public void testMatchesInWithArrays() throws Exception {
+    ParseQuery.State<ParseObject> query = new ParseQuery.State.Builder<>("TestObject")
+        .addCondition("foo", "$in", Arrays.asList("bar", "baz"))
+        .build();
+    OfflineQueryLogic logic = new OfflineQueryLogic(null);
+
+    ParseObject object = new ParseObject("TestObject");
+    object.put("foo", Arrays.asList("qux", "baz"));
+    assertTrue(matches(logic, query, object));
+    object.put("foo", new JSONArray(Arrays.asList("qux", "baz")));
+    assertTrue(matches(logic, query, object));
+    object.put("foo", Arrays.asList("qux", 1));
+    assertFalse(matches(logic, query, object));
+
+    query = new ParseQuery.State.Builder<>("TestObject")
+        .addCondition("foo", "$nin", Arrays.asList("bar", "baz"))
+        .build();
+    assertTrue(matches(logic, query, object));
+    object.put("foo", "bar");
+    assertFalse(matches(logic, query, object));
+  }
+
+  @Test
+  public void testMatchesComparisons() throws Exception {
+    ParseObject object = new ParseObject("TestObject");
+    object.put("number", 5);
+    object.put("date", new Date(1000));
+    OfflineQueryLogic logic = new OfflineQueryLogic(null);
+
+    ParseQuery.State<ParseObject> query = new ParseQuery.State.Builder<>("TestObject")
+        .addCondition("number", "$gt", 4.5)
+        .addCondition("number", "$lte", 5)
+        .addCondition("date", "$gte", new Date(1000))
+        .addCondition("date", "$lt", new Date(2000))
+        .build();
+    assertTrue(matches(logic, query, object));
+
+    query = new ParseQuery.State.Builder<>("TestObject")
+        .addCondition("number", "$lt", 5.0)
+        .build();
+    assertFalse(matches(logic, query, object));
+
+    query = new ParseQuery.State.Builder<>("TestObject")
+        .addCondition("date", "$gt", new Date(1000))
+        .build();
+    assertFalse(matches(logic, query, object));
+  }
+
+  @Test
+  public void testMatchesRegex() throws Exception {
+    ParseObject object = new ParseObject("TestObject");
+    object.put("foo", "Bar");
+    OfflineQueryLogic logic = new OfflineQueryLogic(null);
+
+    ParseQuery.State<ParseObject> query = new ParseQuery.State.Builder<>("TestObject")
+        .addCondition("foo", "$regex", "^b")
+        .build();
+    assertFalse(matches(logic, query, object));
+
+    query = new ParseQuery.State.Builder<>("TestObject")
+        .addCondition("foo", "$regex", "^b")
+        .addCondition("foo", "$options", "i")
+        .build();
+    assertTrue(matches(logic, query, object));
+  }
+
+  @Test
+  public void testMatchesQuotedRegexes() throws Exception {
+    ParseObject object = new ParseObject("TestObject");
+    object.put("foo", "a.b\n");
+    OfflineQueryLogic logic = new OfflineQueryLogic(null);
+
+    ParseQuery<ParseObject> query = new ParseQuery<>("TestObject").whereStartsWith("foo", "a.");
+    assertTrue(matches(logic, query.getBuilder().build(), object));
+    query = new ParseQuery<>("TestObject").whereStartsWith("foo", "ab");
+    assertFalse(matches(logic, query.getBuilder().build(), object));
+
+    // $ also matches before a final line terminator
+    query = new ParseQuery<>("TestObject").whereEndsWith("foo", ".b");
+    assertTrue(matches(logic, query.getBuilder().build(), object));
+    query = new ParseQuery<>("TestObject").whereEndsWith("foo", "b\n");
+    assertTrue(matches(logic, query.getBuilder().build(), object));
+    query = new ParseQuery<>("TestObject").whereEndsWith("foo", "a");
+    assertFalse(matches(logic, query.getBuilder().build(), object));
+
+    query = new ParseQuery<>("TestObject").whereContains("foo", ".");
+    assertTrue(matches(logic, query.getBuilder().build(), object));
+    query = new ParseQuery<>("TestObject").whereContains("foo", "\\E");
+    assertFalse(matches(logic, query.getBuilder().build(), object));
+
+    object.put("foo", "x\\Ey");
+    assertTrue(matches(logic, query.getBuilder().build(), object));
+  }
+
+  @Test
+  public void testCompileRegexIsCached() throws Exception {
+    Pattern pattern = OfflineQueryLogic.compileRegex("^a+", "i");
+    assertSame(pattern, OfflineQueryLogic.compileRegex("^a+", "i"));
+    assertNotSame(pattern, OfflineQueryLogic.compileRegex("^a+", null));
+  }
+
+  @Test
+  public void testMatchesRegexInvalidOptions() throws Exception {
+    ParseQuery.State<ParseObject> query = new ParseQuery.State.Builder<>("TestObject")
+        .addCondition("foo", "$regex", "^b")
+        .addCondition("foo", "$options", "q")
+        .build();
+    OfflineQueryLogic logic = new OfflineQueryLogic(null);
+
+    // The options are only checked when there's a value to match.
+    ParseObject object = new ParseObject("TestObject");
+    assertFalse(matches(logic, query, object));
+
+    thrown.expect(ParseException.class);
+    thrown.expect(hasParseErrorCode(ParseException.INVALID_QUERY));
+    thrown.expectMessage("Invalid regex options: q");
+    object.put("foo", "bar");
+    matches(logic, query, object);
+  }
+
+  @Test
+  public void testMatchesFullText() throws Exception {
+    ParseObject object = new ParseObject("TestObject");
+    object.put("title", "The Quick brown fox");
+    object.put("tags", Arrays.asList("lazy dog", "sleepy cat"));
+    OfflineQueryLogic logic = new OfflineQueryLogic(null);
+
+    ParseQuery.State<ParseObject> query = new ParseQuery.State.Builder<>("TestObject")
+        .whereFullText("title", "fox QUICK")
+        .build();
+    assertTrue(matches(logic, query, object));
+
+    query = new ParseQuery.State.Builder<>("TestObject")
+        .whereFullText("title", "qui")
+        .build();
+    assertFalse(matches(logic, query, object));
+
+    query = new ParseQuery.State.Builder<>("TestObject")
+        .whereFullText("title", "qui* bro*")
+        .build();
+    assertTrue(matches(logic, query, object));
+
+    // Every word has to be in the same item of an array.
+    query = new ParseQuery.State.Builder<>("TestObject")
+        .whereFullText("tags", "sleepy cat")
+        .build();
+    assertTrue(matches(logic, query, object));
+    query = new ParseQuery.State.Builder<>("TestObject")
+        .whereFullText("tags", "lazy cat")
+        .build();
+    assertFalse(matches(logic, query, object));
+
+    query = new ParseQuery.State.Builder<>("TestObject")
+        .whereFullText("title", "!")
+        .build();
+    assertFalse(matches(logic, query, object));
+  }
+
+  @Test
+  public void testMatchesDottedKey() throws Exception {
+    Map<String, Object> inner = new HashMap<>();
+    inner.put("baz", "qux");
+    Map<String, Object> outer = new HashMap<>();
+    outer.put("bar", inner);
+    ParseObject object = new ParseObject("TestObject");
+    object.put("foo", outer);
+    OfflineQueryLogic logic = new OfflineQueryLogic(null);
+
+    ParseQuery.State<ParseObject> query = new ParseQuery.State.Builder<>("TestObject")
+        .whereEqualTo("foo.bar.baz", "qux")
+        .build();
+    assertTrue(matches(logic, query, object));
+
+    query = new ParseQuery.State.Builder<>("TestObject")
+        .whereEqualTo("foo.missing.baz", "qux")
+        .build();
+    assertFalse(matches(logic, query, object));
+  }
+
   @Test
   public void testMatchesAll() throws Exception {
     ParseObject object = new ParseObject("TestObject");
@@ -803,6 +1083,67 @@ public class OfflineQueryLogicTest {
     assertEquals(1, results.get(2).getInt("id"));
   }
 
+  @Test
+  public void testQuerySortDates() throws ParseException {
+    ParseQuery.State<ParseObject> query = new ParseQuery.State.Builder<>("TestObject")
+        .addDescendingOrder("key")
+        .build();
+
+    List<ParseObject> results = generateParseObjects("key", new Object[]{
+        new Date(2000),
+        null,
+        new Date(3000),
+        new Date(1000)
+    });
+
+    OfflineQueryLogic.sort(results, query);
+
+    assertEquals(2, results.get(0).getInt("id"));
+    assertEquals(0, results.get(1).getInt("id"));
+    assertEquals(3, results.get(2).getInt("id"));
+    assertEquals(1, results.get(3).getInt("id"));
+  }
+
+  @Test
+  public void testQuerySortMultipleKeysIsStable() throws ParseException {
+    ParseQuery.State<ParseObject> query = new ParseQuery.State.Builder<>("TestObject")
+        .addAscendingOrder("key")
+        .addDescendingOrder("other")
+        .build();
+
+    List<ParseObject> results = generateParseObjects("key", new Object[]{ 2, 1, 2, 1, 2 });
+    results.get(0).put("other", 1.5);
+    results.get(2).put("other", 2.5);
+
+    OfflineQueryLogic.sort(results, query);
+
+    int[] expected = { 1, 3, 2, 0, 4 };
+    for (int i = 0; i < expected.length; i++) {
+      assertEquals(expected[i], results.get(i).getInt("id"));
+    }
+  }
+
+  @Test
+  public void testQuerySortWithMaxResults() throws ParseException {
+    ParseQuery.State<ParseObject> query = new ParseQuery.State.Builder<>("TestObject")
+        .addAscendingOrder("key")
+        .build();
+
+    List<ParseObject> results = generateParseObjects("key", new Object[]{
+        5, 3, 8, 1, 3, 9, 0
+    });
+
+    OfflineQueryLogic.sort(results, query, 3);
+
+    assertEquals(3, results.size());
+    assertEquals(6, results.get(0).getInt("id"));
+    assertEquals(3, results.get(1).getInt("id"));
+    assertEquals(1, results.get(2).getInt("id"));
+
+    OfflineQueryLogic.sort(results, query, 0);
+    assertEquals(0, results.size());
+  }
+
   @Test
   public void testQuerySortDifferentTypes() throws ParseException {
     ParseQuery.State<ParseObject> query = new ParseQuery.State.Builder<>("TestObject")
@@ -825,8 +1166,8 @@ public class OfflineQueryLogicTest {
   @Test
   public void testFetchIncludesParseObject() throws ParseException {
     OfflineStore store = mock(OfflineStore.class);
-    when(store.fetchLocallyAsync(any(ParseObject.class), any(ParseSQLiteDatabase.class)))
-        .thenReturn(Task.<ParseObject>forResult(null));
+    when(store.fetchAllLocallyAsync(anyListOf(ParseObject.class), any(ParseSQLiteDatabase.class)))
+        .thenReturn(Task.<Void>forResult(null));
 
     OfflineQueryLogic logic = new OfflineQueryLogic(store);
     ParseSQLiteDatabase db = mock(ParseSQLiteDatabase.class);
@@ -839,17 +1180,49 @@ public class OfflineQueryLogicTest {
     ParseObject unfetchedObject = new ParseObject("TestObject");
     object.put("foo", unfetchedObject);
 
-    ParseTaskUtils.wait(logic.fetchIncludesAsync(object, query, db));
-    verify(store).fetchLocallyAsync(object, db);
-    verify(store).fetchLocallyAsync(unfetchedObject, db);
+    ParseTaskUtils.wait(logic.fetchIncludesAsync(Collections.singletonList(object), query, db));
+    verify(store).fetchAllLocallyAsync(Collections.singletonList(object), db);
+    verify(store).fetchAllLocallyAsync(Collections.singletonList(unfetchedObject), db);
+    verifyNoMoreInteractions(store);
+  }
+
+  @Test
+  public void testFetchIncludesBatchesObjects() throws ParseException {
+    OfflineStore store = mock(OfflineStore.class);
+    when(store.fetchAllLocallyAsync(anyListOf(ParseObject.class), any(ParseSQLiteDatabase.class)))
+        .thenReturn(Task.<Void>forResult(null));
+
+    OfflineQueryLogic logic = new OfflineQueryLogic(store);
+    ParseSQLiteDatabase db = mock(ParseSQLiteDatabase.class);
+
+    ParseQuery.State<ParseObject> query = new ParseQuery.State.Builder<>("TestObject")
+        .include("foo.bar")
+        .build();
+
+    ParseObject sharedObject = new ParseObject("TestObject");
+    ParseObject otherObject = new ParseObject("TestObject");
+    ParseObject includedObject = new ParseObject("TestObject");
+    sharedObject.put("bar", includedObject);
+    otherObject.put("bar", includedObject);
+    List<ParseObject> objects = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      ParseObject object = new ParseObject("TestObject");
+      object.put("foo", i == 0 ? otherObject : sharedObject);
+      objects.add(object);
+    }
+
+    ParseTaskUtils.wait(logic.fetchIncludesAsync(objects, query, db));
+    verify(store).fetchAllLocallyAsync(objects, db);
+    verify(store).fetchAllLocallyAsync(Arrays.asList(otherObject, sharedObject), db);
+    verify(store).fetchAllLocallyAsync(Collections.singletonList(includedObject), db);
     verifyNoMoreInteractions(store);
   }
 
   @Test
   public void testFetchIncludesCollection() throws ParseException {
     OfflineStore store = mock(OfflineStore.class);
-    when(store.fetchLocallyAsync(any(ParseObject.class), any(ParseSQLiteDatabase.class)))
-        .thenReturn(Task.<ParseObject>forResult(null));
+    when(store.fetchAllLocallyAsync(anyListOf(ParseObject.class), any(ParseSQLiteDatabase.class)))
+        .thenReturn(Task.<Void>forResult(null));
 
     OfflineQueryLogic logic = new OfflineQueryLogic(store);
     ParseSQLiteDatabase db = mock(ParseSQLiteDatabase.class);
@@ -864,17 +1237,17 @@ public class OfflineQueryLogicTest {
     objects.add(unfetchedObject);
     when(object.get("foo")).thenReturn(objects);
 
-    ParseTaskUtils.wait(logic.fetchIncludesAsync(object, query, db));
-    verify(store).fetchLocallyAsync(object, db);
-    verify(store).fetchLocallyAsync(unfetchedObject, db);
+    ParseTaskUtils.wait(logic.fetchIncludesAsync(Collections.singletonList(object), query, db));
+    verify(store).fetchAllLocallyAsync(Collections.singletonList(object), db);
+    verify(store).fetchAllLocallyAsync(Collections.singletonList(unfetchedObject), db);
     verifyNoMoreInteractions(store);
   }
 
   @Test
   public void testFetchIncludesJSONArray() throws ParseException {
     OfflineStore store = mock(OfflineStore.class);
-    when(store.fetchLocallyAsync(any(ParseObject.class), any(ParseSQLiteDatabase.class)))
-        .thenReturn(Task.<ParseObject>forResult(null));
+    when(store.fetchAllLocallyAsync(anyListOf(ParseObject.class), any(ParseSQLiteDatabase.class)))
+        .thenReturn(Task.<Void>forResult(null));
 
     OfflineQueryLogic logic = new OfflineQueryLogic(store);
     ParseSQLiteDatabase db = mock(ParseSQLiteDatabase.class);
@@ -889,17 +1262,17 @@ public class OfflineQueryLogicTest {
     objects.put(unfetchedObject);
     when(object.get("foo")).thenReturn(objects);
 
-    ParseTaskUtils.wait(logic.fetchIncludesAsync(object, query, db));
-    verify(store).fetchLocallyAsync(object, db);
-    verify(store).fetchLocallyAsync(unfetchedObject, db);
+    ParseTaskUtils.wait(logic.fetchIncludesAsync(Collections.singletonList(object), query, db));
+    verify(store).fetchAllLocallyAsync(Collections.singletonList(object), db);
+    verify(store).fetchAllLocallyAsync(Collections.singletonList(unfetchedObject), db);
     verifyNoMoreInteractions(store);
   }
 
   @Test
   public void testFetchIncludesMap() throws ParseException {
     OfflineStore store = mock(OfflineStore.class);
-    when(store.fetchLocallyAsync(any(ParseObject.class), any(ParseSQLiteDatabase.class)))
-        .thenReturn(Task.<ParseObject>forResult(null));
+    when(store.fetchAllLocallyAsync(anyListOf(ParseObject.class), any(ParseSQLiteDatabase.class)))
+        .thenReturn(Task.<Void>forResult(null));
 
     OfflineQueryLogic logic = new OfflineQueryLogic(store);
     ParseSQLiteDatabase db = mock(ParseSQLiteDatabase.class);
@@ -914,17 +1287,17 @@ public class OfflineQueryLogicTest {
     objects.put("bar", unfetchedObject);
     when(object.get("foo")).thenReturn(objects);
 
-    ParseTaskUtils.wait(logic.fetchIncludesAsync(object, query, db));
-    verify(store).fetchLocallyAsync(object, db);
-    verify(store).fetchLocallyAsync(unfetchedObject, db);
+    ParseTaskUtils.wait(logic.fetchIncludesAsync(Collections.singletonList(object), query, db));
+    verify(store).fetchAllLocallyAsync(Collections.singletonList(object), db);
+    verify(store).fetchAllLocallyAsync(Collections.singletonList(unfetchedObject), db);
     verifyNoMoreInteractions(store);
   }
 
   @Test
   public void testFetchIncludesJSONObject() throws Exception {
     OfflineStore store = mock(OfflineStore.class);
-    when(store.fetchLocallyAsync(any(ParseObject.class), any(ParseSQLiteDatabase.class)))
-        .thenReturn(Task.<ParseObject>forResult(null));
+    when(store.fetchAllLocallyAsync(anyListOf(ParseObject.class), any(ParseSQLiteDatabase.class)))
+        .thenReturn(Task.<Void>forResult(null));
 
     OfflineQueryLogic logic = new OfflineQueryLogic(store);
     ParseSQLiteDatabase db = mock(ParseSQLiteDatabase.class);
@@ -939,17 +1312,17 @@ public class OfflineQueryLogicTest {
     objects.put("bar", unfetchedObject);
     when(object.get("foo")).thenReturn(objects);
 
-    ParseTaskUtils.wait(logic.fetchIncludesAsync(object, query, db));
-    verify(store).fetchLocallyAsync(object, db);
-    verify(store).fetchLocallyAsync(unfetchedObject, db);
+    ParseTaskUtils.wait(logic.fetchIncludesAsync(Collections.singletonList(object), query, db));
+    verify(store).fetchAllLocallyAsync(Collections.singletonList(object), db);
+    verify(store).fetchAllLocallyAsync(Collections.singletonList(unfetchedObject), db);
     verifyNoMoreInteractions(store);
   }
 
   @Test
   public void testFetchIncludesNull() throws ParseException {
     OfflineStore store = mock(OfflineStore.class);
-    when(store.fetchLocallyAsync(any(ParseObject.class), any(ParseSQLiteDatabase.class)))
-        .thenReturn(Task.<ParseObject>forResult(null));
+    when(store.fetchAllLocallyAsync(anyListOf(ParseObject.class), any(ParseSQLiteDatabase.class)))
+        .thenReturn(Task.<Void>forResult(null));
 
     OfflineQueryLogic logic = new OfflineQueryLogic(store);
 
@@ -960,17 +1333,17 @@ public class OfflineQueryLogicTest {
     ParseObject object = new ParseObject("TestObject");
     object.put("foo", JSONObject.NULL);
 
-    ParseTaskUtils.wait(logic.fetchIncludesAsync(object, query, null));
+    ParseTaskUtils.wait(logic.fetchIncludesAsync(Collections.singletonList(object), query, null));
     // only itself
     verify(store, times(1))
-        .fetchLocallyAsync(any(ParseObject.class), any(ParseSQLiteDatabase.class));
+        .fetchAllLocallyAsync(anyListOf(ParseObject.class), any(ParseSQLiteDatabase.class));
   }
 
   @Test
   public void testFetchIncludesNonParseObject() throws ParseException {
     OfflineStore store = mock(OfflineStore.class);
-    when(store.fetchLocallyAsync(any(ParseObject.class), any(ParseSQLiteDatabase.class)))
-        .thenReturn(Task.<ParseObject>forResult(null));
+    when(store.fetchAllLocallyAsync(anyListOf(ParseObject.class), any(ParseSQLiteDatabase.class)))
+        .thenReturn(Task.<Void>forResult(null));
 
     OfflineQueryLogic logic = new OfflineQueryLogic(store);
 
@@ -982,17 +1355,17 @@ public class OfflineQueryLogicTest {
     object.put("foo", 1);
 
     thrown.expect(ParseException.class);
-    ParseTaskUtils.wait(logic.fetchIncludesAsync(object, query, null));
+    ParseTaskUtils.wait(logic.fetchIncludesAsync(Collections.singletonList(object), query, null));
     // only itself
     verify(store, times(1))
-        .fetchLocallyAsync(any(ParseObject.class), any(ParseSQLiteDatabase.class));
+        .fetchAllLocallyAsync(anyListOf(ParseObject.class), any(ParseSQLiteDatabase.class));
   }
 
   @Test
   public void testFetchIncludesDoesNotExist() throws ParseException {
     OfflineStore store = mock(OfflineStore.class);
-    when(store.fetchLocallyAsync(any(ParseObject.class), any(ParseSQLiteDatabase.class)))
-        .thenReturn(Task.<ParseObject>forResult(null));
+    when(store.fetchAllLocallyAsync(anyListOf(ParseObject.class), any(ParseSQLiteDatabase.class)))
+        .thenReturn(Task.<Void>forResult(null));
 
     OfflineQueryLogic logic = new OfflineQueryLogic(store);
 
@@ -1002,17 +1375,17 @@ public class OfflineQueryLogicTest {
 
     ParseObject object = new ParseObject("TestObject");
 
-    ParseTaskUtils.wait(logic.fetchIncludesAsync(object, query, null));
+    ParseTaskUtils.wait(logic.fetchIncludesAsync(Collections.singletonList(object), query, null));
     // only itself
     verify(store, times(1))
-        .fetchLocallyAsync(any(ParseObject.class), any(ParseSQLiteDatabase.class));
+        .fetchAllLocallyAsync(anyListOf(ParseObject.class), any(ParseSQLiteDatabase.class));
   }
 
   @Test
   public void testFetchIncludesNestedNull() throws Exception {
     OfflineStore store = mock(OfflineStore.class);
-    when(store.fetchLocallyAsync(any(ParseObject.class), any(ParseSQLiteDatabase.class)))
-        .thenReturn(Task.<ParseObject>forResult(null));
+    when(store.fetchAllLocallyAsync(anyListOf(ParseObject.class), any(ParseSQLiteDatabase.class)))
+        .thenReturn(Task.<Void>forResult(null));
 
     OfflineQueryLogic logic = new OfflineQueryLogic(store);
 
@@ -1023,17 +1396,17 @@ public class OfflineQueryLogicTest {
     ParseObject object = new ParseObject("TestObject");
     object.put("foo", JSONObject.NULL);
 
-    ParseTaskUtils.wait(logic.fetchIncludesAsync(object, query, null));
+    ParseTaskUtils.wait(logic.fetchIncludesAsync(Collections.singletonList(object), query, null));
     // only itself
     verify(store, times(1))
-        .fetchLocallyAsync(any(ParseObject.class), any(ParseSQLiteDatabase.class));
+        .fetchAllLocallyAsync(anyListOf(ParseObject.class), any(ParseSQLiteDatabase.class));
   }
 
   @Test
   public void testFetchIncludesNestedNonParseObject() throws Exception {
     OfflineStore store = mock(OfflineStore.class);
-    when(store.fetchLocallyAsync(any(ParseObject.class), any(ParseSQLiteDatabase.class)))
-        .thenReturn(Task.<ParseObject>forResult(null));
+    when(store.fetchAllLocallyAsync(anyListOf(ParseObject.class), any(ParseSQLiteDatabase.class)))
+        .thenReturn(Task.<Void>forResult(null));
 
     OfflineQueryLogic logic = new OfflineQueryLogic(store);
 
@@ -1045,10 +1418,10 @@ public class OfflineQueryLogicTest {
     object.put("foo", 1);
 
     thrown.expect(IllegalStateException.class);
-    ParseTaskUtils.wait(logic.fetchIncludesAsync(object, query, null));
+    ParseTaskUtils.wait(logic.fetchIncludesAsync(Collections.singletonList(object), query, null));
     // only itself
     verify(store, times(1))
-        .fetchLocallyAsync(any(ParseObject.class), any(ParseSQLiteDatabase.class));
+        .fetchAllLocallyAsync(anyListOf(ParseObject.class), any(ParseSQLiteDatabase.class));
   }
 
   //endregion
@@ -0,0 +1,444 @@
+/*
+ * Copyright (c) 2015-present, Parse, LLC.
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree. An additional grant
+ * of patent rights can be found in the PATENTS file in the same directory.
+ */
+package com.parse;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class OfflineQueryPlannerTest {
+
+  @Test
+  public void testPlanWithNoConstraints() {
+    ParseQuery.State<ParseObject> query = new ParseQuery.State.Builder<>("TestObject")
+        .build();
+
+    OfflineQueryPlanner.Plan plan = OfflineQueryPlanner.plan(query);
+    assertNull(plan.selection());
+    assertEquals(0, plan.selectionArgs().length);
+    assertNull(plan.orderBy());
+    assertTrue(plan.isExact());
+  }
+
+  @Test
+  public void testPlanObjectIdEquals() {
+    ParseQuery.State<ParseObject> query = new ParseQuery.State.Builder<>("TestObject")
+        .whereEqualTo("objectId", "abc")
+        .build();
+
+    OfflineQueryPlanner.Plan plan = OfflineQueryPlanner.plan(query);
+    assertEquals("objectId=?", plan.selection());
+    assertArrayEquals(new String[] { "abc" }, plan.selectionArgs());
+    assertTrue(plan.isExact());
+  }
+
+  @Test
+  public void testPlanObjectIdIn() {
+    ParseQuery.State<ParseObject> query = new ParseQuery.State.Builder<>("TestObject")
+        .addCondition("objectId", "$in", Arrays.asList("a", "b"))
+        .build();
+
+    OfflineQueryPlanner.Plan plan = OfflineQueryPlanner.plan(query);
+    assertEquals("objectId IN (?,?)", plan.selection());
+    assertArrayEquals(new String[] { "a", "b" }, plan.selectionArgs());
+    assertTrue(plan.isExact());
+  }
+
+  @Test
+  public void testPlanObjectIdNotIn() {
+    ParseQuery.State<ParseObject> query = new ParseQuery.State.Builder<>("TestObject")
+        .addCondition("objectId", "$nin", Collections.singletonList("a"))
+        .build();
+
+    OfflineQueryPlanner.Plan plan = OfflineQueryPlanner.plan(query);
+    assertEquals("(objectId IS NULL OR objectId NOT IN (?))", plan.selection());
+    assertTrue(plan.isExact());
+  }
+
+  @Test
+  public void testPlanStringEqualsIsPrefilter() {
+    ParseQuery.State<ParseObject> query = new ParseQuery.State.Builder<>("TestObject")
+        .whereEqualTo("name", "50%_off")
+        .build();
+
+    OfflineQueryPlanner.Plan plan = OfflineQueryPlanner.plan(query);
+    assertEquals("CASE WHEN typeof(json)='blob' THEN json LIKE ? ESCAPE '\\'"
+        + " ELSE json LIKE ? ESCAPE '\\' END", plan.selection());
+    assertArrayEquals(new String[] { "%50\\%\\_off%", "%\"50\\%\\_off\"%" },
+        plan.selectionArgs());
+    assertFalse(plan.isExact());
+  }
+
+  @Test
+  public void testPlanNumberEqualsIsNotPushedDown() {
+    ParseQuery.State<ParseObject> query = new ParseQuery.State.Builder<>("TestObject")
+        .whereEqualTo("count", 5)
+        .build();
+
+    OfflineQueryPlanner.Plan plan = OfflineQueryPlanner.plan(query);
+    assertNull(plan.selection());
+    assertFalse(plan.isExact());
+  }
+
+  @Test
+  public void testPlanPointerEqualsIsNotPushedDown() {
+    // The parent can still point to the child by its local uuid.
+    ParseQuery.State<ParseObject> query = new ParseQuery.State.Builder<>("TestObject")
+        .whereEqualTo("child", ParseObject.createWithoutData("Child", "abc"))
+        .build();
+
+    OfflineQueryPlanner.Plan plan = OfflineQueryPlanner.plan(query);
+    assertNull(plan.selection());
+    assertFalse(plan.isExact());
+  }
+
+  @Test
+  public void testPlanAndWithUnsupportedConstraint() {
+    ParseQuery.State<ParseObject> query = new ParseQuery.State.Builder<>("TestObject")
+        .whereEqualTo("objectId", "abc")
+        .addCondition("count", "$gt", 5)
+        .build();
+
+    OfflineQueryPlanner.Plan plan = OfflineQueryPlanner.plan(query);
+    assertEquals("objectId=?", plan.selection());
+    assertFalse(plan.isExact());
+  }
+
+  @Test
+  public void testPlanOr() {
+    ParseQuery.State<ParseObject> query = ParseQuery.State.Builder.or(Arrays.asList(
+        new ParseQuery.State.Builder<>("TestObject")
+            .whereEqualTo("objectId", "a"),
+        new ParseQuery.State.Builder<>("TestObject")
+            .whereEqualTo("objectId", "b")
+    )).build();
+
+    OfflineQueryPlanner.Plan plan = OfflineQueryPlanner.plan(query);
+    assertEquals("(objectId=? OR objectId=?)", plan.selection());
+    assertTrue(plan.isExact());
+  }
+
+  @Test
+  public void testPlanOrWithUnsupportedBranch() {
+    ParseQuery.State<ParseObject> query = ParseQuery.State.Builder.or(Arrays.asList(
+        new ParseQuery.State.Builder<>("TestObject")
+            .whereEqualTo("objectId", "a"),
+        new ParseQuery.State.Builder<>("TestObject")
+            .addCondition("count", "$gt", 5)
+    )).build();
+
+    OfflineQueryPlanner.Plan plan = OfflineQueryPlanner.plan(query);
+    assertNull(plan.selection());
+    assertFalse(plan.isExact());
+  }
+
+  @Test
+  public void testPlanOrderByObjectId() {
+    ParseQuery.State<ParseObject> query = new ParseQuery.State.Builder<>("TestObject")
+        .orderByDescending("objectId")
+        .build();
+
+    assertEquals("objectId DESC", OfflineQueryPlanner.plan(query).orderBy());
+  }
+
+  @Test
+  public void testPlanOrderByUnsupportedKey() {
+    ParseQuery.State<ParseObject> query = new ParseQuery.State.Builder<>("TestObject")
+        .orderByAscending("objectId")
+        .addAscendingOrder("name")
+        .build();
+
+    assertNull(OfflineQueryPlanner.plan(query).orderBy());
+  }
+
+  @Test
+  public void testPlanOrderWithNearSphere() {
+    ParseQuery.State<ParseObject> query = new ParseQuery.State.Builder<>("TestObject")
+        .whereNear("point", new ParseGeoPoint(37.77, -122.42))
+        .orderByAscending("objectId")
+        .build();
+
+    assertNull(OfflineQueryPlanner.plan(query).orderBy());
+  }
+
+  //region Indexes
+
+  private static final Set<String> INDEXED_KEYS = Collections.singleton("name");
+
+  @Test
+  public void testPlanIndexedStringEquals() {
+    ParseQuery.State<ParseObject> query = new ParseQuery.State.Builder<>("TestObject")
+        .whereEqualTo("name", "foo")
+        .build();
+
+    OfflineQueryPlanner.Plan plan = OfflineQueryPlanner.plan(query, INDEXED_KEYS);
+    assertEquals("uuid IN (SELECT uuid FROM Indexes WHERE className=? AND field=? AND type=2"
+        + " AND value=?)", plan.selection());
+    assertArrayEquals(new String[] { "TestObject", "name", "foo" }, plan.selectionArgs());
+    assertTrue(plan.isExact());
+  }
+
+  @Test
+  public void testPlanIndexedPointerIsNotLookedUp() {
+    // The parent can still point to the child by its local uuid, so it has no indexed value.
+    ParseQuery.State<ParseObject> query = new ParseQuery.State.Builder<>("TestObject")
+        .addCondition("name", "$in", Arrays.asList(ParseObject.createWithoutData("Child", "abc")))
+        .build();
+
+    OfflineQueryPlanner.Plan plan = OfflineQueryPlanner.plan(query, INDEXED_KEYS);
+    assertNull(plan.selection());
+    assertFalse(plan.isExact());
+  }
+
+  @Test
+  public void testPlanIndexedNumberRange() {
+    ParseQuery.State<ParseObject> query = new ParseQuery.State.Builder<>("TestObject")
+        .addCondition("name", "$gte", 5)
+        .build();
+
+    OfflineQueryPlanner.Plan plan = OfflineQueryPlanner.plan(query, INDEXED_KEYS);
+    assertEquals("uuid IN (SELECT uuid FROM Indexes WHERE className=? AND field=? AND type=1"
+        + " AND value>=CAST(? AS NUMERIC))", plan.selection());
+    assertArrayEquals(new String[] { "TestObject", "name", "5" }, plan.selectionArgs());
+    assertFalse(plan.isExact());
+  }
+
+  @Test
+  public void testPlanIndexedDateRange() {
+    ParseQuery.State<ParseObject> query = new ParseQuery.State.Builder<>("TestObject")
+        .addCondition("name", "$lt", new Date(1000))
+        .build();
+
+    OfflineQueryPlanner.Plan plan = OfflineQueryPlanner.plan(query, INDEXED_KEYS);
+    assertEquals("uuid IN (SELECT uuid FROM Indexes WHERE className=? AND field=? AND type=3"
+        + " AND value<CAST(? AS INTEGER))", plan.selection());
+    assertArrayEquals(new String[] { "TestObject", "name", "1000" }, plan.selectionArgs());
+    assertTrue(plan.isExact());
+  }
+
+  @Test
+  public void testPlanIndexedIn() {
+    ParseQuery.State<ParseObject> query = new ParseQuery.State.Builder<>("TestObject")
+        .addCondition("name", "$in", Arrays.asList("a", true))
+        .build();
+
+    OfflineQueryPlanner.Plan plan = OfflineQueryPlanner.plan(query, INDEXED_KEYS);
+    assertArrayEquals(new String[] { "TestObject", "name", "a", "TestObject", "name", "1" },
+        plan.selectionArgs());
+    assertTrue(plan.isExact());
+  }
+
+  @Test
+  public void testPlanIndexedStartsWith() {
+    ParseQuery.State<ParseObject> query = new ParseQuery<>("TestObject")
+        .whereStartsWith("name", "ab")
+        .getBuilder()
+        .build();
+
+    OfflineQueryPlanner.Plan plan = OfflineQueryPlanner.plan(query, INDEXED_KEYS);
+    assertEquals("uuid IN (SELECT uuid FROM Indexes WHERE className=? AND field=? AND type=2"
+        + " AND value>=? AND value<?)", plan.selection());
+    assertArrayEquals(new String[] { "TestObject", "name", "ab", "ac" }, plan.selectionArgs());
+    assertFalse(plan.isExact());
+
+    query = new ParseQuery<>("TestObject")
+        .whereStartsWith("name", "a\uFFFF\uDBFF\uDFFF")
+        .getBuilder()
+        .build();
+    plan = OfflineQueryPlanner.plan(query, INDEXED_KEYS);
+    // The last code point can't be incremented, so the one before it is.
+    assertArrayEquals(
+        new String[] { "TestObject", "name", "a\uFFFF\uDBFF\uDFFF", "a\uD800\uDC00" },
+        plan.selectionArgs());
+  }
+
+  @Test
+  public void testPlanIndexedRegexWithOptions() {
+    ParseQuery.State<ParseObject> query = new ParseQuery<>("TestObject")
+        .whereMatches("name", "^\\Qab\\E", "i")
+        .getBuilder()
+        .build();
+
+    OfflineQueryPlanner.Plan plan = OfflineQueryPlanner.plan(query, INDEXED_KEYS);
+    assertNull(plan.selection());
+    assertFalse(plan.isExact());
+  }
+
+  @Test
+  public void testPlanIndexedUnsupportedConstraint() {
+    ParseQuery.State<ParseObject> query = new ParseQuery.State.Builder<>("TestObject")
+        .addCondition("name", "$gt", true)
+        .build();
+
+    OfflineQueryPlanner.Plan plan = OfflineQueryPlanner.plan(query, INDEXED_KEYS);
+    assertNull(plan.selection());
+    assertFalse(plan.isExact());
+  }
+
+  @Test
+  public void testPlanOrderByIndexedKey() {
+    ParseQuery.State<ParseObject> query = new ParseQuery.State.Builder<>("TestObject")
+        .orderByDescending("name")
+        .addAscendingOrder("objectId")
+        .build();
+
+    OfflineQueryPlanner.Plan plan = OfflineQueryPlanner.plan(query, INDEXED_KEYS);
+    assertEquals("(SELECT value FROM Indexes WHERE Indexes.uuid=ParseObjects.uuid AND field=?"
+        + " AND type<>6) DESC, objectId ASC", plan.orderBy());
+    assertArrayEquals(new String[] { "name" }, plan.orderByArgs());
+  }
+
+  @Test
+  public void testPlanWithoutOrder() {
+    ParseQuery.State<ParseObject> query = new ParseQuery.State.Builder<>("TestObject")
+        .whereEqualTo("objectId", "abc")
+        .orderByDescending("name")
+        .build();
+
+    OfflineQueryPlanner.Plan plan = OfflineQueryPlanner.plan(query, INDEXED_KEYS).withoutOrder();
+    assertEquals("objectId=?", plan.selection());
+    assertArrayEquals(new String[] { "abc" }, plan.selectionArgs());
+    assertNull(plan.orderBy());
+    assertEquals(0, plan.orderByArgs().length);
+    assertTrue(plan.isExact());
+  }
+
+  @Test
+  public void testPlanTextIndexed() {
+    ParseQuery.State<ParseObject> query = new ParseQuery<>("TestObject")
+        .whereFullText("name", "Quick fox*")
+        .getBuilder()
+        .build();
+
+    OfflineQueryPlanner.Plan plan =
+        OfflineQueryPlanner.plan(query, Collections.<String>emptySet(), INDEXED_KEYS);
+    assertEquals("uuid IN (SELECT uuid FROM Indexes WHERE className=? AND field=? AND type=6"
+        + " AND rowid IN (SELECT docid FROM TextIndexes WHERE value MATCH ?))", plan.selection());
+    assertArrayEquals(new String[] { "TestObject", "name", "quick fox*" }, plan.selectionArgs());
+    assertFalse(plan.isExact());
+
+    // Without a full-text index, every object is checked.
+    assertNull(OfflineQueryPlanner.plan(query, INDEXED_KEYS).selection());
+
+    query = new ParseQuery<>("TestObject")
+        .whereFullText("name", "\"*\"")
+        .getBuilder()
+        .build();
+    plan = OfflineQueryPlanner.plan(query, Collections.<String>emptySet(), INDEXED_KEYS);
+    assertEquals("0", plan.selection());
+    assertTrue(plan.isExact());
+  }
+
+  private static final Set<String> INDEXED_GEO_KEYS = Collections.singleton("location");
+
+  /**
+   * Returns whether a point's geohash is in one of the ranges a plan of geo lookups selects.
+   */
+  private static boolean selectsPoint(OfflineQueryPlanner.Plan plan, ParseGeoPoint point) {
+    String hash = (String) OfflineFieldIndex.toStoredValue(point);
+    String[] args = plan.selectionArgs();
+    for (int i = 0; i < args.length; i += 4) {
+      assertEquals("location", args[i + 1]);
+      if (hash.compareTo(args[i + 2]) >= 0 && hash.compareTo(args[i + 3]) < 0) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Test
+  public void testPlanIndexedWithinGeoBox() {
+    ParseQuery.State<ParseObject> query = new ParseQuery<>("TestObject")
+        .whereWithinGeoBox("location",
+            new ParseGeoPoint(37.70, -122.52), new ParseGeoPoint(37.82, -122.35))
+        .getBuilder()
+        .build();
+
+    OfflineQueryPlanner.Plan plan = OfflineQueryPlanner.plan(query, INDEXED_GEO_KEYS);
+    assertTrue(plan.selection().contains("type=5 AND value>=? AND value<?"));
+    assertFalse(plan.isExact());
+    assertTrue(selectsPoint(plan, new ParseGeoPoint(37.70, -122.52)));
+    assertTrue(selectsPoint(plan, new ParseGeoPoint(37.77, -122.42)));
+    assertTrue(selectsPoint(plan, new ParseGeoPoint(37.82, -122.35)));
+    assertFalse(selectsPoint(plan, new ParseGeoPoint(37.33, -121.89)));
+  }
+
+  @Test
+  public void testPlanIndexedWithinInvalidGeoBox() {
+    // Crosses the International Date Line, which OfflineQueryLogic reports as an error.
+    ParseQuery.State<ParseObject> query = new ParseQuery<>("TestObject")
+        .whereWithinGeoBox("location", new ParseGeoPoint(0, 170), new ParseGeoPoint(10, -170))
+        .getBuilder()
+        .build();
+
+    assertNull(OfflineQueryPlanner.plan(query, INDEXED_GEO_KEYS).selection());
+  }
+
+  @Test
+  public void testPlanIndexedWithinKilometers() {
+    ParseGeoPoint center = new ParseGeoPoint(37.77, -122.42);
+    ParseQuery.State<ParseObject> query = new ParseQuery<>("TestObject")
+        .whereWithinKilometers("location", center, 10)
+        .getBuilder()
+        .build();
+
+    OfflineQueryPlanner.Plan plan = OfflineQueryPlanner.plan(query, INDEXED_GEO_KEYS);
+    assertFalse(plan.isExact());
+    ParseGeoPoint nearby = new ParseGeoPoint(37.83, -122.48);
+    assertTrue(center.distanceInKilometersTo(nearby) < 10);
+    assertTrue(selectsPoint(plan, nearby));
+    assertFalse(selectsPoint(plan, new ParseGeoPoint(37.33, -121.89)));
+  }
+
+  @Test
+  public void testPlanIndexedWithinKilometersAcrossDateLine() {
+    ParseGeoPoint center = new ParseGeoPoint(0, 179.9);
+    ParseQuery.State<ParseObject> query = new ParseQuery<>("TestObject")
+        .whereWithinKilometers("location", center, 100)
+        .getBuilder()
+        .build();
+
+    OfflineQueryPlanner.Plan plan = OfflineQueryPlanner.plan(query, INDEXED_GEO_KEYS);
+    assertTrue(selectsPoint(plan, new ParseGeoPoint(0.1, -179.7)));
+    assertTrue(selectsPoint(plan, new ParseGeoPoint(-0.1, 179.5)));
+    assertFalse(selectsPoint(plan, new ParseGeoPoint(0, 170)));
+  }
+
+  @Test
+  public void testPlanIndexedNearWithoutMaxDistance() {
+    ParseQuery.State<ParseObject> query = new ParseQuery.State.Builder<>("TestObject")
+        .whereNear("location", new ParseGeoPoint(37.77, -122.42))
+        .build();
+
+    assertNull(OfflineQueryPlanner.plan(query, INDEXED_GEO_KEYS).selection());
+    assertEquals("location",
+        OfflineQueryPlanner.unboundedNearSphereKey(query.constraints(), INDEXED_GEO_KEYS));
+    assertNull(OfflineQueryPlanner.unboundedNearSphereKey(query.constraints(), INDEXED_KEYS));
+
+    ParseQuery.State<ParseObject> bounded =
+        OfflineQueryPlanner.withMaxDistance(query, "location", 0.01);
+    assertNotNull(OfflineQueryPlanner.plan(bounded, INDEXED_GEO_KEYS).selection());
+    assertNull(OfflineQueryPlanner.unboundedNearSphereKey(bounded.constraints(), INDEXED_GEO_KEYS));
+    // The original query is left alone.
+    assertEquals("location",
+        OfflineQueryPlanner.unboundedNearSphereKey(query.constraints(), INDEXED_GEO_KEYS));
+  }
+
+  //endregion
+}
@@ -0,0 +1,687 @@
+/*
+ * Copyright (c) 2015-present, Parse, LLC.
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree. An additional grant
+ * of patent rights can be found in the PATENTS file in the same directory.
+ */
+package com.parse;
+
+import android.database.Cursor;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests {@link OfflineStore} against a real SQLite database.
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class OfflineStoreTest {
+
+  private static final String PIN_NAME = "test";
+
+  private OfflineSQLiteOpenHelper helper;
+  private OfflineStore store;
+
+  @Before
+  public void setUp() {
+    ParseObject.registerSubclass(ParsePin.class);
+    helper = new OfflineSQLiteOpenHelper(RuntimeEnvironment.application);
+    store = new OfflineStore(helper);
+    Parse.setLocalDatastore(store);
+  }
+
+  @After
+  public void tearDown() {
+    Parse.setLocalDatastore(null);
+    helper.clearDatabase(RuntimeEnvironment.application);
+    ParseObject.unregisterSubclass(ParsePin.class);
+    ParseCorePlugins.getInstance().reset();
+  }
+
+  /**
+   * Returns the single number that a query on the database returns.
+   */
+  private long queryLong(String sql, String... args) throws ParseException {
+    ParseSQLiteDatabase db = ParseTaskUtils.wait(helper.getReadableDatabaseAsync());
+    try {
+      Cursor cursor = ParseTaskUtils.wait(db.rawQueryAsync(sql, args));
+      try {
+        assertTrue(cursor.moveToFirst());
+        return cursor.getLong(0);
+      } finally {
+        cursor.close();
+      }
+    } finally {
+      ParseTaskUtils.wait(db.closeAsync());
+    }
+  }
+
+  private long countObjects(String className) throws ParseException {
+    return queryLong("SELECT COUNT(*) FROM " + OfflineSQLiteOpenHelper.TABLE_OBJECTS
+        + " WHERE " + OfflineSQLiteOpenHelper.KEY_CLASS_NAME + "=?", className);
+  }
+
+  private long countDependencies() throws ParseException {
+    return queryLong("SELECT COUNT(*) FROM " + OfflineSQLiteOpenHelper.TABLE_DEPENDENCIES);
+  }
+
+  //region Batched saves
+
+  @Test
+  public void testPinSameUnsavedObjectTwice() throws Exception {
+    ParseObject object = new ParseObject("TestObject");
+    object.put("foo", "bar");
+
+    // Used to hang, waiting for the UUID that the first copy was still creating.
+    ParseTaskUtils.wait(store.pinAllObjectsAsync(PIN_NAME, Arrays.asList(object, object), false));
+
+    assertEquals(1, countObjects("TestObject"));
+    assertEquals(1, countObjects("_Pin"));
+    // One for the pin and one for the object, both under the pin's uuid.
+    assertEquals(2, countDependencies());
+    assertEquals(0, queryLong("SELECT COUNT(*) FROM " + OfflineSQLiteOpenHelper.TABLE_OBJECTS
+        + " WHERE " + OfflineSQLiteOpenHelper.KEY_JSON + " IS NULL"));
+    assertEquals(2, store.getSavedObjectCount());
+  }
+
+  @Test
+  public void testPinManyObjects() throws Exception {
+    List<ParseObject> objects = new ArrayList<>();
+    for (int i = 0; i < 250; i++) {
+      ParseObject object = new ParseObject("TestObject");
+      object.put("index", i);
+      objects.add(object);
+    }
+
+    ParseTaskUtils.wait(store.pinAllObjectsAsync(PIN_NAME, objects, false));
+
+    assertEquals(250, countObjects("TestObject"));
+    assertEquals(251, countDependencies());
+    assertEquals(251, queryLong("SELECT COUNT(DISTINCT " + OfflineSQLiteOpenHelper.KEY_UUID
+        + ") FROM " + OfflineSQLiteOpenHelper.TABLE_DEPENDENCIES));
+    assertEquals(251, store.getSavedObjectCount());
+    assertTrue(store.getSaveThroughput() > 0);
+
+    ParseQuery.State<ParseObject> query = new ParseQuery.State.Builder<>("TestObject")
+        .fromPin(PIN_NAME)
+        .build();
+    List<ParseObject> results = ParseTaskUtils.wait(store.findFromPinAsync(PIN_NAME, query, null));
+    assertEquals(250, results.size());
+  }
+
+  //endregion
+
+  //region Paged loading
+
+  private static final int OBJECT_COUNT = 250;
+
+  /**
+   * Pins objects with an index from 0, and then replaces the store with one that has none of them
+   * in memory, so that a query has to load them from the database.
+   */
+  private void pinIndexedObjects() throws ParseException {
+    ParseTaskUtils.wait(store.createIndexAsync("TestObject", "index", false));
+    List<ParseObject> objects = new ArrayList<>();
+    for (int i = 0; i < OBJECT_COUNT; i++) {
+      ParseObject object = new ParseObject("TestObject");
+      object.put("index", i);
+      // Sorts in the opposite order.
+      object.put("name", String.format("%03d", OBJECT_COUNT - 1 - i));
+      objects.add(object);
+    }
+    ParseTaskUtils.wait(store.pinAllObjectsAsync(PIN_NAME, objects, false));
+    reopenStore();
+  }
+
+  /**
+   * Replaces the store with one that has none of the stored objects in memory.
+   */
+  private void reopenStore() {
+    store = new OfflineStore(helper);
+    Parse.setLocalDatastore(store);
+  }
+
+  private long loadedObjects() {
+    return store.getObjectCacheHits() + store.getObjectCacheMisses();
+  }
+
+  private static List<Integer> indexesOf(List<ParseObject> objects) {
+    List<Integer> indexes = new ArrayList<>();
+    for (ParseObject object : objects) {
+      indexes.add(object.getInt("index"));
+    }
+    return indexes;
+  }
+
+  @Test
+  public void testFindLoadsEveryPage() throws Exception {
+    pinIndexedObjects();
+
+    ParseQuery.State<ParseObject> query = new ParseQuery.State.Builder<>("TestObject").build();
+    List<ParseObject> results = ParseTaskUtils.wait(store.findFromPinAsync(null, query, null));
+    assertEquals(OBJECT_COUNT, results.size());
+    assertEquals(OBJECT_COUNT, loadedObjects());
+  }
+
+  @Test
+  public void testFindStopsAfterThePageWithTheLimit() throws Exception {
+    pinIndexedObjects();
+
+    ParseQuery.State<ParseObject> query = new ParseQuery.State.Builder<>("TestObject")
+        .setLimit(10)
+        .build();
+    List<ParseObject> results = ParseTaskUtils.wait(store.findFromPinAsync(null, query, null));
+    assertEquals(10, results.size());
+    assertEquals(OfflineStore.FIND_PAGE_SIZE, loadedObjects());
+  }
+
+  @Test
+  public void testFindOrderedByIndexedKeyStopsEarly() throws Exception {
+    pinIndexedObjects();
+
+    ParseQuery.State<ParseObject> query = new ParseQuery.State.Builder<>("TestObject")
+        .orderByAscending("index")
+        .setSkip(150)
+        .setLimit(3)
+        .build();
+    List<ParseObject> results = ParseTaskUtils.wait(store.findFromPinAsync(null, query, null));
+    assertEquals(Arrays.asList(150, 151, 152), indexesOf(results));
+    // The skipped objects still have to be loaded, but not the page after them.
+    assertEquals(2 * OfflineStore.FIND_PAGE_SIZE, loadedObjects());
+  }
+
+  @Test
+  public void testFindOrderedByUnindexedKeyLoadsEverything() throws Exception {
+    pinIndexedObjects();
+
+    ParseQuery.State<ParseObject> query = new ParseQuery.State.Builder<>("TestObject")
+        .orderByAscending("name")
+        .setLimit(3)
+        .build();
+    List<ParseObject> results = ParseTaskUtils.wait(store.findFromPinAsync(null, query, null));
+    assertEquals(Arrays.asList(OBJECT_COUNT - 1, OBJECT_COUNT - 2, OBJECT_COUNT - 3),
+        indexesOf(results));
+    assertEquals(OBJECT_COUNT, loadedObjects());
+  }
+
+  //endregion
+
+  //region Iterating
+
+  /**
+   * Collects the objects that a query passes on, and how many objects had been loaded when the
+   * first one was passed on, stopping after {@code max} of them.
+   */
+  private List<ParseObject> findEach(ParseQuery.State<ParseObject> query, final int max,
+      final long[] loadedBeforeFirst) throws ParseException {
+    final List<ParseObject> results = new ArrayList<>();
+    ParseTaskUtils.wait(store.findEachFromPinAsync(null, query, null,
+        new EachCallback<ParseObject>() {
+      @Override
+      public boolean next(ParseObject object) {
+        if (results.isEmpty()) {
+          loadedBeforeFirst[0] = loadedObjects();
+        }
+        results.add(object);
+        return results.size() < max;
+      }
+    }));
+    return results;
+  }
+
+  @Test
+  public void testFindEachStreamsPages() throws Exception {
+    pinIndexedObjects();
+
+    long[] loadedBeforeFirst = new long[1];
+    ParseQuery.State<ParseObject> query = new ParseQuery.State.Builder<>("TestObject").build();
+    List<ParseObject> results = findEach(query, Integer.MAX_VALUE, loadedBeforeFirst);
+    assertEquals(OBJECT_COUNT, results.size());
+    assertEquals(OfflineStore.FIND_PAGE_SIZE, loadedBeforeFirst[0]);
+    assertEquals(OBJECT_COUNT, loadedObjects());
+  }
+
+  @Test
+  public void testFindEachStopsWhenTheCallbackDoes() throws Exception {
+    pinIndexedObjects();
+
+    long[] loadedBeforeFirst = new long[1];
+    ParseQuery.State<ParseObject> query = new ParseQuery.State.Builder<>("TestObject").build();
+    List<ParseObject> results = findEach(query, 5, loadedBeforeFirst);
+    assertEquals(5, results.size());
+    assertEquals(OfflineStore.FIND_PAGE_SIZE, loadedObjects());
+  }
+
+  @Test
+  public void testFindEachOrderedByIndexedKey() throws Exception {
+    pinIndexedObjects();
+
+    long[] loadedBeforeFirst = new long[1];
+    ParseQuery.State<ParseObject> query = new ParseQuery.State.Builder<>("TestObject")
+        .orderByDescending("index")
+        .setLimit(3)
+        .build();
+    List<ParseObject> results = findEach(query, Integer.MAX_VALUE, loadedBeforeFirst);
+    assertEquals(Arrays.asList(OBJECT_COUNT - 1, OBJECT_COUNT - 2, OBJECT_COUNT - 3),
+        indexesOf(results));
+    assertEquals(OfflineStore.FIND_PAGE_SIZE, loadedObjects());
+  }
+
+  @Test
+  public void testFindEachOrderedBuffersObjectsModifiedInMemory() throws Exception {
+    pinIndexedObjects();
+    ParseQuery.State<ParseObject> all = new ParseQuery.State.Builder<>("TestObject").build();
+    List<ParseObject> objects = ParseTaskUtils.wait(store.findFromPinAsync(null, all, null));
+    ParseObject modified = objects.get(OBJECT_COUNT / 2);
+    modified.put("index", -1);
+
+    long[] loadedBeforeFirst = new long[1];
+    ParseQuery.State<ParseObject> query = new ParseQuery.State.Builder<>("TestObject")
+        .orderByAscending("index")
+        .build();
+    List<ParseObject> results = findEach(query, 2, loadedBeforeFirst);
+    // The stored value would put it in the middle, so every object was sorted first.
+    assertEquals(Arrays.asList(-1, 0), indexesOf(results));
+    assertSame(modified, results.get(0));
+    assertEquals(2 * OBJECT_COUNT, loadedBeforeFirst[0]);
+  }
+
+  @Test
+  public void testFindEachOrderedByUnindexedKey() throws Exception {
+    pinIndexedObjects();
+
+    ParseQuery.State<ParseObject> query = new ParseQuery.State.Builder<>("TestObject")
+        .orderByAscending("name")
+        .build();
+    try {
+      findEach(query, Integer.MAX_VALUE, new long[1]);
+      fail("Should have failed to iterate in an order that SQLite can't produce");
+    } catch (ParseException e) {
+      assertEquals(ParseException.INVALID_QUERY, e.getCode());
+    }
+  }
+
+  //endregion
+
+  //region Counting
+
+  private int count(ParseQuery.State<ParseObject> query) throws ParseException {
+    return ParseTaskUtils.wait(store.countFromPinAsync(null, query, null));
+  }
+
+  @Test
+  public void testCountExactQueryWithoutLoadingObjects() throws Exception {
+    pinIndexedObjects();
+
+    ParseQuery.State<ParseObject> query = new ParseQuery.State.Builder<>("TestObject")
+        .addCondition("index", "$gte", 200)
+        .build();
+    assertEquals(50, count(query));
+    assertEquals(0, loadedObjects());
+  }
+
+  @Test
+  public void testCountInexactQueryLoadsObjects() throws Exception {
+    pinIndexedObjects();
+
+    // The name isn't indexed, so the selection only finds the objects that might match.
+    ParseQuery.State<ParseObject> query = new ParseQuery.State.Builder<>("TestObject")
+        .whereEqualTo("name", "007")
+        .build();
+    assertEquals(1, count(query));
+    assertTrue(loadedObjects() > 0);
+  }
+
+  @Test
+  public void testCountLoadsObjectsWithACL() throws Exception {
+    List<ParseObject> objects = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      ParseObject object = new ParseObject("TestObject");
+      if (i < 3) {
+        // Nobody can read these.
+        object.setACL(new ParseACL());
+      }
+      objects.add(object);
+    }
+    ParseTaskUtils.wait(store.pinAllObjectsAsync(PIN_NAME, objects, false));
+    reopenStore();
+
+    ParseQuery.State<ParseObject> query = new ParseQuery.State.Builder<>("TestObject").build();
+    assertEquals(7, count(query));
+    assertEquals(3, loadedObjects());
+
+    query = new ParseQuery.State.Builder<>("TestObject").ignoreACLs().build();
+    assertEquals(10, count(query));
+    assertEquals(3, loadedObjects());
+  }
+
+  @Test
+  public void testCountChecksObjectsModifiedInMemory() throws Exception {
+    pinIndexedObjects();
+    ParseQuery.State<ParseObject> all = new ParseQuery.State.Builder<>("TestObject").build();
+    List<ParseObject> objects = ParseTaskUtils.wait(store.findFromPinAsync(null, all, null));
+    for (ParseObject object : objects) {
+      if (object.getInt("index") == 200) {
+        object.put("index", 0);
+      }
+    }
+    long loaded = loadedObjects();
+
+    ParseQuery.State<ParseObject> query = new ParseQuery.State.Builder<>("TestObject")
+        .addCondition("index", "$gte", 200)
+        .build();
+    // The stored value still matches, but the one in memory doesn't.
+    assertEquals(49, count(query));
+    assertEquals(1, loadedObjects() - loaded);
+  }
+
+  //endregion
+
+  //region Object cache
+
+  private ParseObject findIndex(int index) throws ParseException {
+    ParseQuery.State<ParseObject> query = new ParseQuery.State.Builder<>("TestObject")
+        .whereEqualTo("index", index)
+        .build();
+    List<ParseObject> results = ParseTaskUtils.wait(store.findFromPinAsync(null, query, null));
+    assertEquals(1, results.size());
+    return results.get(0);
+  }
+
+  @Test
+  public void testObjectCacheHitsAndMisses() throws Exception {
+    pinIndexedObjects();
+
+    ParseObject first = findIndex(0);
+    assertEquals(0, store.getObjectCacheHits());
+    assertEquals(1, store.getObjectCacheMisses());
+    assertTrue(store.isObjectCached(first));
+
+    // The same instance is still fetched in memory.
+    assertSame(first, findIndex(0));
+    assertEquals(1, store.getObjectCacheHits());
+    assertEquals(1, store.getObjectCacheMisses());
+  }
+
+  @Test
+  public void testObjectCacheEvictsLeastRecentlyUsed() throws Exception {
+    pinIndexedObjects();
+    store = new OfflineStore(helper, 2, false);
+    Parse.setLocalDatastore(store);
+
+    ParseObject first = findIndex(0);
+    ParseObject second = findIndex(1);
+    ParseObject third = findIndex(2);
+    assertFalse(store.isObjectCached(first));
+    assertTrue(store.isObjectCached(second));
+    assertTrue(store.isObjectCached(third));
+
+    // Using the first one again makes the second one the least recently used.
+    assertSame(first, findIndex(0));
+    assertTrue(store.isObjectCached(first));
+    assertFalse(store.isObjectCached(second));
+    assertTrue(store.isObjectCached(third));
+  }
+
+  @Test
+  public void testObjectCacheInvalidatedOnUpdate() throws Exception {
+    pinIndexedObjects();
+    ParseObject object = findIndex(0);
+    assertTrue(store.isObjectCached(object));
+
+    object.put("index", -1);
+    ParseTaskUtils.wait(store.pinAllObjectsAsync(PIN_NAME, Arrays.asList(object), false));
+    assertFalse(store.isObjectCached(object));
+
+    assertSame(object, findIndex(-1));
+    assertTrue(store.isObjectCached(object));
+  }
+
+  @Test
+  public void testObjectCacheInvalidatedOnDelete() throws Exception {
+    pinIndexedObjects();
+    ParseObject object = findIndex(0);
+    assertTrue(store.isObjectCached(object));
+
+    ParseTaskUtils.wait(store.deleteDataForObjectAsync(object));
+    assertFalse(store.isObjectCached(object));
+
+    ParseQuery.State<ParseObject> query = new ParseQuery.State.Builder<>("TestObject")
+        .whereEqualTo("index", 0)
+        .build();
+    assertTrue(ParseTaskUtils.wait(store.findFromPinAsync(null, query, null)).isEmpty());
+  }
+
+  @Test
+  public void testObjectCacheInvalidatedOnUnpin() throws Exception {
+    pinIndexedObjects();
+    ParseObject object = findIndex(0);
+    assertTrue(store.isObjectCached(object));
+
+    // The objects aren't pinned anywhere else, so they're removed from the store.
+    ParseTaskUtils.wait(store.unpinAllObjectsAsync(PIN_NAME));
+    assertFalse(store.isObjectCached(object));
+    assertEquals(0, countObjects("TestObject"));
+  }
+
+  //endregion
+
+  //region Statement cache
+
+  @Test
+  public void testRepeatedSavesReuseStatements() throws Exception {
+    ParseTaskUtils.wait(store.createIndexAsync("TestObject", "name", false));
+    ParseTaskUtils.wait(store.createIndexAsync("TestObject", "name", true));
+    long hits = 0;
+    long misses = 0;
+    for (int i = 0; i < 5; i++) {
+      if (i == 2) {
+        // The first save creates the pin, and the second is the first to update it.
+        hits = helper.getStatementCacheHits();
+        misses = helper.getStatementCacheMisses();
+      }
+      ParseObject object = new ParseObject("TestObject");
+      object.put("name", "object " + i);
+      ParseTaskUtils.wait(store.pinAllObjectsAsync(PIN_NAME, Arrays.asList(object), false));
+    }
+
+    // Every statement of a save, including the rows of the indexes, was compiled by then.
+    assertTrue(helper.getStatementCacheHits() > hits);
+    assertEquals(misses, helper.getStatementCacheMisses());
+  }
+
+  //endregion
+
+  //region Ordering
+
+  /**
+   * Pins objects whose names SQLite orders differently from OfflineQueryLogic: the emoji is a
+   * surrogate pair, which comes after U+FFFD in UTF-8, but before it in UTF-16. There are more
+   * than a page of the others, so stopping after the first page in SQLite's order would miss it.
+   */
+  private ParseObject pinObjectsOrderedDifferently() throws ParseException {
+    ParseTaskUtils.wait(store.createIndexAsync("TestObject", "name", false));
+    List<ParseObject> objects = new ArrayList<>();
+    for (int i = 0; i < 150; i++) {
+      ParseObject object = new ParseObject("TestObject");
+      object.put("name", "\uFFFD");
+      objects.add(object);
+    }
+    ParseObject emoji = new ParseObject("TestObject");
+    emoji.put("name", "\uD83D\uDE00");
+    objects.add(emoji);
+    ParseTaskUtils.wait(store.pinAllObjectsAsync(PIN_NAME, objects, false));
+    return emoji;
+  }
+
+  @Test
+  public void testFindOrderedByValuesSQLiteSortsDifferently() throws Exception {
+    ParseObject emoji = pinObjectsOrderedDifferently();
+
+    ParseQuery.State<ParseObject> query = new ParseQuery.State.Builder<>("TestObject")
+        .orderByAscending("name")
+        .setLimit(1)
+        .build();
+    List<ParseObject> results = ParseTaskUtils.wait(store.findFromPinAsync(PIN_NAME, query, null));
+    assertEquals(1, results.size());
+    assertSame(emoji, results.get(0));
+  }
+
+  @Test
+  public void testFindEachOrderedByValuesSQLiteSortsDifferently() throws Exception {
+    ParseObject emoji = pinObjectsOrderedDifferently();
+
+    ParseQuery.State<ParseObject> query = new ParseQuery.State.Builder<>("TestObject")
+        .orderByAscending("name")
+        .build();
+    final List<ParseObject> results = new ArrayList<>();
+    ParseTaskUtils.wait(store.findEachFromPinAsync(PIN_NAME, query, null,
+        new EachCallback<ParseObject>() {
+      @Override
+      public boolean next(ParseObject object) {
+        results.add(object);
+        return false;
+      }
+    }));
+    assertEquals(1, results.size());
+    assertSame(emoji, results.get(0));
+  }
+
+  @Test
+  public void testFindOrderedByMixedTypes() throws Exception {
+    ParseTaskUtils.wait(store.createIndexAsync("TestObject", "value", false));
+    List<ParseObject> objects = new ArrayList<>();
+    for (int i = 0; i < 150; i++) {
+      ParseObject object = new ParseObject("TestObject");
+      object.put("value", i);
+      objects.add(object);
+    }
+    ParseObject string = new ParseObject("TestObject");
+    string.put("value", "1");
+    objects.add(string);
+    ParseTaskUtils.wait(store.pinAllObjectsAsync(PIN_NAME, objects, false));
+
+    ParseQuery.State<ParseObject> query = new ParseQuery.State.Builder<>("TestObject")
+        .orderByAscending("value")
+        .setLimit(1)
+        .build();
+    try {
+      // SQLite puts the numbers first, but OfflineQueryLogic can't compare them to the string.
+      ParseTaskUtils.wait(store.findFromPinAsync(PIN_NAME, query, null));
+      fail("Should have failed to compare a number to a string");
+    } catch (IllegalArgumentException e) {
+      // Expected.
+    }
+  }
+
+  //endregion
+
+  //region Full-text indexes
+
+  @Test
+  public void testTextIndexRowsHaveTheirDocids() throws Exception {
+    // The rows for the value index are inserted in between the ones for the full-text index.
+    ParseTaskUtils.wait(store.createIndexAsync("TestObject", "tags", true));
+    ParseTaskUtils.wait(store.createIndexAsync("TestObject", "tags", false));
+    ParseObject dog = new ParseObject("TestObject");
+    dog.put("tags", Arrays.asList("quick fox", "lazy dog"));
+    ParseObject cat = new ParseObject("TestObject");
+    cat.put("tags", Arrays.asList("slow cat"));
+    ParseTaskUtils.wait(store.pinAllObjectsAsync(PIN_NAME, Arrays.asList(dog, cat), false));
+
+    assertEquals(3, queryLong("SELECT COUNT(*) FROM " + OfflineSQLiteOpenHelper.TABLE_INDEXES
+        + " WHERE " + OfflineSQLiteOpenHelper.KEY_TYPE + "=" + OfflineFieldIndex.TYPE_TEXT
+        + " AND rowid IN (SELECT " + OfflineSQLiteOpenHelper.KEY_DOCID
+        + " FROM " + OfflineSQLiteOpenHelper.TABLE_TEXT_INDEXES + ")"));
+    assertEquals(3, queryLong("SELECT COUNT(*) FROM "
+        + OfflineSQLiteOpenHelper.TABLE_TEXT_INDEXES));
+
+    ParseQuery.State<ParseObject> query = new ParseQuery<>("TestObject")
+        .whereFullText("tags", "dog")
+        .getBuilder()
+        .build();
+    List<ParseObject> results = ParseTaskUtils.wait(store.findFromPinAsync(PIN_NAME, query, null));
+    assertEquals(1, results.size());
+    assertSame(dog, results.get(0));
+
+    query = new ParseQuery<>("TestObject")
+        .whereFullText("tags", "cat")
+        .getBuilder()
+        .build();
+    results = ParseTaskUtils.wait(store.findFromPinAsync(PIN_NAME, query, null));
+    assertEquals(1, results.size());
+    assertSame(cat, results.get(0));
+  }
+
+  //endregion
+
+  //region Sessions
+
+  private static void insertObject(ParseSQLiteDatabase db, String uuid, String className,
+      String objectId, String json) throws ParseException {
+    String sql = "INSERT INTO " + OfflineSQLiteOpenHelper.TABLE_OBJECTS + " ("
+        + OfflineSQLiteOpenHelper.KEY_UUID + ", " + OfflineSQLiteOpenHelper.KEY_CLASS_NAME + ", "
+        + OfflineSQLiteOpenHelper.KEY_OBJECT_ID + ", " + OfflineSQLiteOpenHelper.KEY_JSON
+        + ") VALUES (?, ?, ?, ?)";
+    ParseTaskUtils.wait(db.execSQLAsync(sql, new Object[] { uuid, className, objectId, json }));
+  }
+
+  @Test
+  public void testReadDuringWriteTransaction() throws Exception {
+    // A parent that points to an unsaved child by its uuid, neither of which is committed yet.
+    ParseSQLiteDatabase writer = ParseTaskUtils.wait(helper.getWritableDatabaseAsync());
+    ParseTaskUtils.wait(writer.beginTransactionAsync());
+    insertObject(writer, "child-uuid", "Child", null, "{\"className\":\"Child\","
+        + "\"name\":\"foo\",\"__complete\":true,\"isDeletingEventually\":0,"
+        + "\"__operations\":[]}");
+    insertObject(writer, "parent-uuid", "TestObject", "parentId", "{\"className\":\"TestObject\","
+        + "\"objectId\":\"parentId\","
+        + "\"child\":{\"__type\":\"OfflineObject\",\"uuid\":\"child-uuid\"},"
+        + "\"__complete\":true,\"isDeletingEventually\":0,\"__operations\":[]}");
+
+    // Loading the parent in the write gives the child the uuid of a row that isn't committed.
+    ParseObject parent = ParseObject.createWithoutData("TestObject", "parentId");
+    ParseTaskUtils.wait(store.fetchLocallyAsync(parent, writer));
+    ParseObject child = parent.getParseObject("child");
+
+    // A read can't see the row yet, which is a cache miss that isn't remembered.
+    try {
+      ParseTaskUtils.wait(store.fetchLocallyAsync(child));
+      fail("Should have failed with a cache miss");
+    } catch (ParseException e) {
+      assertEquals(ParseException.CACHE_MISS, e.getCode());
+    }
+    ParseQuery.State<ParseObject> query = new ParseQuery.State.Builder<>("Child").build();
+    assertTrue(ParseTaskUtils.wait(store.findFromPinAsync(null, query, null)).isEmpty());
+
+    ParseTaskUtils.wait(writer.setTransactionSuccessfulAsync());
+    ParseTaskUtils.wait(writer.endTransactionAsync());
+    ParseTaskUtils.wait(writer.closeAsync());
+
+    assertSame(child, ParseTaskUtils.wait(store.fetchLocallyAsync(child)));
+    assertEquals("foo", child.getString("name"));
+    List<ParseObject> results = ParseTaskUtils.wait(store.findFromPinAsync(null, query, null));
+    assertEquals(1, results.size());
+    assertSame(child, results.get(0));
+  }
+
+  //endregion
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2015-present, Parse, LLC.
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree. An additional grant
+ * of patent rights can be found in the PATENTS file in the same directory.
+ */
+package com.parse;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ParseContainerSnapshotTest {
+
+  @Test
+  public void testMatchesUnchangedContainers() throws Exception {
+    Map<String, Object> map = new HashMap<>();
+    map.put("list", new ArrayList<>(Arrays.asList(1, "two", null)));
+    map.put("json", new JSONObject().put("array", new JSONArray().put(true)));
+    map.put("date", new Date(1000));
+    map.put("bytes", new byte[] { 1, 2 });
+    map.put("point", new ParseGeoPoint(1, 2));
+    map.put("object", new ParseObject("TestObject"));
+
+    ParseContainerSnapshot snapshot = new ParseContainerSnapshot(map);
+    assertTrue(snapshot.matches(map));
+
+    // Equal values match too, as long as they're the same.
+    Map<String, Object> copy = new HashMap<>(map);
+    copy.put("date", new Date(1000));
+    assertTrue(snapshot.matches(copy));
+  }
+
+  @Test
+  public void testDetectsNestedChanges() throws Exception {
+    List<Object> inner = new ArrayList<>();
+    inner.add("a");
+    JSONObject json = new JSONObject().put("key", "value");
+    Date date = new Date(1000);
+    ParseGeoPoint point = new ParseGeoPoint(1, 2);
+    byte[] bytes = { 1, 2 };
+    List<Object> list = new LinkedList<>(Arrays.asList(inner, json, date, point, bytes));
+    ParseContainerSnapshot snapshot = new ParseContainerSnapshot(list);
+
+    inner.add("b");
+    assertFalse(snapshot.matches(list));
+    inner.remove("b");
+    assertTrue(snapshot.matches(list));
+
+    json.put("key", "other");
+    assertFalse(snapshot.matches(list));
+    json.put("key", "value");
+
+    date.setTime(2000);
+    assertFalse(snapshot.matches(list));
+    date.setTime(1000);
+
+    point.setLatitude(3);
+    assertFalse(snapshot.matches(list));
+    point.setLatitude(1);
+
+    bytes[0] = 3;
+    assertFalse(snapshot.matches(list));
+    bytes[0] = 1;
+
+    assertTrue(snapshot.matches(list));
+  }
+
+  @Test
+  public void testDetectsReplacedKeys() {
+    Map<String, Object> map = new HashMap<>();
+    map.put("a", null);
+    ParseContainerSnapshot snapshot = new ParseContainerSnapshot(map);
+
+    map.remove("a");
+    map.put("b", null);
+    assertFalse(snapshot.matches(map));
+  }
+
+  @Test
+  public void testComparesParseObjectsByIdentity() {
+    ParseObject object = new ParseObject("TestObject");
+    List<Object> list = new ArrayList<>();
+    list.add(object);
+    ParseContainerSnapshot snapshot = new ParseContainerSnapshot(list);
+
+    object.put("key", "value");
+    assertTrue(snapshot.matches(list));
+
+    list.set(0, new ParseObject("TestObject"));
+    assertFalse(snapshot.matches(list));
+  }
+
+  @Test
+  public void testDetectsACLChanges() {
+    ParseACL acl = new ParseACL();
+    ParseContainerSnapshot snapshot = new ParseContainerSnapshot(acl);
+
+    acl.setPublicReadAccess(true);
+    assertFalse(snapshot.matches(acl));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidType() {
+    new ParseContainerSnapshot(Arrays.asList(new Object()));
+  }
+}
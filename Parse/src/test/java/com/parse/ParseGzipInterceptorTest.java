@@ -0,0 +1,235 @@
+/*
+ * Copyright (c) 2015-present, Parse, LLC.
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree. An additional grant
+ * of patent rights can be found in the PATENTS file in the same directory.
+ */
+package com.parse;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ParseGzipInterceptorTest {
+
+  private static String largeJSON() {
+    char[] chars = new char[4096];
+    Arrays.fill(chars, 'a');
+    return "{\"key\":\"" + new String(chars) + "\"}";
+  }
+
+  private static byte[] gzip(byte[] bytes) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    GZIPOutputStream gzip = new GZIPOutputStream(out);
+    gzip.write(bytes);
+    gzip.close();
+    return out.toByteArray();
+  }
+
+  private static byte[] gunzip(byte[] bytes) throws IOException {
+    return ParseIOUtils.toByteArray(new GZIPInputStream(new ByteArrayInputStream(bytes)));
+  }
+
+  private static byte[] bodyBytes(ParseHttpRequest request) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    request.getBody().writeTo(out);
+    return out.toByteArray();
+  }
+
+  /**
+   * Records the request it's given and responds with {@code response}.
+   */
+  private static class RecordingChain implements ParseNetworkInterceptor.Chain {
+    private final ParseHttpRequest request;
+    private final ParseHttpResponse response;
+    private ParseHttpRequest proceededRequest;
+
+    private RecordingChain(ParseHttpRequest request, ParseHttpResponse response) {
+      this.request = request;
+      this.response = response;
+    }
+
+    @Override
+    public ParseHttpRequest getRequest() {
+      return request;
+    }
+
+    @Override
+    public ParseHttpResponse proceed(ParseHttpRequest request) throws IOException {
+      proceededRequest = request;
+      return response;
+    }
+  }
+
+  private static ParseHttpResponse response(byte[] content, Map<String, String> headers) {
+    return new ParseHttpResponse.Builder()
+        .setStatusCode(200)
+        .setContent(new ByteArrayInputStream(content))
+        .setTotalSize(content.length)
+        .setContentType("application/json")
+        .setHeaders(headers)
+        .build();
+  }
+
+  @Test
+  public void testCompressLargeJSONRequest() throws Exception {
+    byte[] content = largeJSON().getBytes("UTF-8");
+    ParseHttpRequest request = new ParseHttpRequest.Builder()
+        .setUrl("http://parse.com")
+        .setMethod(ParseRequest.Method.POST)
+        .setBody(new ParseByteArrayHttpBody(content, "application/json"))
+        .build();
+    RecordingChain chain = new RecordingChain(
+        request, response(new byte[0], Collections.<String, String>emptyMap()));
+
+    ParseGzipInterceptor interceptor = new ParseGzipInterceptor();
+    interceptor.intercept(chain);
+
+    ParseHttpRequest sent = chain.proceededRequest;
+    assertEquals("gzip", sent.getHeader(ParseGzipInterceptor.HEADER_CONTENT_ENCODING));
+    assertEquals("gzip", sent.getHeader(ParseGzipInterceptor.HEADER_ACCEPT_ENCODING));
+    assertEquals("application/json", sent.getBody().getContentType());
+    byte[] sentBytes = bodyBytes(sent);
+    assertEquals(sentBytes.length, sent.getBody().getContentLength());
+    assertArrayEquals(content, gunzip(sentBytes));
+    assertEquals(content.length - sentBytes.length, interceptor.getRequestBytesSaved());
+  }
+
+  @Test
+  public void testDoesNotCompressSmallOrBinaryRequest() throws Exception {
+    ParseGzipInterceptor interceptor = new ParseGzipInterceptor();
+
+    ParseHttpRequest small = new ParseHttpRequest.Builder()
+        .setUrl("http://parse.com")
+        .setMethod(ParseRequest.Method.POST)
+        .setBody(new ParseByteArrayHttpBody("{}", "application/json"))
+        .build();
+    RecordingChain chain = new RecordingChain(
+        small, response(new byte[0], Collections.<String, String>emptyMap()));
+    interceptor.intercept(chain);
+    assertSame(small.getBody(), chain.proceededRequest.getBody());
+    assertNull(chain.proceededRequest.getHeader(ParseGzipInterceptor.HEADER_CONTENT_ENCODING));
+
+    ParseHttpRequest binary = new ParseHttpRequest.Builder()
+        .setUrl("http://parse.com")
+        .setMethod(ParseRequest.Method.POST)
+        .setBody(new ParseByteArrayHttpBody(new byte[4096], "image/png"))
+        .build();
+    chain = new RecordingChain(
+        binary, response(new byte[0], Collections.<String, String>emptyMap()));
+    interceptor.intercept(chain);
+    assertSame(binary.getBody(), chain.proceededRequest.getBody());
+
+    assertEquals(0, interceptor.getRequestBytesSaved());
+  }
+
+  @Test
+  public void testDecompressResponse() throws Exception {
+    byte[] content = largeJSON().getBytes("UTF-8");
+    byte[] compressed = gzip(content);
+    Map<String, String> headers = new HashMap<>();
+    headers.put("content-encoding", "gzip");
+    headers.put("X-Parse", "value");
+    ParseHttpRequest request = new ParseHttpRequest.Builder()
+        .setUrl("http://parse.com")
+        .setMethod(ParseRequest.Method.GET)
+        .build();
+    RecordingChain chain = new RecordingChain(request, response(compressed, headers));
+
+    ParseGzipInterceptor interceptor = new ParseGzipInterceptor();
+    ParseHttpResponse response = interceptor.intercept(chain);
+
+    assertArrayEquals(content, ParseIOUtils.toByteArray(response.getContent()));
+    assertNull(response.getHeader("content-encoding"));
+    assertEquals("value", response.getHeader("X-Parse"));
+    assertEquals(200, response.getStatusCode());
+    assertEquals(content.length - compressed.length, interceptor.getResponseBytesSaved());
+  }
+
+  @Test
+  public void testPassesThroughUncompressedResponse() throws Exception {
+    ParseHttpRequest request = new ParseHttpRequest.Builder()
+        .setUrl("http://parse.com")
+        .setMethod(ParseRequest.Method.GET)
+        .build();
+    ParseHttpResponse response = response("{}".getBytes("UTF-8"), new HashMap<String, String>());
+    RecordingChain chain = new RecordingChain(request, response);
+
+    assertSame(response, new ParseGzipInterceptor().intercept(chain));
+  }
+
+  @Test
+  public void testRunsAfterOtherInterceptors() throws Exception {
+    final byte[] content = largeJSON().getBytes("UTF-8");
+    final ByteArrayOutputStream sent = new ByteArrayOutputStream();
+    ParseHttpClient client = new ParseHttpClient<Void, Void>() {
+      @Override
+      ParseHttpResponse executeInternal(ParseHttpRequest request) throws IOException {
+        request.getBody().writeTo(sent);
+        return response(new byte[0], Collections.<String, String>emptyMap());
+      }
+
+      @Override
+      Void getRequest(ParseHttpRequest parseRequest) throws IOException {
+        return null;
+      }
+
+      @Override
+      ParseHttpResponse getResponse(Void response) throws IOException {
+        return null;
+      }
+    };
+    final ByteArrayOutputStream intercepted = new ByteArrayOutputStream();
+    client.addExternalInterceptor(new ParseNetworkInterceptor() {
+      @Override
+      public ParseHttpResponse intercept(Chain chain) throws IOException {
+        chain.getRequest().getBody().writeTo(intercepted);
+        return chain.proceed(chain.getRequest());
+      }
+    });
+    client.setGzipInterceptor(new ParseGzipInterceptor());
+
+    client.execute(new ParseHttpRequest.Builder()
+        .setUrl("http://parse.com")
+        .setMethod(ParseRequest.Method.POST)
+        .setBody(new ParseByteArrayHttpBody(content, "application/json"))
+        .build());
+
+    assertArrayEquals(content, intercepted.toByteArray());
+    assertTrue(sent.size() < content.length);
+    assertArrayEquals(content, gunzip(sent.toByteArray()));
+  }
+
+  @Test
+  public void testEmptyGzippedResponse() throws Exception {
+    Map<String, String> headers = new HashMap<>();
+    headers.put("Content-Encoding", "gzip");
+    ParseHttpRequest request = new ParseHttpRequest.Builder()
+        .setUrl("http://parse.com")
+        .setMethod(ParseRequest.Method.DELETE)
+        .build();
+    RecordingChain chain = new RecordingChain(request, response(new byte[0], headers));
+
+    ParseHttpResponse response = new ParseGzipInterceptor().intercept(chain);
+    InputStream content = response.getContent();
+    // Closing without reading doesn't try to read the gzip header.
+    content.close();
+  }
+}
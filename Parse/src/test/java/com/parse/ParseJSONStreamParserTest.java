@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2015-present, Parse, LLC.
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree. An additional grant
+ * of patent rights can be found in the PATENTS file in the same directory.
+ */
+package com.parse;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.skyscreamer.jsonassert.JSONCompareMode;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.skyscreamer.jsonassert.JSONAssert.assertEquals;
+
+public class ParseJSONStreamParserTest {
+
+  private static JSONObject parse(String json) throws Exception {
+    InputStream in = new ByteArrayInputStream(json.getBytes("UTF-8"));
+    return ParseJSONStreamParser.parseObject(in);
+  }
+
+  @Test
+  public void testParseObject() throws Exception {
+    String json = "{\"results\": [{\"objectId\": \"abc\", \"number\": 1, \"ratio\": 0.5, "
+        + "\"big\": 12345678901, \"flag\": true, \"none\": null, \"nested\": {\"list\": []}}, {}],"
+        + " \"count\": -2}";
+
+    JSONObject object = parse(json);
+
+    assertEquals(new JSONObject(json), object, JSONCompareMode.NON_EXTENSIBLE);
+    JSONObject result = object.getJSONArray("results").getJSONObject(0);
+    assertEquals(1, result.get("number"));
+    assertEquals(0.5, result.get("ratio"));
+    assertEquals(12345678901L, result.get("big"));
+    assertEquals(Boolean.TRUE, result.get("flag"));
+    assertEquals(JSONObject.NULL, result.get("none"));
+    assertEquals(-2, object.get("count"));
+  }
+
+  @Test
+  public void testParseStrings() throws Exception {
+    JSONObject object =
+        parse("{\"escaped\": \"a\\\"b\\\\c\\/d\\n\\u00e9\", \"utf8\": \"é中😀\"}");
+
+    assertEquals("a\"b\\c/d\né", object.getString("escaped"));
+    assertEquals("é中😀", object.getString("utf8"));
+  }
+
+  @Test
+  public void testParseLargeObject() throws Exception {
+    // Larger than the buffer, so values are split across reads.
+    JSONArray results = new JSONArray();
+    for (int i = 0; i < 1000; i++) {
+      JSONObject result = new JSONObject();
+      result.put("objectId", "object" + i);
+      result.put("name", "élément " + i);
+      results.put(result);
+    }
+    JSONObject json = new JSONObject();
+    json.put("results", results);
+
+    assertEquals(json, parse(json.toString()), JSONCompareMode.NON_EXTENSIBLE);
+  }
+
+  @Test
+  public void testParseNumbers() throws Exception {
+    JSONObject object = parse("{\"zero\": 0, \"negativeZero\": -0.0, \"fraction\": -0.25,"
+        + " \"exponent\": 1e3, \"signedExponent\": 25E-1, \"long\": -12345678901,"
+        + " \"huge\": 123456789012345678901}");
+
+    assertEquals(0, object.get("zero"));
+    assertEquals(-0.0, object.get("negativeZero"));
+    assertEquals(-0.25, object.get("fraction"));
+    assertEquals(1000.0, object.get("exponent"));
+    assertEquals(2.5, object.get("signedExponent"));
+    assertEquals(-12345678901L, object.get("long"));
+    assertEquals(123456789012345678901.0, object.get("huge"));
+  }
+
+  @Test(expected = JSONException.class)
+  public void testParseNotObject() throws Exception {
+    parse("[1, 2]");
+  }
+
+  @Test
+  public void testParseInvalid() throws Exception {
+    String[] invalid = {
+        "", "{", "{\"key\"}", "{\"key\": }", "{\"key\": \"value\"", "{\"key\": [1, 2}", "{key: 1}",
+        "{\"key\": undefined}", "<html></html>", "{\"key\": NaN}", "{\"key\": Infinity}",
+        "{\"key\": -Infinity}", "{\"key\": 0x1p3}", "{\"key\": 1f}", "{\"key\": 1d}",
+        "{\"key\": +1}", "{\"key\": 01}", "{\"key\": -01}", "{\"key\": 1.}", "{\"key\": .5}",
+        "{\"key\": 1e}", "{\"key\": 1e+}", "{\"key\": -}", "{\"key\": 1.5.2}"
+    };
+    for (String json : invalid) {
+      try {
+        parse(json);
+        throw new AssertionError("Expected JSONException for " + json);
+      } catch (JSONException e) {
+        assertTrue(e.getMessage().contains("at character"));
+      }
+    }
+  }
+}
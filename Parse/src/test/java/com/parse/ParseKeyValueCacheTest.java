@@ -8,26 +8,39 @@
  */
 package com.parse;
 
+import org.json.JSONObject;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.Callable;
 
 import bolts.Task;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
 public class ParseKeyValueCacheTest {
 
   @Rule
   public TemporaryFolder temporaryFolder = new TemporaryFolder();
 
+  private File cacheDir;
+
   @Before
   public void setUp() throws Exception {
-    ParseKeyValueCache.initialize(temporaryFolder.newFolder("ParseKeyValueCache"));
+    cacheDir = temporaryFolder.newFolder("ParseKeyValueCache");
+    ParseKeyValueCache.initialize(cacheDir);
   }
 
   @After
@@ -35,6 +48,7 @@ public class ParseKeyValueCacheTest {
     ParseKeyValueCache.clearKeyValueCacheDir();
     ParseKeyValueCache.maxKeyValueCacheBytes = ParseKeyValueCache.DEFAULT_MAX_KEY_VALUE_CACHE_BYTES;
     ParseKeyValueCache.maxKeyValueCacheFiles = ParseKeyValueCache.DEFAULT_MAX_KEY_VALUE_CACHE_FILES;
+    ParseKeyValueCache.maxMemoryCacheBytes = ParseKeyValueCache.DEFAULT_MAX_MEMORY_CACHE_BYTES;
   }
 
   @Test
@@ -59,4 +73,152 @@ public class ParseKeyValueCacheTest {
     }
     ParseTaskUtils.wait(Task.whenAll(tasks));
   }
+
+  @Test
+  public void testSaveAndLoad() {
+    ParseKeyValueCache.saveToKeyValueCache("foo", "bar");
+    ParseKeyValueCache.saveToKeyValueCache("foo", "baz");
+
+    assertEquals(1, ParseKeyValueCache.size());
+    assertEquals(1, cacheDir.listFiles().length);
+    assertEquals("baz", ParseKeyValueCache.loadFromKeyValueCache("foo", Long.MAX_VALUE));
+    assertNull(ParseKeyValueCache.loadFromKeyValueCache("bar", Long.MAX_VALUE));
+
+    ParseKeyValueCache.clearFromKeyValueCache("foo");
+    assertEquals(0, ParseKeyValueCache.size());
+    assertNull(ParseKeyValueCache.loadFromKeyValueCache("foo", Long.MAX_VALUE));
+  }
+
+  @Test
+  public void testEvictsLeastRecentlyUsed() {
+    ParseKeyValueCache.maxKeyValueCacheFiles = 2;
+
+    ParseKeyValueCache.saveToKeyValueCache("a", "test");
+    ParseKeyValueCache.saveToKeyValueCache("b", "test");
+    ParseKeyValueCache.loadFromKeyValueCache("a", Long.MAX_VALUE);
+    ParseKeyValueCache.saveToKeyValueCache("c", "test");
+
+    assertEquals(2, ParseKeyValueCache.size());
+    assertEquals(2, cacheDir.listFiles().length);
+    assertEquals("test", ParseKeyValueCache.loadFromKeyValueCache("a", Long.MAX_VALUE));
+    assertNull(ParseKeyValueCache.loadFromKeyValueCache("b", Long.MAX_VALUE));
+    assertEquals("test", ParseKeyValueCache.loadFromKeyValueCache("c", Long.MAX_VALUE));
+  }
+
+  @Test
+  public void testEvictsBySize() {
+    ParseKeyValueCache.maxKeyValueCacheBytes = 10;
+
+    ParseKeyValueCache.saveToKeyValueCache("a", "12345");
+    ParseKeyValueCache.saveToKeyValueCache("b", "12345");
+    ParseKeyValueCache.saveToKeyValueCache("c", "12345");
+
+    assertEquals(2, ParseKeyValueCache.size());
+    assertNull(ParseKeyValueCache.loadFromKeyValueCache("a", Long.MAX_VALUE));
+  }
+
+  @Test
+  public void testLoadFromExistingDirectory() throws Exception {
+    ParseKeyValueCache.saveToKeyValueCache("foo", "bar");
+    // Left behind by a write that never finished.
+    FileOutputStream out = new FileOutputStream(new File(cacheDir, "tmp.12345.baz"));
+    out.write("partial".getBytes("UTF-8"));
+    out.close();
+
+    ParseKeyValueCache.initialize(cacheDir);
+
+    assertEquals(1, ParseKeyValueCache.size());
+    assertEquals("bar", ParseKeyValueCache.loadFromKeyValueCache("foo", Long.MAX_VALUE));
+    assertNull(ParseKeyValueCache.loadFromKeyValueCache("12345.baz", Long.MAX_VALUE));
+    assertFalse(new File(cacheDir, "tmp.12345.baz").exists());
+  }
+
+  @Test
+  public void testLoadExpired() throws Exception {
+    // An entry written at the epoch.
+    FileOutputStream out = new FileOutputStream(new File(cacheDir, "0.foo"));
+    out.write("bar".getBytes("UTF-8"));
+    out.close();
+    ParseKeyValueCache.initialize(cacheDir);
+
+    assertNull(ParseKeyValueCache.loadFromKeyValueCache("foo", 1000));
+    assertEquals("bar", ParseKeyValueCache.loadFromKeyValueCache("foo", Long.MAX_VALUE));
+  }
+
+  //region Memory
+
+  @Test
+  public void testJSONFromMemory() throws Exception {
+    ParseKeyValueCache.saveToKeyValueCache("foo", "{\"count\":1}");
+
+    JSONObject json = ParseKeyValueCache.jsonFromKeyValueCache("foo", Long.MAX_VALUE);
+    assertEquals(1, json.getInt("count"));
+    assertEquals(1, ParseKeyValueCache.memorySize());
+
+    // Served from memory even if the file is gone.
+    for (File file : cacheDir.listFiles()) {
+      file.delete();
+    }
+    assertSame(json, ParseKeyValueCache.jsonFromKeyValueCache("foo", Long.MAX_VALUE));
+  }
+
+  @Test
+  public void testJSONFromMemoryIsMostRecentlyUsed() throws Exception {
+    ParseKeyValueCache.maxKeyValueCacheFiles = 2;
+
+    ParseKeyValueCache.saveToKeyValueCache("a", "{}");
+    ParseKeyValueCache.jsonFromKeyValueCache("a", Long.MAX_VALUE);
+    ParseKeyValueCache.saveToKeyValueCache("b", "{}");
+    // Served from memory, but still keeps the file from being evicted.
+    ParseKeyValueCache.jsonFromKeyValueCache("a", Long.MAX_VALUE);
+    ParseKeyValueCache.saveToKeyValueCache("c", "{}");
+
+    assertNotNull(ParseKeyValueCache.loadFromKeyValueCache("a", Long.MAX_VALUE));
+    assertNull(ParseKeyValueCache.loadFromKeyValueCache("b", Long.MAX_VALUE));
+  }
+
+  @Test
+  public void testJSONFromMemoryInvalidated() throws Exception {
+    ParseKeyValueCache.saveToKeyValueCache("foo", "{\"count\":1}");
+    JSONObject json = ParseKeyValueCache.jsonFromKeyValueCache("foo", Long.MAX_VALUE);
+
+    ParseKeyValueCache.saveToKeyValueCache("foo", "{\"count\":2}");
+    JSONObject updated = ParseKeyValueCache.jsonFromKeyValueCache("foo", Long.MAX_VALUE);
+    assertNotSame(json, updated);
+    assertEquals(2, updated.getInt("count"));
+
+    ParseKeyValueCache.clearFromKeyValueCache("foo");
+    assertEquals(0, ParseKeyValueCache.memorySize());
+    assertNull(ParseKeyValueCache.jsonFromKeyValueCache("foo", Long.MAX_VALUE));
+  }
+
+  @Test
+  public void testJSONFromMemoryExpired() throws Exception {
+    FileOutputStream out = new FileOutputStream(new File(cacheDir, "0.foo"));
+    out.write("{}".getBytes("UTF-8"));
+    out.close();
+    ParseKeyValueCache.initialize(cacheDir);
+
+    assertNotNull(ParseKeyValueCache.jsonFromKeyValueCache("foo", Long.MAX_VALUE));
+    assertEquals(1, ParseKeyValueCache.memorySize());
+    assertNull(ParseKeyValueCache.jsonFromKeyValueCache("foo", 1000));
+  }
+
+  @Test
+  public void testMemoryEvictsBySize() throws Exception {
+    // Each value is 2 chars, or 4 bytes.
+    ParseKeyValueCache.maxMemoryCacheBytes = 8;
+
+    ParseKeyValueCache.saveToKeyValueCache("a", "{}");
+    ParseKeyValueCache.saveToKeyValueCache("b", "{}");
+    ParseKeyValueCache.saveToKeyValueCache("c", "{}");
+    ParseKeyValueCache.jsonFromKeyValueCache("a", Long.MAX_VALUE);
+    ParseKeyValueCache.jsonFromKeyValueCache("b", Long.MAX_VALUE);
+    ParseKeyValueCache.jsonFromKeyValueCache("c", Long.MAX_VALUE);
+
+    assertEquals(2, ParseKeyValueCache.memorySize());
+    assertEquals(3, ParseKeyValueCache.size());
+  }
+
+  //endregion
 }
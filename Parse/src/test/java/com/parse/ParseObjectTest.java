@@ -318,4 +318,78 @@ public class ParseObjectTest {
   }
   
   //endregion
+
+  //region testSetState
+
+  @Test
+  public void testSetStateRegeneratesChangedKeys() {
+    ParseObject object = new ParseObject("Test");
+    List<Object> list = Arrays.<Object>asList("a", "b");
+    object.setState(new ParseObject.State.Builder("Test")
+        .objectId("abc")
+        .put("count", 1)
+        .put("list", list)
+        .put("name", "a")
+        .build());
+    object.increment("count", 2);
+
+    object.setState(object.getState().newBuilder()
+        .put("name", "b")
+        .build());
+
+    assertEquals(3, object.getInt("count"));
+    assertEquals("b", object.getString("name"));
+    assertTrue(list == object.getList("list"));
+    assertTrue(object.isDirty("count"));
+    assertFalse(object.isDirty("name"));
+  }
+
+  @Test
+  public void testSetStateAfterSave() {
+    ParseObject object = new ParseObject("Test");
+    object.setState(new ParseObject.State.Builder("Test")
+        .objectId("abc")
+        .put("count", 1)
+        .put("name", "a")
+        .build());
+    object.increment("count", 2);
+    object.put("other", "value");
+    ParseOperationSet operations = object.startSave();
+    object.increment("count", 1);
+    assertEquals(4, object.getInt("count"));
+
+    // The server applied the save, and the operation set was removed from the queue.
+    object.operationSetQueue.remove(operations);
+    object.setState(object.getState().newBuilder()
+        .put("count", 3)
+        .put("other", "value")
+        .build());
+
+    assertEquals(4, object.getInt("count"));
+    assertEquals("value", object.getString("other"));
+    assertEquals("a", object.getString("name"));
+    assertTrue(object.isDirty("count"));
+    assertFalse(object.isDirty("other"));
+  }
+
+  @Test
+  public void testSetStateAfterRemovingOperations() {
+    ParseObject object = new ParseObject("Test");
+    object.setState(new ParseObject.State.Builder("Test")
+        .objectId("abc")
+        .put("name", "a")
+        .build());
+    object.put("name", "b");
+    object.put("other", "value");
+    ParseOperationSet operations = object.startSave();
+
+    // The operations were dropped without being applied to the server data.
+    object.operationSetQueue.remove(operations);
+    object.setState(object.getState());
+
+    assertEquals("a", object.getString("name"));
+    assertFalse(object.has("other"));
+  }
+
+  //endregion
 }
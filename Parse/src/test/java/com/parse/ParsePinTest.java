@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) 2015-present, Parse, LLC.
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree. An additional grant
+ * of patent rights can be found in the PATENTS file in the same directory.
+ */
+package com.parse;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ParsePinTest {
+
+  @Before
+  public void setUp() {
+    ParseObject.registerSubclass(ParsePin.class);
+  }
+
+  @After
+  public void tearDown() {
+    ParseObject.unregisterSubclass(ParsePin.class);
+  }
+
+  @Test
+  public void testAddObjects() {
+    ParseObject a = new ParseObject("TestObject");
+    ParseObject b = new ParseObject("TestObject");
+    ParseObject c = new ParseObject("TestObject");
+    ParsePin pin = new ParsePin();
+    assertNull(pin.getObjects());
+
+    pin.addObjects(Arrays.asList(a, b, a));
+    assertEquals(Arrays.asList(a, b), pin.getObjects());
+
+    pin.addObjects(Arrays.asList(b, c));
+    assertEquals(Arrays.asList(a, b, c), pin.getObjects());
+  }
+
+  @Test
+  public void testRemoveObjects() {
+    ParseObject a = new ParseObject("TestObject");
+    ParseObject b = new ParseObject("TestObject");
+    ParseObject c = new ParseObject("TestObject");
+    ParsePin pin = new ParsePin();
+    assertFalse(pin.removeObjects(Collections.singletonList(a)));
+
+    pin.addObjects(Arrays.asList(a, b, c));
+    assertTrue(pin.removeObjects(Arrays.asList(c, a)));
+    assertEquals(Collections.singletonList(b), pin.getObjects());
+
+    assertFalse(pin.removeObjects(Collections.singletonList(a)));
+    assertEquals(Collections.singletonList(b), pin.getObjects());
+  }
+}
@@ -326,6 +326,17 @@ public class ParseQueryTest {
     assertEquals(ParseObject.DEFAULT_PIN, state.pinName());
   }
 
+  @Test(expected = IllegalStateException.class)
+  public void testFindEachRequiresLocalDatastore() {
+    ParseQuery<ParseObject> query = new ParseQuery<>("Test");
+    query.findEachInBackground(new EachCallback<ParseObject>() {
+      @Override
+      public boolean next(ParseObject object) {
+        return true;
+      }
+    });
+  }
+
   @Test
   public void testMaxCacheAge() throws Exception {
     ParseQuery<ParseObject> query = new ParseQuery<>("Test");
@@ -429,6 +440,19 @@ public class ParseQueryTest {
     verifyCondition(query, "key", "$regex", "^" + Pattern.quote(value));
   }
 
+  @Test
+  public void testWhereFullText() throws Exception {
+    ParseQuery<ParseObject> query = new ParseQuery<>("Test");
+
+    query.whereFullText("key", "some words");
+
+    ParseQuery.State state = query.getBuilder().build();
+    ParseQuery.KeyConstraints keyConstraints =
+        (ParseQuery.KeyConstraints) state.constraints().get("key");
+    Map text = (Map) keyConstraints.get("$text");
+    assertEquals("some words", ((Map) text.get("$search")).get("$term"));
+  }
+
   @Test
   public void testWhereEndsWith() throws Exception {
     ParseQuery<ParseObject> query = new ParseQuery<>("Test");